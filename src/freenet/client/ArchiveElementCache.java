@@ -0,0 +1,225 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * The cache of extracted archive elements used by ArchiveManager, bounded both by total bytes
+ * and by number of elements.
+ *
+ * Loading a freesite from a container means looking up many elements at once, so lookups must
+ * not contend on a single lock: they only touch a ConcurrentHashMap and stamp the element with
+ * an access counter. Eviction is approximately LRU: when an insert takes us over a limit, we
+ * sort the elements by their last access and drop the oldest until we are comfortably below
+ * the limit, so that the sort is amortized over many inserts.
+ *
+ * Elements are grouped by the archive they came from. An archive is pinned while it is being
+ * extracted, so the element the caller is waiting for and the archive's metadata are never
+ * dropped before they can be used. An archive that was used recently (e.g. by the other
+ * requests for the same page) is evicted only after all the others. Pinned archives may take
+ * the cache over its limits.
+ *
+ * LOCKING: Lookups and inserts are lock-free. Eviction is synchronized on evictionLock, and
+ * evicted items are returned to the caller to close outside the lock.
+ */
+class ArchiveElementCache {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ArchiveElementCache.class);
+	}
+
+	/** An archive is treated as in use for this long after its last access. Long enough to
+	 * cover the browser fetching the rest of a page. */
+	static final long RECENTLY_USED_TIME = MINUTES.toMillis(1);
+	/** Evict down to this fraction of the limits, so we don't sort on every insert. */
+	static final double TRIM_TO = 0.9;
+
+	private final long maxCachedData;
+	private final int maxCachedElements;
+	private final ConcurrentHashMap<ArchiveKey, Node> items;
+	private final ConcurrentHashMap<FreenetURI, ArchiveUse> archives;
+	private final AtomicLong cachedData = new AtomicLong();
+	private final AtomicLong clock = new AtomicLong();
+	private final Object evictionLock = new Object();
+
+	private static class Node {
+		final ArchiveStoreItem item;
+		final long size;
+		volatile long lastAccess;
+
+		Node(ArchiveStoreItem item, long lastAccess) {
+			this.item = item;
+			this.size = item.spaceUsed();
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	/** Tracks whether an archive is in use. Pinning and removal are synchronized on the
+	 * object, so a pin can't be lost by removing it at the same time. */
+	private static class ArchiveUse {
+		final AtomicInteger pins = new AtomicInteger();
+		volatile long lastAccess;
+		boolean removed;
+	}
+
+	ArchiveElementCache(long maxCachedData, int maxCachedElements) {
+		this.maxCachedData = maxCachedData;
+		this.maxCachedElements = maxCachedElements;
+		items = new ConcurrentHashMap<ArchiveKey, Node>();
+		archives = new ConcurrentHashMap<FreenetURI, ArchiveUse>();
+	}
+
+	ArchiveStoreItem get(ArchiveKey key, long now) {
+		Node node = items.get(key);
+		if(node == null) return null;
+		node.lastAccess = clock.incrementAndGet();
+		touch(key.key, now);
+		return node.item;
+	}
+
+	/** Add an item, replacing any item with the same key.
+	 * @return The item replaced, which the caller must close, or null. */
+	ArchiveStoreItem put(ArchiveStoreItem item, long now) {
+		Node node = new Node(item, clock.incrementAndGet());
+		touch(item.key.key, now);
+		cachedData.addAndGet(node.size);
+		Node old = items.put(item.key, node);
+		if(old == null) return null;
+		cachedData.addAndGet(-old.size);
+		return old.item;
+	}
+
+	/** Remove an item, if it is still in the cache.
+	 * @return True if it was removed, in which case the caller must close it. */
+	boolean remove(ArchiveStoreItem item) {
+		Node node = items.get(item.key);
+		if(node == null || node.item != item) return false;
+		if(!items.remove(item.key, node)) return false;
+		cachedData.addAndGet(-node.size);
+		return true;
+	}
+
+	private ArchiveUse touch(FreenetURI archive, long now) {
+		ArchiveUse use = archives.get(archive);
+		if(use == null) {
+			use = new ArchiveUse();
+			ArchiveUse old = archives.putIfAbsent(archive, use);
+			if(old != null) use = old;
+		}
+		use.lastAccess = now;
+		return use;
+	}
+
+	/** Don't evict anything from the archive until unpin() is called. Calls nest. */
+	void pin(FreenetURI archive, long now) {
+		while(true) {
+			ArchiveUse use = touch(archive, now);
+			synchronized(use) {
+				if(use.removed) continue;
+				use.pins.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	void unpin(FreenetURI archive, long now) {
+		ArchiveUse use = archives.get(archive);
+		if(use == null) return;
+		use.lastAccess = now;
+		if(use.pins.decrementAndGet() < 0) {
+			Logger.error(this, "Unpinned more times than pinned: "+archive, new Exception("debug"));
+			use.pins.set(0);
+		}
+	}
+
+	boolean isOverLimit() {
+		return cachedData.get() > maxCachedData || items.size() > maxCachedElements;
+	}
+
+	/** Remove items until we are within the limits, least recently used first, and those
+	 * from recently used archives last.
+	 * @return The items removed, which the caller must close. */
+	List<ArchiveStoreItem> trim(long now) {
+		if(!isOverLimit()) return Collections.emptyList();
+		synchronized(evictionLock) {
+			if(!isOverLimit()) return Collections.emptyList();
+			long targetData = (long) (maxCachedData * TRIM_TO);
+			int targetElements = (int) (maxCachedElements * TRIM_TO);
+			List<Node> idle = new ArrayList<Node>();
+			List<Node> recent = new ArrayList<Node>();
+			for(Node node : items.values()) {
+				ArchiveUse use = archives.get(node.item.key.key);
+				if(use == null || (use.pins.get() == 0 && now - use.lastAccess > RECENTLY_USED_TIME))
+					idle.add(node);
+				else if(use.pins.get() == 0)
+					recent.add(node);
+			}
+			Comparator<Node> lru = new Comparator<Node>() {
+
+				@Override
+				public int compare(Node n1, Node n2) {
+					return Long.compare(n1.lastAccess, n2.lastAccess);
+				}
+
+			};
+			Collections.sort(idle, lru);
+			Collections.sort(recent, lru);
+			idle.addAll(recent);
+			List<ArchiveStoreItem> removed = new ArrayList<ArchiveStoreItem>();
+			for(Node node : idle) {
+				if(cachedData.get() <= targetData && items.size() <= targetElements) break;
+				if(items.remove(node.item.key, node)) {
+					cachedData.addAndGet(-node.size);
+					removed.add(node.item);
+				}
+			}
+			if(isOverLimit())
+				Logger.normal(this, "Archive cache over limit because of pinned archives: "+
+						cachedData.get()+" bytes in "+items.size()+" elements");
+			removeUnusedArchives(now);
+			if(logMINOR) Logger.minor(this, "Dropped "+removed.size()+" items, now "+
+					cachedData.get()+" bytes in "+items.size()+" elements");
+			return removed;
+		}
+	}
+
+	/** Forget archives which are not pinned or recently used. Their items will be treated
+	 * as idle. */
+	private void removeUnusedArchives(long now) {
+		Iterator<Map.Entry<FreenetURI, ArchiveUse>> it = archives.entrySet().iterator();
+		while(it.hasNext()) {
+			ArchiveUse use = it.next().getValue();
+			synchronized(use) {
+				if(use.pins.get() == 0 && now - use.lastAccess > RECENTLY_USED_TIME) {
+					use.removed = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	long getCachedData() {
+		return cachedData.get();
+	}
+
+	int size() {
+		return items.size();
+	}
+
+}
@@ -121,10 +121,8 @@ public class ArchiveManager {
 	final int maxCachedElements;
 	/** Maximum cached data in bytes */
 	final long maxCachedData;
-	/** Currently cached data in bytes */
-	private long cachedData;
-	/** Map from ArchiveKey to ArchiveStoreElement */
-	private final LRUMap<ArchiveKey, ArchiveStoreItem> storedData;
+	/** Extracted elements by ArchiveKey */
+	private final ArchiveElementCache storedData;
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
 
@@ -148,7 +146,7 @@ public class ArchiveManager {
 		archiveHandlers = LRUMap.createSafeMap(FreenetURI.FAST_COMPARATOR);
 		this.maxCachedElements = maxCachedElements;
 		this.maxCachedData = maxCachedData;
-		storedData = new LRUMap<ArchiveKey, ArchiveStoreItem>();
+		storedData = new ArchiveElementCache(maxCachedData, maxCachedElements);
 		this.maxArchivedFileSize = maxArchivedFileSize;
 		this.tempBucketFactory = tempBucketFactory;
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
@@ -213,13 +211,8 @@ public class ArchiveManager {
 	public Bucket getCached(FreenetURI key, String filename) throws ArchiveFailureException {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
-		ArchiveStoreItem asi = null;
-		synchronized (this) {
-			asi = storedData.get(k);
-			if(asi == null) return null;
-			// Promote to top of LRU
-			storedData.push(k, asi);
-		}
+		ArchiveStoreItem asi = storedData.get(k, System.currentTimeMillis());
+		if(asi == null) return null;
 		if(logMINOR) Logger.minor(this, "Found data");
 		return asi.getReaderBucket();
 	}
@@ -229,15 +222,10 @@ public class ArchiveManager {
 	 * ArchiveHandler.
 	 * @param item The ArchiveStoreItem to remove.
 	 */
-	synchronized void removeCachedItem(ArchiveStoreItem item) {
-		long size = item.spaceUsed();
-		storedData.removeKey(item.key);
-		// Hard disk space limit = remove it here.
-		// Soft disk space limit would be to remove it outside the lock.
-		// Soft disk space limit = we go over the limit significantly when we
-		// are overloaded.
-		cachedData -= size;
+	void removeCachedItem(ArchiveStoreItem item) {
+		storedData.remove(item);
 		if(logMINOR) Logger.minor(this, "removeCachedItem: "+item);
+		// Close it even if it was already evicted, so the context forgets it.
 		item.close();
 	}
 
@@ -255,13 +243,23 @@ public class ArchiveManager {
 	 * @throws ArchiveRestartException If the request needs to be restarted because the archive
 	 * changed.
 	 */
-	public void extractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, final Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+	public void extractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, final COMPRESSOR_TYPE ctype, final Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 
 		MutableBoolean gotElement = element != null ? new MutableBoolean() : null;
 
 		if(logMINOR) Logger.minor(this, "Extracting "+key);
 		ctx.removeAllCachedItems(this); // flush cache anyway
+		// Keep what we extract until the caller has had a chance to use it.
+		storedData.pin(key, System.currentTimeMillis());
+		try {
+			extractToCache(key, archiveType, ctype, data, archiveContext, ctx, element, gotElement, callback, context);
+		} finally {
+			storedData.unpin(key, System.currentTimeMillis());
+		}
+	}
+
+	private void extractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, final COMPRESSOR_TYPE ctype, final Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, MutableBoolean gotElement, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		final long expectedSize = ctx.getLastSize();
 		final long archiveSize = data.size();
 		/** Set if we need to throw a RestartedException rather than returning success,
@@ -307,9 +305,11 @@ public class ArchiveManager {
 				if(logMINOR) Logger.minor(this, "dealing with GZIP");
 				is = new GZIPInputStream(data.getInputStream());
 				wrapper = null;
-			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW) {
+			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW || ctype == COMPRESSOR_TYPE.BZIP2_PARALLEL
+					|| ctype == COMPRESSOR_TYPE.LZMA_PARALLEL) {
 				// LZMA internally uses pipe streams, so we may as well do it here.
 				// In fact we need to for LZMA_NEW, because of the properties bytes.
+				// The parallel codecs have their own framing so also only have decompress().
 				PipedInputStream pis = new PipedInputStream();
 				PipedOutputStream pos = new PipedOutputStream();
 				pis.connect(pos);
@@ -321,7 +321,7 @@ public class ArchiveManager {
 					public void run() {
 						InputStream is = null;
 						try {
-							Compressor.COMPRESSOR_TYPE.LZMA_NEW.decompress(is = data.getInputStream(), os, data.size(), expectedSize);
+							ctype.decompress(is = data.getInputStream(), os, data.size(), expectedSize);
 						} catch (CompressionOutputSizeException e) {
 							Logger.error(this, "Failed to decompress archive: "+e, e);
 							wrapper.set(e);
@@ -378,7 +378,7 @@ public class ArchiveManager {
 			HashSet<String> names = new HashSet<String>();
 			boolean gotMetadata = false;
 
-outerTAR:		while(true) {
+			while(true) {
 				try {
 				entry = tarIS.getNextEntry();
 				} catch (IllegalArgumentException e) {
@@ -398,29 +398,9 @@ outerTAR:		while(true) {
 				if(size > maxArchivedFileSize && !name.equals(element)) {
 					addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
 				} else {
-					// Read the element
-					long realLen = 0;
-					Bucket output = tempBucketFactory.makeBucket(size);
-					OutputStream out = output.getOutputStream();
-
-					try {
-						int readBytes;
-						while((readBytes = tarIS.read(buf)) > 0) {
-							out.write(buf, 0, readBytes);
-							readBytes += realLen;
-							if(readBytes > maxArchivedFileSize) {
-								addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-								out.close();
-								out = null;
-								output.free();
-								continue outerTAR;
-							}
-						}
-						
-					} finally {
-						if(out != null) out.close();
-					}
-					if(size <= maxArchivedFileSize) {
+					Bucket output = extractElement(ctx, key, name, size, name.equals(element), tarIS, buf);
+					if(output == null) continue;
+					if(output.size() <= maxArchivedFileSize) {
 						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
 						names.add(name);
 						trimStoredData();
@@ -428,7 +408,7 @@ outerTAR:		while(true) {
 						// We are here because they asked for this file.
 						callback.gotBucket(output, context);
 						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+						addErrorElement(ctx, key, name, "File too big: "+output.size()+" greater than current archived file size limit "+maxArchivedFileSize, true);
 					}
 				}
 			}
@@ -463,7 +443,7 @@ outerTAR:		while(true) {
 			HashSet<String> names = new HashSet<String>();
 			boolean gotMetadata = false;
 
-outerZIP:		while(true) {
+			while(true) {
 				entry = zis.getNextEntry();
 				if(entry == null) break;
 				if(entry.isDirectory()) continue;
@@ -478,29 +458,9 @@ outerZIP:		while(true) {
 				if(size > maxArchivedFileSize && !name.equals(element)) {
 					addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
 				} else {
-					// Read the element
-					long realLen = 0;
-					Bucket output = tempBucketFactory.makeBucket(size);
-					OutputStream out = output.getOutputStream();
-					try {
-						
-						int readBytes;
-						while((readBytes = zis.read(buf)) > 0) {
-							out.write(buf, 0, readBytes);
-							readBytes += realLen;
-							if(readBytes > maxArchivedFileSize) {
-								addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-								out.close();
-								out = null;
-								output.free();
-								continue outerZIP;
-							}
-						}
-						
-					} finally {
-						if(out != null) out.close();
-					}
-					if(size <= maxArchivedFileSize) {
+					Bucket output = extractElement(ctx, key, name, size, name.equals(element), zis, buf);
+					if(output == null) continue;
+					if(output.size() <= maxArchivedFileSize) {
 						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
 						names.add(name);
 						trimStoredData();
@@ -508,7 +468,7 @@ outerZIP:		while(true) {
 						// We are here because they asked for this file.
 						callback.gotBucket(output, context);
 						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+						addErrorElement(ctx, key, name, "File too big: "+output.size()+" greater than current archived file size limit "+maxArchivedFileSize, true);
 					}
 				}
 			}
@@ -536,6 +496,40 @@ outerZIP:		while(true) {
 		}
 	}
 
+	/**
+	 * Read one element from the archive straight into a bucket for the cache. The size given
+	 * in the archive is only a hint, so the limit is enforced while reading, and we stop
+	 * reading an element as soon as it exceeds it.
+	 * @param size The size according to the archive, or -1 if unknown.
+	 * @param requested True if the caller has asked for this particular element. We read it
+	 * whatever its size, since the archive size may be unknown or wrong.
+	 * @return The data, or null if it was too big, in which case we have added an error
+	 * element.
+	 */
+	private Bucket extractElement(ArchiveStoreContext ctx, FreenetURI key, String name, long size, boolean requested, InputStream is, byte[] buf) throws IOException {
+		long limit = requested ? Long.MAX_VALUE : maxArchivedFileSize;
+		long realLen = 0;
+		Bucket output = tempBucketFactory.makeBucket(size);
+		OutputStream out = output.getOutputStream();
+		try {
+			int readBytes;
+			while((readBytes = is.read(buf)) > 0) {
+				realLen += readBytes;
+				if(realLen > limit) {
+					addErrorElement(ctx, key, name, "File too big: "+realLen+" greater than current archived file size limit "+maxArchivedFileSize, true);
+					out.close();
+					out = null;
+					output.free();
+					return null;
+				}
+				out.write(buf, 0, readBytes);
+			}
+		} finally {
+			if(out != null) out.close();
+		}
+		return output;
+	}
+
 	private String stripLeadingSlashes(String name) {
 		while(name.length() > 1 && name.charAt(0) == '/')
 			name = name.substring(1);
@@ -636,15 +630,10 @@ outerZIP:		while(true) {
 		ErrorArchiveStoreItem element = new ErrorArchiveStoreItem(ctx, key, name, error, tooBig);
 		element.addToContext();
 		if(logMINOR) Logger.minor(this, "Adding error element: "+element+" for "+key+ ' ' +name);
-		ArchiveStoreItem oldItem;
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			if(oldItem != null) {
-				oldItem.close();
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-			}
+		ArchiveStoreItem oldItem = storedData.put(element, System.currentTimeMillis());
+		if(oldItem != null) {
+			if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
+			oldItem.close();
 		}
 	}
 
@@ -669,15 +658,10 @@ outerZIP:		while(true) {
 		if((!gotElement.value) && name.equals(callbackName)) {
 			matchBucket = element.getReaderBucket();
 		}
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			cachedData += element.spaceUsed();
-			if(oldItem != null) {
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-				oldItem.close();
-			}
+		oldItem = storedData.put(element, System.currentTimeMillis());
+		if(oldItem != null) {
+			if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
+			oldItem.close();
 		}
 		if(matchBucket != null) {
 			callback.gotBucket(matchBucket, context);
@@ -688,28 +672,13 @@ outerZIP:		while(true) {
 
 	/**
 	 * Drop any stored data beyond the limit.
-	 * Call synchronized on storedData.
 	 */
 	private void trimStoredData() {
-		synchronized(this) {
-		while(true) {
-			ArchiveStoreItem item;
-				if(cachedData <= maxCachedData && storedData.size() <= maxCachedElements) return;
-				if(storedData.isEmpty()) {
-					// Race condition? cachedData out of sync?
-					Logger.error(this, "storedData is empty but still over limit: cachedData="+cachedData+" / "+maxCachedData);
-					return;
-				}
-				item = storedData.popValue();
-				long space = item.spaceUsed();
-				cachedData -= space;
-				// Hard limits = delete file within lock, soft limits = delete outside of lock
-				// Here we use a hard limit
+		for(ArchiveStoreItem item : storedData.trim(System.currentTimeMillis())) {
 			if(logMINOR)
-				Logger.minor(this, "Dropping "+item+" : cachedData="+cachedData+" of "+maxCachedData+" stored items : "+storedData.size()+" of "+maxCachedElements);
+				Logger.minor(this, "Dropping "+item+" : cachedData="+storedData.getCachedData()+" of "+maxCachedData+" stored items : "+storedData.size()+" of "+maxCachedElements);
 			item.close();
 		}
-		}
 	}
 
 }
@@ -0,0 +1,24 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+/**
+ * Thrown by the getDocument() family of Metadata when a manifest entry, which is only decoded
+ * when it is first used, turns out to be invalid. It is unchecked so that those methods keep
+ * their signatures; fetchers should convert it back with getCause().
+ */
+public class InvalidManifestEntryException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public InvalidManifestEntryException(MetadataParseException cause) {
+		super(cause.getMessage(), cause);
+	}
+
+	@Override
+	public synchronized MetadataParseException getCause() {
+		return (MetadataParseException) super.getCause();
+	}
+
+}
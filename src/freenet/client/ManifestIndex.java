@@ -0,0 +1,264 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * The entries of a parsed simple manifest, kept in their serialized form. A manifest for a big
+ * site can have thousands of entries, but a fetch only looks at one of them, so we only decode
+ * an entry's Metadata when it is asked for. Apart from the serialized bytes, the index is a
+ * single int array of entry offsets sorted by name, which we binary search on the UTF-8 bytes
+ * of the name.
+ *
+ * Decoded entries are kept, so asking for the same entry twice returns the same object, as it
+ * did when the whole manifest was decoded up front.
+ */
+class ManifestIndex implements Cloneable, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The serialized entries: name length (short), name (UTF-8), data length (short), data. */
+	private final byte[] data;
+	/** Offset of each entry in data, sorted by name. If a name occurs more than once, only the
+	 * last entry is kept, as with a HashMap. */
+	private final int[] entries;
+	/** Entries already decoded, by position in entries. Created when first needed. */
+	private Metadata[] decoded;
+	/** Entries removed by grabDocument(). Created when first needed. */
+	private boolean[] removed;
+	private int removedCount;
+
+	private ManifestIndex(byte[] data, int[] entries) {
+		this.data = data;
+		this.entries = entries;
+	}
+
+	/** Read the entries of a manifest, checking their sizes but not decoding them.
+	 * @param count The number of entries.
+	 * @param length The length of the whole metadata. */
+	static ManifestIndex read(DataInputStream dis, int count, long length) throws IOException, MetadataParseException {
+		byte[] buf = new byte[(int) Math.min(Math.max(length, 64), 1024*1024)];
+		int size = 0;
+		final int[] offsets = new int[count];
+		for(int i=0;i<count;i++) {
+			short nameLength = dis.readShort();
+			if(nameLength < 0)
+				throw new MetadataParseException("Invalid manifest entry name length: "+nameLength);
+			buf = ensureCapacity(buf, size + 2 + nameLength + 2);
+			offsets[i] = size;
+			writeShort(buf, size, nameLength);
+			size += 2;
+			dis.readFully(buf, size, nameLength);
+			size += nameLength;
+			short len = dis.readShort();
+			if(len < 0)
+				throw new MetadataParseException("Invalid manifest entry size: "+len);
+			if(len > length)
+				throw new MetadataParseException("Impossibly long manifest entry: "+len+" - metadata size "+length);
+			writeShort(buf, size, len);
+			size += 2;
+			buf = ensureCapacity(buf, size + len);
+			dis.readFully(buf, size, len);
+			size += len;
+		}
+		final byte[] data = Arrays.copyOf(buf, size);
+		// A stable sort, so the last of several entries with the same name comes last.
+		Integer[] sorted = new Integer[count];
+		for(int i=0;i<count;i++) sorted[i] = offsets[i];
+		Arrays.sort(sorted, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return compareNames(data, o1, o2);
+			}
+
+		});
+		int[] entries = new int[count];
+		int unique = 0;
+		for(int i=0;i<count;i++) {
+			if(i+1 < count && compareNames(data, sorted[i], sorted[i+1]) == 0) continue;
+			entries[unique++] = sorted[i];
+		}
+		if(unique < count) entries = Arrays.copyOf(entries, unique);
+		return new ManifestIndex(data, entries);
+	}
+
+	private static byte[] ensureCapacity(byte[] buf, int size) {
+		if(size <= buf.length) return buf;
+		return Arrays.copyOf(buf, Math.max(size, buf.length * 2));
+	}
+
+	private static void writeShort(byte[] buf, int offset, short value) {
+		buf[offset] = (byte) (value >> 8);
+		buf[offset+1] = (byte) value;
+	}
+
+	private static int readShort(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 8) | (buf[offset+1] & 0xFF);
+	}
+
+	private static int compareNames(byte[] data, int offset1, int offset2) {
+		int len1 = readShort(data, offset1);
+		int len2 = readShort(data, offset2);
+		return compareBytes(data, offset1 + 2, len1, data, offset2 + 2, len2);
+	}
+
+	/** Compare as unsigned bytes, so the order is the same as comparing code points. */
+	private static int compareBytes(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+		int len = Math.min(aLen, bLen);
+		for(int i=0;i<len;i++) {
+			int x = a[aOff+i] & 0xFF;
+			int y = b[bOff+i] & 0xFF;
+			if(x != y) return x - y;
+		}
+		return aLen - bLen;
+	}
+
+	private static byte[] encodeName(String name) {
+		try {
+			return name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	/** @return The position of the entry in entries, or -1. */
+	private int find(String name) {
+		byte[] key = encodeName(name);
+		int lo = 0;
+		int hi = entries.length - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int offset = entries[mid];
+			int cmp = compareBytes(data, offset + 2, readShort(data, offset), key, 0, key.length);
+			if(cmp < 0)
+				lo = mid + 1;
+			else if(cmp > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/** @throws InvalidManifestEntryException If the entry is invalid. */
+	private synchronized Metadata decode(int i) {
+		if(decoded == null) decoded = new Metadata[entries.length];
+		Metadata m = decoded[i];
+		if(m != null) return m;
+		int offset = entries[i];
+		offset += 2 + readShort(data, offset);
+		int len = readShort(data, offset);
+		offset += 2;
+		try {
+			m = new Metadata(new DataInputStream(new ByteArrayInputStream(data, offset, len)), len);
+		} catch (MetadataParseException e) {
+			throw new InvalidManifestEntryException(e);
+		} catch (IOException e) {
+			throw new InvalidManifestEntryException((MetadataParseException)new MetadataParseException("Caught "+e).initCause(e));
+		}
+		decoded[i] = m;
+		return m;
+	}
+
+	private String getName(int i) {
+		int offset = entries[i];
+		try {
+			return new String(data, offset + 2, readShort(data, offset), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	private boolean isRemoved(int i) {
+		return removed != null && removed[i];
+	}
+
+	synchronized int size() {
+		return entries.length - removedCount;
+	}
+
+	synchronized Metadata get(String name) {
+		int i = find(name);
+		if(i < 0 || isRemoved(i)) return null;
+		return decode(i);
+	}
+
+	synchronized Metadata remove(String name) {
+		Metadata m = get(name);
+		if(m == null) return null;
+		int i = find(name);
+		if(removed == null) removed = new boolean[entries.length];
+		removed[i] = true;
+		removedCount++;
+		decoded[i] = null;
+		return m;
+	}
+
+	/** Decode all the entries. */
+	synchronized HashMap<String, Metadata> toMap() {
+		HashMap<String, Metadata> map = new HashMap<String, Metadata>();
+		for(int i=0;i<entries.length;i++) {
+			if(isRemoved(i)) continue;
+			map.put(getName(i), decode(i));
+		}
+		return map;
+	}
+
+	/** Write the entries in the same format as Metadata.writeTo(), and in the order they were
+	 * read, so an unchanged manifest is written exactly as it was read. Entries that have not
+	 * been decoded are copied as they are. */
+	synchronized void writeTo(DataOutputStream dos) throws IOException, MetadataUnresolvedException {
+		dos.writeInt(size());
+		Integer[] order = new Integer[entries.length];
+		for(int i=0;i<entries.length;i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Integer.compare(entries[o1], entries[o2]);
+			}
+
+		});
+		for(int i : order) {
+			if(isRemoved(i)) continue;
+			int offset = entries[i];
+			int nameLength = readShort(data, offset);
+			if(decoded == null || decoded[i] == null) {
+				int len = readShort(data, offset + 2 + nameLength);
+				dos.write(data, offset, 2 + nameLength + 2 + len);
+			} else {
+				dos.write(data, offset, 2 + nameLength);
+				byte[] buf = decoded[i].writeToByteArray();
+				if(buf.length > Metadata.MAX_SIZE_IN_MANIFEST)
+					throw new MetadataUnresolvedException(new Metadata[] { decoded[i] }, "Manifest entry too long");
+				dos.writeShort(buf.length);
+				dos.write(buf);
+			}
+		}
+	}
+
+	@Override
+	public synchronized ManifestIndex clone() {
+		ManifestIndex index = new ManifestIndex(data, entries);
+		if(decoded != null) {
+			index.decoded = new Metadata[decoded.length];
+			for(int i=0;i<decoded.length;i++)
+				if(decoded[i] != null) index.decoded[i] = (Metadata) decoded[i].clone();
+		}
+		if(removed != null) index.removed = removed.clone();
+		index.removedCount = removedCount;
+		return index;
+	}
+
+}
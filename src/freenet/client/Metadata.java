@@ -191,8 +191,10 @@ public class Metadata implements Cloneable, Serializable {
 	CompatibilityMode maxCompatMode = CompatibilityMode.COMPAT_UNKNOWN;
 
 	// Manifests
-	/** Manifest entries by name */
+	/** Manifest entries by name. Null if the manifest was parsed, see parsedManifest. */
 	HashMap<String, Metadata> manifestEntries;
+	/** The entries of a parsed manifest, decoded only when they are used. */
+	private ManifestIndex parsedManifest;
 
 	/** Archive internal redirect: name of file in archive
 	 *  SympolicShortLink: Target name*/
@@ -251,6 +253,8 @@ public class Metadata implements Cloneable, Serializable {
 				entry.setValue((Metadata)entry.getValue().clone());
 			}
 		}
+		if(parsedManifest != null)
+			parsedManifest = orig.parsedManifest.clone();
 		if(clientMetadata != null)
 			clientMetadata = clientMetadata.clone();
 	}
@@ -678,28 +682,11 @@ public class Metadata implements Cloneable, Serializable {
 			if(manifestEntryCount < 0)
 				throw new MetadataParseException("Invalid manifest entry count: "+manifestEntryCount);
 
-			manifestEntries = new HashMap<String, Metadata>();
-
-			// Parse the sub-Manifest.
+			// Index the sub-Manifest. The entries are parsed when they are used.
 
 			if(logMINOR)Logger.minor(this, "Simple manifest, "+manifestEntryCount+" entries");
 
-			for(int i=0;i<manifestEntryCount;i++) {
-				short nameLength = dis.readShort();
-				byte[] buf = new byte[nameLength];
-				dis.readFully(buf);
-				String name = new String(buf, "UTF-8").intern();
-				if(logMINOR) Logger.minor(this, "Entry "+i+" name "+name);
-				short len = dis.readShort();
-				if(len < 0)
-					throw new MetadataParseException("Invalid manifest entry size: "+len);
-				if(len > length)
-					throw new MetadataParseException("Impossibly long manifest entry: "+len+" - metadata size "+length);
-				byte[] data = new byte[len];
-				dis.readFully(data);
-				Metadata m = Metadata.construct(data);
-				manifestEntries.put(name, m);
-			}
+			parsedManifest = ManifestIndex.read(dis, manifestEntryCount, length);
 			if(logMINOR) Logger.minor(this, "End of manifest"); // Make it easy to search for it!
 		}
 
@@ -1291,9 +1278,10 @@ public class Metadata implements Cloneable, Serializable {
 
 	/**
 	 * Get the sub-document in a manifest file with the given name.
-	 * @throws MetadataParseException
+	 * @throws InvalidManifestEntryException If the sub-document is invalid.
 	 */
 	public Metadata getDocument(String name) {
+		if(parsedManifest != null) return parsedManifest.get(name);
 		return manifestEntries.get(name);
 	}
 
@@ -1301,14 +1289,16 @@ public class Metadata implements Cloneable, Serializable {
 	 * Return and remove a specific document. Used in persistent requests
 	 * so that when removeFrom() is called, the default document won't be
 	 * removed, since it is being processed.
+	 * @throws InvalidManifestEntryException If the sub-document is invalid.
 	 */
 	public Metadata grabDocument(String name) {
+		if(parsedManifest != null) return parsedManifest.remove(name);
 		return manifestEntries.remove(name);
 	}
 
 	/**
 	 * The default document is the one which has an empty name.
-	 * @throws MetadataParseException
+	 * @throws InvalidManifestEntryException If the default document is invalid.
 	 */
 	public Metadata getDefaultDocument() {
 		return getDocument("");
@@ -1318,6 +1308,7 @@ public class Metadata implements Cloneable, Serializable {
 	 * Return and remove the default document. Used in persistent requests
 	 * so that when removeFrom() is called, the default document won't be
 	 * removed, since it is being processed.
+	 * @throws InvalidManifestEntryException If the default document is invalid.
 	 */
 	public Metadata grabDefaultDocument() {
 		return grabDocument("");
@@ -1325,11 +1316,12 @@ public class Metadata implements Cloneable, Serializable {
 
 	/**
      * Get all documents in the manifest (ignores default doc).
-     * @throws MetadataParseException
+     * @throws InvalidManifestEntryException If any of the documents is invalid.
      */
     public HashMap<String, Metadata> getDocuments() {
     	HashMap<String, Metadata> docs = new HashMap<String, Metadata>();
-		for (Map.Entry<String, Metadata> entry: manifestEntries.entrySet()) {
+		Map<String, Metadata> entries = parsedManifest != null ? parsedManifest.toMap() : manifestEntries;
+		for (Map.Entry<String, Metadata> entry: entries.entrySet()) {
         	String st = entry.getKey();
         	if (st.length()>0)
         		docs.put(st, entry.getValue());
@@ -1574,7 +1566,9 @@ public class Metadata implements Cloneable, Serializable {
 			}
 		}
 
-		if(documentType == DocumentType.SIMPLE_MANIFEST) {
+		if(documentType == DocumentType.SIMPLE_MANIFEST && parsedManifest != null) {
+			parsedManifest.writeTo(dos);
+		} else if(documentType == DocumentType.SIMPLE_MANIFEST) {
 			dos.writeInt(manifestEntries.size());
 			boolean kill = false;
 			LinkedList<Metadata> unresolvedMetadata = null;
@@ -1726,6 +1720,7 @@ public class Metadata implements Cloneable, Serializable {
 	}
 
 	public int countDocuments() {
+		if(parsedManifest != null) return parsedManifest.size();
 		return manifestEntries.size();
 	}
 
@@ -1808,8 +1803,16 @@ public class Metadata implements Cloneable, Serializable {
 		if(targetName != null)
 			dumpline(indent, sb, "Target name: "+targetName);
 
-		if(manifestEntries != null) {
-			for(Map.Entry<String, Metadata> entry : manifestEntries.entrySet()) {
+		Map<String, Metadata> entries = manifestEntries;
+		if(parsedManifest != null) {
+			try {
+				entries = parsedManifest.toMap();
+			} catch (InvalidManifestEntryException e) {
+				dumpline(indent, sb, "Invalid manifest entries: "+e.getCause());
+			}
+		}
+		if(entries != null) {
+			for(Map.Entry<String, Metadata> entry : entries.entrySet()) {
 				dumpline(indent, sb, "Entry: "+entry.getKey()+":");
 				entry.getValue().dump(indent + 1, sb);
 			}
@@ -76,8 +76,21 @@ public abstract class BaseSingleFileFetcher extends SendableGet implements HasKe
 	public SendableRequestItem chooseKey(KeysFetchingLocally fetching, ClientContext context) {
 		Key k = key.getNodeKey(false);
 		if(fetching.hasKey(k, this)) return null;
-		long l = fetching.checkRecentlyFailed(k, realTimeFlag);
 		long now = System.currentTimeMillis();
+		long nf = context.notFoundCache.check(k, this, now);
+		if(nf > now) {
+			// Another request has just failed to find the key. Like RecentlyFailed: requests
+			// which would go into cooldown anyway wait for the entry to expire, and requests
+			// with few retries, e.g. USK checks, fail at once.
+			if(maxRetries == -1 || (maxRetries >= RequestScheduler.COOLDOWN_RETRIES)) {
+				if(logMINOR) Logger.minor(this, "Recently not found -> cooldown until "+TimeUtil.formatTime(nf-now)+" on "+this);
+				cooldownWakeupTime = Math.max(cooldownWakeupTime, nf);
+			} else {
+				this.onFailure(new LowLevelGetException(LowLevelGetException.RECENTLY_FAILED), null, context);
+			}
+			return null;
+		}
+		long l = fetching.checkRecentlyFailed(k, realTimeFlag);
 		if(l > 0 && l > now) {
 			if(maxRetries == -1 || (maxRetries >= RequestScheduler.COOLDOWN_RETRIES)) {
 				// FIXME synchronization!!!
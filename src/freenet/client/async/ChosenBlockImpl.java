@@ -2,6 +2,7 @@ package freenet.client.async;
 
 import freenet.keys.ClientKey;
 import freenet.keys.Key;
+import freenet.keys.NodeSSK;
 import freenet.node.LowLevelGetException;
 import freenet.node.LowLevelPutException;
 import freenet.node.RequestScheduler;
@@ -89,6 +90,12 @@ public class ChosenBlockImpl extends ChosenBlock {
 
 	@Override
 	public void onFailure(final LowLevelGetException e, ClientContext context) {
+	    if(key instanceof NodeSSK && !localRequestOnly && 
+	            (e.code == LowLevelGetException.DATA_NOT_FOUND || 
+	             e.code == LowLevelGetException.RECENTLY_FAILED)) {
+	        // Before removeFetchingKey(), so anything waiting for the key will find it.
+	        context.notFoundCache.onNotFound(key, request, System.currentTimeMillis());
+	    }
         context.getJobRunner(persistent).queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -72,6 +72,8 @@ public class ClientContext {
 	public transient final RealCompressor rc;
 	public transient final DatastoreChecker checker;
 	public transient DownloadCache downloadCache;
+	/** Keys which recently could not be found, shared by all fetchers. */
+	public transient final NotFoundCache notFoundCache = new NotFoundCache();
 	/** Used for memory intensive jobs such as in-RAM FEC decodes. Some of these jobs may do disk 
 	 * I/O and we don't guarantee to serialise them. The new splitfile code does FEC decodes 
 	 * entirely in memory, which saves a lot of seeks and improves robustness. */
@@ -300,7 +300,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		// doing massive encrypted I/Os while holding a lock.
 
 		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		PipedInputStream dataInput = new PipedInputStream(DecompressorThreadManager.PIPE_BUFFER_SIZE);
 		OutputStream output = null;
 
 		DecompressorThreadManager decompressorManager = null;
@@ -0,0 +1,219 @@
+package freenet.client.async;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.crypt.ChecksumChecker;
+import freenet.crypt.ChecksumFailedException;
+import freenet.node.DatabaseKey;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+/** Append-only log of changes to the persistent requests since the last complete client.dat was
+ * written. Each complete client.dat ends with a random ID, and the journal for it is called
+ * client.dat.journal.[ID in hex], so a journal can never be applied to the wrong checkpoint,
+ * whichever of client.dat and client.dat.bak it ends up in.
+ *
+ * The file starts with a plaintext header (magic, version, ID). Each record is then written as
+ * its length, the record itself (encrypted separately if the client layer is encrypted), and a
+ * checksum. If we crash while appending, the last record will be incomplete or fail its
+ * checksum; reading stops there, so we lose at most the last checkpoint. If an append fails, we
+ * truncate back to the last complete record, so later records are not hidden behind a broken
+ * one.
+ *
+ * The content of each record is up to ClientLayerPersister. This class only deals with framing.
+ *
+ * LOCKING: Appends are only done by the checkpoint thread. Reads are done either on startup, or
+ * by compaction, which only reads up to a length recorded when it was started.
+ */
+class ClientLayerJournal {
+
+	private static final long MAGIC = 0x2c4e8b7f0e1a9d35L;
+	private static final int VERSION = 1;
+	static final int HEADER_LENGTH = 8 + 4 + 8;
+
+	private final File file;
+	private final long id;
+	private final DatabaseKey key;
+	private final ChecksumChecker checker;
+	private long length;
+
+	private ClientLayerJournal(File file, long id, DatabaseKey key, ChecksumChecker checker,
+			long length) {
+		this.file = file;
+		this.id = id;
+		this.key = key;
+		this.checker = checker;
+		this.length = length;
+	}
+
+	static File makeFilename(File dir, String baseName, long id) {
+		return new File(dir, baseName + ".journal." + Long.toHexString(id));
+	}
+
+	/** @return True if the given filename could be a journal for the given client.dat. */
+	static boolean isJournalFilename(String filename, String baseName) {
+		return filename.startsWith(baseName + ".journal.");
+	}
+
+	/** Create a new, empty journal, overwriting any existing file.
+	 * @param key If non-null, records will be encrypted with this key. */
+	static ClientLayerJournal create(File dir, String baseName, long id, DatabaseKey key,
+			ChecksumChecker checker) throws IOException {
+		File file = makeFilename(dir, baseName, id);
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			DataOutputStream dos = new DataOutputStream(fos);
+			dos.writeLong(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(id);
+			dos.flush();
+			fos.getFD().sync();
+		}
+		return new ClientLayerJournal(file, id, key, checker, HEADER_LENGTH);
+	}
+
+	long getID() {
+		return id;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/** @return The length of the valid data in the journal, including the header. */
+	synchronized long length() {
+		return length;
+	}
+
+	/** Append some records. Either all of them are written, or, if we don't crash, none of them
+	 * are. The records are synced to disk before this returns, so once it has returned the
+	 * caller can treat them as written, e.g. free the buckets they list. */
+	synchronized void append(List<byte[]> records) throws IOException {
+		if(records.isEmpty()) return;
+		long oldLength = length;
+		long newLength = oldLength;
+		try (FileOutputStream fos = new FileOutputStream(file, true)) {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+			for(byte[] record : records) {
+				byte[] buf = encrypt(record);
+				dos.writeInt(buf.length);
+				checker.writeAndChecksum(dos, buf, 0, buf.length);
+				newLength += 4 + buf.length + checker.checksumLength();
+			}
+			dos.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			truncate(oldLength);
+			throw e;
+		}
+		length = newLength;
+	}
+
+	private void truncate(long oldLength) {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(oldLength);
+		} catch (IOException e) {
+			// Reading will stop at the broken record anyway, but later records will be lost.
+			Logger.error(this, "Unable to truncate journal "+file+" after failed write: "+e, e);
+		}
+	}
+
+	private byte[] encrypt(byte[] record) throws IOException {
+		if(key == null) return record;
+		ArrayBucket encrypted = new ArrayBucket();
+		Bucket bucket = key.createEncryptedBucketForClientLayer(encrypted);
+		OutputStream os = bucket.getOutputStream();
+		os.write(record);
+		os.close();
+		return encrypted.toByteArray();
+	}
+
+	private static byte[] decrypt(byte[] buf, DatabaseKey key) throws IOException {
+		if(key == null) return buf;
+		Bucket bucket = key.createEncryptedBucketForClientLayer(new ArrayBucket(buf));
+		return BucketTools.toByteArray(bucket);
+	}
+
+	/** Read the records in a journal. Stops at the first incomplete or corrupt record.
+	 * @param file The journal file.
+	 * @param id The ID it must have. If it doesn't match, the file is ignored.
+	 * @param key The key if the client layer is encrypted.
+	 * @param maxLength Do not read beyond this point, e.g. if the journal is still being written.
+	 * @return The records, or null if the file does not exist or has the wrong header.
+	 */
+	static List<byte[]> read(File file, long id, DatabaseKey key, ChecksumChecker checker,
+			long maxLength) {
+		if(!file.exists()) return null;
+		maxLength = Math.min(maxLength, file.length());
+		List<byte[]> records = new ArrayList<byte[]>();
+		try (InputStream is = new FileInputStream(file)) {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+			if(dis.readLong() != MAGIC) throw new IOException("Bad magic");
+			if(dis.readInt() != VERSION) throw new IOException("Bad version");
+			if(dis.readLong() != id) throw new IOException("Wrong ID");
+			long read = HEADER_LENGTH;
+			while(read < maxLength) {
+				int len = dis.readInt();
+				read += 4;
+				if(len <= 0 || len > maxLength - read - checker.checksumLength()) {
+					Logger.error(ClientLayerJournal.class, "Journal "+file+" truncated at "+read);
+					break;
+				}
+				byte[] buf = new byte[len];
+				try {
+					checker.readAndChecksum(dis, buf, 0, len);
+				} catch (ChecksumFailedException e) {
+					Logger.error(ClientLayerJournal.class, "Checksum failed in journal "+file+" at "+read);
+					break;
+				}
+				read += len + checker.checksumLength();
+				try {
+					records.add(decrypt(buf, key));
+				} catch (IOException e) {
+					Logger.error(ClientLayerJournal.class, "Unable to decrypt record in journal "+file+" at "+read+" : "+e, e);
+					break;
+				}
+			}
+		} catch (EOFException e) {
+			Logger.error(ClientLayerJournal.class, "Journal "+file+" truncated");
+		} catch (IOException e) {
+			Logger.error(ClientLayerJournal.class, "Unable to read journal "+file+" : "+e, e);
+			if(records.isEmpty()) return null;
+		}
+		return records;
+	}
+
+	/** Delete all journals for the given client.dat except for the given IDs. */
+	static void deleteAllExcept(File dir, String baseName, long... keep) {
+		File[] files = dir.listFiles();
+		if(files == null) return;
+		outer: for(File f : files) {
+			if(!isJournalFilename(f.getName(), baseName)) continue;
+			for(long id : keep) {
+				if(id != 0 && f.equals(makeFilename(dir, baseName, id)))
+					continue outer;
+			}
+			try {
+				FileUtil.secureDelete(f);
+			} catch (IOException e) {
+				f.delete();
+			}
+		}
+	}
+
+}
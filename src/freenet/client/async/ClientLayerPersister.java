@@ -7,34 +7,48 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
 import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
+import freenet.crypt.SHA256;
 import freenet.node.DatabaseKey;
 import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
 import freenet.node.NodeInitException;
+import freenet.node.PrioRunnable;
 import freenet.node.RequestStarterGroup;
 import freenet.support.Executor;
+import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.api.Bucket;
 import freenet.support.io.DelayedFree;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PrependLengthOutputStream;
 import freenet.support.io.StorageFormatException;
@@ -47,7 +61,10 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * 1) Splitfile persistence. The downloaded data and all the status for a splitfile is kept in a 
  * single random access file (technically a LockableRandomAccessBuffer).
  * 2) Java persistence. The overall list of ClientRequest's is stored to client.dat using 
- * serialization, by this class.
+ * serialization, by this class. Most checkpoints only append the requests that have changed to a 
+ * journal (see {@link ClientLayerJournal}), and when the journal gets too big it is merged into a
+ * new client.dat in the background, so the cost of a checkpoint depends on how much has changed 
+ * rather than on the size of the queue.
  * 3) A simple binary fallback. For complicated requests this will just record enough information 
  * to restart the request, but for simple splitfile downloads, we can resume from (1).
  * 
@@ -100,10 +117,56 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File otherDeleteAfterSuccessfulWrite;
     private File dir;
     private String baseName;
+    /** The key for writeToBucket, or null if it is not encrypted. */
+    private DatabaseKey writeToKey;
+    
+    /** The journal for the current client.dat. If null, the next checkpoint writes a complete 
+     * client.dat. */
+    private ClientLayerJournal journal;
+    /** The ID at the end of client.dat, i.e. which journal belongs to it, or 0. */
+    private long journalID;
+    /** The ID at the end of client.dat.bak, or 0. */
+    private long backupJournalID;
+    /** SHA-256 of the last record we wrote for each request, so we don't journal a request that
+     * has been marked as changed but hasn't really. Only accessed by the checkpoint thread. */
+    private final Map<RequestIdentifier, byte[]> persistedDigests = 
+        new HashMap<RequestIdentifier, byte[]>();
+    /** Where the next checkpoint starts checking requests which aren't marked as changed. Only
+     * accessed by the checkpoint thread. */
+    private int sweepPosition;
+    /** Length of client.dat when it was last written in full. */
+    private long lastCompleteLength;
+    /** The compaction in progress, if any. LOCKING: Protected by serializeCheckpoints. */
+    private Compaction compaction;
+    /** If true, only register requests with their clients at startup, and resume the 
+     * ClientRequester's (which may involve opening files etc.) later, in the background. */
+    private boolean lazyResume;
+    /** Requests still to be resumed, highest priority first. */
+    private final ArrayDeque<ClientRequest> deferredResume = new ArrayDeque<ClientRequest>();
+    /** Number of requests to resume in each job. */
+    private static final int DEFERRED_RESUME_BATCH = 10;
     
     private static final long MAGIC = 0xd332925f3caf4aedL;
     private static final int VERSION = 1;
     
+    /** Compact the journal when it is bigger than client.dat, but not until it's at least this 
+     * big. */
+    static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    /** Number of requests not marked as changed which are serialized anyway at each checkpoint,
+     * in case something has changed without marking them. All requests are checked on 
+     * shutdown. */
+    static final int SWEEP_PER_CHECKPOINT = 20;
+    
+    // Journal record types.
+    /** Request identifier, the request, recovery data. Same format as in client.dat. */
+    private static final byte RECORD_PUT = 1;
+    /** Request identifier of a request which has been removed. */
+    private static final byte RECORD_REMOVE = 2;
+    /** The bandwidth stats. */
+    private static final byte RECORD_STATS = 3;
+    /** Buckets to free. */
+    private static final byte RECORD_BUCKETS = 4;
+    
     private static volatile boolean logMINOR;
     static {
         Logger.registerClass(ClientLayerPersister.class);
@@ -146,6 +209,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                deleteJournalFiles();
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -164,6 +228,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                             requestStarters, random);
                 }
                 onStarted(noWrite);
+                queueDeferredResume();
             } else {
                 innerSetFilesOnly(dir, baseName, writeEncrypted, encryptionKey);
                 onStarted(false);
@@ -185,15 +250,80 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
+    /** If enabled, requests will be visible to clients as soon as they are loaded, and will be
+     * fully resumed in the background, highest priority first, or when a client needs them. This
+     * makes the node usable much faster on startup when there are a lot of requests. Must be 
+     * called before setFilesAndLoad(). 
+     * 
+     * Only resuming is deferred. Every request is still deserialized in full while loading, 
+     * see loadRequest(). */
+    public synchronized void setLazyResume(boolean lazyResume) {
+        this.lazyResume = lazyResume;
+    }
+    
+    public synchronized boolean isLazyResume() {
+        return lazyResume;
+    }
+    
+    /** Resumes requests which were deferred at startup, a few at a time, so other jobs can run in
+     * between. */
+    private class DeferredResumeJob implements PersistentJob {
+
+        @Override
+        public boolean run(ClientContext context) {
+            for(int i=0;i<DEFERRED_RESUME_BATCH;i++) {
+                ClientRequest req;
+                synchronized(deferredResume) {
+                    req = deferredResume.poll();
+                }
+                if(req == null) {
+                    Logger.normal(this, "Finished resuming requests");
+                    return false;
+                }
+                try {
+                    req.resumeIfDeferred(context);
+                } catch (Throwable t) {
+                    System.err.println("Unable to resume request "+req+" after loading it.");
+                    Logger.error(this, "Unable to resume request "+req+" after loading it: "+t, t);
+                    try {
+                        req.cancel(context);
+                    } catch (Throwable t1) {
+                        Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
+                    }
+                }
+            }
+            queueDeferredResume();
+            return false;
+        }
+        
+    }
+    
+    private void queueDeferredResume() {
+        synchronized(deferredResume) {
+            if(deferredResume.isEmpty()) return;
+        }
+        try {
+            queue(new DeferredResumeJob(), NativeThread.PriorityLevel.LOW_PRIORITY.value);
+        } catch (PersistenceDisabledException e) {
+            // Shutting down.
+        }
+    }
+
     private void innerSetFilesOnly(File dir, String baseName, boolean writeEncrypted,
             DatabaseKey encryptionKey) throws MasterKeysWrongPasswordException {
         if(writeEncrypted && encryptionKey == null)
             throw new MasterKeysWrongPasswordException();
         File oldWriteToFilename = writeToFilename;
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
+        writeToKey = writeEncrypted ? encryptionKey : null;
+        writeToBucket = makeBucket(dir, baseName, false, writeToKey);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         if(writeToFilename.equals(oldWriteToFilename)) return;
+        // The journals belong to the old files. Write everything to the new files.
+        cancelCompaction();
+        journal = null;
+        journalID = 0;
+        backupJournalID = 0;
         System.out.println("Will save downloads to "+writeToFilename);
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
@@ -228,24 +358,31 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         boolean failedSerialize = false;
         PartialLoad loaded = new PartialLoad();
         if(clientDatExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, clientDat, null, noSerialize, context, requestStarters, random);
         }
         if(clientDatCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, clientDatCrypt, encryptionKey, noSerialize, context, requestStarters, random);
         }
         if(clientDatBakExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, clientDatBak, null, noSerialize, context, requestStarters, random);
         }
         if(clientDatBakCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, clientDatBakCrypt, encryptionKey, noSerialize, context, requestStarters, random);
         }
         
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
         otherDeleteAfterSuccessfulWrite = writeEncrypted ? clientDatBak : clientDatBakCrypt;
         
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
+        writeToKey = writeEncrypted ? encryptionKey : null;
+        writeToBucket = makeBucket(dir, baseName, false, writeToKey);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        // The first checkpoint after startup always writes a complete client.dat. Until then we
+        // must keep the journal for the client.dat we loaded, as it will become client.dat.bak.
+        journal = null;
+        journalID = writeToFilename.equals(loaded.getLatestFile()) ? loaded.getLatestJournalID() : 0;
+        backupJournalID = 0;
+        deleteCompactionFiles();
         
         if(loaded.doneSomething()) {
             if(!noSerialize) {
@@ -264,16 +401,19 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             int restoredRestarted = 0;
             int restoredFully = 0;
             int failed = 0;
+            List<ClientRequest> deferred = new ArrayList<ClientRequest>();
             // Resume the requests.
             for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
                 ClientRequest req = partial.request;
                 if(req == null) continue;
                 try {
-                    req.onResume(context);
+                    req.onResume(context, isLazyResume());
                     if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
                             partial.status == RequestLoadStatus.RESTORED_RESTARTED) {
-                        req.start(context);
+                        req.startAfterResume(context);
                     }
+                    if(req.isResumeDeferred())
+                        deferred.add(req);
                     switch(partial.status) {
                     case LOADED:
                         success++;
@@ -309,6 +449,19 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 System.out.println("Restarted "+restoredRestarted+" requests (due to data corruption)");
             if(failed > 0)
                 System.err.println("Failed to restore "+failed+" requests due to data corruption");
+            if(!deferred.isEmpty()) {
+                // Highest priority first.
+                Collections.sort(deferred, new Comparator<ClientRequest>() {
+                    @Override
+                    public int compare(ClientRequest req1, ClientRequest req2) {
+                        return req1.getPriority() - req2.getPriority();
+                    }
+                });
+                synchronized(deferredResume) {
+                    deferredResume.addAll(deferred);
+                }
+                System.out.println("Will finish resuming "+deferred.size()+" requests in the background");
+            }
             return failedSerialize;
         } else {
             // FIXME backups etc!
@@ -361,12 +514,20 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         private final Map<RequestIdentifier, PartiallyLoadedRequest> partiallyLoadedRequests 
             = new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
         
+        /** Requests which the journal says have been removed. Don't resurrect them from older 
+         * files. */
+        private final Set<RequestIdentifier> removedRequests = new HashSet<RequestIdentifier>();
+        
         private byte[] salt;
         
         private boolean somethingFailed;
         
         private boolean doneSomething;
         
+        private File latestFile;
+        
+        private long latestJournalID;
+        
         /** Add a partially loaded request. 
          * @param reqID The request identifier. Must be non-null; caller should regenerate it if
          * necessary. */
@@ -380,6 +541,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     reqID = request.getRequestIdentifier();
                 }
             }
+            if(removedRequests.contains(reqID)) return;
             PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
             if(old == null || old.status.ordinal() > status.ordinal()) {
                 partiallyLoadedRequests.put(reqID, new PartiallyLoadedRequest(request, status));
@@ -388,6 +550,18 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 doneSomething = true;
             }
         }
+        
+        /** Add everything loaded from a single file, after applying its journal. */
+        void addFrom(FileLoad load) {
+            removedRequests.addAll(load.removedRequests);
+            for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : 
+                    load.requests.entrySet()) {
+                PartiallyLoadedRequest partial = entry.getValue();
+                addPartiallyLoadedRequest(entry.getKey(), partial.request, partial.status);
+            }
+            if(load.somethingFailed)
+                somethingFailed = true;
+        }
 
         public boolean needsMore() {
             return somethingFailed || !doneSomething;
@@ -410,16 +584,67 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         public boolean doneSomething() {
             return doneSomething;
         }
+        
+        void setLatest(File file, long journalID) {
+            latestFile = file;
+            latestJournalID = journalID;
+        }
+        
+        /** @return The file we loaded the most up to date requests from, or null. */
+        File getLatestFile() {
+            return latestFile;
+        }
+        
+        /** @return The journal ID of getLatestFile(). */
+        long getLatestJournalID() {
+            return latestJournalID;
+        }
     }
     
-    private void innerLoad(PartialLoad loaded, Bucket bucket, boolean noSerialize,
+    /** The requests loaded from one client.dat and its journal. Later records replace earlier 
+     * ones. */
+    private class FileLoad {
+        private final Map<RequestIdentifier, PartiallyLoadedRequest> requests = 
+            new LinkedHashMap<RequestIdentifier, PartiallyLoadedRequest>();
+        private final Set<RequestIdentifier> removedRequests = new HashSet<RequestIdentifier>();
+        private boolean somethingFailed;
+        
+        /** @param replace True if this is a newer version from the journal. We still keep the 
+         * older version if the newer one couldn't be loaded at all. */
+        void add(RequestIdentifier reqID, ClientRequest request, RequestLoadStatus status, 
+                boolean replace) {
+            if(reqID == null) {
+                if(request == null) {
+                    somethingFailed = true;
+                    return;
+                } else {
+                    reqID = request.getRequestIdentifier();
+                }
+            }
+            removedRequests.remove(reqID);
+            PartiallyLoadedRequest old = requests.get(reqID);
+            if(old == null || (replace && status != RequestLoadStatus.FAILED) || 
+                    old.status.ordinal() > status.ordinal())
+                requests.put(reqID, new PartiallyLoadedRequest(request, status));
+        }
+        
+        void remove(RequestIdentifier reqID) {
+            requests.remove(reqID);
+            removedRequests.add(reqID);
+        }
+    }
+    
+    private void innerLoad(PartialLoad loaded, File file, DatabaseKey key, boolean noSerialize,
             ClientContext context, RequestStarterGroup requestStarters, Random random) {
+        Bucket bucket = new FileBucket(file, false, false, false, false);
+        if(key != null)
+            bucket = key.createEncryptedBucketForClientLayer(bucket);
         long length = bucket.size();
         InputStream fis = null;
         try {
             fis = bucket.getInputStream();
-            innerLoad(loaded, fis, length, !noSerialize && !loaded.doneSomething(), context, 
-                    requestStarters, random, noSerialize);
+            innerLoad(loaded, file, key, fis, length, !noSerialize && !loaded.doneSomething(), 
+                    context, requestStarters, random, noSerialize);
         } catch (IOException e) {
             // FIXME tell user more obviously.
             Logger.error(this, "Failed to load persistent requests from "+bucket+" : "+e, e);
@@ -441,8 +666,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void innerLoad(PartialLoad loaded, InputStream fis, long length, boolean latest, 
-            ClientContext context, RequestStarterGroup requestStarters, Random random, boolean noSerialize) throws NodeInitException, IOException {
+    private void innerLoad(PartialLoad loaded, File file, DatabaseKey key, InputStream fis, 
+            long length, boolean latest, ClientContext context, RequestStarterGroup requestStarters, 
+            Random random, boolean noSerialize) throws NodeInitException, IOException {
         ObjectInputStream ois = new ObjectInputStream(fis);
         long magic = ois.readLong();
         if(magic != MAGIC) throw new IOException("Bad magic");
@@ -456,9 +682,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             Logger.error(this, "Unable to read global salt (checksum failed)");
         }
         requestStarters.setGlobalSalt(salt);
+        FileLoad fileLoad = new FileLoad();
         int requestCount = ois.readInt();
         for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
             RequestIdentifier reqID = readRequestIdentifier(ois);
             if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
                 Logger.warning(this, "Not reading request because already have it");
@@ -466,90 +692,181 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 skipChecksummedObject(ois, length); // Recovery data
                 continue;
             }
+            loadRequest(fileLoad, reqID, ois, length, noSerialize, false);
+        }
+        PersistentStatsPutter storedStatsPutter = null;
+        List<DelayedFree> buckets = new ArrayList<DelayedFree>();
+        long journalID = 0;
+        try {
+            storedStatsPutter = (PersistentStatsPutter) ois.readObject();
+            readBuckets(ois, length, buckets);
+            journalID = readJournalID(ois);
+        } catch (Throwable t) {
+            Logger.error(this, "Failed to read stats, old temp files and journal ID from "+file+" : "+t, t);
+        }
+        if(journalID != 0) {
+            List<byte[]> records = ClientLayerJournal.read(
+                    ClientLayerJournal.makeFilename(dir, baseName, journalID), journalID, key, 
+                    checker, Long.MAX_VALUE);
+            if(records != null) {
+                PersistentStatsPutter journalStats = 
+                    replayJournal(records, fileLoad, buckets, context, noSerialize);
+                if(journalStats != null)
+                    storedStatsPutter = journalStats;
+                System.out.println("Replayed "+records.size()+" journal records for "+file);
+            }
+        }
+        if(latest) {
+            loaded.setLatest(file, journalID);
+            // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
             try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
-                        }
-                    }
-                } else
-                    skipChecksummedObject(ois, length);
-            } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
+                if(storedStatsPutter != null)
+                    this.bandwidthStatsPutter.addFrom(storedStatsPutter);
+                persistentTempFactory.finishDelayedFree(buckets.toArray(new DelayedFree[buckets.size()]));
             } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
+                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
             }
-            if(request == null || logMINOR) {
-                try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
-                    }
-                } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+        }
+        loaded.addFrom(fileLoad);
+        ois.close();
+        fis = null;
+    }
+    
+    /** Load a single request, from client.dat or from the journal.
+     * @param replace True if reading from the journal, so this replaces any version we already 
+     * have. */
+    private void loadRequest(FileLoad loaded, RequestIdentifier reqID, InputStream is, 
+            long length, boolean noSerialize, boolean replace) throws IOException {
+        // Requests are always deserialized in full here, even with lazy resume. The FCP and web
+        // interface code works on ClientRequest objects, and reading one reads its whole
+        // ClientRequester, so only ClientRequester.onResume() is deferred.
+        ClientRequest request = null;
+        try {
+            if(!noSerialize) {
+                request = (ClientRequest) readChecksummedObject(is, length);
+                if(request != null) {
+                    if(reqID != null) {
+                        if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                            Logger.error(this, "Request does not match request identifier, discarding");
+                            request = null;
+                        } else {
+                            loaded.add(reqID, request, RequestLoadStatus.LOADED, replace);
+                        }
                     }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
                 }
-            } else {
-                skipChecksummedObject(ois, length);
+            } else
+                skipChecksummedObject(is, length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Failed to load request (checksum failed)");
+            System.err.println("Failed to load a request (checksum failed)");
+        } catch (Throwable t) {
+            // Some more serious problem. Try to load the rest anyway.
+            Logger.error(this, "Failed to load request: "+t, t);
+            System.err.println("Failed to load a request: "+t);
+            t.printStackTrace();
+        }
+        if(request == null || logMINOR) {
+            try {
+                ClientRequest restored = readRequestFromRecoveryData(is, length, reqID);
+                if(request == null && restored != null) {
+                    request = restored;
+                    boolean loadedFully = restored.fullyResumed();
+                    loaded.add(reqID, request, 
+                            loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED, 
+                            replace);
+                }
+            } catch (ChecksumFailedException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                } else {
+                    Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                }
+                if(request == null)
+                    loaded.add(reqID, null, RequestLoadStatus.FAILED, replace);
+            } catch (StorageFormatException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
+                    System.err.println("Failed to recovery a request (storage format): "+e);
+                    e.printStackTrace();
+                } else {
+                    Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
+                if(request == null)
+                    loaded.add(reqID, null, RequestLoadStatus.FAILED, replace);
             }
+        } else {
+            skipChecksummedObject(is, length);
         }
-        if(latest) {
+    }
+    
+    /** Apply the journal for a client.dat.
+     * @param buckets Buckets to free listed in the journal are added to this list.
+     * @return The most recent bandwidth stats in the journal, or null. */
+    private PersistentStatsPutter replayJournal(List<byte[]> records, FileLoad loaded, 
+            List<DelayedFree> buckets, ClientContext context, boolean noSerialize) {
+        PersistentStatsPutter stats = null;
+        for(byte[] record : records) {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record));
             try {
-                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
+                byte type = dis.readByte();
+                switch(type) {
+                case RECORD_PUT:
+                    RequestIdentifier reqID = readRequestIdentifier(dis);
+                    if(reqID != null && context.persistentRoot.hasRequest(reqID)) continue;
+                    loadRequest(loaded, reqID, dis, record.length, noSerialize, true);
+                    break;
+                case RECORD_REMOVE:
+                    reqID = readRequestIdentifier(dis);
+                    if(reqID != null) 
+                        loaded.remove(reqID);
+                    else
+                        loaded.somethingFailed = true;
+                    break;
+                case RECORD_STATS:
+                    PersistentStatsPutter s = (PersistentStatsPutter) readChecksummedObject(dis, record.length);
+                    if(s != null) stats = s;
+                    break;
+                case RECORD_BUCKETS:
+                    readBuckets(dis, record.length, buckets);
+                    break;
+                default:
+                    Logger.error(this, "Unknown journal record type "+type);
+                }
             } catch (Throwable t) {
-                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                Logger.error(this, "Failed to replay journal record: "+t, t);
+                loaded.somethingFailed = true;
             }
         }
-        ois.close();
-        fis = null;
+        return stats;
     }
 
-    private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
-        PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
-        this.bandwidthStatsPutter.addFrom(storedStatsPutter);
-        int count = ois.readInt();
-        DelayedFree[] buckets = new DelayedFree[count];
+    private void readBuckets(InputStream is, long length, List<DelayedFree> buckets) throws IOException, ClassNotFoundException {
+        int count = new DataInputStream(is).readInt();
         for(int i=0;i<count;i++) {
             try {
-                buckets[i] = (DelayedFree) readChecksummedObject(ois, length);
+                DelayedFree bucket = (DelayedFree) readChecksummedObject(is, length);
+                if(bucket != null) buckets.add(bucket);
             } catch (ChecksumFailedException e) {
                 Logger.warning(this, "Failed to load a bucket to free");
             }
         }
-        persistentTempFactory.finishDelayedFree(buckets);
     }
-
+    
+    /** @return The ID at the end of client.dat, or 0 if there isn't one (written by an older 
+     * version), in which case there is no journal. */
+    private long readJournalID(ObjectInputStream ois) throws IOException {
+        byte[] buf = new byte[8];
+        try {
+            checker.readAndChecksum(ois, buf, 0, buf.length);
+        } catch (EOFException e) {
+            return 0;
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Checksum failed reading journal ID");
+            return 0;
+        }
+        return Fields.bytesToLong(buf);
+    }
     @Override
     protected void innerCheckpoint(boolean shutdown) {
         save(shutdown);
@@ -557,10 +874,29 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
+        ClientRequest[] requests = getRequests();
+        if(shutdown) {
+            for(ClientRequest req : requests) {
+                if(req == null) continue;
+                try {
+                    req.onShutdown(getClientContext());
+                } catch (Throwable t) {
+                    Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+                }
+            }
+        }
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        if(journal != null) {
+            if(saveToJournal(requests, buckets, shutdown)) return;
+            // Otherwise write everything.
+        }
+        cancelCompaction();
         if(writeToFilename.exists()) {
             FileUtil.renameTo(writeToFilename, writeToBackupFilename);
+            backupJournalID = journalID;
+            journalID = 0;
         }
-        if(innerSave(shutdown)) {
+        if(innerSave(requests, buckets)) {
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
                 deleteAfterSuccessfulWrite = null;
@@ -572,9 +908,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private boolean innerSave(boolean shutdown) {
-        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+    /** Write a complete client.dat, and start a new journal for it. */
+    private boolean innerSave(ClientRequest[] requests, DelayedFree[] buckets) {
         OutputStream fos = null;
+        Map<RequestIdentifier, byte[]> digests = new HashMap<RequestIdentifier, byte[]>();
+        long id = newJournalID();
         try {
             fos = writeToBucket.getOutputStream();
             BufferedOutputStream bos = new BufferedOutputStream(fos);
@@ -582,27 +920,14 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             oos.writeLong(MAGIC);
             oos.writeInt(VERSION);
             checker.writeAndChecksum(oos, salt);
-            ClientRequest[] requests = getRequests();
-            if(shutdown) {
-                for(ClientRequest req : requests) {
-                    if(req == null) continue;
-                    try {
-                        req.onShutdown(getClientContext());
-                    } catch (Throwable t) {
-                        Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
-                    }
-                }
-            }
             oos.writeInt(requests.length);
             for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
+                req.clearChangedForCheckpoint();
+                // The request identifier, the request, and the recovery data, exactly as in the
+                // journal, minus the record type.
+                byte[] record = makeRequestRecord(req);
+                oos.write(record, 1, record.length - 1);
+                digests.put(req.getRequestIdentifier(), SHA256.digest(record));
             }
             bandwidthStatsPutter.updateData(node);
             oos.writeObject(bandwidthStatsPutter);
@@ -613,11 +938,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 for(DelayedFree bucket : buckets)
                     writeChecksummedObject(oos, bucket, null);
             }
+            writeJournalID(oos, id);
             oos.close();
             fos = null;
             Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
             persistentTempFactory.finishDelayedFree(buckets);
-            return true;
         } catch (IOException e) {
             System.err.println("Failed to write persistent requests: "+e);
             e.printStackTrace();
@@ -630,9 +955,367 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 e.printStackTrace();
             }
         }
+        journalID = id;
+        lastCompleteLength = writeToFilename.length();
+        persistedDigests.clear();
+        persistedDigests.putAll(digests);
+        try {
+            journal = ClientLayerJournal.create(dir, baseName, id, writeToKey, checker);
+        } catch (IOException e) {
+            Logger.error(this, "Unable to create journal, will write everything next time: "+e, e);
+            journal = null;
+        }
+        ClientLayerJournal.deleteAllExcept(dir, baseName, journalID, backupJournalID);
+        return true;
+    }
+    
+    /** Append the requests that have changed since the last checkpoint to the journal. Only 
+     * requests which are new or have been marked as changed are serialized, plus a few others 
+     * in turn, so the cost doesn't grow with the size of the queue. 
+     * @param checkAll If true, serialize every request to check whether it has changed.
+     * @return False if we need to write a complete client.dat instead. */
+    private boolean saveToJournal(ClientRequest[] requests, DelayedFree[] buckets, 
+            boolean checkAll) {
+        List<byte[]> records = new ArrayList<byte[]>();
+        Map<RequestIdentifier, byte[]> changed = new HashMap<RequestIdentifier, byte[]>();
+        Set<RequestIdentifier> removed = new HashSet<RequestIdentifier>(persistedDigests.keySet());
+        int sweepStart = requests.length == 0 ? 0 : sweepPosition % requests.length;
+        int sweepEnd = sweepStart + SWEEP_PER_CHECKPOINT;
+        int checked = 0;
+        try {
+            for(int i=0;i<requests.length;i++) {
+                ClientRequest req = requests[i];
+                RequestIdentifier reqID = req.getRequestIdentifier();
+                removed.remove(reqID);
+                boolean markedChanged = req.clearChangedForCheckpoint();
+                boolean inSweep = (i >= sweepStart && i < sweepEnd) || 
+                    (i + requests.length < sweepEnd);
+                if(!(markedChanged || checkAll || inSweep || !persistedDigests.containsKey(reqID)))
+                    continue;
+                checked++;
+                byte[] record = makeRequestRecord(req);
+                byte[] digest = SHA256.digest(record);
+                if(!Arrays.equals(digest, persistedDigests.get(reqID))) {
+                    records.add(record);
+                    changed.put(reqID, digest);
+                }
+            }
+            for(RequestIdentifier reqID : removed)
+                records.add(makeRemoveRecord(reqID));
+            bandwidthStatsPutter.updateData(node);
+            records.add(makeObjectRecord(RECORD_STATS, bandwidthStatsPutter));
+            if(buckets != null && buckets.length > 0)
+                records.add(makeBucketsRecord(buckets));
+            journal.append(records);
+        } catch (IOException e) {
+            Logger.error(this, "Failed to write to journal "+journal.getFile()+" : "+e, e);
+            System.err.println("Failed to write to journal, writing everything: "+e);
+            journal = null;
+            return false;
+        }
+        synchronized(serializeCheckpoints) {
+            if(compaction != null)
+                compaction.append(records);
+        }
+        persistedDigests.putAll(changed);
+        persistedDigests.keySet().removeAll(removed);
+        sweepPosition = sweepEnd;
+        persistentTempFactory.finishDelayedFree(buckets);
+        Logger.normal(this, "Saved "+changed.size()+" changed and "+removed.size()+
+                " removed requests to "+journal.getFile()+" after checking "+checked+" out of "+
+                requests.length);
+        if(journal.length() > Math.max(MIN_COMPACTION_SIZE, lastCompleteLength))
+            maybeStartCompaction(requests.length);
+        return true;
+    }
+    
+    /** @return The request identifier, the request, and the recovery data, preceded by 
+     * RECORD_PUT. */
+    private byte[] makeRequestRecord(ClientRequest req) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(RECORD_PUT);
+        // Write the request identifier so we can skip reading the request if we already have it.
+        writeRequestIdentifier(dos, req.getRequestIdentifier());
+        // Write the actual request.
+        writeChecksummedObject(dos, req, req.toString());
+        // Write recovery data. This is just enough to restart the request from scratch, 
+        // but may support continuing the request in simple cases e.g. if a fetch is now
+        // just a single splitfile.
+        writeRecoveryData(dos, req);
+        dos.close();
+        return baos.toByteArray();
+    }
+    
+    private byte[] makeRemoveRecord(RequestIdentifier reqID) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(RECORD_REMOVE);
+        writeRequestIdentifier(dos, reqID);
+        dos.close();
+        return baos.toByteArray();
+    }
+    
+    private byte[] makeObjectRecord(byte type, Object o) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(type);
+        writeChecksummedObject(dos, o, null);
+        dos.close();
+        return baos.toByteArray();
+    }
+    
+    private byte[] makeBucketsRecord(DelayedFree[] buckets) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(RECORD_BUCKETS);
+        dos.writeInt(buckets.length);
+        for(DelayedFree bucket : buckets)
+            writeChecksummedObject(dos, bucket, null);
+        dos.close();
+        return baos.toByteArray();
+    }
+    
+    private void writeJournalID(ObjectOutputStream oos, long id) throws IOException {
+        checker.writeAndChecksum(oos, Fields.longToBytes(id));
+    }
+    
+    private long newJournalID() {
+        long id;
+        do {
+            id = node.fastWeakRandom.nextLong();
+        } while(id == 0);
+        return id;
+    }
+    
+    private void maybeStartCompaction(int requestCount) {
+        synchronized(serializeCheckpoints) {
+            if(compaction != null) return;
+            long id = newJournalID();
+            ClientLayerJournal newJournal;
+            try {
+                newJournal = ClientLayerJournal.create(dir, baseName, id, writeToKey, checker);
+            } catch (IOException e) {
+                Logger.error(this, "Unable to create journal for compaction: "+e, e);
+                return;
+            }
+            File target = makeCompactionFilename(id);
+            Bucket targetBucket = new FileBucket(target, false, false, false, false);
+            if(writeToKey != null)
+                targetBucket = writeToKey.createEncryptedBucketForClientLayer(targetBucket);
+            compaction = new Compaction(journal, writeToBucket, writeToKey, target, targetBucket, newJournal, 
+                    requestCount);
+            executor.execute(compaction, "Compacting "+writeToFilename);
+        }
+    }
+    
+    private File makeCompactionFilename(long id) {
+        return new File(dir, baseName + ".compact." + Long.toHexString(id));
+    }
+    
+    private void cancelCompaction() {
+        synchronized(serializeCheckpoints) {
+            // It will clean up when it finishes.
+            compaction = null;
+        }
+    }
+    
+    /** Delete leftovers from compactions that were interrupted by a crash. */
+    private void deleteCompactionFiles() {
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        for(File f : files) {
+            if(f.getName().startsWith(baseName + ".compact."))
+                f.delete();
+        }
+    }
+    
+    private void deleteJournalFiles() {
+        cancelCompaction();
+        journal = null;
+        journalID = 0;
+        backupJournalID = 0;
+        ClientLayerJournal.deleteAllExcept(dir, baseName);
+        deleteCompactionFiles();
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    /** Merges client.dat and its journal into a new client.dat, off-thread. This only involves
+     * copying bytes, not the requests themselves, so it doesn't block the persistent job runner.
+     * 
+     * The new client.dat represents the state at the checkpoint where compaction was started. 
+     * Until it is complete, checkpoints are written to both the old journal and the new one, so 
+     * that if we crash, whichever client.dat is on disk has an up to date journal. */
+    private class Compaction implements PrioRunnable {
+        
+        private final ClientLayerJournal oldJournal;
+        private final long oldJournalLength;
+        private final Bucket source;
+        private final DatabaseKey key;
+        private final File target;
+        private final Bucket targetBucket;
+        private final ClientLayerJournal newJournal;
+        private final int requestCount;
+        /** LOCKING: Protected by serializeCheckpoints. */
+        private boolean failed;
+        
+        Compaction(ClientLayerJournal oldJournal, Bucket source, DatabaseKey key, File target, 
+                Bucket targetBucket, ClientLayerJournal newJournal, int requestCount) {
+            this.oldJournal = oldJournal;
+            this.oldJournalLength = oldJournal.length();
+            this.source = source;
+            this.key = key;
+            this.target = target;
+            this.targetBucket = targetBucket;
+            this.newJournal = newJournal;
+            this.requestCount = requestCount;
+        }
+        
+        /** Called on the checkpoint thread, after appending the same records to the old 
+         * journal. Caller must hold serializeCheckpoints. */
+        void append(List<byte[]> records) {
+            if(failed) return;
+            try {
+                newJournal.append(records);
+            } catch (IOException e) {
+                Logger.error(this, "Unable to write to new journal, abandoning compaction: "+e, e);
+                failed = true;
+            }
+        }
+        
+        @Override
+        public void run() {
+            long startTime = System.currentTimeMillis();
+            boolean success = false;
+            try {
+                merge();
+                success = true;
+            } catch (Throwable t) {
+                Logger.error(this, "Failed to compact "+writeToFilename+" : "+t, t);
+            }
+            synchronized(serializeCheckpoints) {
+                if(compaction != this || failed || !success) {
+                    target.delete();
+                    newJournal.getFile().delete();
+                    if(compaction == this) {
+                        compaction = null;
+                        // Write everything at the next checkpoint, rather than retrying 
+                        // compaction.
+                        journal = null;
+                    }
+                    return;
+                }
+                compaction = null;
+                if(writeToFilename.exists())
+                    FileUtil.renameTo(writeToFilename, writeToBackupFilename);
+                if(!FileUtil.renameTo(target, writeToFilename)) {
+                    // client.dat.bak and its journal are still up to date.
+                    Logger.error(this, "Unable to rename "+target+" to "+writeToFilename);
+                    target.delete();
+                    newJournal.getFile().delete();
+                    backupJournalID = journalID;
+                    journalID = 0;
+                    journal = null;
+                    return;
+                }
+                backupJournalID = journalID;
+                journalID = newJournal.getID();
+                journal = newJournal;
+                lastCompleteLength = writeToFilename.length();
+                ClientLayerJournal.deleteAllExcept(dir, baseName, journalID, backupJournalID);
+            }
+            Logger.normal(this, "Compacted "+requestCount+" requests into "+writeToFilename+" in "+
+                    (System.currentTimeMillis() - startTime)+"ms");
+        }
+        
+        private void merge() throws IOException, ChecksumFailedException, ClassNotFoundException {
+            List<byte[]> records = ClientLayerJournal.read(oldJournal.getFile(), 
+                    oldJournal.getID(), key, checker, oldJournalLength);
+            if(records == null) throw new IOException("Unable to read journal");
+            // The last version of each request in the journal, or null if it was removed.
+            Map<RequestIdentifier, byte[]> latest = new LinkedHashMap<RequestIdentifier, byte[]>();
+            byte[] statsRecord = null;
+            for(byte[] record : records) {
+                switch(record[0]) {
+                case RECORD_PUT:
+                case RECORD_REMOVE:
+                    DataInputStream dis = 
+                        new DataInputStream(new ByteArrayInputStream(record, 1, record.length-1));
+                    RequestIdentifier reqID = readRequestIdentifier(dis);
+                    if(reqID == null) throw new IOException("Bad request identifier in journal");
+                    latest.remove(reqID);
+                    latest.put(reqID, record[0] == RECORD_PUT ? record : null);
+                    break;
+                case RECORD_STATS:
+                    statsRecord = record;
+                    break;
+                default:
+                    // Buckets have already been freed.
+                }
+            }
+            long length = source.size();
+            try (InputStream is = source.getInputStream();
+                    OutputStream os = targetBucket.getOutputStream()) {
+                ObjectInputStream ois = new ObjectInputStream(is);
+                ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os));
+                if(ois.readLong() != MAGIC) throw new IOException("Bad magic");
+                if(ois.readInt() != VERSION) throw new IOException("Bad version");
+                byte[] salt = new byte[32];
+                checker.readAndChecksum(ois, salt, 0, salt.length);
+                oos.writeLong(MAGIC);
+                oos.writeInt(VERSION);
+                checker.writeAndChecksum(oos, salt);
+                oos.writeInt(requestCount);
+                int count = ois.readInt();
+                int written = 0;
+                for(int i=0;i<count;i++) {
+                    RequestIdentifier reqID = readRequestIdentifier(ois);
+                    if(reqID == null) throw new IOException("Bad request identifier in "+source);
+                    if(latest.containsKey(reqID)) {
+                        skipChecksummedObject(ois, length);
+                        skipChecksummedObject(ois, length);
+                    } else {
+                        writeRequestIdentifier(oos, reqID);
+                        copyChecksummedObject(ois, oos, length);
+                        copyChecksummedObject(ois, oos, length);
+                        written++;
+                    }
+                }
+                for(byte[] record : latest.values()) {
+                    if(record == null) continue;
+                    oos.write(record, 1, record.length - 1);
+                    written++;
+                }
+                if(written != requestCount)
+                    throw new IOException("Expected "+requestCount+" requests but merged "+written);
+                Object stats = ois.readObject();
+                if(statsRecord != null) {
+                    Object o = readChecksummedObject(
+                            new ByteArrayInputStream(statsRecord, 1, statsRecord.length-1), 
+                            statsRecord.length);
+                    if(o != null) stats = o;
+                }
+                oos.writeObject(stats);
+                oos.writeInt(0); // Buckets to free: Already done.
+                writeJournalID(oos, newJournal.getID());
+                oos.close();
+            }
+        }
+        
+        @Override
+        public int getPriority() {
+            return NativeThread.PriorityLevel.LOW_PRIORITY.value;
+        }
+        
+    }
+    
+    private void copyChecksummedObject(ObjectInputStream is, ObjectOutputStream os, long totalLength) throws IOException {
+        long length = is.readLong();
+        if(length > totalLength) throw new IOException("Too long: "+length+" > "+totalLength);
+        os.writeLong(length);
+        FileUtil.copy(is, os, length + checker.checksumLength());
+    }
+    
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -649,7 +1332,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
+    private ClientRequest readRequestFromRecoveryData(InputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
         InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             DataInputStream dis = new DataInputStream(tmp);
@@ -666,7 +1349,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    private void writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
@@ -681,7 +1364,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private Object readChecksummedObject(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
+    private Object readChecksummedObject(InputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
         InputStream ois = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             ObjectInputStream oo = new ObjectInputStream(ois);
@@ -698,12 +1381,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void skipChecksummedObject(ObjectInputStream is, long totalLength) throws IOException {
-        long length = is.readLong();
+    private void skipChecksummedObject(InputStream is, long totalLength) throws IOException {
+        long length = new DataInputStream(is).readLong();
         if(length > totalLength) throw new IOException("Too long: "+length+" > "+totalLength);
         FileUtil.skipFully(is, length + checker.checksumLength());
     }
-
     private ClientRequest[] getRequests() {
         return clientCore.getPersistentRequests();
     }
@@ -757,6 +1439,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            deleteJournalFiles();
         }
     }
 
@@ -765,6 +1448,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             writeToFilename = null;
             writeToBackupFilename = null;
             writeToBucket = null;
+            cancelCompaction();
+            journal = null;
         }
         super.disableWrite();
     }
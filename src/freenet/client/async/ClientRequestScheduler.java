@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
+import java.util.Collection;
+
 import freenet.client.FetchException;
 import freenet.crypt.RandomSource;
 import freenet.keys.Key;
@@ -24,6 +26,9 @@ import freenet.support.Fields;
 import freenet.support.IdentityHashSet;
 import freenet.support.Logger;
 import freenet.support.io.NativeThread;
+import freenet.support.metrics.Counter;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.Metric;
 
 /**
  * Every X seconds, the RequestSender calls the ClientRequestScheduler to
@@ -63,6 +68,10 @@ public class ClientRequestScheduler implements RequestScheduler {
 	public static final String PRIORITY_SOFT = "SOFT";
 	public static final String PRIORITY_HARD = "HARD";
 	private String choosenPriorityScheduler; 
+	/** Blocks chosen to send. */
+	private final Counter chosenBlocks;
+	/** How long it takes to choose requests, in microseconds. */
+	private final Histogram chooseTime;
 	
 	public ClientRequestScheduler(boolean forInserts, boolean forSSKs, boolean forRT, RandomSource random, RequestStarter starter, Node node, NodeClientCore core, String name, ClientContext context) {
 		this.isInsertScheduler = forInserts;
@@ -85,6 +94,9 @@ public class ClientRequestScheduler implements RequestScheduler {
 			offeredKeys = null;
 		}
 		jobRunner = clientContext.jobRunner;
+		String labels = Metric.labels("scheduler", name, "realtime", Boolean.toString(forRT));
+		chosenBlocks = node.metrics.counter("freenet_scheduler_chosen_blocks_total", "Blocks chosen by the client request schedulers to be sent.", labels);
+		chooseTime = node.metrics.histogram("freenet_scheduler_choose_microseconds", "How long the client request schedulers take to choose requests to send.", labels);
 	}
 	
 	public void startCore(byte[] globalSaltPersistent) {
@@ -102,12 +114,18 @@ public class ClientRequestScheduler implements RequestScheduler {
 	static final int QUEUE_THRESHOLD = 100;
 	
 	public void registerInsert(final SendableRequest req, boolean persistent) {
+		registerInserts(new SendableRequest[] { req });
+	}
+
+	/** Register several inserts, waking up the request starter only once. */
+	public void registerInserts(SendableRequest[] reqs) {
 		if(!isInsertScheduler)
 			throw new IllegalArgumentException("Adding a SendableInsert to a request scheduler!!");
-		selector.innerRegister(req, clientContext, null);
+		for(SendableRequest req : reqs)
+			selector.innerRegister(req, clientContext, null);
 		starter.wakeUp();
 	}
-	
+
 	/**
 	 * Register a group of requests (not inserts): a GotKeyListener and/or one 
 	 * or more SendableGet's.
@@ -231,12 +249,32 @@ public class ClientRequestScheduler implements RequestScheduler {
 	 */
 	@Override
 	public ChosenBlock grabRequest() {
+	    long start = System.nanoTime();
+	    ChosenBlock block = selector.chooseRequest(getFuzz(), random, offeredKeys, starter, isRTScheduler, clientContext);
+	    chooseTime.record((System.nanoTime() - start) / 1000);
+	    if(block != null) chosenBlocks.increment();
+	    return block;
+	}
+	
+	/**
+	 * Called by RequestStarter to find several requests to run at once.
+	 */
+	@Override
+	public int grabRequests(int max, Collection<ChosenBlock> out) {
+	    long start = System.nanoTime();
+	    int chosen = selector.chooseRequests(max, getFuzz(), random, offeredKeys, starter, isRTScheduler, clientContext, out);
+	    chooseTime.record((System.nanoTime() - start) / 1000);
+	    if(chosen > 0) chosenBlocks.add(chosen);
+	    return chosen;
+	}
+	
+	private short getFuzz() {
 	    short fuzz = -1;
 	    if(PRIORITY_SOFT.equals(choosenPriorityScheduler))
 	        fuzz = -1;
 	    else if(PRIORITY_HARD.equals(choosenPriorityScheduler))
 	        fuzz = 0;
-	    return selector.chooseRequest(fuzz, random, offeredKeys, starter, isRTScheduler, clientContext);
+	    return fuzz;
 	}
 	
 	/**
@@ -288,6 +326,7 @@ public class ClientRequestScheduler implements RequestScheduler {
 			offeredKeys.remove(block.getKey());
 		}
 		final Key key = block.getKey();
+		clientContext.notFoundCache.onFound(key);
 		if(schedTransient.anyProbablyWantKey(key, clientContext)) {
 			this.clientContext.mainExecutor.execute(new PrioRunnable() {
 
@@ -3,6 +3,7 @@ package freenet.client.async;
 import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -26,6 +27,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
 import freenet.support.RandomGrabArrayWithObject;
 import freenet.support.RemoveRandom.RemoveRandomReturn;
 import freenet.support.RemoveRandomParent;
@@ -44,18 +46,17 @@ import freenet.support.TimeUtil;
  * wakeup time is Long.MAX_VALUE) or because a key has been fetched repeatedly and has entered 
  * a cooldown period, meaning it will be fetchable in 30 minutes.
  * 
- * LOCKING: Consequently we need to lock the entire tree whenever we access either the tree or the
- * cooldown tracker (which really should be part of the tree, TODO!): When a request completes, we
- * start at the request itself and go up the tree until we stop updating the wakeup times. However
- * when we choose a request to send, we start at the top and go down (and update the cooldown times
- * when backtracking back up the tree if we don't find anything).
+ * LOCKING: Consequently we need to lock the whole subtree whenever we access either the tree or 
+ * the wakeup times: When a request completes, we start at the request itself and go up the tree 
+ * until we stop updating the wakeup times. However when we choose a request to send, we start at 
+ * the top and go down (and update the cooldown times when backtracking back up the tree if we 
+ * don't find anything).
  * 
- * **We lock on ClientRequestSelector** when using the tree, including the cooldown times.
- * 
- * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the whole 
- * tree, and then update the cooldowns; and/or we could avoid updating the cooldowns during request 
- * selection, e.g. by making sure that each structure always does a bottom-up update when something
- * changes, although that would not help with locking...
+ * Wakeup times never propagate between priorities, so **each priority has its own lock**, in 
+ * priorityLocks, which is used by every node in that priority's subtree. Registering, removing 
+ * and choosing requests at different priorities don't contend with each other. Changing the 
+ * priority of a request takes both locks, lower index first. The priorities array itself never 
+ * changes.
  * 
  * FIXME: More seriously, we should really combine the cooldown tracker and the RGAs. The RGAs and 
  * SRGAs should contain their own wakeup times. This could significantly simplify the code. 
@@ -77,16 +78,17 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	static class ClientRequestRGANode extends SectoredRandomGrabArraySimple<RequestClient,ClientRequestSchedulerGroup> {
 
         public ClientRequestRGANode(RequestClient object, RemoveRandomParent parent,
-                ClientRequestSelector root) {
-            super(object, parent, root);
+                ClientRequestSelector root, Object lock) {
+            super(object, parent, root, lock);
         }
 	    
 	}
 	
 	static class RequestClientRGANode extends SectoredRandomGrabArray<RequestClient,ClientRequestRGANode> {
 
-        public RequestClientRGANode(RemoveRandomParent parent, ClientRequestSelector root) {
-            super(parent, root);
+        public RequestClientRGANode(RemoveRandomParent parent, ClientRequestSelector root, 
+                Object lock) {
+            super(parent, root, lock);
         }
 	    
 	}
@@ -94,7 +96,10 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	/**
      * The base of the tree.
      */
-    protected RequestClientRGANode[] priorities;
+    protected final RequestClientRGANode[] priorities;
+    
+    /** The lock for each priority's subtree. */
+    private final Object[] priorityLocks;
     
     protected final Deque<BaseSendableGet>recentSuccesses;
     
@@ -114,6 +119,11 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 			recentSuccesses = null;
 		}
 		priorities = new RequestClientRGANode[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		priorityLocks = new Object[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<priorities.length;i++) {
+		    priorityLocks[i] = new Object();
+		    priorities[i] = new RequestClientRGANode(null, this, priorityLocks[i]);
+		}
 	}
 	
 	private static volatile boolean logMINOR;
@@ -145,9 +155,9 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	
 	/** Choose a priority to start requests from.
 	 * @return The priority chosen or the time at which a priority will have requests to send.
-	 * LOCKING: Synchronized because we may create new priorities. Both the cooldown queue and the 
-	 * RGA hierarchy, rooted at the priorities, use ClientRequestSelector lock. */
-	private synchronized long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
+	 * LOCKING: Takes each priority's lock in turn, not all of them at once, so the result may be
+	 * out of date, but anything registered after we looked will wake up the starter. */
+	private long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
 	    RequestClientRGANode result = null;
 		
 		long wakeupTime = Long.MAX_VALUE;
@@ -196,7 +206,45 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	 * classes only update their cooldown status when choosing a block to send, e.g. 
 	 * SplitFileInserter. */
 	ChosenBlock chooseRequest(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context) {
+		return chooseRequest(fuzz, random, offeredKeys, starter, realTime, context, System.currentTimeMillis());
+	}
+	
+	/** Choose up to max requests to run at once. Each block is chosen exactly as 
+	 * chooseRequest() would, so the batch respects priorities and round-robin between clients, 
+	 * but each one is registered as running (in keysFetching or runningInserts) as soon as it is 
+	 * chosen, so later choices in the same batch can't pick the same block again. The caller 
+	 * must either send the blocks or unregister them.
+	 * @param out The chosen blocks are added to this collection.
+	 * @return The number of blocks chosen. */
+	int chooseRequests(int max, int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context, Collection<ChosenBlock> out) {
 		long now = System.currentTimeMillis();
+		int chosen = 0;
+		int failures = 0;
+		while(chosen < max) {
+			ChosenBlock block = chooseRequest(fuzz, random, offeredKeys, starter, realTime, context, now);
+			if(block == null) break;
+			if(!markRunning(block)) {
+				// Already running, e.g. an offered key that is also in a splitfile.
+				block.onDumped();
+				if(++failures == 5) break;
+				continue;
+			}
+			out.add(block);
+			chosen++;
+		}
+		if(logMINOR) Logger.minor(this, "Chose "+chosen+" of "+max+" requests");
+		return chosen;
+	}
+	
+	private boolean markRunning(ChosenBlock block) {
+		if(block.key != null)
+			return addToFetching(block.key);
+		else if(((ChosenBlockImpl)block).request instanceof SendableInsert)
+			return addRunningInsert(block.token.getKey());
+		return true;
+	}
+	
+	private ChosenBlock chooseRequest(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context, long now) {
 		for(int i=0;i<5;i++) {
 			SelectorReturn r = chooseRequestInner(fuzz, random, offeredKeys, starter, realTime, context, now);
                         SendableRequest req = r.req;
@@ -352,8 +400,8 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 				if(logMINOR)
 					Logger.minor(this, "Got priority tracker "+chosenTracker);
 				RemoveRandomReturn val;
-				synchronized(this) {
-				    // We must hold the overall lock, just as in addToGrabArrays.
+				synchronized(priorityLocks[choosenPriorityClass]) {
+				    // We must hold the lock for the priority, just as in addToGrabArrays.
 				    // This is important for keeping the cooldown tracker consistent amongst other 
 				    // things: We can get a race condition between thread A reading the tree, 
 				    // finding nothing and setCachedWakeup(), and thread B waking up a request, 
@@ -386,7 +434,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 						RandomGrabArray baseRGA = clientGrabber.getGrabber(req.getSchedulerGroup());
 						if(baseRGA != null) {
 							// Must synchronize to avoid nasty race conditions with cooldown.
-							synchronized(this) {
+							synchronized(priorityLocks[choosenPriorityClass]) {
 								baseRGA.remove(req, context);
 							}
 						} else {
@@ -618,25 +666,22 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         if((priorityClass > RequestStarter.PAUSED_PRIORITY_CLASS) || (priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS))
             throw new IllegalStateException("Invalid priority: "+priorityClass+" - range is "+RequestStarter.MAXIMUM_PRIORITY_CLASS+" (most important) to "+RequestStarter.PAUSED_PRIORITY_CLASS+" (least important)");
         // Client
-        synchronized(this) {
+        synchronized(priorityLocks[priorityClass]) {
             ClientRequestRGANode requestGrabber = makeSRGAForClient(priorityClass, client, context);
             requestGrabber.add(cr, req, context);
         }
         sched.wakeStarter();
     }
 
+    /** Caller must hold the lock for the priority. */
     private ClientRequestRGANode makeSRGAForClient(short priorityClass,
             RequestClient client, ClientContext context) {
         RequestClientRGANode clientGrabber = priorities[priorityClass];
-        if(clientGrabber == null) {
-            clientGrabber = new RequestClientRGANode(null, this);
-            priorities[priorityClass] = clientGrabber;
-            if(logMINOR) Logger.minor(this, "Registering client tracker for priority "+priorityClass+" : "+clientGrabber);
-        }
         // Request
         ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
         if(requestGrabber == null) {
-            requestGrabber = new ClientRequestRGANode(client, clientGrabber, this);
+            requestGrabber = new ClientRequestRGANode(client, clientGrabber, this, 
+                    priorityLocks[priorityClass]);
             if(logMINOR)
                 Logger.minor(this, "Creating new grabber: "+requestGrabber+" for "+client+" from "+clientGrabber+" : prio="+priorityClass);
             clientGrabber.addGrabber(client, requestGrabber, context);
@@ -653,39 +698,41 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
             return;
         }
         ClientRequestSchedulerGroup group = request.getSchedulerGroup();
-        synchronized(this) {
-            // First by priority
-            RequestClientRGANode clientGrabber = priorities[oldPrio];
-            if(clientGrabber == null) {
-                // Normal as most of the schedulers aren't relevant to any given insert/request.
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            // Then by RequestClient
-            ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
-            if(requestGrabber == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
-            if(rga == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            requestGrabber.maybeRemove(rga, context);
-            requestGrabber = makeSRGAForClient(newPrio, client, context);
-            if(requestGrabber.getGrabber(group) != null) {
-                Logger.error(this, "RGA already exists for "+request+" : "+requestGrabber.getGrabber(group)+
-                        " but want to insert "+rga, new Exception("error"));
+        // Always take the locks in the same order.
+        Object firstLock = priorityLocks[Math.min(oldPrio, newPrio)];
+        Object secondLock = priorityLocks[Math.max(oldPrio, newPrio)];
+        synchronized(firstLock) {
+            synchronized(secondLock) {
+                // First by priority
+                RequestClientRGANode clientGrabber = priorities[oldPrio];
+                // Then by RequestClient
+                ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
+                if(requestGrabber == null) {
+                    // Normal as most of the schedulers aren't relevant to any given insert/request.
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
+                RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
+                if(rga == null) {
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
+                // The RGA belongs to the old priority's subtree, so move its contents rather 
+                // than the RGA itself, all at once.
+                RandomGrabArrayItem[] items = rga.removeAll();
                 requestGrabber.maybeRemove(rga, context);
+                if(items.length == 0) return;
+                requestGrabber = makeSRGAForClient(newPrio, client, context);
+                requestGrabber.addAll(group, items, rga, context);
             }
-            requestGrabber.addGrabber(group, rga, context);
         }
+        sched.wakeStarter();
     }
 
-    public synchronized long countQueuedRequests(ClientContext context) {
+    public long countQueuedRequests(ClientContext context) {
         long total = 0;
         for(int i=0;i<priorities.length;i++) {
+          synchronized(priorityLocks[i]) {
             RequestClientRGANode prio = priorities[i];
             if(prio == null || prio.isEmpty())
                 System.out.println("Priority "+i+" : empty");
@@ -715,6 +762,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
                         }
                     }
             }
+          }
         }
         return total;
     }   
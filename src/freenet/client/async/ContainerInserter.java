@@ -33,14 +33,19 @@ import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.api.ManifestElement;
 import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.CompressJob;
 import freenet.support.io.BucketTools;
-import freenet.support.io.Closer;
 import freenet.support.io.ResumeFailedException;
 
 /**
  * Insert a bunch of files as single Archive with .metadata
  * pack the container/archive, then hand it off to SimpleFileInserter
  *
+ * Packing reads every file in the container, so it is done on the RealCompressor's threads,
+ * not on the thread that starts the insert. A site with many containers is then packed in
+ * parallel, bounded by the compressor thread limit, while its external files are already being
+ * inserted.
+ *
  * TODO persistence
  * TODO add a MAX_SIZE for the final container(file)
  * 
@@ -85,6 +90,9 @@ public class ContainerInserter implements ClientPutState, Serializable {
 	final byte[] forceCryptoKey;
 	final byte cryptoAlgorithm;
 	private final boolean realTimeFlag;
+	/** True if we have started packing but not yet handed off to the SingleFileInserter. The
+	 * result of packing is not persisted, so we pack again on resume. */
+	private boolean packing;
 
 	/**
 	 * Insert a bunch of files as single Archive with .metadata
@@ -164,20 +172,73 @@ public class ContainerInserter implements ClientPutState, Serializable {
 	private void start(ClientContext context) {
 		if(logDEBUG) Logger.debug(this, "Atempt to start a container inserter", new Exception("debug"));
 		
-		makeMetadata(context);
-		
 		synchronized(this) {
-			if(finished) return;
+			if(finished || cancelled) return;
+			packing = true;
 		}
 		
-		InsertBlock block;
+		// Packing resolves Metadata which is too big to go inline, so it works on a copy:
+		// origMetadata may be serialized at a checkpoint while we are packing.
+		final HashMap<String, Object> manifest = copyManifest(origMetadata);
+		if(context.rc == null) {
+			// No compressor threads, e.g. in tests.
+			pack(manifest, context);
+			return;
+		}
+		context.rc.enqueueNewJob(new CompressJob() {
+
+			@Override
+			public void tryCompress(ClientContext context) throws InsertException {
+				pack(manifest, context);
+			}
+
+			@Override
+			public void onFailure(final InsertException e, ClientPutState c, ClientContext context) {
+				context.getJobRunner(persistent).queueNormalOrDrop(new PersistentJob() {
+
+					@Override
+					public boolean run(ClientContext context) {
+						fail(e, context);
+						return false;
+					}
+
+				});
+			}
+
+		});
+	}
+
+	/** Copy the directories and Metadata of a manifest. ManifestElements are not changed by
+	 * packing, so they are shared. */
+	@SuppressWarnings("unchecked")
+	private static HashMap<String, Object> copyManifest(HashMap<String, Object> manifestElements) {
+		HashMap<String, Object> copy = new HashMap<String, Object>(manifestElements.size());
+		for (Map.Entry<String, Object> me : manifestElements.entrySet()) {
+			Object o = me.getValue();
+			if(o instanceof HashMap)
+				o = copyManifest((HashMap<String, Object>) o);
+			else if(o instanceof Metadata)
+				o = ((Metadata) o).clone();
+			copy.put(me.getKey(), o);
+		}
+		return copy;
+	}
+
+	/** Build the metadata and the archive from a private copy of the manifest. Does not change
+	 * any persistent state, the result is passed to onPacked() on the job runner. */
+	private void pack(HashMap<String, Object> manifest, ClientContext context) {
+		final ArrayList<ContainerElement> items = new ArrayList<ContainerElement>();
+		InsertBlock block = null;
+		InsertException failure = null;
 		OutputStream os = null;
+		RandomAccessBucket outputBucket = null;
 		try {
-		    RandomAccessBucket outputBucket = context.getBucketFactory(persistent).makeBucket(-1);
+			makeMetadata(items, manifest, context);
+			outputBucket = context.getBucketFactory(persistent).makeBucket(-1);
 			os = new BufferedOutputStream(outputBucket.getOutputStream());
 			String mimeType = (archiveType == ARCHIVE_TYPE.TAR ?
-				createTarBucket(os) :
-				createZipBucket(os));
+				createTarBucket(items, os) :
+				createZipBucket(items, os));
 			os = null; // create*Bucket closes os
 			if(logMINOR)
 				Logger.minor(this, "Archive size is "+outputBucket.size());
@@ -190,11 +251,54 @@ public class ContainerInserter implements ClientPutState, Serializable {
 			// Thereby exploiting implicit manifest support, which will pick up on .metadata??
 			// We ought to be able to !!
 			block = new InsertBlock(outputBucket, new ClientMetadata(mimeType), targetURI);
+		} catch (InsertException e) {
+			failure = e;
 		} catch (IOException e) {
-			fail(new InsertException(InsertExceptionMode.BUCKET_ERROR, e, null), context);
+			failure = new InsertException(InsertExceptionMode.BUCKET_ERROR, e, null);
+		}
+		
+		if(failure != null) {
+			if(os != null) {
+				try {
+					os.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+			if(outputBucket != null) outputBucket.free();
+			final InsertException e = failure;
+			context.getJobRunner(persistent).queueNormalOrDrop(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					fail(e, context);
+					return false;
+				}
+
+			});
 			return;
-		} finally {
-			Closer.close(os);
+		}
+		
+		final InsertBlock packed = block;
+		context.getJobRunner(persistent).queueNormalOrDrop(new PersistentJob() {
+
+			@Override
+			public boolean run(ClientContext context) {
+				onPacked(items, packed, context);
+				return false;
+			}
+
+		});
+	}
+
+	private void onPacked(ArrayList<ContainerElement> items, InsertBlock block, ClientContext context) {
+		synchronized(this) {
+			if(finished || cancelled) {
+				block.getData().free();
+				return;
+			}
+			packing = false;
+			containerItems = items;
 		}
 		
 		boolean dc = dontCompress;
@@ -215,43 +319,41 @@ public class ContainerInserter implements ClientPutState, Serializable {
 		}
 	}
 
-	private void makeMetadata(ClientContext context) {
+	private void makeMetadata(ArrayList<ContainerElement> items, HashMap<String, Object> manifest, ClientContext context) throws InsertException {
 
 		Bucket bucket = null;
 		int x = 0;
 
-		Metadata md = makeManifest(origMetadata, "");
+		Metadata md = makeManifest(items, manifest, "");
 
 		while(true) {
 			try {
 				bucket = md.toBucket(context.getBucketFactory(persistent));
-				containerItems.add(new ContainerElement(bucket, ".metadata"));
+				items.add(new ContainerElement(bucket, ".metadata"));
 				return;
 			} catch (MetadataUnresolvedException e) {
 				try {
-					x = resolve(e, x, null, null, context);
+					x = resolve(items, e, x, null, null, context);
 				} catch (IOException e1) {
-					fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null), context);
-					return;
+					throw new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null);
 				}
 			} catch (IOException e) {
-				fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null), context);
-				return;
+				throw new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null);
 			}
 		}
 		
 	}
 
-	private int resolve(MetadataUnresolvedException e, int x, FreenetURI key, String element2, ClientContext context) throws IOException {
+	private int resolve(ArrayList<ContainerElement> items, MetadataUnresolvedException e, int x, FreenetURI key, String element2, ClientContext context) throws IOException {
 		Metadata[] metas = e.mustResolve;
 		for(Metadata m: metas) {
 			try {
 				Bucket bucket = m.toBucket(context.getBucketFactory(persistent));
 				String nameInArchive = ".metadata-"+(x++);
-				containerItems.add(new ContainerElement(bucket, nameInArchive));
+				items.add(new ContainerElement(bucket, nameInArchive));
 				m.resolve(nameInArchive);
 			} catch (MetadataUnresolvedException e1) {
-				x = resolve(e, x, key, element2, context);
+				x = resolve(items, e, x, key, element2, context);
 			}
 		}
 		return x;
@@ -279,7 +381,7 @@ public class ContainerInserter implements ClientPutState, Serializable {
 	/**
 	** OutputStream os will be close()d if this method returns successfully.
 	*/
-	private String createTarBucket(OutputStream os) throws IOException {
+	private String createTarBucket(ArrayList<ContainerElement> items, OutputStream os) throws IOException {
 		if(logMINOR) Logger.minor(this, "Create a TAR Bucket");
 		
 		TarArchiveOutputStream tarOS = new TarArchiveOutputStream(os);
@@ -287,7 +389,7 @@ public class ContainerInserter implements ClientPutState, Serializable {
 			tarOS.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
 			TarArchiveEntry ze;
 
-			for (ContainerElement ph : containerItems) {
+			for (ContainerElement ph : items) {
 				if (logMINOR)
 					Logger.minor(this, "Putting into tar: " + ph + " data length " + ph.data.size() + " name " + ph.targetInArchive);
 				ze = new TarArchiveEntry(ph.targetInArchive);
@@ -305,14 +407,14 @@ public class ContainerInserter implements ClientPutState, Serializable {
 		return ARCHIVE_TYPE.TAR.mimeTypes[0];
 	}
 	
-	private String createZipBucket(OutputStream os) throws IOException {
+	private String createZipBucket(ArrayList<ContainerElement> items, OutputStream os) throws IOException {
 		if(logMINOR) Logger.minor(this, "Create a ZIP Bucket");
 		
 		ZipOutputStream zos = new ZipOutputStream(os);
 		try {
 			ZipEntry ze;
 
-			for (ContainerElement ph : containerItems) {
+			for (ContainerElement ph : items) {
 				ze = new ZipEntry(ph.targetInArchive);
 				ze.setTime(0);
 				zos.putNextEntry(ze);
@@ -326,7 +428,7 @@ public class ContainerInserter implements ClientPutState, Serializable {
 		return ARCHIVE_TYPE.ZIP.mimeTypes[0];
 	}
 
-	private Metadata makeManifest(HashMap<String, Object> manifestElements, String archivePrefix) {
+	private Metadata makeManifest(ArrayList<ContainerElement> items, HashMap<String, Object> manifestElements, String archivePrefix) {
 		SimpleManifestComposer smc = new Metadata.SimpleManifestComposer();
 		for (Map.Entry<String, Object> me : manifestElements.entrySet()) {
 			String name = me.getKey();
@@ -336,7 +438,7 @@ public class ContainerInserter implements ClientPutState, Serializable {
 				HashMap<String,Object> hm = (HashMap<String, Object>) o;
 				HashMap<String,Object> subMap = new HashMap<String,Object>();
 				//System.out.println("Decompose: "+name+" (SubDir)");
-				smc.addItem(name, makeManifest(hm, archivePrefix+name+ '/'));
+				smc.addItem(name, makeManifest(items, hm, archivePrefix+name+ '/'));
 				if(logDEBUG)
 					Logger.debug(this, "Sub map for "+name+" : "+subMap.size()+" elements from "+hm.size());
 			} else if (o instanceof Metadata) {
@@ -357,7 +459,7 @@ public class ContainerInserter implements ClientPutState, Serializable {
 					m = new Metadata(DocumentType.SIMPLE_REDIRECT, null, null, element.targetURI, cm);
 				} else {
 					//System.out.println("Decompose: "+name+" (ManifestElement, Data)");
-					containerItems.add(new ContainerElement(element.getData(), archivePrefix+name));
+					items.add(new ContainerElement(element.getData(), archivePrefix+name));
 					m = new Metadata(DocumentType.ARCHIVE_INTERNAL_REDIRECT, null, null, archivePrefix+element.fullName, cm);
 				}
 				smc.addItem(name, m);
@@ -383,7 +485,16 @@ public class ContainerInserter implements ClientPutState, Serializable {
             }
         }
         resumeMetadata(origMetadata, context);
-        // Do not call start(). start() immediately transitions to another state.
+        // Do not call start() unless it has already been called: start() transitions to
+        // another state once the archive has been packed.
+        boolean restart;
+        synchronized(this) {
+            restart = packing && !(finished || cancelled);
+        }
+        if(restart) {
+            if(logMINOR) Logger.minor(this, "Restarting packing on resume for "+this);
+            start(context);
+        }
     }
     
     @SuppressWarnings("unchecked")
@@ -23,32 +23,89 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
     private long overallCooldownTime;
     /** Time at which each block becomes fetchable again. 0 means it is fetchable now. */
     private long[] blockCooldownTimes;
-    /** Current time, updated at the beginning of chooseKey(). */
-    private long now;
+    /** Blocks in cooldown, in the order they will wake up. Since the cooldown time is the same 
+     * for every block, this is just a FIFO queue, as a circular buffer. An entry is stale if the 
+     * block's wake-up time no longer matches, e.g. after onUnSuccess(). */
+    private int[] cooldownQueue;
+    private long[] cooldownQueueTimes;
+    private int cooldownQueueStart;
+    private int cooldownQueueLength;
     
     @Override
     public synchronized int chooseKey() {
-        now = System.currentTimeMillis();
+        long now = System.currentTimeMillis();
         if(overallCooldownTime > now) return -1;
-        overallCooldownTime = Long.MAX_VALUE; // Will find the earliest wake-up.
+        wakeUp(now);
         int ret = super.chooseKey();
         if(ret != -1) 
-            overallCooldownTime = 0; // Fetchable now, else waiting for cooldown.
+            overallCooldownTime = 0; // Fetchable now.
+        else
+            overallCooldownTime = nextWakeUp(); // Waiting for cooldown.
         return ret;
     }
     
-    @Override
-    protected boolean checkValid(int blockNo) {
-        if(!super.checkValid(blockNo)) return false;
-        long wakeUp = blockCooldownTimes[blockNo];
-        if(now > wakeUp) {
-            blockCooldownTimes[blockNo] = 0;
-            return true;
-        } else {
-            // Update the overall cooldown wakeup time.
-            overallCooldownTime = Math.min(overallCooldownTime, wakeUp);
-            return false;
+    /** Make blocks whose cooldown has expired choosable again. */
+    private void wakeUp(long now) {
+        while(cooldownQueueLength > 0) {
+            int blockNo = cooldownQueue[cooldownQueueStart];
+            long wakeUp = cooldownQueueTimes[cooldownQueueStart];
+            if(blockCooldownTimes[blockNo] == wakeUp) {
+                if(now <= wakeUp) return;
+                blockCooldownTimes[blockNo] = 0;
+                makeChoosable(blockNo);
+            } // Else stale.
+            popCooldownQueue();
+        }
+    }
+    
+    /** @return The time at which the first block still waiting for cooldown wakes up, or 
+     * Long.MAX_VALUE if there are none. */
+    private long nextWakeUp() {
+        while(cooldownQueueLength > 0) {
+            int blockNo = cooldownQueue[cooldownQueueStart];
+            long wakeUp = cooldownQueueTimes[cooldownQueueStart];
+            if(blockCooldownTimes[blockNo] == wakeUp) {
+                if(!isFinished(blockNo)) return wakeUp;
+                blockCooldownTimes[blockNo] = 0;
+            }
+            popCooldownQueue();
         }
+        return Long.MAX_VALUE;
+    }
+    
+    private void popCooldownQueue() {
+        cooldownQueueStart = (cooldownQueueStart + 1) % cooldownQueue.length;
+        cooldownQueueLength--;
+    }
+    
+    private void pushCooldownQueue(int blockNo, long wakeUp) {
+        if(cooldownQueue == null) {
+            cooldownQueue = new int[MIN_QUEUE_SIZE];
+            cooldownQueueTimes = new long[MIN_QUEUE_SIZE];
+        } else if(cooldownQueueLength == cooldownQueue.length) {
+            // Stale entries mean this can be bigger than the number of blocks.
+            int[] newQueue = new int[cooldownQueue.length * 2];
+            long[] newTimes = new long[newQueue.length];
+            for(int i=0;i<cooldownQueueLength;i++) {
+                int j = (cooldownQueueStart + i) % cooldownQueue.length;
+                newQueue[i] = cooldownQueue[j];
+                newTimes[i] = cooldownQueueTimes[j];
+            }
+            cooldownQueue = newQueue;
+            cooldownQueueTimes = newTimes;
+            cooldownQueueStart = 0;
+        }
+        int end = (cooldownQueueStart + cooldownQueueLength) % cooldownQueue.length;
+        cooldownQueue[end] = blockNo;
+        cooldownQueueTimes[end] = wakeUp;
+        cooldownQueueLength++;
+    }
+    
+    private static final int MIN_QUEUE_SIZE = 16;
+    
+    @Override
+    protected boolean isCoolingDown(int blockNo) {
+        return blockCooldownTimes[blockNo] != 0;
     }
     
     @Override
@@ -56,11 +113,20 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
         int ret = super.innerOnNonFatalFailure(blockNo);
         if(ret > maxRetries && maxRetries != -1) return ret;
         if(ret % cooldownTries == 0) {
-            blockCooldownTimes[blockNo] = System.currentTimeMillis() + cooldownTime;
-            overallCooldownTime = Math.min(blockCooldownTimes[blockNo], overallCooldownTime); // Must not be left at infinite!
+            long wakeUp = System.currentTimeMillis() + cooldownTime;
+            if(cooldownQueueLength > 0) {
+                // Keep the queue in order even if the clock goes backwards.
+                int last = (cooldownQueueStart + cooldownQueueLength - 1) % cooldownQueue.length;
+                wakeUp = Math.max(wakeUp, cooldownQueueTimes[last]);
+            }
+            blockCooldownTimes[blockNo] = wakeUp;
+            makeUnchoosable(blockNo);
+            pushCooldownQueue(blockNo, wakeUp);
+            overallCooldownTime = Math.min(wakeUp, overallCooldownTime); // Must not be left at infinite!
         } else {
             // Fetchable.
             blockCooldownTimes[blockNo] = 0;
+            makeChoosable(blockNo);
             overallCooldownTime = 0;
         }
         return ret;
@@ -74,6 +140,8 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
     @Override
     public synchronized void onUnSuccess(int blockNo) {
         blockCooldownTimes[blockNo] = 0;
+        super.onUnSuccess(blockNo);
+        makeChoosable(blockNo);
         clearCooldown();
     }
     
@@ -0,0 +1,545 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.crypt.SHA256;
+import freenet.keys.FreenetURI;
+import freenet.support.Executor;
+import freenet.support.HexUtil;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+import freenet.support.io.ResumeFailedException;
+
+/**
+ * Keeps recently fetched files on disk, so that they can be returned instantly if they are
+ * fetched again, even after a restart, without going back to the datastore and decoding all the
+ * blocks. Only keys whose content can't change are cached: CHKs, SSKs, and USKs with a specific
+ * edition (stored as the equivalent SSK). KSKs and USK edition searches are always fetched.
+ *
+ * Files are stored under the SHA-256 of their content, so the same file fetched under several
+ * keys, or both filtered and unfiltered when the filter doesn't change it, is only stored once.
+ * The total size is bounded, and the least recently used keys are dropped first. The index is
+ * written to disk shortly after it changes; on startup, files which are missing from the index
+ * or the wrong size are discarded.
+ *
+ * Lookups return a read-only bucket backed by the stored file rather than a copy, so a hit costs
+ * no I/O on the request thread. A file which is evicted while such a bucket is still in use is
+ * only deleted when the bucket is freed.
+ *
+ * Filtered data is only stored if it was filtered with the default settings, i.e. no charset,
+ * no MIME type override and no tag replacer. lookupInstant() isn't told the settings of the
+ * fetch, so this is what a filtered entry means. FProxyFetchInProgress.checkCache() already
+ * checks a filtered result against the charset and MIME type override of the new fetch, as it
+ * does for the global queue.
+ *
+ * Note that the cached files are NOT encrypted, so this is disabled by default.
+ *
+ * LOCKING: Synchronized on (this). Disk I/O on the data is done outside the lock.
+ */
+public class DiskDownloadCache implements DownloadCache {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(DiskDownloadCache.class);
+	}
+
+	static final long MAGIC = 0x5c8f7e1d2b3a4f69L;
+	static final int VERSION = 1;
+	static final String INDEX_FILENAME = "index.dat";
+	/** Delay before writing the index after a change, so that changes are batched. */
+	static final long WRITE_INDEX_DELAY = SECONDS.toMillis(30);
+	/** Never cache anything larger than this fraction of the total size, so one big file
+	 * can't flush the whole cache. */
+	static final int MAX_FILE_FRACTION = 4;
+
+	private final File dir;
+	private final Executor executor;
+	/** May be null, in which case the index is only written by writeIndex(). */
+	private final Ticker ticker;
+	/** For copies returned to callers. The files themselves may be deleted at any time. */
+	private final BucketFactory bf;
+	private long maxSize;
+	private long totalSize;
+	/** Keys in access order, least recently used first. */
+	private final LinkedHashMap<String, Entry> entries;
+	/** Stored files by hash. */
+	private final HashMap<String, Blob> blobs;
+	/** Evicted files which are still being read, by hash. Deleted when the last reader is done. */
+	private final HashMap<String, Blob> evicted;
+	private boolean writeIndexQueued;
+	private long hits;
+	private long misses;
+
+	private static class Entry {
+		final String hash;
+		final String mimeType;
+
+		Entry(String hash, String mimeType) {
+			this.hash = hash;
+			this.mimeType = mimeType;
+		}
+	}
+
+	private static class Blob {
+		final long size;
+		/** Number of entries using this file. */
+		int refs;
+		/** Number of buckets returned by lookups and not yet freed. */
+		int readers;
+
+		Blob(long size) {
+			this.size = size;
+		}
+	}
+
+	public DiskDownloadCache(File dir, long maxSize, Executor executor, Ticker ticker, BucketFactory bf) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.executor = executor;
+		this.ticker = ticker;
+		this.bf = bf;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		blobs = new HashMap<String, Blob>();
+		evicted = new HashMap<String, Blob>();
+	}
+
+	/** Load the index and delete any files which aren't in it. Call before using the cache. */
+	public void start() {
+		if(!dir.exists() && !dir.mkdirs()) {
+			Logger.error(this, "Unable to create download cache directory "+dir);
+			return;
+		}
+		synchronized(this) {
+			try {
+				readIndex();
+			} catch (IOException e) {
+				Logger.normal(this, "Unable to read download cache index, starting from empty: "+e);
+				entries.clear();
+				blobs.clear();
+				totalSize = 0;
+			}
+		}
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				if(f.getName().equals(INDEX_FILENAME)) continue;
+				synchronized(this) {
+					if(blobs.containsKey(f.getName())) continue;
+				}
+				if(logMINOR) Logger.minor(this, "Deleting orphan file "+f);
+				f.delete();
+			}
+		}
+		List<File> toDelete = new ArrayList<File>();
+		synchronized(this) {
+			evict(toDelete);
+		}
+		delete(toDelete);
+	}
+
+	private void readIndex() throws IOException {
+		File f = new File(dir, INDEX_FILENAME);
+		if(!f.exists()) return;
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			if(dis.readLong() != MAGIC) throw new IOException("Bad magic");
+			if(dis.readInt() != VERSION) throw new IOException("Bad version");
+			int count = dis.readInt();
+			for(int i=0;i<count;i++) {
+				String key = dis.readUTF();
+				String hash = dis.readUTF();
+				long size = dis.readLong();
+				String mimeType = dis.readUTF();
+				Blob blob = blobs.get(hash);
+				if(blob == null) {
+					File data = new File(dir, hash);
+					if(data.length() != size) {
+						if(logMINOR) Logger.minor(this, "Dropping "+key+" : file missing or wrong size");
+						continue;
+					}
+					blob = new Blob(size);
+					blobs.put(hash, blob);
+					totalSize += size;
+				}
+				blob.refs++;
+				// Stored in LRU order, so the access order is preserved.
+				entries.put(key, new Entry(hash, mimeType.isEmpty() ? null : mimeType));
+			}
+		}
+	}
+
+	/** Write the index to disk. Written to a temporary file first so we never lose the old
+	 * index. */
+	public void writeIndex() {
+		File f = new File(dir, INDEX_FILENAME);
+		File tmp = new File(dir, INDEX_FILENAME+".tmp");
+		try {
+			try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				synchronized(this) {
+					writeIndexQueued = false;
+					dos.writeLong(MAGIC);
+					dos.writeInt(VERSION);
+					dos.writeInt(entries.size());
+					for(Map.Entry<String, Entry> e : entries.entrySet()) {
+						Entry entry = e.getValue();
+						dos.writeUTF(e.getKey());
+						dos.writeUTF(entry.hash);
+						dos.writeLong(blobs.get(entry.hash).size);
+						dos.writeUTF(entry.mimeType == null ? "" : entry.mimeType);
+					}
+				}
+			}
+			if(!FileUtil.renameTo(tmp, f))
+				Logger.error(this, "Unable to rename "+tmp+" to "+f);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write download cache index: "+e, e);
+		}
+	}
+
+	private synchronized void queueWriteIndex() {
+		if(ticker == null || writeIndexQueued) return;
+		writeIndexQueued = true;
+		ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				writeIndex();
+			}
+
+		}, "Write download cache index", WRITE_INDEX_DELAY, false, true);
+	}
+
+	/** @return The key to store the URI under, or null if it can't be cached.
+	 * @param filtered True if the data was filtered with the default settings. */
+	static String cacheKey(FreenetURI uri, boolean filtered) {
+		if(uri.isUSK()) {
+			if(uri.getSuggestedEdition() < 0) return null;
+			uri = uri.sskForUSK();
+		} else if(!(uri.isCHK() || uri.isSSK())) {
+			return null;
+		}
+		return (filtered ? "F:" : "U:") + uri.toString(false, false);
+	}
+
+	@Override
+	public CacheFetchResult lookupInstant(FreenetURI key, boolean noFilter, boolean mustCopy, Bucket preferred) {
+		// If the caller doesn't want it filtered, only the unfiltered version will do.
+		// Otherwise, try the filtered version first, and the caller will filter the other.
+		if(!noFilter) {
+			CacheFetchResult result = lookup(cacheKey(key, true), true, mustCopy, preferred);
+			if(result != null) return result;
+		}
+		return lookup(cacheKey(key, false), false, mustCopy, preferred);
+	}
+
+	@Override
+	public CacheFetchResult lookup(FreenetURI key, boolean noFilter, ClientContext context,
+			boolean mustCopy, Bucket preferred) {
+		return lookupInstant(key, noFilter, mustCopy, preferred);
+	}
+
+	/** Returns the stored file itself unless the caller asks for a copy. The file is kept until
+	 * the returned bucket is freed, even if it is evicted in the meantime. */
+	private CacheFetchResult lookup(String cacheKey, boolean filtered, boolean mustCopy, Bucket preferred) {
+		if(cacheKey == null) return null;
+		Entry entry;
+		Blob blob;
+		synchronized(this) {
+			entry = entries.get(cacheKey);
+			if(entry == null) {
+				misses++;
+				return null;
+			}
+			blob = blobs.get(entry.hash);
+			blob.readers++;
+		}
+		Bucket data = new ReaderBucket(entry.hash, blob);
+		if(data.size() != blob.size) {
+			// Deleted by the user.
+			if(logMINOR) Logger.minor(this, "Cached file for "+cacheKey+" is missing");
+			data.free();
+			synchronized(this) {
+				misses++;
+			}
+			return null;
+		}
+		if(mustCopy || preferred != null) {
+			Bucket copy = null;
+			try {
+				copy = preferred != null ? preferred : bf.makeBucket(blob.size);
+				BucketTools.copy(data, copy);
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Unable to read cached "+cacheKey+" : "+e, e);
+				if(copy != null && copy != preferred) copy.free();
+				synchronized(this) {
+					misses++;
+				}
+				return null;
+			} finally {
+				data.free();
+			}
+			data = copy;
+		}
+		synchronized(this) {
+			hits++;
+		}
+		queueWriteIndex();
+		return new CacheFetchResult(new ClientMetadata(entry.mimeType), data, filtered);
+	}
+
+	/** Called when a bucket returned by a lookup is freed. */
+	private void release(String hash, Blob blob) {
+		synchronized(this) {
+			if(--blob.readers > 0 || evicted.get(hash) != blob) return;
+			evicted.remove(hash);
+		}
+		new File(dir, hash).delete();
+	}
+
+	@Override
+	public void onFetched(final FreenetURI key, FetchContext ctx, final ClientMetadata metadata,
+			final Bucket data) {
+		if(ctx.filterData && (ctx.charset != null || ctx.overrideMIME != null || ctx.tagReplacer != null))
+			return;
+		final String cacheKey = cacheKey(key, ctx.filterData);
+		if(cacheKey == null) return;
+		synchronized(this) {
+			if(data.size() > maxSize / MAX_FILE_FRACTION) return;
+			if(entries.containsKey(cacheKey)) return;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					store(cacheKey, metadata == null ? null : metadata.getMIMEType(), data);
+				} catch (IOException e) {
+					// Probably freed by the caller.
+					if(logMINOR) Logger.minor(this, "Unable to cache "+key+" : "+e, e);
+				}
+			}
+
+		}, "Storing "+key+" in download cache");
+	}
+
+	void store(String cacheKey, String mimeType, Bucket data) throws IOException {
+		File tmp = File.createTempFile("store-", ".tmp", dir);
+		MessageDigest md = SHA256.getMessageDigest();
+		long size = 0;
+		try (InputStream is = data.getInputStreamUnbuffered();
+				OutputStream os = new FileOutputStream(tmp)) {
+			byte[] buf = new byte[32768];
+			int read;
+			while((read = is.read(buf)) > 0) {
+				md.update(buf, 0, read);
+				os.write(buf, 0, read);
+				size += read;
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		String hash = HexUtil.bytesToHex(md.digest());
+		SHA256.returnMessageDigest(md);
+		List<File> toDelete = new ArrayList<File>();
+		synchronized(this) {
+			if(size > maxSize / MAX_FILE_FRACTION || entries.containsKey(cacheKey)) {
+				toDelete.add(tmp);
+			} else {
+				Blob blob = blobs.get(hash);
+				if(blob == null && (blob = evicted.remove(hash)) != null) {
+					// Evicted but still being read, so the file is still there.
+					toDelete.add(tmp);
+					blobs.put(hash, blob);
+					totalSize += size;
+				} else if(blob == null) {
+					if(!FileUtil.renameTo(tmp, new File(dir, hash))) {
+						tmp.delete();
+						throw new IOException("Unable to rename "+tmp);
+					}
+					blob = new Blob(size);
+					blobs.put(hash, blob);
+					totalSize += size;
+				} else {
+					// Already stored under another key.
+					toDelete.add(tmp);
+				}
+				blob.refs++;
+				entries.put(cacheKey, new Entry(hash, mimeType));
+				evict(toDelete);
+			}
+		}
+		delete(toDelete);
+		queueWriteIndex();
+	}
+
+	/** Remove least recently used entries until we are within the size limit.
+	 * @param toDelete Files which are no longer used are added to this list. */
+	private synchronized void evict(List<File> toDelete) {
+		Iterator<Entry> it = entries.values().iterator();
+		while(totalSize > maxSize && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			Blob blob = blobs.get(entry.hash);
+			if(--blob.refs == 0) {
+				blobs.remove(entry.hash);
+				totalSize -= blob.size;
+				if(blob.readers > 0)
+					evicted.put(entry.hash, blob);
+				else
+					toDelete.add(new File(dir, entry.hash));
+			}
+		}
+	}
+
+	private void delete(List<File> files) {
+		for(File f : files)
+			f.delete();
+	}
+
+	public void setMaxSize(long maxSize) {
+		List<File> toDelete = new ArrayList<File>();
+		synchronized(this) {
+			this.maxSize = maxSize;
+			evict(toDelete);
+		}
+		delete(toDelete);
+		queueWriteIndex();
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	/** @return The number of keys cached. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** @return The number of distinct files stored. */
+	public synchronized int countFiles() {
+		return blobs.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** A read-only view of a stored file, which stops it from being deleted until it is freed. */
+	private class ReaderBucket implements Bucket {
+
+		private final String hash;
+		private final Blob blob;
+		private final FileBucket file;
+		private boolean freed;
+
+		ReaderBucket(String hash, Blob blob) {
+			this.hash = hash;
+			this.blob = blob;
+			file = new FileBucket(new File(dir, hash), true, false, false, false);
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public OutputStream getOutputStreamUnbuffered() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return file.getInputStream();
+		}
+
+		@Override
+		public InputStream getInputStreamUnbuffered() throws IOException {
+			return file.getInputStreamUnbuffered();
+		}
+
+		@Override
+		public String getName() {
+			return file.getName();
+		}
+
+		@Override
+		public long size() {
+			return file.size();
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already read only.
+		}
+
+		@Override
+		public void free() {
+			synchronized(this) {
+				if(freed) return;
+				freed = true;
+			}
+			release(hash, blob);
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+
+		@Override
+		public void onResume(ClientContext context) throws ResumeFailedException {
+			// Not persistent.
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void storeTo(DataOutputStream dos) throws IOException {
+			// Not persistent.
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
@@ -1,5 +1,7 @@
 package freenet.client.async;
 
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
 import freenet.keys.FreenetURI;
 import freenet.support.api.Bucket;
 
@@ -9,5 +11,12 @@ public interface DownloadCache {
 	
 	public CacheFetchResult lookup(FreenetURI key, boolean noFilter, ClientContext context,
 			boolean mustCopy, Bucket preferred);
+	
+	/** Called when a fetch has completed, so the cache can keep a copy of the data if it wants 
+	 * to. Must not block: any copying must be done off-thread, and the caller may free the data 
+	 * afterwards, in which case the copy will fail harmlessly.
+	 * @param ctx The settings the data was fetched with, in particular whether and how it was 
+	 * filtered. */
+	public void onFetched(FreenetURI key, FetchContext ctx, ClientMetadata metadata, Bucket data);
 
 }
@@ -0,0 +1,43 @@
+package freenet.client.async;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+
+/** Looks up downloads in several caches in order, e.g. the completed downloads on the global 
+ * queue and then the on-disk cache. All of them are told about completed fetches. */
+public class DownloadCacheChain implements DownloadCache {
+	
+	private final DownloadCache[] caches;
+	
+	public DownloadCacheChain(DownloadCache... caches) {
+		this.caches = caches;
+	}
+
+	@Override
+	public CacheFetchResult lookupInstant(FreenetURI key, boolean noFilter, boolean mustCopy, Bucket preferred) {
+		for(DownloadCache cache : caches) {
+			CacheFetchResult result = cache.lookupInstant(key, noFilter, mustCopy, preferred);
+			if(result != null) return result;
+		}
+		return null;
+	}
+
+	@Override
+	public CacheFetchResult lookup(FreenetURI key, boolean noFilter, ClientContext context,
+			boolean mustCopy, Bucket preferred) {
+		for(DownloadCache cache : caches) {
+			CacheFetchResult result = cache.lookup(key, noFilter, context, mustCopy, preferred);
+			if(result != null) return result;
+		}
+		return null;
+	}
+
+	@Override
+	public void onFetched(FreenetURI key, FetchContext ctx, ClientMetadata metadata, Bucket data) {
+		for(DownloadCache cache : caches)
+			cache.onFetched(key, ctx, metadata, data);
+	}
+
+}
@@ -3,11 +3,10 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
-import freenet.support.api.Bucket;
-
 public interface HealingQueue {
 
-	/** Queue a Bucket of data to insert as a CHK. */
-	void queue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context);
+	/** Queue a block of data to insert as a CHK. The queue may ignore it, e.g. if the same block
+	 * is already queued. The caller must not modify the data afterwards. */
+	void queue(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context);
 
 }
@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import freenet.keys.Key;
+
+/**
+ * Remembers keys that recently could not be found, shared between all client-layer fetchers.
+ * USK polling in particular tends to look up the same SSKs from several places at once: the
+ * subscription, an fproxy fetch of the same site, a plugin polling the same forum, and the date
+ * hint fetches of each of them. Once one of them has got a DNF for a key, the others should not
+ * send the same request again for a while.
+ *
+ * This only deals with completed requests. Requests for the same key that are running at the
+ * same time are already coalesced by keysFetching in ClientRequestSelector: the second fetcher
+ * waits until the first one completes, and then finds the key here.
+ *
+ * The fetcher which got the DNF is not affected by the entry, so it retries on its own schedule
+ * exactly as before. Entries expire after a fixed time, and are removed as soon as the key is
+ * found, however we find it.
+ *
+ * LOCKING: Synchronized on (this). Never calls out while holding the lock.
+ */
+public class NotFoundCache {
+
+	/** How long a key is considered not found. Much shorter than typical USK polling intervals
+	 * (the cooldown time), but long enough to cover several subscribers polling together. */
+	static final long DEFAULT_NOT_FOUND_TIME = MINUTES.toMillis(5);
+	/** Maximum number of keys. Each entry is roughly 100 bytes. */
+	static final int DEFAULT_MAX_KEYS = 50000;
+
+	private final long notFoundTime;
+	/** In order of insertion, and therefore expiry, because the lifetime is fixed. */
+	private final LinkedHashMap<Key, NotFoundEntry> entries;
+	private long hits;
+	private long added;
+
+	private static class NotFoundEntry {
+		final long expires;
+		/** Identity hash code of the request which got the DNF. A collision only means we send
+		 * a request we could have avoided. */
+		final int origin;
+
+		NotFoundEntry(long expires, int origin) {
+			this.expires = expires;
+			this.origin = origin;
+		}
+	}
+
+	public NotFoundCache() {
+		this(DEFAULT_NOT_FOUND_TIME, DEFAULT_MAX_KEYS);
+	}
+
+	NotFoundCache(long notFoundTime, final int maxKeys) {
+		this.notFoundTime = notFoundTime;
+		entries = new LinkedHashMap<Key, NotFoundEntry>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, NotFoundEntry> eldest) {
+				return size() > maxKeys;
+			}
+		};
+	}
+
+	/** Record that a request could not find a key.
+	 * @param origin The request which got the DNF. */
+	public synchronized void onNotFound(Key key, Object origin, long now) {
+		// Remove first so that re-added keys move to the end and the map stays in expiry order.
+		entries.remove(key);
+		entries.put(key, new NotFoundEntry(now + notFoundTime, System.identityHashCode(origin)));
+		added++;
+	}
+
+	/** Should a request skip this key because another request has just failed to find it?
+	 * @param requester The request which is about to fetch the key.
+	 * @return 0 if the key should be fetched, otherwise the time until which it should not be. */
+	public synchronized long check(Key key, Object requester, long now) {
+		removeExpired(now);
+		NotFoundEntry e = entries.get(key);
+		if(e == null) return 0;
+		if(e.origin == System.identityHashCode(requester)) return 0;
+		hits++;
+		return e.expires;
+	}
+
+	/** The key has been found, e.g. it has just been inserted, or another node offered it. */
+	public synchronized void onFound(Key key) {
+		entries.remove(key);
+	}
+
+	private void removeExpired(long now) {
+		Iterator<NotFoundEntry> it = entries.values().iterator();
+		while(it.hasNext()) {
+			if(it.next().expires > now) break;
+			it.remove();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** @return The number of fetches we have avoided. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** @return The number of DNFs recorded. */
+	public synchronized long getAdded() {
+		return added;
+	}
+
+}
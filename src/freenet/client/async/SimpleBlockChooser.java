@@ -3,6 +3,7 @@ package freenet.client.async;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
 
 import freenet.keys.NodeCHK;
@@ -11,6 +12,9 @@ import freenet.support.io.StorageFormatException;
 
 /** Tracks which blocks have been completed, how many attempts have been made for which blocks,
  * allows choosing a random block, failing a block etc.
+ * 
+ * Blocks which could be chosen are kept in buckets by retry count, so choosing a block, and 
+ * updating on success or failure, don't need to look at every block in the segment.
  * @author toad
  */
 public class SimpleBlockChooser {
@@ -27,6 +31,21 @@ public class SimpleBlockChooser {
     private final int[] retries;
     protected final int maxRetries;
     private final Random random;
+    /** Blocks which can be chosen (not completed, not failed, not cooling down), by retry count.
+     * Each bucket is unordered. Buckets are created lazily and grow as needed. This is a ring: 
+     * the bucket for retry count r is at (r & (buckets.length-1)), and only the buckets from 
+     * minBucket to bucketLimit are in use, so with maxRetries = -1 the array doesn't grow with 
+     * the retry count, only with the spread between the lowest and highest. The length is 
+     * always a power of two. Buckets outside the range in use are always empty. */
+    private int[][] buckets;
+    private int[] bucketSizes;
+    /** Index of each block within its bucket, or -1 if it can't be chosen. */
+    private final int[] positions;
+    /** All buckets below this are empty. */
+    private int minBucket;
+    /** All buckets from this up are empty. If equal to minBucket, there are no choosable 
+     * blocks. */
+    private int bucketLimit;
     
     public SimpleBlockChooser(int blocks, Random random, int maxRetries) {
         this.maxRetries = maxRetries;
@@ -34,32 +53,154 @@ public class SimpleBlockChooser {
         this.random = random;
         this.completed = new boolean[blocks];
         this.retries = new int[blocks];
+        this.positions = new int[blocks];
+        buckets = new int[1][];
+        bucketSizes = new int[1];
+        // Everything starts in bucket 0.
+        int[] bucket = new int[blocks];
+        for(int i=0;i<blocks;i++) {
+            bucket[i] = i;
+            positions[i] = i;
+        }
+        buckets[0] = bucket;
+        bucketSizes[0] = blocks;
+        bucketLimit = 1;
     }
     
     /** Choose a key to fetch, taking into account retries */
     public synchronized int chooseKey() {
         int max = getMaxBlockNumber();
-        int[] candidates = new int[max];
-        int count = 0;
-        int minRetryCount = Integer.MAX_VALUE;
-        for(int i=0;i<max;i++) {
-            int retry = retries[i];
-            if(retry > maxRetries && maxRetries != -1) continue;
-            if(retry > minRetryCount) continue;
-            if(!checkValid(i)) continue;
-            if(retry < minRetryCount) {
-                count = 0;
-                candidates[count++] = i;
-                minRetryCount = retry;
-            } else if(retry == minRetryCount) {
-                candidates[count++] = i;
-            } // else continue;
+        for(int retry = minBucket; retry < bucketLimit; retry++) {
+            int index = retry & (buckets.length - 1);
+            int size = bucketSizes[index];
+            if(size == 0) {
+                if(retry == minBucket) {
+                    // Will only be needed again after onUnSuccess(), which is rare.
+                    buckets[index] = null;
+                    minBucket++;
+                }
+                continue;
+            }
+            int[] bucket = buckets[index];
+            // Try the blocks in random order, by moving each one we reject to the end, so the
+            // result is uniform over the valid blocks with the lowest retry count. Usually the
+            // first one is valid.
+            for(int remaining = size; remaining > 0; remaining--) {
+                int i = random.nextInt(remaining);
+                int blockNo = bucket[i];
+                if(blockNo < max && checkValid(blockNo)) return blockNo;
+                swap(bucket, i, remaining-1);
+            }
         }
-        if(count == 0) {
-            return -1;
+        return -1;
+    }
+    
+    private void swap(int[] bucket, int i, int j) {
+        if(i == j) return;
+        int a = bucket[i];
+        int b = bucket[j];
+        bucket[i] = b;
+        bucket[j] = a;
+        positions[b] = i;
+        positions[a] = j;
+    }
+    
+    private void addToBucket(int blockNo) {
+        int retry = retries[blockNo];
+        if(minBucket == bucketLimit) {
+            // Empty, so any retry count fits.
+            minBucket = retry;
+            bucketLimit = retry + 1;
         } else {
-            return candidates[random.nextInt(count)];
+            int newMin = Math.min(minBucket, retry);
+            int newLimit = Math.max(bucketLimit, retry + 1);
+            if(newLimit - newMin > buckets.length)
+                growBuckets(newLimit - newMin);
+            minBucket = newMin;
+            bucketLimit = newLimit;
+        }
+        int index = retry & (buckets.length - 1);
+        int[] bucket = buckets[index];
+        int size = bucketSizes[index];
+        if(bucket == null) {
+            bucket = buckets[index] = new int[Math.min(blocks, MIN_BUCKET_SIZE)];
+        } else if(size == bucket.length) {
+            // Can't overflow: Each block is in at most one bucket.
+            bucket = buckets[index] = Arrays.copyOf(bucket, Math.min(blocks, size * 2));
         }
+        bucket[size] = blockNo;
+        positions[blockNo] = size;
+        bucketSizes[index] = size + 1;
+    }
+    
+    /** Make room for the given number of consecutive retry counts, keeping the buckets in use
+     * from minBucket to bucketLimit. */
+    private void growBuckets(int span) {
+        int newLength = Integer.highestOneBit(span - 1) << 1;
+        int[][] newBuckets = new int[newLength][];
+        int[] newSizes = new int[newLength];
+        int oldMask = buckets.length - 1;
+        for(int retry = minBucket; retry < bucketLimit; retry++) {
+            newBuckets[retry & (newLength - 1)] = buckets[retry & oldMask];
+            newSizes[retry & (newLength - 1)] = bucketSizes[retry & oldMask];
+        }
+        buckets = newBuckets;
+        bucketSizes = newSizes;
+    }
+    
+    /** @return The number of buckets allocated. For tests. */
+    synchronized int bucketCapacity() {
+        return buckets.length;
+    }
+    
+    private static final int MIN_BUCKET_SIZE = 16;
+    
+    private void removeFromBucket(int blockNo) {
+        int index = retries[blockNo] & (buckets.length - 1);
+        int[] bucket = buckets[index];
+        int last = --bucketSizes[index];
+        int moved = bucket[last];
+        int pos = positions[blockNo];
+        bucket[pos] = moved;
+        positions[moved] = pos;
+        positions[blockNo] = -1;
+    }
+    
+    /** Make the block available to chooseKey(), unless it has completed, failed, or is cooling 
+     * down. Caller must hold the lock. */
+    protected final void makeChoosable(int blockNo) {
+        if(positions[blockNo] != -1) return;
+        if(completed[blockNo] || isFatalRetries(retries[blockNo]) || isCoolingDown(blockNo))
+            return;
+        addToBucket(blockNo);
+    }
+    
+    /** Stop chooseKey() from returning the block. Caller must hold the lock. */
+    protected final void makeUnchoosable(int blockNo) {
+        if(positions[blockNo] == -1) return;
+        removeFromBucket(blockNo);
+    }
+    
+    /** @return True if the block has completed or run out of retries. Caller must hold the 
+     * lock. */
+    protected final boolean isFinished(int blockNo) {
+        return completed[blockNo] || isFatalRetries(retries[blockNo]);
+    }
+    
+    /** Override to keep blocks out of chooseKey() for a while. If this changes, the subclass must
+     * call makeChoosable() or makeUnchoosable(). Caller must hold the lock. */
+    protected boolean isCoolingDown(int blockNo) {
+        return false;
+    }
+    
+    /** Recompute which blocks can be chosen, after reading from disk. Caller must hold the 
+     * lock. */
+    private void rebuildBuckets() {
+        Arrays.fill(bucketSizes, 0);
+        Arrays.fill(positions, -1);
+        minBucket = bucketLimit = 0;
+        for(int i=0;i<blocks;i++)
+            makeChoosable(i);
     }
 
     public boolean onNonFatalFailure(int blockNo) {
@@ -76,7 +217,11 @@ public class SimpleBlockChooser {
      * fail after a single terminal failure, others after some number of failures (e.g. getter), so
      * we leave this to the caller. */
     protected synchronized int innerOnNonFatalFailure(int blockNo) {
-        return ++retries[blockNo];
+        boolean choosable = positions[blockNo] != -1;
+        if(choosable) removeFromBucket(blockNo);
+        int ret = ++retries[blockNo];
+        if(choosable) makeChoosable(blockNo);
+        return ret;
     }
     
     /** Notify when a block has succeeded. */
@@ -85,6 +230,7 @@ public class SimpleBlockChooser {
             if(completed[blockNo]) return false;
             completed[blockNo] = true;
             completedCount++;
+            makeUnchoosable(blockNo);
             if(completedCount < blocks) {
                 if(logMINOR) Logger.minor(this, "Completed blocks: "+completedCount+"/"+blocks);
                 return true;
@@ -102,6 +248,7 @@ public class SimpleBlockChooser {
         if(!completed[blockNo]) return;
         completed[blockNo] = false;
         completedCount--;
+        makeChoosable(blockNo);
     }
     
     protected void onCompletedAll() {
@@ -163,6 +310,15 @@ public class SimpleBlockChooser {
     }
 
     public void readRetries(DataInputStream dis) throws IOException {
+        if(maxRetries == -1) return;
+        synchronized(this) {
+            innerReadRetries(dis);
+            rebuildBuckets();
+        }
+    }
+    
+    /** Read the retry counts without updating the buckets. Caller must hold the lock. */
+    private void innerReadRetries(DataInputStream dis) throws IOException {
         if(maxRetries == -1) return;
         for(int i=0;i<blocks;i++)
             retries[i] = dis.readInt();
@@ -187,7 +343,10 @@ public class SimpleBlockChooser {
             if(completed[i]) completedCount++;
         }
         if(dis.readInt() != maxRetries) throw new StorageFormatException("Max retries has changed");
-        readRetries(dis);
+        synchronized(this) {
+            innerReadRetries(dis);
+            rebuildBuckets();
+        }
     }
 
     public synchronized int countFailedBlocks() {
@@ -3,29 +3,73 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import freenet.client.InsertContext;
 import freenet.client.InsertException;
 import freenet.client.Metadata;
+import freenet.crypt.SHA256;
 import freenet.keys.BaseClientKey;
 import freenet.keys.CHKBlock;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
+import freenet.node.SendableRequest;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LRUMap;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
+import freenet.support.io.BucketTools;
 
+/**
+ * Inserts blocks that we had to reconstruct when fetching a splitfile, so that the next
+ * fetcher finds them. Popular files are fetched by many clients at once, which all decode the
+ * same missing blocks, so we remember the blocks we are inserting, queueing, or have inserted
+ * recently and ignore them if they are queued again. The blocks waiting to be inserted are kept
+ * within a byte budget, dropping the oldest first, and are only copied into a Bucket when their
+ * insert starts. Waiting blocks are started in batches, from a single job, as inserts finish.
+ */
 public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue, PutCompletionCallback {
 	private static final long serialVersionUID = -2884613086588264043L;
 
+	/** Number of recently inserted blocks to remember, so we don't insert them again. */
+	static final int RECENTLY_HEALED_BLOCKS = 4096;
+
 	final int maxRunning;
+	/** Maximum total size of the blocks waiting to be inserted. */
+	final long maxQueuedBytes;
 	int counter;
 	InsertContext ctx;
-	final Map<Bucket, SingleBlockInserter> runningInserters;
+	/** Inserts in progress, by block hash. */
+	final Map<ByteArrayWrapper, SingleBlockInserter> runningInserters;
+	/** Blocks waiting to be inserted, by block hash, oldest first. */
+	private final LinkedHashMap<ByteArrayWrapper, QueuedBlock> waiting;
+	private long waitingBytes;
+	/** Hashes of blocks we have inserted recently. */
+	private final LRUMap<ByteArrayWrapper, Boolean> recentlyHealed;
+	/** True if a job to start waiting blocks has been scheduled and hasn't run yet. */
+	private boolean startScheduled;
+	private long duplicates;
+	private long dropped;
+
+	private static class QueuedBlock {
+		final byte[] data;
+		final byte[] cryptoKey;
+		final byte cryptoAlgorithm;
+
+		QueuedBlock(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) {
+			this.data = data;
+			this.cryptoKey = cryptoKey;
+			this.cryptoAlgorithm = cryptoAlgorithm;
+		}
+	}
 
         private static volatile boolean logMINOR;
 	static {
@@ -52,44 +96,145 @@ public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue
             }
     };
 
-	public SimpleHealingQueue(InsertContext context, short prio, int maxRunning) {
+	public SimpleHealingQueue(InsertContext context, short prio, int maxRunning, long maxQueuedBytes) {
 		super(prio, BOGUS_CALLBACK);
 		this.ctx = context;
-		this.runningInserters = new HashMap<Bucket, SingleBlockInserter>();
+		this.runningInserters = new HashMap<ByteArrayWrapper, SingleBlockInserter>();
+		this.waiting = new LinkedHashMap<ByteArrayWrapper, QueuedBlock>();
+		this.recentlyHealed = new LRUMap<ByteArrayWrapper, Boolean>();
 		this.maxRunning = maxRunning;
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/** The hash identifying a block. The CHK is determined by the data and the crypto key, so
+	 * this is as good as the CHK, without having to encode the block. */
+	static ByteArrayWrapper blockHash(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			if(cryptoKey != null) md.update(cryptoKey);
+			md.update(cryptoAlgorithm);
+			md.update(data);
+			return new ByteArrayWrapper(md.digest());
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	@Override
+	public void queue(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context) {
+		ByteArrayWrapper hash = blockHash(data, cryptoKey, cryptoAlgorithm);
+		synchronized(this) {
+			if(runningInserters.containsKey(hash) || waiting.containsKey(hash) ||
+					recentlyHealed.containsKey(hash)) {
+				duplicates++;
+				if(logMINOR) Logger.minor(this, "Already healing block "+hash);
+				return;
+			}
+			if(data.length > maxQueuedBytes) {
+				dropped++;
+				return;
+			}
+			waiting.put(hash, new QueuedBlock(data, cryptoKey, cryptoAlgorithm));
+			waitingBytes += data.length;
+			// Drop the oldest blocks until we are within budget.
+			Iterator<QueuedBlock> it = waiting.values().iterator();
+			while(waitingBytes > maxQueuedBytes) {
+				waitingBytes -= it.next().data.length;
+				it.remove();
+				dropped++;
+			}
+		}
+		scheduleStart(context);
+	}
+
+	/** Schedule a job to start waiting blocks, if there is room and one isn't scheduled already. */
+	private void scheduleStart(final ClientContext context) {
+		synchronized(this) {
+			if(startScheduled || waiting.isEmpty() || runningInserters.size() >= maxRunning) return;
+			startScheduled = true;
+		}
+		context.mainExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				startWaiting(context);
+			}
+
+		}, "Start healing inserts");
 	}
 
-	public boolean innerQueue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context) {
-		SingleBlockInserter sbi;
-		int ctr;
+	private void startWaiting(ClientContext context) {
+		ArrayList<SingleBlockInserter> started = new ArrayList<SingleBlockInserter>();
+		ArrayList<Map.Entry<ByteArrayWrapper, QueuedBlock>> toStart =
+			new ArrayList<Map.Entry<ByteArrayWrapper, QueuedBlock>>();
 		synchronized(this) {
-			ctr = counter++;
-			if(runningInserters.size() > maxRunning) return false;
+			startScheduled = false;
+			Iterator<Map.Entry<ByteArrayWrapper, QueuedBlock>> it = waiting.entrySet().iterator();
+			while(it.hasNext() && runningInserters.size() + toStart.size() < maxRunning) {
+				Map.Entry<ByteArrayWrapper, QueuedBlock> entry = it.next();
+				it.remove();
+				waitingBytes -= entry.getValue().data.length;
+				toStart.add(entry);
+			}
+		}
+		for(Map.Entry<ByteArrayWrapper, QueuedBlock> entry : toStart) {
+			ByteArrayWrapper hash = entry.getKey();
+			QueuedBlock block = entry.getValue();
+			SingleBlockInserter sbi;
+			int ctr;
+			synchronized(this) {
+				ctr = counter++;
+			}
+			Bucket data = null;
 			try {
+				data = BucketTools.makeImmutableBucket(context.tempBucketFactory, block.data);
 				sbi = new SingleBlockInserter(this, data, (short)-1,
 							FreenetURI.EMPTY_CHK_URI, ctx, realTimeFlag, this, false,
-							CHKBlock.DATA_LENGTH, ctr, false, false, data, context, false, true, 0, cryptoAlgorithm, cryptoKey);
+							CHKBlock.DATA_LENGTH, ctr, false, false, hash, context, false, true, 0, block.cryptoAlgorithm, block.cryptoKey);
 			} catch (Throwable e) {
 				Logger.error(this, "Caught trying to insert healing block: "+e, e);
-				return false;
+				if(data != null) data.free();
+				continue;
+			}
+			synchronized(this) {
+				runningInserters.put(hash, sbi);
 			}
-			runningInserters.put(data, sbi);
-		}
-		try {
-			sbi.schedule(context);
 			if(logMINOR)
-				Logger.minor(this, "Started healing insert "+ctr+" for "+data);
-			return true;
-		} catch (Throwable e) {
-			Logger.error(this, "Caught trying to insert healing block: "+e, e);
-			return false;
+				Logger.minor(this, "Starting healing insert "+ctr+" for "+hash);
+			// Same checks as SingleBlockInserter.schedule(), but we register the batch at once.
+			if(sbi.prepareSchedule(context))
+				started.add(sbi);
 		}
+		if(started.isEmpty()) return;
+		context.getChkInsertScheduler(realTimeFlag).registerInserts(
+				started.toArray(new SendableRequest[started.size()]));
 	}
 
-	@Override
-	public void queue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context) {
-		if(!innerQueue(data, cryptoKey, cryptoAlgorithm, context))
-			data.free();
+	/** An insert has finished, successfully or not. Either way, don't insert the block again
+	 * for a while. */
+	private void onFinished(SingleBlockInserter sbi, ClientContext context) {
+		ByteArrayWrapper hash = (ByteArrayWrapper) sbi.getToken();
+		synchronized(this) {
+			runningInserters.remove(hash);
+			recentlyHealed.push(hash, Boolean.TRUE);
+			while(recentlyHealed.size() > RECENTLY_HEALED_BLOCKS)
+				recentlyHealed.popKey();
+		}
+		scheduleStart(context);
+	}
+
+	synchronized int countWaiting() {
+		return waiting.size();
+	}
+
+	/** @return The number of blocks ignored because they were already being healed. */
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	/** @return The number of blocks dropped because too many were waiting. */
+	public synchronized long getDropped() {
+		return dropped;
 	}
 
 	@Override
@@ -110,25 +255,17 @@ public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue
 	@Override
 	public void onSuccess(ClientPutState state, ClientContext context) {
 		SingleBlockInserter sbi = (SingleBlockInserter)state;
-		Bucket data = (Bucket) sbi.getToken();
-		synchronized(this) {
-			runningInserters.remove(data);
-		}
 		if(logMINOR)
-			Logger.minor(this, "Successfully inserted healing block: "+sbi.getURINoEncode()+" for "+data+" ("+sbi.token+ ')');
-		data.free();
+			Logger.minor(this, "Successfully inserted healing block: "+sbi.getURINoEncode()+" for "+sbi.getToken()+" ("+sbi.token+ ')');
+		onFinished(sbi, context);
 	}
 
 	@Override
 	public void onFailure(InsertException e, ClientPutState state, ClientContext context) {
 		SingleBlockInserter sbi = (SingleBlockInserter)state;
-		Bucket data = (Bucket) sbi.getToken();
-		synchronized(this) {
-			runningInserters.remove(data);
-		}
 		if(logMINOR)
-			Logger.minor(this, "Failed to insert healing block: "+sbi.getURINoEncode()+" : "+e+" for "+data+" ("+sbi.token+ ')', e);
-		data.free();
+			Logger.minor(this, "Failed to insert healing block: "+sbi.getURINoEncode()+" : "+e+" for "+sbi.getToken()+" ("+sbi.token+ ')', e);
+		onFinished(sbi, context);
 	}
 
 	@Override
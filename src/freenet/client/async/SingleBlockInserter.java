@@ -319,11 +319,21 @@ public class SingleBlockInserter extends SendableInsert implements ClientPutStat
 
 	@Override
 	public void schedule(ClientContext context) throws InsertException {
+		if(prepareSchedule(context))
+			getScheduler(context).registerInsert(this, persistent);
+	}
+
+	/**
+	 * Everything schedule() does apart from registering with the scheduler, so that callers
+	 * starting many inserts at once can register them together.
+	 * @return True if the insert should now be registered with the scheduler.
+	 */
+	boolean prepareSchedule(ClientContext context) {
 		synchronized(this) {
 			if(finished) {
 				if(logMINOR)
 					Logger.minor(this, "Finished already: "+this);
-				return;
+				return false;
 			}
 		}
 		if(ctx.getCHKOnly || ctx.earlyEncode) {
@@ -331,9 +341,9 @@ public class SingleBlockInserter extends SendableInsert implements ClientPutStat
 		}
 		if(ctx.getCHKOnly) { 
 			onSuccess(null, getKeyNoEncode(), context);
-		} else {
-			getScheduler(context).registerInsert(this, persistent);
+			return false;
 		}
+		return true;
 	}
 
 	@Override
@@ -28,6 +28,7 @@ import freenet.client.FetchContext;
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.FetchResult;
+import freenet.client.InvalidManifestEntryException;
 import freenet.client.Metadata;
 import freenet.client.MetadataParseException;
 import freenet.client.InsertContext.CompatibilityMode;
@@ -870,6 +871,9 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 			handleMetadata(context);
 		} catch (MetadataParseException e) {
 			onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, e), false, context);
+		} catch (InvalidManifestEntryException e) {
+			// A manifest entry is only decoded when it is looked up.
+			onFailure(new FetchException(FetchExceptionMode.INVALID_METADATA, e.getCause()), false, context);
 		} catch (FetchException e) {
 			if(notFinalizedSize)
 				e.setNotFinalizedSize();
@@ -903,7 +907,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
+			PipedInputStream pipeIn = new PipedInputStream(DecompressorThreadManager.PIPE_BUFFER_SIZE);
 			PipedOutputStream pipeOut = new PipedOutputStream();
 			Bucket data = null;
 			// FIXME not strictly correct and unnecessary - archive size already checked against ctx.max*Length inside SingleFileFetcher
@@ -1050,7 +1054,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
+			PipedInputStream pipeIn = new PipedInputStream(DecompressorThreadManager.PIPE_BUFFER_SIZE);
 			PipedOutputStream pipeOut = new PipedOutputStream();
 			Bucket finalData = null;
 			// does matter only on pre-1255 keys (1255 keys have top block sizes)
@@ -301,12 +301,7 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
 
     @Override
     public void queueHeal(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) {
-        try {
-            context.healingQueue.queue(BucketTools.makeImmutableBucket(context.tempBucketFactory, data), cryptoKey, cryptoAlgorithm, context);
-        } catch (IOException e) {
-            // Nothing to be done, but need to log the error.
-            Logger.error(this, "I/O error, failed to queue healing block: "+e, e);
-        }
+        context.healingQueue.queue(data, cryptoKey, cryptoAlgorithm, context);
     }
 
     public boolean localRequestOnly() {
@@ -52,6 +52,7 @@ import freenet.node.SendableRequestItem;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.RemoveRangeArrayList;
+import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
@@ -214,7 +215,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				List<? extends Compressor> decompressors, ClientGetState state,
 				ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
+			PipedInputStream pipeIn = new PipedInputStream(DecompressorThreadManager.PIPE_BUFFER_SIZE);
 			PipedOutputStream pipeOut = new PipedOutputStream();
 			Bucket data = null;
 			long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
@@ -490,6 +491,10 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			synchronized(this) {
 				everInCooldown = true;
 			}
+			if(forever && backgroundPoll) {
+				uskManager.pollScheduler.onPollRound();
+				updatePollInterval(context);
+			}
 			USKFetcher.this.onCheckEnteredFiniteCooldown(context);
 		}
 		public synchronized boolean everInCooldown() {
@@ -537,6 +542,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	
 	private boolean scheduledDBRs;
 	private boolean scheduleAfterDBRsDone;
+	/** True if changeUSKPollParameters() has been called, so we don't use adaptive polling. */
+	private boolean explicitPollParameters;
 
 	// FIXME use this!
 	USKFetcher(USK origUSK, USKManager manager, FetchContext ctx, ClientRequester requester, int minFailures, boolean pollForever, boolean keepLastData, boolean checkStoreOnly) {
@@ -552,7 +559,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		lastFetchedEdition = -1;
 		this.realTimeFlag = parent.realTimeFlag();
 		ctxDBR = ctx.clone();
-		if(ctx.followRedirects) {
+		if(ctx.followRedirects || pollForever) {
+			// Background fetchers need their own context for adaptive polling.
 			this.ctx = ctx.clone();
 			this.ctx.followRedirects = false;
 		} else {
@@ -618,6 +626,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 					}
 				}
 			}
+			uskManager.pollScheduler.onDateHint(origUSK.clearCopy(), dbrAttempt.type);
 			this.uskManager.hintUpdate(this.origUSK.copy(hint).getURI(), context, prio);
 			if(toCancel != null) {
 				for(DBRAttempt a : toCancel)
@@ -994,6 +1003,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	@Override
 	public void schedule(ClientContext context) {
 		if(logMINOR) Logger.minor(this, "Scheduling "+this);
+		if(backgroundPoll) updatePollInterval(context);
 		DBRAttempt[] atts = null;
 		synchronized(this) {
 			if(cancelled) return;
@@ -1649,6 +1659,25 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	 * For a generic solution see https://bugs.freenetproject.org/view.php?id=4984
 	 */
 	public void changeUSKPollParameters(long time, int tries, ClientContext context) {
+		synchronized(this) {
+			explicitPollParameters = true;
+		}
+		setPollParameters(time, tries, context);
+	}
+	
+	/** Apply the poll interval chosen by USKPollScheduler, unless the poll parameters have been
+	 * set explicitly. Only for background fetchers. */
+	private void updatePollInterval(ClientContext context) {
+		synchronized(this) {
+			if(explicitPollParameters) return;
+		}
+		long interval = uskManager.pollScheduler.getPollInterval(origUSK.clearCopy(), System.currentTimeMillis());
+		if(interval == ctx.getCooldownTime()) return;
+		if(logMINOR) Logger.minor(this, "Poll interval now "+TimeUtil.formatTime(interval)+" for "+this);
+		setPollParameters(interval, ctx.getCooldownRetries(), context);
+	}
+	
+	private void setPollParameters(long time, int tries, ClientContext context) {
 		this.ctx.setCooldownRetries(tries);
 		this.ctxNoStore.setCooldownRetries(tries);
 		this.ctx.setCooldownTime(time);
@@ -93,6 +93,9 @@ public class USKManager {
 	
 	final Executor executor;
 	
+	/** Decides how often background fetchers poll. */
+	final USKPollScheduler pollScheduler;
+	
 	private ClientContext context;
 	
 	public USKManager(NodeClientCore core) {
@@ -113,6 +116,7 @@ public class USKManager {
 		temporaryBackgroundFetchersLRU = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
 		executor = core.getExecutor();
+		pollScheduler = new USKPollScheduler(core.node.fastWeakRandom);
 	}
 
 	public void init(ClientContext context) {
@@ -445,6 +449,7 @@ public class USKManager {
 				latestSlotByClearUSK.put(clear, l);
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
+				pollScheduler.onNewEdition(clear, number, System.currentTimeMillis());
 			} 
 			
 			callbacks = subscribersByClearUSK.get(clear);
@@ -478,6 +483,7 @@ public class USKManager {
 			} else
 				return;
 			
+			pollScheduler.onNewEdition(clear, number, System.currentTimeMillis());
 			callbacks = subscribersByClearUSK.get(clear);
 			if(temporaryBackgroundFetchersPrefetch.containsKey(clear)) {
 				temporaryBackgroundFetchersPrefetch.put(clear, System.currentTimeMillis());
@@ -560,6 +566,7 @@ public class USKManager {
 					f = new USKFetcher(origUSK, this, ignoreUSKDatehints ? backgroundFetchContextIgnoreDBR : backgroundFetchContext, new USKFetcherWrapper(origUSK, RequestStarter.UPDATE_PRIORITY_CLASS, client), 3, true, false, false);
 					sched = f;
 					backgroundFetchersByClearUSK.put(clear, f);
+					pollScheduler.add(clear);
 				}
 				f.addSubscriber(cb, origUSK.suggestedEdition);
 			}
@@ -611,6 +618,7 @@ public class USKManager {
 				if(!f.hasSubscribers()) {
 						toCancel = f;
 						backgroundFetchersByClearUSK.remove(clear);
+						pollScheduler.remove(clear);
 				}
 			}
 			// Temporary background fetchers run once and then die.
@@ -681,6 +689,10 @@ public class USKManager {
 		return backgroundFetchersByClearUSK.size();
 	}
 	
+	public USKPollScheduler getPollScheduler() {
+		return pollScheduler;
+	}
+	
 	/**
 	 * The result of that method will be displayed on the Statistic Toadlet : it will help catching #1147 
 	 * Afterwards it should be removed: it's not usefull :)
@@ -700,6 +712,7 @@ public class USKManager {
 		synchronized(this) {
 			if(backgroundFetchersByClearUSK.get(clear) == fetcher) {
 				backgroundFetchersByClearUSK.remove(clear);
+				pollScheduler.remove(clear);
 				if(!ignoreError) {
 					// This shouldn't happen, it's a sanity check: the only way we get cancelled is from USKManager, which removes us before calling cancel().
 					Logger.error(this, "onCancelled for "+fetcher+" - was still registered, how did this happen??", new Exception("debug"));
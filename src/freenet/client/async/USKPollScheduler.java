@@ -0,0 +1,215 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import freenet.keys.USK;
+import freenet.node.RequestScheduler;
+
+/**
+ * Decides how often the background USK fetchers poll each USK. By default every USK is polled
+ * every RequestScheduler.COOLDOWN_PERIOD, whether it is updated several times a day or was last
+ * updated years ago. If adaptive polling is enabled, we estimate how often each USK publishes a
+ * new edition, from the editions we find (USKManager.updateSlot()) and from date hints, and poll
+ * it about twice per expected update. We never poll more often than COOLDOWN_PERIOD, because
+ * ULPRs will tell us about new editions quickly anyway within that period.
+ *
+ * If the total polling rate would exceed the budget, all intervals are stretched by the same
+ * factor. Each USK also gets a fixed random extra delay, so that USKs which were subscribed
+ * at the same time (e.g. at startup) don't all poll at the same time forever.
+ *
+ * We count poll rounds and new editions found separately for fixed and adaptive polling, so
+ * they can be compared on the statistics page.
+ *
+ * LOCKING: Synchronized on (this). Does not call out.
+ */
+public class USKPollScheduler {
+
+	/** Maximum time between polls. */
+	static final long MAX_POLL_INTERVAL = DAYS.toMillis(1);
+	/** Editions found within this period are counted as a single update, so that catching up
+	 * after a long gap doesn't look like a very fast publisher. */
+	static final long MIN_SAMPLE_INTERVAL = MINUTES.toMillis(10);
+	/** Maximum random extra delay, as a fraction of the interval. */
+	static final double JITTER = 0.25;
+	/** Weight of each new sample in the moving average of the update interval. */
+	static final double ALPHA = 0.3;
+	/** Default total poll rounds per hour across all USKs. A poll round is up to
+	 * RequestScheduler.COOLDOWN_RETRIES requests for each edition being polled. */
+	public static final int DEFAULT_POLL_BUDGET = 2000;
+	/** How often to recompute the total polling rate. */
+	static final long RECOMPUTE_DEMAND_INTERVAL = MINUTES.toMillis(1);
+
+	private final Random random;
+	private final TreeMap<USK, State> states = new TreeMap<USK, State>(USK.FAST_COMPARATOR);
+	private boolean adaptive;
+	private int pollBudget = DEFAULT_POLL_BUDGET;
+	/** Poll rounds per hour wanted by all USKs before applying the budget. */
+	private double demand;
+	private long demandComputed;
+
+	/** Counters, indexed by 0 for fixed and 1 for adaptive polling. */
+	private final long[] pollRounds = new long[2];
+	private final long[] newEditions = new long[2];
+
+	private static class State {
+		/** Extra delay factor, between 1.0 and 1.0 + JITTER. */
+		final double jitter;
+		long lastEdition = -1;
+		long lastUpdateTime;
+		/** Moving average time between editions, or 0 if unknown. */
+		long updateInterval;
+
+		State(double jitter) {
+			this.jitter = jitter;
+		}
+
+		/** @return The poll interval ignoring the budget and jitter. */
+		long baseInterval(long now) {
+			long estimate = updateInterval;
+			if(estimate <= 0) return RequestScheduler.COOLDOWN_PERIOD;
+			// If it's overdue, slow down gradually.
+			if(lastUpdateTime > 0 && now - lastUpdateTime > estimate)
+				estimate = now - lastUpdateTime;
+			return Math.max(RequestScheduler.COOLDOWN_PERIOD, Math.min(MAX_POLL_INTERVAL, estimate / 2));
+		}
+	}
+
+	public USKPollScheduler(Random random) {
+		this.random = random;
+	}
+
+	public synchronized void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	public synchronized boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/** Set the maximum total number of poll rounds per hour for adaptive polling. */
+	public synchronized void setPollBudget(int budget) {
+		if(budget <= 0) throw new IllegalArgumentException();
+		this.pollBudget = budget;
+		demandComputed = 0;
+	}
+
+	public synchronized int getPollBudget() {
+		return pollBudget;
+	}
+
+	/** A background fetcher has started polling the USK. */
+	synchronized void add(USK clear) {
+		if(states.containsKey(clear)) return;
+		states.put(clear, new State(1.0 + random.nextDouble() * JITTER));
+		demandComputed = 0;
+	}
+
+	/** The background fetcher for the USK has finished. */
+	synchronized void remove(USK clear) {
+		if(states.remove(clear) != null)
+			demandComputed = 0;
+	}
+
+	/** A new edition has been found for a USK. Ignored unless we are polling it. */
+	synchronized void onNewEdition(USK clear, long edition, long now) {
+		State s = states.get(clear);
+		if(s == null) return;
+		newEditions[adaptive ? 1 : 0]++;
+		if(s.lastEdition < 0) {
+			s.lastEdition = edition;
+			s.lastUpdateTime = now;
+			return;
+		}
+		if(edition <= s.lastEdition) return;
+		long elapsed = now - s.lastUpdateTime;
+		if(elapsed >= MIN_SAMPLE_INTERVAL) {
+			long sample = elapsed / (edition - s.lastEdition);
+			if(s.updateInterval <= 0)
+				s.updateInterval = sample;
+			else
+				s.updateInterval = (long) (s.updateInterval * (1 - ALPHA) + sample * ALPHA);
+			s.lastUpdateTime = now;
+		}
+		s.lastEdition = edition;
+	}
+
+	/** A date hint was found for the current period, so the USK has been updated at least once
+	 * during that period. */
+	synchronized void onDateHint(USK clear, USKDateHint.Type type) {
+		State s = states.get(clear);
+		if(s == null) return;
+		long period = periodLength(type);
+		if(s.updateInterval <= 0 || s.updateInterval > period)
+			s.updateInterval = period;
+	}
+
+	static long periodLength(USKDateHint.Type type) {
+		switch(type) {
+		case DAY:
+			return DAYS.toMillis(1);
+		case WEEK:
+			return DAYS.toMillis(7);
+		case MONTH:
+			return DAYS.toMillis(31);
+		default:
+			return DAYS.toMillis(366);
+		}
+	}
+
+	/** A background fetcher has finished a poll round for one edition. */
+	synchronized void onPollRound() {
+		pollRounds[adaptive ? 1 : 0]++;
+	}
+
+	/** @return How long the background fetcher should wait between poll rounds for this USK. */
+	synchronized long getPollInterval(USK clear, long now) {
+		if(!adaptive) return RequestScheduler.COOLDOWN_PERIOD;
+		State s = states.get(clear);
+		if(s == null) return RequestScheduler.COOLDOWN_PERIOD;
+		double interval = s.baseInterval(now) * getStretch(now) * s.jitter;
+		return (long) Math.min(MAX_POLL_INTERVAL * (1.0 + JITTER), interval);
+	}
+
+	/** @return The factor by which to lengthen poll intervals to stay within the budget. */
+	private double getStretch(long now) {
+		if(demandComputed == 0 || now - demandComputed > RECOMPUTE_DEMAND_INTERVAL ||
+				now < demandComputed) {
+			double d = 0.0;
+			for(Map.Entry<USK, State> e : states.entrySet())
+				d += (double) HOURS.toMillis(1) / e.getValue().baseInterval(now);
+			demand = d;
+			demandComputed = now;
+		}
+		return Math.max(1.0, demand / pollBudget);
+	}
+
+	public synchronized int countPolledUSKs() {
+		return states.size();
+	}
+
+	/** @return Poll rounds with fixed (false) or adaptive (true) polling. */
+	public synchronized long getPollRounds(boolean adaptive) {
+		return pollRounds[adaptive ? 1 : 0];
+	}
+
+	/** @return New editions found for polled USKs with fixed (false) or adaptive (true) polling. */
+	public synchronized long getNewEditions(boolean adaptive) {
+		return newEditions[adaptive ? 1 : 0];
+	}
+
+	/** @return Total poll rounds per hour that would be needed without the budget. */
+	public synchronized double getDemand() {
+		getStretch(System.currentTimeMillis());
+		return demand;
+	}
+
+}
@@ -138,7 +138,7 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 			// Decompress
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				pipeIn = new PipedInputStream();
+				pipeIn = new PipedInputStream(DecompressorThreadManager.PIPE_BUFFER_SIZE);
 				pipeOut = new PipedOutputStream(pipeIn);
 				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen);
 				pipeIn = decompressorManager.execute();
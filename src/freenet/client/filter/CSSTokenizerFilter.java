@@ -52,8 +52,23 @@ class CSSTokenizerFilter {
 	private final boolean stopAtDetectedCharset;
 	private final boolean isInline;
 
+	/** Characters read from r but not yet parsed. We read a block at a time rather than calling
+	 * r.read() for every character, which takes a lock and is surprisingly expensive. */
+	private final char[] readBuffer = new char[4096];
+	private int readPos;
+	private int readEnd;
+
+	/** ASCII characters which are not handled specially by any state of the tokenizer except
+	 * STATE1, nor start or end a comment. See parse(). */
+	private static final boolean[] plainChars = new boolean[128];
+
 	static {
 		Logger.registerClass(CSSTokenizerFilter.class);
+		for(char c = ' '; c < 128; c++)
+			plainChars[c] = true;
+		plainChars['\t'] = true;
+		for(char c : "{},;:\"'/*".toCharArray())
+			plainChars[c] = false;
 	}
 
 	CSSTokenizerFilter(){
@@ -71,6 +86,27 @@ class CSSTokenizerFilter {
 		this.isInline = isInline;
 	}
 
+	/** Read a character, refilling the buffer if necessary.
+	 * @return The character, or -1 at the end of the stream. */
+	private int read() throws IOException {
+		while(readPos == readEnd) {
+			readEnd = r.read(readBuffer, 0, readBuffer.length);
+			readPos = 0;
+			if(readEnd == -1) {
+				readEnd = 0;
+				return -1;
+			}
+		}
+		return readBuffer[readPos++];
+	}
+
+	/** @return True if c is appended to the buffer without any other effect in STATE2, STATE3,
+	 * STATE2INQUOTE and STATE3INQUOTE, and ignored in STATECOMMENT. */
+	private static boolean isPlain(char c) {
+		if(c < 128) return plainChars[c];
+		return c != 0xFEFF;
+	}
+
 	public boolean isValidURI(String URI)
 	{
 		try
@@ -327,7 +363,10 @@ class CSSTokenizerFilter {
 	 * Array for storing additional Verifier objects for validating Regular expressions in CSS Property value
 	 * e.g. [ <color> | transparent]{1,4}. It is explained in detail in CSSPropertyVerifier class
 	 */
-	private final static CSSPropertyVerifier[] auxilaryVerifiers=new CSSPropertyVerifier[145];
+	/* Each index must only be used by one property (or the static block below), as the
+	 * properties are loaded lazily: a property reusing an index would change how another one
+	 * is filtered, depending on which had been seen first. */
+	private final static CSSPropertyVerifier[] auxilaryVerifiers=new CSSPropertyVerifier[147];
 	static
 	{
 		/*CSSPropertyVerifier(String[] allowedValues,String[] possibleValues,String expression,boolean onlyValueVerifier)*/
@@ -479,9 +518,9 @@ class CSSTokenizerFilter {
 		}
 		else if("background-size".equalsIgnoreCase(element))
 		{
-			auxilaryVerifiers[61] = new CSSPropertyVerifier(Arrays.asList("auto"),Arrays.asList("le", "pe"),null,null,true);
+			auxilaryVerifiers[146] = new CSSPropertyVerifier(Arrays.asList("auto"),Arrays.asList("le", "pe"),null,null,true);
 			auxilaryVerifiers[62] = new CSSPropertyVerifier(Arrays.asList("cover", "contain"), null, null, null, true);
-			auxilaryVerifiers[63] = new CSSPropertyVerifier(null, null, Arrays.asList("61<1,2>", "62"), null, true);
+			auxilaryVerifiers[63] = new CSSPropertyVerifier(null, null, Arrays.asList("146<1,2>", "62"), null, true);
 			elementVerifiers.put(element,new CSSPropertyVerifier(null,ElementInfo.VISUALMEDIA,null,Arrays.asList("63<1,65535>"), true,true));
 			allelementVerifiers.remove(element);
 		}
@@ -1057,7 +1096,7 @@ class CSSTokenizerFilter {
 			 */
 			auxilaryVerifiers[31]=new FontPartPropertyVerifier();
 			//font-family
-			auxilaryVerifiers[59]=new FontPropertyVerifier(true);
+			auxilaryVerifiers[145]=new FontPropertyVerifier(true);
 
 
 			/*
@@ -1065,7 +1104,7 @@ class CSSTokenizerFilter {
 			auxilaryVerifiers[53]=new CSSPropertyVerifier(ElementInfo.FONTS,null,null,true);
 			auxilaryVerifiers[54]=new CSSPropertyVerifier(null,null,Arrays.asList("53 53<0,"+ElementInfo.UPPERLIMIT+">"),true);
 			 */
-			elementVerifiers.put(element,new CSSPropertyVerifier(Arrays.asList("caption","icon","menu","message-box","small-caption","status-bar"),ElementInfo.VISUALMEDIA,null,Arrays.asList("30<0,1>[1,3] 31<0,1>[1,3] 59"),false,true));
+			elementVerifiers.put(element,new CSSPropertyVerifier(Arrays.asList("caption","icon","menu","message-box","small-caption","status-bar"),ElementInfo.VISUALMEDIA,null,Arrays.asList("30<0,1>[1,3] 31<0,1>[1,3] 145"),false,true));
 			//elementVerifiers.put(element,new CSSPropertyVerifier(Arrays.asList("caption","icon","menu","message-box","small-caption","status-bar"),ElementInfo.VISUALMEDIA,null,Arrays.asList("31<1,1>[1,3]")));
 			allelementVerifiers.remove(element);
 		}
@@ -1958,48 +1997,77 @@ class CSSTokenizerFilter {
 
 
 
+	private static final int STATE1=1; //State corresponding to @page,@media etc
+	private static final int STATE2=2; //State corresponding to HTML element like body
+	private static final int STATE3=3; //State corresponding to CSS properties
+
+	/* e.g.
+	 * STATE1
+	 * @media screen {
+	 * STATE2	STATE3
+	 * h2 		{text-align:left;}
+	 * }
+	 */
+	private static final int STATECOMMENT=4;
+	private static final int STATE1INQUOTE=5;
+	private static final int STATE2INQUOTE=6;
+	private static final int STATE3INQUOTE=7;
+
+	// State of parse(). Each state is handled by its own method, which keeps them small enough
+	// for the JIT to compile: when it was all in parse(), the client compiler gave up on it.
+	private char currentQuote;
+	private int stateBeforeComment;
+	private int currentState;
+	private boolean isState1Present;
+	private String elements[];
+	private StringBuilder filteredTokens;
+	private StringBuilder buffer;
+	private int openBraces;
+	private String defaultMedia;
+	private String[] currentMedia;
+	private String propertyName,propertyValue;
+	private boolean ignoreElementsS1,ignoreElementsS2,ignoreElementsS3,closeIgnoredS2;
+	private char c,prevc;
+	private boolean s2Comma;
+	private boolean canImport; //import statement can occur only in the beginning
+	private String whitespaceAfterColon;
+	private String whitespaceBeforeProperty;
+	private boolean charsetPossible;
+	private int openBracesStartingS3;
+	private boolean forPage;
+
 	// main function
 	public void parse() throws IOException {
 
-		final int STATE1=1; //State corresponding to @page,@media etc
-		final int STATE2=2; //State corresponding to HTML element like body
-		final int STATE3=3; //State corresponding to CSS properties
-
-		/* e.g.
-		 * STATE1
-		 * @media screen {
-		 * STATE2	STATE3
-		 * h2 		{text-align:left;}
-		 * }
-		 */
-		final int STATECOMMENT=4;
-		final int STATE1INQUOTE=5;
-		final int STATE2INQUOTE=6;
-		final int STATE3INQUOTE=7;
-		char currentQuote='"';
-		int stateBeforeComment=0;
-		int currentState=1;
-		boolean isState1Present=false;
-		String elements[]=null;
-		StringBuilder filteredTokens=new StringBuilder();
-		StringBuilder buffer=new StringBuilder();
-		int openBraces=0;
-		String defaultMedia="screen";
-		String[] currentMedia=new String[] {defaultMedia};
-		String propertyName="",propertyValue="";
-		boolean ignoreElementsS1=false,ignoreElementsS2=false,ignoreElementsS3=false, closeIgnoredS2=false;
+		currentQuote='"';
+		stateBeforeComment=0;
+		currentState=1;
+		isState1Present=false;
+		elements=null;
+		filteredTokens=new StringBuilder();
+		buffer=new StringBuilder();
+		openBraces=0;
+		defaultMedia="screen";
+		currentMedia=new String[] {defaultMedia};
+		propertyName="";
+		propertyValue="";
+		ignoreElementsS1=false;
+		ignoreElementsS2=false;
+		ignoreElementsS3=false;
+		closeIgnoredS2=false;
 		int x;
-		char c=0,prevc=0;
-		boolean s2Comma=false;
-		boolean canImport=true; //import statement can occur only in the beginning
+		c=0;
+		prevc=0;
+		s2Comma=false;
+		canImport=true;
 
-		String whitespaceAfterColon = "";
-		String whitespaceBeforeProperty = "";
+		whitespaceAfterColon = "";
+		whitespaceBeforeProperty = "";
 
-		boolean charsetPossible = true;
+		charsetPossible = true;
 		boolean bomPossible = true;
-		int openBracesStartingS3 = 0;
-		boolean forPage = false;
+		openBracesStartingS3 = 0;
+		forPage = false;
 
 		if(isInline) {
 			currentState = STATE3;
@@ -2009,7 +2077,7 @@ class CSSTokenizerFilter {
 		{
 			try
 			{
-				x=r.read();
+				x=read();
 			}
 			catch(IOException e)
 			{
@@ -2051,874 +2119,932 @@ class CSSTokenizerFilter {
 			}
 			if(c == 0)
 				continue; // Strip nulls
+			int stateBefore = currentState;
 			switch(currentState)
 			{
 			case STATE1:
-				switch(c){
-				case '\n':
-				case ' ':
-				case '\t':
-					buffer.append(c);
-					if(logDEBUG) Logger.debug(this, "STATE1 CASE whitespace: "+c);
-					break;
+				if(parseState1()) return;
+				break;
+			case STATE1INQUOTE:
+				if(parseState1InQuote()) return;
+				break;
+			case STATE2:
+				if(parseState2()) return;
+				break;
+			case STATE2INQUOTE:
+				if(parseState2InQuote()) return;
+				break;
+			case STATE3:
+				if(parseState3()) return;
+				break;
+			case STATE3INQUOTE:
+				if(parseState3InQuote()) return;
+				break;
+			case STATECOMMENT:
+				if(parseComment()) return;
+				break;
+			}
+			if(currentState == stateBefore && !logDEBUG && (currentState == STATE2 || currentState == STATE3
+					|| currentState == STATE2INQUOTE || currentState == STATE3INQUOTE || currentState == STATECOMMENT)) {
+				// The following characters would each go to the default case above, so handle the
+				// whole run in one go. This is most of a typical stylesheet.
+				int end = readPos;
+				while(end < readEnd && isPlain(readBuffer[end]))
+					end++;
+				if(end > readPos) {
+					if(currentState != STATECOMMENT)
+						buffer.append(readBuffer, readPos, end - readPos);
+					prevc = end - readPos > 1 ? readBuffer[end-2] : c;
+					c = readBuffer[end-1];
+					readPos = end;
+				}
+			}
+		}
 
-				case '@':
-					if(prevc != '\\') {
-						isState1Present=true;
-						if(logDEBUG) Logger.debug(this, "STATE1 CASE @: "+c);
-					}
-					buffer.append(c);
-					break;
+		if(logDEBUG) Logger.debug(this, "Filtered tokens: \""+filteredTokens+"\"");
+		w.write(filteredTokens.toString());
+		for(int i=0;i<openBraces;i++)
+			w.write('}');
 
-				case '{':
-					charsetPossible=false;
-					if(stopAtDetectedCharset)
-						return;
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
-					}
-					openBraces++;
-					isState1Present=false;
+		if(logDEBUG) Logger.debug(this, "Remaining buffer: \""+buffer+"\"");
 
-					int i = 0;
-					for(i=0;i<buffer.length();i++) {
-						char c1 = buffer.charAt(i);
-						if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-							continue;
-						break;
-					}
-					String braceSpace = buffer.substring(0, i);
-					buffer.delete(0, i);
-					if(buffer.length() > 4 && buffer.substring(0, 4).equals("<!--")) {
-						braceSpace +=buffer.substring(0, 4);
-						if(" \t\r\n".indexOf(buffer.charAt(4))==-1) {
-							Logger.error(this, "<!-- not followed by whitespace!");
-							return;
-						}
-						buffer.delete(0, 4);
-						for(i=0;i<buffer.length();i++) {
-							char c1 = buffer.charAt(i);
-							if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-								continue;
-							break;
+		int i = 0;
+		for(i=0;i<buffer.length();i++) {
+			char c1 = buffer.charAt(i);
+			if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+				continue;
+			break;
+		}
+		w.write(buffer.substring(0, i));
+		buffer.delete(0, i);
+
+		while(buffer.toString().trim().equals("-->")) {
+			w.write("-->");
+			buffer.delete(0, 3);
+			for(i=0;i<buffer.length();i++) {
+				char c1 = buffer.charAt(i);
+				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+					continue;
+				break;
+			}
+			w.write(buffer.substring(0, i));
+			buffer.delete(0, i);
+		}
+
+		// FIXME CSS2.1 section 4.2 "Unexpected end of style sheet".
+		// We do NOT auto-close at the end.
+		// It might be worth implementing this one day.
+
+	}
+
+	/** At the top level, or in an @media block, before a selector. Handles c.
+	 * @return True to stop parsing. */
+	private boolean parseState1() throws IOException {
+		switch(c){
+		case '\n':
+		case ' ':
+		case '\t':
+			buffer.append(c);
+			if(logDEBUG) Logger.debug(this, "STATE1 CASE whitespace: "+c);
+			break;
+
+		case '@':
+			if(prevc != '\\') {
+				isState1Present=true;
+				if(logDEBUG) Logger.debug(this, "STATE1 CASE @: "+c);
+			}
+			buffer.append(c);
+			break;
+
+		case '{':
+			charsetPossible=false;
+			if(stopAtDetectedCharset)
+				return true;
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
+				break;
+			}
+			openBraces++;
+			isState1Present=false;
+
+			int i = 0;
+			for(i=0;i<buffer.length();i++) {
+				char c1 = buffer.charAt(i);
+				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+					continue;
+				break;
+			}
+			String braceSpace = buffer.substring(0, i);
+			buffer.delete(0, i);
+			if(buffer.length() > 4 && buffer.substring(0, 4).equals("<!--")) {
+				braceSpace +=buffer.substring(0, 4);
+				if(" \t\r\n".indexOf(buffer.charAt(4))==-1) {
+					Logger.error(this, "<!-- not followed by whitespace!");
+					return true;
+				}
+				buffer.delete(0, 4);
+				for(i=0;i<buffer.length();i++) {
+					char c1 = buffer.charAt(i);
+					if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+						continue;
+					break;
+				}
+				braceSpace += buffer.substring(0, i);
+				buffer.delete(0, i);
+			}
+			for(i=buffer.length()-1;i>=0;i--) {
+				char c1 = buffer.charAt(i);
+				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+					continue;
+				break;
+			}
+			i++;
+			String postSpace = buffer.substring(i);
+			buffer.setLength(i);
+			String orig = buffer.toString().trim();
+			ParsedWord[] parts=split(orig, false);
+			if(logDEBUG) Logger.debug(this, "Split: "+CSSPropertyVerifier.toString(parts));
+			buffer.setLength(0);
+			boolean valid = false;
+			if(parts != null) {
+			if(parts.length<1)
+			{
+				ignoreElementsS1=true;
+				if(logDEBUG) Logger.debug(this, "STATE1 CASE {: Does not have one part. ignoring "+buffer.toString());
+				valid = false;
+			}
+			else if(parts[0] instanceof SimpleParsedWord && "@media".equals(((SimpleParsedWord)parts[0]).original.toLowerCase()))
+			{
+				if(parts.length<2)
+				{
+					ignoreElementsS1=true;
+					if(logDEBUG) Logger.debug(this, "STATE1 CASE {: Does not have two parts. ignoring "+buffer.toString());
+					valid = false;
+				} else {
+				ArrayList<String> medias = commaListFromIdentifiers(parts, 1);
+				if(medias != null && medias.size() > 0) {
+					for(i=0;i<medias.size();i++) {
+						if(!FilterUtils.isMedia(medias.get(i))) {
+							// Unrecognised media, don't pass it.
+							medias.remove(i);
+							i--; // Don't skip next
 						}
-						braceSpace += buffer.substring(0, i);
-						buffer.delete(0, i);
-					}
-					for(i=buffer.length()-1;i>=0;i--) {
-						char c1 = buffer.charAt(i);
-						if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-							continue;
-						break;
 					}
-					i++;
-					String postSpace = buffer.substring(i);
-					buffer.setLength(i);
-					String orig = buffer.toString().trim();
-					ParsedWord[] parts=split(orig, false);
-					if(logDEBUG) Logger.debug(this, "Split: "+CSSPropertyVerifier.toString(parts));
-					buffer.setLength(0);
-					boolean valid = false;
-					if(parts != null) {
-					if(parts.length<1)
-					{
-						ignoreElementsS1=true;
-						if(logDEBUG) Logger.debug(this, "STATE1 CASE {: Does not have one part. ignoring "+buffer.toString());
-						valid = false;
+				}
+				if(medias != null && medias.size() > 0) {
+					filteredTokens.append(braceSpace);
+					filteredTokens.append("@media ");
+					boolean first = true;
+					for(String media : medias) {
+						if(!first) filteredTokens.append(", ");
+						first = false;
+						filteredTokens.append(media);
 					}
-					else if(parts[0] instanceof SimpleParsedWord && "@media".equals(((SimpleParsedWord)parts[0]).original.toLowerCase()))
-					{
-						if(parts.length<2)
-						{
-							ignoreElementsS1=true;
-							if(logDEBUG) Logger.debug(this, "STATE1 CASE {: Does not have two parts. ignoring "+buffer.toString());
+					filteredTokens.append(postSpace);
+					filteredTokens.append("{");
+					valid = true;
+					currentMedia = medias.toArray(new String[medias.size()]);
+				}
+				}
+			} else if(parts[0] instanceof SimpleParsedWord && "@page".equals(((SimpleParsedWord)parts[0]).original.toLowerCase()))
+				{
+				if(parts.length == 0) {
+					valid = true;
+				} else {
+					valid = true;
+					for(int j=1;j<parts.length;j++) {
+						if(!(parts[j] instanceof SimpleParsedWord)) {
 							valid = false;
+							break;
 						} else {
-						ArrayList<String> medias = commaListFromIdentifiers(parts, 1);
-						if(medias != null && medias.size() > 0) {
-							for(i=0;i<medias.size();i++) {
-								if(!FilterUtils.isMedia(medias.get(i))) {
-									// Unrecognised media, don't pass it.
-									medias.remove(i);
-									i--; // Don't skip next
-								}
-							}
-						}
-						if(medias != null && medias.size() > 0) {
-							filteredTokens.append(braceSpace);
-							filteredTokens.append("@media ");
-							boolean first = true;
-							for(String media : medias) {
-								if(!first) filteredTokens.append(", ");
-								first = false;
-								filteredTokens.append(media);
-							}
-							filteredTokens.append(postSpace);
-							filteredTokens.append("{");
-							valid = true;
-							currentMedia = medias.toArray(new String[medias.size()]);
-						}
-						}
-					} else if(parts[0] instanceof SimpleParsedWord && "@page".equals(((SimpleParsedWord)parts[0]).original.toLowerCase()))
-						{
-						if(parts.length == 0) {
-							valid = true;
-						} else {
-							valid = true;
-							for(int j=1;j<parts.length;j++) {
-								if(!(parts[j] instanceof SimpleParsedWord)) {
-									valid = false;
-									break;
-								} else {
-									String s = ((SimpleParsedWord)parts[j]).original;
-									if(!(s.equalsIgnoreCase(":left") || s.equalsIgnoreCase(":right") || s.equals(":first"))) {
-										valid = false;
-										break;
-									}
-								}
+							String s = ((SimpleParsedWord)parts[j]).original;
+							if(!(s.equalsIgnoreCase(":left") || s.equalsIgnoreCase(":right") || s.equals(":first"))) {
+								valid = false;
+								break;
 							}
 						}
-						if(valid) {
-							forPage = true;
-							filteredTokens.append(braceSpace);
-							filteredTokens.append(orig);
-							filteredTokens.append(postSpace);
-							filteredTokens.append("{");
-						}
-					}
-					} // else valid = false
-					if(!valid)
-					{
-						ignoreElementsS1=true;
-						// No valid media types.
-						if(logDEBUG) Logger.debug(this, "STATE1 CASE {: Failed verification test. ignoring "+buffer.toString());
-					} else {
-						w.write(filteredTokens.toString());
-						filteredTokens.setLength(0);
-					}
-					buffer.setLength(0);
-					s2Comma=false;
-					if(forPage) {
-						currentState=STATE3;
-						openBracesStartingS3 = openBraces;
-					} else {
-						currentState=STATE2;
-					}
-					buffer.setLength(0);
-					break;
-				case ';':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
 					}
-					if(logDEBUG) Logger.debug(this, "buffer in state 1 ; : \""+buffer.toString()+"\"");
-					//should be @import
+				}
+				if(valid) {
+					forPage = true;
+					filteredTokens.append(braceSpace);
+					filteredTokens.append(orig);
+					filteredTokens.append(postSpace);
+					filteredTokens.append("{");
+				}
+			}
+			} // else valid = false
+			if(!valid)
+			{
+				ignoreElementsS1=true;
+				// No valid media types.
+				if(logDEBUG) Logger.debug(this, "STATE1 CASE {: Failed verification test. ignoring "+buffer.toString());
+			} else {
+				w.write(filteredTokens.toString());
+				filteredTokens.setLength(0);
+			}
+			buffer.setLength(0);
+			s2Comma=false;
+			if(forPage) {
+				currentState=STATE3;
+				openBracesStartingS3 = openBraces;
+			} else {
+				currentState=STATE2;
+			}
+			buffer.setLength(0);
+			break;
+		case ';':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
+				break;
+			}
+			if(logDEBUG) Logger.debug(this, "buffer in state 1 ; : \""+buffer.toString()+"\"");
+			//should be @import
 
-					for(i=0;i<buffer.length();i++) {
-						char c1 = buffer.charAt(i);
-						if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-							continue;
-						break;
-					}
-					w.write(buffer.substring(0, i));
-					buffer.delete(0, i);
+			for(i=0;i<buffer.length();i++) {
+				char c1 = buffer.charAt(i);
+				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+					continue;
+				break;
+			}
+			w.write(buffer.substring(0, i));
+			buffer.delete(0, i);
 
-					if(buffer.length() > 4 && buffer.substring(0, 4).equals("<!--")) {
-						w.write(buffer.substring(0, 4));
-						if(" \t\r\n".indexOf(buffer.charAt(4))==-1) {
-							Logger.error(this, "<!-- not followed by whitespace!");
-							return;
-						}
-						buffer.delete(0, 4);
-						for(i=0;i<buffer.length();i++) {
-							char c1 = buffer.charAt(i);
-							if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-								continue;
-							break;
-						}
-						w.write(buffer.substring(0, i));
-						buffer.delete(0, i);
-					}
+			if(buffer.length() > 4 && buffer.substring(0, 4).equals("<!--")) {
+				w.write(buffer.substring(0, 4));
+				if(" \t\r\n".indexOf(buffer.charAt(4))==-1) {
+					Logger.error(this, "<!-- not followed by whitespace!");
+					return true;
+				}
+				buffer.delete(0, 4);
+				for(i=0;i<buffer.length();i++) {
+					char c1 = buffer.charAt(i);
+					if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+						continue;
+					break;
+				}
+				w.write(buffer.substring(0, i));
+				buffer.delete(0, i);
+			}
 
-					// If ignoreElementsS1, then just delete everything up to the semicolon. After that, fresh start.
-					if(canImport && !ignoreElementsS1 && buffer.toString().contains("@import"))
-					{
-						if(logDEBUG) Logger.debug(this, "STATE1 CASE ;statement="+buffer.toString());
+			// If ignoreElementsS1, then just delete everything up to the semicolon. After that, fresh start.
+			if(canImport && !ignoreElementsS1 && buffer.toString().contains("@import"))
+			{
+				if(logDEBUG) Logger.debug(this, "STATE1 CASE ;statement="+buffer.toString());
 
-						String strbuffer=buffer.toString().trim();
-						int importIndex=strbuffer.toLowerCase().indexOf("@import");
-						if("".equals(strbuffer.substring(0,importIndex).trim()))
-						{
-							String str1=strbuffer.substring(importIndex+7,strbuffer.length());
-							ParsedWord[] strparts=split(str1, false);
-							if(strparts != null && strparts.length > 0 && (strparts[0] instanceof ParsedURL || strparts[0] instanceof ParsedString)) {
-								String uri;
-								if(strparts[0] instanceof ParsedString) {
-									uri = ((ParsedString)strparts[0]).getDecoded();
-								} else {
-									uri = ((ParsedURL)strparts[0]).getDecoded();
+				String strbuffer=buffer.toString().trim();
+				int importIndex=strbuffer.toLowerCase().indexOf("@import");
+				if("".equals(strbuffer.substring(0,importIndex).trim()))
+				{
+					String str1=strbuffer.substring(importIndex+7,strbuffer.length());
+					ParsedWord[] strparts=split(str1, false);
+					if(strparts != null && strparts.length > 0 && (strparts[0] instanceof ParsedURL || strparts[0] instanceof ParsedString)) {
+						String uri;
+						if(strparts[0] instanceof ParsedString) {
+							uri = ((ParsedString)strparts[0]).getDecoded();
+						} else {
+							uri = ((ParsedURL)strparts[0]).getDecoded();
+						}
+						ArrayList<String> medias = commaListFromIdentifiers(strparts, 1);
+
+						if(medias != null) { // None gives [0], broke gives null
+							StringBuilder output = new StringBuilder();
+							output.append("@import url(\"");
+							try {
+								// Add ?maybecharset= even though there might be a ?type= with a charset, we will ignore maybecharset if there is.
+								// We behave similarly in <link rel=stylesheet...> if there is a ?type= in the URL.
+								String s = cb.processURI(uri, "text/css");
+								if(passedCharset != null) {
+									if(s.indexOf('?') == -1)
+										s += "?maybecharset="+passedCharset;
+									else
+										s += "&maybecharset="+passedCharset;
 								}
-								ArrayList<String> medias = commaListFromIdentifiers(strparts, 1);
-
-								if(medias != null) { // None gives [0], broke gives null
-									StringBuilder output = new StringBuilder();
-									output.append("@import url(\"");
-									try {
-										// Add ?maybecharset= even though there might be a ?type= with a charset, we will ignore maybecharset if there is.
-										// We behave similarly in <link rel=stylesheet...> if there is a ?type= in the URL.
-										String s = cb.processURI(uri, "text/css");
-										if(passedCharset != null) {
-											if(s.indexOf('?') == -1)
-												s += "?maybecharset="+passedCharset;
-											else
-												s += "&maybecharset="+passedCharset;
-										}
-										output.append(s);
-										output.append("\")");
-										boolean first = true;
-										for(String media : medias) {
-											if(FilterUtils.isMedia(media)) {
-												if(!first) output.append(", ");
-												else output.append(' ');
-												first = false;
-												output.append(media);
-											}
-										}
-										output.append(";");
-										w.write(output.toString());
-									} catch (CommentException e) {
-										// Don't write anything
+								output.append(s);
+								output.append("\")");
+								boolean first = true;
+								for(String media : medias) {
+									if(FilterUtils.isMedia(media)) {
+										if(!first) output.append(", ");
+										else output.append(' ');
+										first = false;
+										output.append(media);
 									}
 								}
+								output.append(";");
+								w.write(output.toString());
+							} catch (CommentException e) {
+								// Don't write anything
 							}
 						}
-					} else if(charsetPossible && buffer.toString().startsWith("@charset ")) {
-						// charsetPossible is incompatible with ignoreElementsS1
-						String s = buffer.delete(0, "@charset ".length()).toString();
-						s = removeOuterQuotes(s);
-						detectedCharset = s;
-						if(logDEBUG) Logger.debug(this, "Detected charset: \""+detectedCharset+"\"");
-						if(!Charset.isSupported(detectedCharset)) {
-							Logger.normal(this, "Charset not supported: "+detectedCharset);
-							throw new UnsupportedCharsetInFilterException("Charset not supported: "+detectedCharset);
-						}
-						if(stopAtDetectedCharset) return;
-						if(passedCharset != null && !detectedCharset.equalsIgnoreCase(passedCharset)) {
-							Logger.normal(this, "Detected charset \""+detectedCharset+"\" differs from passed in charset \""+passedCharset+"\"");
-							throw new IOException("Detected charset differs from passed in charset");
-						}
-						w.write("@charset \""+detectedCharset+"\";");
-					}
-					isState1Present=false;
-					ignoreElementsS1 = false;
-					buffer.setLength(0);
-					charsetPossible=false;
-					break;
-				case '"':
-				case '\'':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
 					}
-					buffer.append(c);
-					currentState=STATE1INQUOTE;
-					currentQuote=c;
-					break;
-				default:
-					buffer.append(c);
-				if(!isState1Present)
-				{
-					String s = buffer.toString().trim();
-					if(!(s.equals("") || s.equals("/") || s.equals("<") || s.equals("<!") || s.equals("<!-") || s.equals("<!--")))
-						currentState=STATE2;
 				}
-				if(logDEBUG) Logger.debug(this, "STATE1 default CASE: "+c);
+			} else if(charsetPossible && buffer.toString().startsWith("@charset ")) {
+				// charsetPossible is incompatible with ignoreElementsS1
+				String s = buffer.delete(0, "@charset ".length()).toString();
+				s = removeOuterQuotes(s);
+				detectedCharset = s;
+				if(logDEBUG) Logger.debug(this, "Detected charset: \""+detectedCharset+"\"");
+				if(!Charset.isSupported(detectedCharset)) {
+					Logger.normal(this, "Charset not supported: "+detectedCharset);
+					throw new UnsupportedCharsetInFilterException("Charset not supported: "+detectedCharset);
+				}
+				if(stopAtDetectedCharset) return true;
+				if(passedCharset != null && !detectedCharset.equalsIgnoreCase(passedCharset)) {
+					Logger.normal(this, "Detected charset \""+detectedCharset+"\" differs from passed in charset \""+passedCharset+"\"");
+					throw new IOException("Detected charset differs from passed in charset");
+				}
+				w.write("@charset \""+detectedCharset+"\";");
+			}
+			isState1Present=false;
+			ignoreElementsS1 = false;
+			buffer.setLength(0);
+			charsetPossible=false;
+			break;
+		case '"':
+		case '\'':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
 				break;
+			}
+			buffer.append(c);
+			currentState=STATE1INQUOTE;
+			currentQuote=c;
+			break;
+		default:
+			buffer.append(c);
+		if(!isState1Present)
+		{
+			String s = buffer.toString().trim();
+			if(!(s.equals("") || s.equals("/") || s.equals("<") || s.equals("<!") || s.equals("<!-") || s.equals("<!--")))
+				currentState=STATE2;
+		}
+		if(logDEBUG) Logger.debug(this, "STATE1 default CASE: "+c);
+		break;
 
-				}
+		}
+		return false;
+	}
+
+	/** In a string in STATE1. Handles c.
+	 * @return True to stop parsing. */
+	private boolean parseState1InQuote() throws IOException {
+		if(logDEBUG) Logger.debug(this, "STATE1INQUOTE: "+c);
+		switch(c)
+		{
+		case '"':
+			if(currentQuote=='"' && prevc!='\\')
+				currentState=STATE1;
+			buffer.append(c);
+			break;
+		case '\'':
+			if(currentQuote=='\'' && prevc!='\\')
+				currentState=STATE1;
+			buffer.append(c);
+			break;
+		case '\n':
+			if(prevc == '\r') {
+				break;
+			}
+			// Otherwise same as \r ...
+		case '\f':
+		case '\r':
+			if(prevc != '\\') {
+				ignoreElementsS1 = true;
+				currentState = STATE1;
+				break;
+			} else {
+				// Wipe out the \ as well.
+				buffer.setLength(buffer.length()-1);
 				break;
+			}
+		default:
+			buffer.append(c);
+		break;
+		}
+		return false;
+	}
 
-			case STATE1INQUOTE:
-				if(logDEBUG) Logger.debug(this, "STATE1INQUOTE: "+c);
-				switch(c)
-				{
-				case '"':
-					if(currentQuote=='"' && prevc!='\\')
-						currentState=STATE1;
-					buffer.append(c);
-					break;
-				case '\'':
-					if(currentQuote=='\'' && prevc!='\\')
-						currentState=STATE1;
-					buffer.append(c);
-					break;
-				case '\n':
-					if(prevc == '\r') {
-						break;
-					}
-					// Otherwise same as \r ...
-				case '\f':
-				case '\r':
-					if(prevc != '\\') {
-						ignoreElementsS1 = true;
-						currentState = STATE1;
-						break;
-					} else {
-						// Wipe out the \ as well.
-						buffer.setLength(buffer.length()-1);
-						break;
-					}
-				default:
-					buffer.append(c);
+	/** In a selector. Handles c.
+	 * @return True to stop parsing. */
+	private boolean parseState2() throws IOException {
+		canImport=false;
+		charsetPossible=false;
+		if(stopAtDetectedCharset)
+			return true;
+		switch(c)
+		{
+		case '{':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
 				break;
-				}
+			}
+
+			int i = 0;
+			for(i=0;i<buffer.length();i++) {
+				char c1 = buffer.charAt(i);
+				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+					continue;
 				break;
+			}
+			if(logDEBUG) Logger.debug(this, "Appending whitespace in state2: \""+buffer.substring(0,i)+"\"");
+			String ws = buffer.substring(0, i);
+			buffer.delete(0, i);
 
+			if(buffer.length() > 4 && buffer.substring(0, 4).equals("<!--")) {
+				ws+=buffer.substring(0, 4);
+				if(" \t\r\n".indexOf(buffer.charAt(4))==-1) {
+					Logger.error(this, "<!-- not followed by whitespace!");
+					return true;
+				}
+				buffer.delete(0, 4);
+				for(i=0;i<buffer.length();i++) {
+					char c1 = buffer.charAt(i);
+					if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+						continue;
+					break;
+				}
+				ws+=buffer.substring(0, i);
+				buffer.delete(0, i);
+			}
 
-			case STATE2:
-				canImport=false;
-				charsetPossible=false;
-				if(stopAtDetectedCharset)
-					return;
-				switch(c)
+			openBraces++;
+			if(!buffer.toString().trim().equals(""))
+			{
+				String filtered=recursiveSelectorVerifier(buffer.toString());
+				if(filtered!=null && !"".equals(filtered))
 				{
-				case '{':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
-					}
-
-					int i = 0;
-					for(i=0;i<buffer.length();i++) {
-						char c1 = buffer.charAt(i);
-						if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-							continue;
-						break;
-					}
-					if(logDEBUG) Logger.debug(this, "Appending whitespace in state2: \""+buffer.substring(0,i)+"\"");
-					String ws = buffer.substring(0, i);
-					buffer.delete(0, i);
-
-					if(buffer.length() > 4 && buffer.substring(0, 4).equals("<!--")) {
-						ws+=buffer.substring(0, 4);
-						if(" \t\r\n".indexOf(buffer.charAt(4))==-1) {
-							Logger.error(this, "<!-- not followed by whitespace!");
-							return;
-						}
-						buffer.delete(0, 4);
-						for(i=0;i<buffer.length();i++) {
-							char c1 = buffer.charAt(i);
-							if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-								continue;
-							break;
-						}
-						ws+=buffer.substring(0, i);
-						buffer.delete(0, i);
+					if(s2Comma)
+					{
+						filteredTokens.append(",");
+						s2Comma=false;
 					}
+					filteredTokens.append(ws);
+					filteredTokens.append(filtered);
+					filteredTokens.append(" {");
+				}
+				else if(s2Comma && "".equals(filtered))
+				{
+					// There was a comma, so filteredTokens already contains some tokens.
+					// The current selector is valid, yet banned. Ignore it.
+					s2Comma=false;
+					filteredTokens.append(ws);
+					filteredTokens.append(" {");
+				}
+				else
+				{
+					ignoreElementsS2=true;
+					// If there was a comma, filteredTokens may contain some tokens.
+					// These are invalid, as per the spec: we wipe the whole selector out.
+					// Also, not wiping filteredTokens here does bad things:
+					// we would write the filtered tokens, without the { or }, so we end up prepending it to the next rule, which is not what we want as it changes the next rule's meaning.
+					filteredTokens.setLength(0);
+				}
+				if(logDEBUG) Logger.debug(this, "STATE2 CASE { filtered elements"+filtered);
+			} else {
+				// No valid selector, wipe it out as above.
+				ignoreElementsS2=true;
+				// If there was a comma, filteredTokens may contain some tokens.
+				// These are invalid, as per the spec: we wipe the whole selector out.
+				// Also, not wiping filteredTokens here does bad things:
+				// we would write the filtered tokens, without the { or }, so we end up prepending it to the next rule, which is not what we want as it changes the next rule's meaning.
+				filteredTokens.setLength(0);
+			}
+			currentState=STATE3;
+			openBracesStartingS3 = openBraces;
+			if(logDEBUG) Logger.debug(this, "STATE2 -> STATE3, openBracesStartingS3 = "+openBracesStartingS3);
+			buffer.setLength(0);
+			break;
 
-					openBraces++;
-					if(!buffer.toString().trim().equals(""))
-					{
-						String filtered=recursiveSelectorVerifier(buffer.toString());
-						if(filtered!=null && !"".equals(filtered))
-						{
-							if(s2Comma)
-							{
-								filteredTokens.append(",");
-								s2Comma=false;
-							}
-							filteredTokens.append(ws);
-							filteredTokens.append(filtered);
-							filteredTokens.append(" {");
-						}
-						else if(s2Comma && "".equals(filtered))
-						{
-							// There was a comma, so filteredTokens already contains some tokens.
-							// The current selector is valid, yet banned. Ignore it.
-							s2Comma=false;
-							filteredTokens.append(ws);
-							filteredTokens.append(" {");
-						}
-						else
-						{
-							ignoreElementsS2=true;
-							// If there was a comma, filteredTokens may contain some tokens.
-							// These are invalid, as per the spec: we wipe the whole selector out.
-							// Also, not wiping filteredTokens here does bad things:
-							// we would write the filtered tokens, without the { or }, so we end up prepending it to the next rule, which is not what we want as it changes the next rule's meaning.
-							filteredTokens.setLength(0);
-						}
-						if(logDEBUG) Logger.debug(this, "STATE2 CASE { filtered elements"+filtered);
-					} else {
-						// No valid selector, wipe it out as above.
-						ignoreElementsS2=true;
-						// If there was a comma, filteredTokens may contain some tokens.
-						// These are invalid, as per the spec: we wipe the whole selector out.
-						// Also, not wiping filteredTokens here does bad things:
-						// we would write the filtered tokens, without the { or }, so we end up prepending it to the next rule, which is not what we want as it changes the next rule's meaning.
-						filteredTokens.setLength(0);
-					}
-					currentState=STATE3;
-					openBracesStartingS3 = openBraces;
-					if(logDEBUG) Logger.debug(this, "STATE2 -> STATE3, openBracesStartingS3 = "+openBracesStartingS3);
-					buffer.setLength(0);
-					break;
+		case ',':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
+				break;
+			}
+			for(i=0;i<buffer.length();i++) {
+				char c1 = buffer.charAt(i);
+				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+					continue;
+				break;
+			}
+			if(logDEBUG) Logger.debug(this, "Appending whitespace in state2: \""+buffer.substring(0,i)+"\"");
+			ws = buffer.substring(0, i);
+			buffer.delete(0, i);
 
-				case ',':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
+			if(!s2Comma) {
+				if(buffer.length() > 4 && buffer.substring(0, 4).equals("<!--")) {
+					filteredTokens.append(buffer.substring(0, 4));
+					if(" \t\r\n".indexOf(buffer.charAt(4))==-1) {
+						Logger.error(this, "<!-- not followed by whitespace!");
+						return true;
 					}
+					buffer.delete(0, 4);
 					for(i=0;i<buffer.length();i++) {
 						char c1 = buffer.charAt(i);
 						if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
 							continue;
 						break;
 					}
-					if(logDEBUG) Logger.debug(this, "Appending whitespace in state2: \""+buffer.substring(0,i)+"\"");
-					ws = buffer.substring(0, i);
+					filteredTokens.append(buffer.substring(0, i));
 					buffer.delete(0, i);
+				}
+			}
 
-					if(!s2Comma) {
-						if(buffer.length() > 4 && buffer.substring(0, 4).equals("<!--")) {
-							filteredTokens.append(buffer.substring(0, 4));
-							if(" \t\r\n".indexOf(buffer.charAt(4))==-1) {
-								Logger.error(this, "<!-- not followed by whitespace!");
-								return;
-							}
-							buffer.delete(0, 4);
-							for(i=0;i<buffer.length();i++) {
-								char c1 = buffer.charAt(i);
-								if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-									continue;
-								break;
-							}
-							filteredTokens.append(buffer.substring(0, i));
-							buffer.delete(0, i);
-						}
-					}
 
+			String filtered=recursiveSelectorVerifier(buffer.toString().trim());
+			if(logDEBUG) Logger.debug(this, "STATE2 CASE , filtered elements"+filtered);
+			if(filtered!=null && !"".equals(filtered))
+			{
+				if(s2Comma)
+					filteredTokens.append(",");
+				else
+					s2Comma=true;
+				filteredTokens.append(ws);
+				filteredTokens.append(filtered);
+			}
+			else if("".equals(filtered))
+			{
+				// This selector was banned. Ignore it.
+				filteredTokens.append(ws);
+			}
+			buffer.setLength(0);
+			break;
 
-					String filtered=recursiveSelectorVerifier(buffer.toString().trim());
-					if(logDEBUG) Logger.debug(this, "STATE2 CASE , filtered elements"+filtered);
-					if(filtered!=null && !"".equals(filtered))
-					{
-						if(s2Comma)
-							filteredTokens.append(",");
-						else
-							s2Comma=true;
-						filteredTokens.append(ws);
-						filteredTokens.append(filtered);
-					}
-					else if("".equals(filtered))
-					{
-						// This selector was banned. Ignore it.
-						filteredTokens.append(ws);
-					}
-					buffer.setLength(0);
-					break;
 
+		case '}':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
+				break;
+			}
+			if(openBraces > 0 && !ignoreElementsS1) {
+				openBraces--;
+				// ignoreElementsS2 is irrelevant here, we are not *adding to* filteredTokens.
+				if(openBraces >= 0)
+					filteredTokens.append('}');
+				else
+					openBraces = 0;
+				if(logDEBUG) Logger.debug(this, "Writing \""+filteredTokens+"\"");
+				w.write(filteredTokens.toString());
+			} else {
+				if(openBraces > 0) openBraces--;
+				// Ignore.
+				// We are going back to STATE1, so reset ignoreElementsS1
+				ignoreElementsS1 = false;
+			}
+			filteredTokens.setLength(0);
+			buffer.setLength(0);
+			currentMedia=new String[] {defaultMedia};
+			isState1Present=false;
+			currentState=STATE1;
+			if(isInline) return true;
+			if(logDEBUG) Logger.debug(this, "STATE2 CASE }: "+c);
+			break;
 
-				case '}':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
-					}
-					if(openBraces > 0 && !ignoreElementsS1) {
-						openBraces--;
-						// ignoreElementsS2 is irrelevant here, we are not *adding to* filteredTokens.
-						if(openBraces >= 0)
-							filteredTokens.append('}');
-						else
-							openBraces = 0;
-						if(logDEBUG) Logger.debug(this, "Writing \""+filteredTokens+"\"");
-						w.write(filteredTokens.toString());
-					} else {
-						if(openBraces > 0) openBraces--;
-						// Ignore.
-						// We are going back to STATE1, so reset ignoreElementsS1
-						ignoreElementsS1 = false;
-					}
-					filteredTokens.setLength(0);
-					buffer.setLength(0);
-					currentMedia=new String[] {defaultMedia};
-					isState1Present=false;
-					currentState=STATE1;
-					if(isInline) return;
-					if(logDEBUG) Logger.debug(this, "STATE2 CASE }: "+c);
-					break;
+		case '"':
+		case '\'':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
+				break;
+			}
+			buffer.append(c);
+			currentState=STATE2INQUOTE;
+			currentQuote=c;
+			break;
 
-				case '"':
-				case '\'':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
-					}
-					buffer.append(c);
-					currentState=STATE2INQUOTE;
-					currentQuote=c;
-					break;
+		default:
+			buffer.append(c);
+		if(logDEBUG) Logger.debug(this, "STATE2 default CASE: "+c);
+		break;
+		}
+		return false;
+	}
 
-				default:
-					buffer.append(c);
-				if(logDEBUG) Logger.debug(this, "STATE2 default CASE: "+c);
+	/** In a string in a selector. Handles c.
+	 * @return True to stop parsing. */
+	private boolean parseState2InQuote() throws IOException {
+		if(logDEBUG) Logger.debug(this, "STATE2INQUOTE: "+c);
+		charsetPossible=false;
+		switch(c)
+		{
+		case '"':
+			if(currentQuote=='"'&& prevc!='\\')
+				currentState=STATE2;
+			buffer.append(c);
+			break;
+		case '\'':
+			if(currentQuote=='\''&& prevc!='\\')
+				currentState=STATE2;
+			buffer.append(c);
+			break;
+		case '\n':
+			if(prevc == '\r') {
 				break;
-				}
+			}
+			// Otherwise same as \r ...
+		case '\f':
+		case '\r':
+			if(prevc != '\\') {
+				ignoreElementsS2 = true;
+				closeIgnoredS2 = true;
+				currentState = STATE2;
+				break;
+			} else {
+				// Wipe out the \ as well.
+				buffer.setLength(buffer.length()-1);
 				break;
+			}
+		default:
+			buffer.append(c);
+		break;
+		}
+		return false;
+	}
 
-			case STATE2INQUOTE:
-				if(logDEBUG) Logger.debug(this, "STATE2INQUOTE: "+c);
-				charsetPossible=false;
-				switch(c)
-				{
-				case '"':
-					if(currentQuote=='"'&& prevc!='\\')
-						currentState=STATE2;
-					buffer.append(c);
-					break;
-				case '\'':
-					if(currentQuote=='\''&& prevc!='\\')
-						currentState=STATE2;
-					buffer.append(c);
-					break;
-				case '\n':
-					if(prevc == '\r') {
-						break;
-					}
-					// Otherwise same as \r ...
-				case '\f':
-				case '\r':
-					if(prevc != '\\') {
-						ignoreElementsS2 = true;
-						closeIgnoredS2 = true;
-						currentState = STATE2;
-						break;
-					} else {
-						// Wipe out the \ as well.
-						buffer.setLength(buffer.length()-1);
-						break;
-					}
-				default:
-					buffer.append(c);
+	/** In a declaration block. Handles c.
+	 * @return True to stop parsing. */
+	private boolean parseState3() throws IOException {
+		charsetPossible=false;
+		if(stopAtDetectedCharset)
+			return true;
+		switch(c)
+		{
+		case ':':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
 				break;
-				}
+			}
+			if(openBraces > openBracesStartingS3) {
+				// Correctly tokenise bogus properties containing {}'s, see CSS2.1 section 4.1.6.
+				buffer.append(c);
+				if(logDEBUG) Logger.debug(this, "openBraces now "+openBraces+" not moving on because openBracesStartingS3="+openBracesStartingS3+" in S3");
 				break;
+			}
+			int i = 0;
+			for(i=0;i<buffer.length();i++) {
+				char c1 = buffer.charAt(i);
+				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+					continue;
+				break;
+			}
+			if(logDEBUG) Logger.debug(this, "Appending whitespace: "+buffer.substring(0,i));
+			whitespaceBeforeProperty = buffer.substring(0, i);
+			propertyName=buffer.delete(0, i).toString().trim();
+			if(logDEBUG) Logger.debug(this, "Property name: "+propertyName);
+			buffer.setLength(0);
+			if(logDEBUG) Logger.debug(this, "STATE3 CASE :: "+c);
+			break;
 
-			case STATE3:
-				charsetPossible=false;
-				if(stopAtDetectedCharset)
-					return;
-				switch(c)
-				{
-				case ':':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
-					}
-					if(openBraces > openBracesStartingS3) {
-						// Correctly tokenise bogus properties containing {}'s, see CSS2.1 section 4.1.6.
-						buffer.append(c);
-						if(logDEBUG) Logger.debug(this, "openBraces now "+openBraces+" not moving on because openBracesStartingS3="+openBracesStartingS3+" in S3");
-						break;
-					}
-					int i = 0;
-					for(i=0;i<buffer.length();i++) {
-						char c1 = buffer.charAt(i);
-						if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-							continue;
-						break;
-					}
-					if(logDEBUG) Logger.debug(this, "Appending whitespace: "+buffer.substring(0,i));
-					whitespaceBeforeProperty = buffer.substring(0, i);
-					propertyName=buffer.delete(0, i).toString().trim();
-					if(logDEBUG) Logger.debug(this, "Property name: "+propertyName);
-					buffer.setLength(0);
-					if(logDEBUG) Logger.debug(this, "STATE3 CASE :: "+c);
-					break;
+		case ';':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
+				break;
+			}
+			if(openBraces > openBracesStartingS3) {
+				// Correctly tokenise bogus properties containing {}'s, see CSS2.1 section 4.1.6.
+				buffer.append(c);
+				if(logDEBUG) Logger.debug(this, "openBraces now "+openBraces+" not moving on because openBracesStartingS3="+openBracesStartingS3+" in S3");
+				break;
+			}
 
-				case ';':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
-					}
-					if(openBraces > openBracesStartingS3) {
-						// Correctly tokenise bogus properties containing {}'s, see CSS2.1 section 4.1.6.
-						buffer.append(c);
-						if(logDEBUG) Logger.debug(this, "openBraces now "+openBraces+" not moving on because openBracesStartingS3="+openBracesStartingS3+" in S3");
-						break;
-					}
+			i = 0;
+			for(i=0;i<buffer.length();i++) {
+				char c1 = buffer.charAt(i);
+				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+					continue;
+				break;
+			}
+			if(logDEBUG) Logger.debug(this, "Appending whitespace after colon: \""+buffer.substring(0,i)+"\"");
+			whitespaceAfterColon = buffer.substring(0, i);
+			propertyValue=buffer.delete(0, i).toString().trim();
+			if(logDEBUG) Logger.debug(this, "Property value: "+propertyValue);
+			buffer.setLength(0);
+
+			CSSPropertyVerifier obj=getVerifier(propertyName);
+			if(obj != null) {
+			ParsedWord[] words = split(propertyValue, obj.allowCommaDelimiters);
+			if(logDEBUG) Logger.debug(this, "Split: "+CSSPropertyVerifier.toString(words));
+			if(words != null && !ignoreElementsS2 && !ignoreElementsS3 && verifyToken(currentMedia,elements,obj,words))
+			{
+				if(changedAnything(words)) propertyValue = reconstruct(words);
+				filteredTokens.append(whitespaceBeforeProperty);
+				whitespaceBeforeProperty = "";
+				filteredTokens.append(propertyName);
+                                                filteredTokens.append(':');
+                                                filteredTokens.append(whitespaceAfterColon);
+                                                filteredTokens.append(propertyValue);
+                                                filteredTokens.append(';');
+				if(logDEBUG) Logger.debug(this, "STATE3 CASE ;: appending "+ propertyName+":"+propertyValue);
+				if(logDEBUG) Logger.debug(this, "filtered tokens now: \""+filteredTokens.toString()+"\"");
+			} else {
+				if(logDEBUG) Logger.debug(this, "filtered tokens now (ignored): \""+filteredTokens.toString()+"\" words="+CSSPropertyVerifier.toString(words)+" ignoreS1="+ignoreElementsS1+" ignoreS2="+ignoreElementsS2+" ignoreS3="+ignoreElementsS3);
+			}
+			} else {
+				if(logDEBUG) Logger.debug(this, "No such property name \""+propertyName+"\"");
+			}
+			ignoreElementsS3 = false;
+			propertyName="";
+			propertyValue="";
+			break;
+		case '}':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
+				break;
+			}
+			openBraces--;
+			if(openBraces > openBracesStartingS3-1) {
+				// Correctly tokenise bogus properties containing {}'s, see CSS2.1 section 4.1.6.
+				buffer.append(c);
+				if(logDEBUG) Logger.debug(this, "openBraces now "+openBraces+" not moving on because openBracesStartingS3="+openBracesStartingS3+" in S3");
+				if(openBraces < 0) openBraces = 0;
+				break;
+			}
+			if(openBraces < 0) openBraces = 0;
+			for(i=buffer.length()-1;i>=0;i--) {
+				char c1 = buffer.charAt(i);
+				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+					continue;
+				break;
+			}
+			i++;
+			String postSpace = buffer.substring(i);
+			buffer.setLength(i);
+			// This (string!=) is okay as we set it directly by propertyName="" to indicate there is no property name.
+			if(propertyName!="")
+			{
 
-					i = 0;
-					for(i=0;i<buffer.length();i++) {
-						char c1 = buffer.charAt(i);
-						if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-							continue;
-						break;
-					}
-					if(logDEBUG) Logger.debug(this, "Appending whitespace after colon: \""+buffer.substring(0,i)+"\"");
-					whitespaceAfterColon = buffer.substring(0, i);
-					propertyValue=buffer.delete(0, i).toString().trim();
-					if(logDEBUG) Logger.debug(this, "Property value: "+propertyValue);
-					buffer.setLength(0);
-
-					CSSPropertyVerifier obj=getVerifier(propertyName);
-					if(obj != null) {
-					ParsedWord[] words = split(propertyValue, obj.allowCommaDelimiters);
+				i = 0;
+				for(i=0;i<buffer.length();i++) {
+					char c1 = buffer.charAt(i);
+					if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+						continue;
+					break;
+				}
+				if(logDEBUG) Logger.debug(this, "Appending whitespace after colon (}): "+buffer.substring(0,i));
+				whitespaceAfterColon = buffer.substring(0, i);
+				buffer.delete(0, i);
+
+				propertyValue=buffer.toString().trim();
+				if(logDEBUG) Logger.debug(this, "Property value: "+propertyValue);
+				buffer.setLength(0);
+
+				obj=getVerifier(propertyName);
+				if(logDEBUG) Logger.debug(this, "Found PropertyName:"+propertyName+" propertyValue:"+propertyValue);
+				if(obj != null) {
+					ParsedWord[] words = split(propertyValue,obj.allowCommaDelimiters);
 					if(logDEBUG) Logger.debug(this, "Split: "+CSSPropertyVerifier.toString(words));
-					if(words != null && !ignoreElementsS2 && !ignoreElementsS3 && verifyToken(currentMedia,elements,obj,words))
+					if(!ignoreElementsS2 && !ignoreElementsS3 && verifyToken(currentMedia,elements,obj,words))
 					{
 						if(changedAnything(words)) propertyValue = reconstruct(words);
 						filteredTokens.append(whitespaceBeforeProperty);
 						whitespaceBeforeProperty = "";
 						filteredTokens.append(propertyName);
-                                                filteredTokens.append(':');
-                                                filteredTokens.append(whitespaceAfterColon);
-                                                filteredTokens.append(propertyValue);
-                                                filteredTokens.append(';');
-						if(logDEBUG) Logger.debug(this, "STATE3 CASE ;: appending "+ propertyName+":"+propertyValue);
-						if(logDEBUG) Logger.debug(this, "filtered tokens now: \""+filteredTokens.toString()+"\"");
-					} else {
-						if(logDEBUG) Logger.debug(this, "filtered tokens now (ignored): \""+filteredTokens.toString()+"\" words="+CSSPropertyVerifier.toString(words)+" ignoreS1="+ignoreElementsS1+" ignoreS2="+ignoreElementsS2+" ignoreS3="+ignoreElementsS3);
-					}
-					} else {
-						if(logDEBUG) Logger.debug(this, "No such property name \""+propertyName+"\"");
-					}
-					ignoreElementsS3 = false;
-					propertyName="";
-					propertyValue="";
-					break;
-				case '}':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
-					}
-					openBraces--;
-					if(openBraces > openBracesStartingS3-1) {
-						// Correctly tokenise bogus properties containing {}'s, see CSS2.1 section 4.1.6.
-						buffer.append(c);
-						if(logDEBUG) Logger.debug(this, "openBraces now "+openBraces+" not moving on because openBracesStartingS3="+openBracesStartingS3+" in S3");
-						if(openBraces < 0) openBraces = 0;
-						break;
-					}
-					if(openBraces < 0) openBraces = 0;
-					for(i=buffer.length()-1;i>=0;i--) {
-						char c1 = buffer.charAt(i);
-						if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-							continue;
-						break;
-					}
-					i++;
-					String postSpace = buffer.substring(i);
-					buffer.setLength(i);
-					// This (string!=) is okay as we set it directly by propertyName="" to indicate there is no property name.
-					if(propertyName!="")
-					{
-
-						i = 0;
-						for(i=0;i<buffer.length();i++) {
-							char c1 = buffer.charAt(i);
-							if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-								continue;
-							break;
-						}
-						if(logDEBUG) Logger.debug(this, "Appending whitespace after colon (}): "+buffer.substring(0,i));
-						whitespaceAfterColon = buffer.substring(0, i);
-						buffer.delete(0, i);
-
-						propertyValue=buffer.toString().trim();
-						if(logDEBUG) Logger.debug(this, "Property value: "+propertyValue);
-						buffer.setLength(0);
-
-						obj=getVerifier(propertyName);
-						if(logDEBUG) Logger.debug(this, "Found PropertyName:"+propertyName+" propertyValue:"+propertyValue);
-						if(obj != null) {
-							ParsedWord[] words = split(propertyValue,obj.allowCommaDelimiters);
-							if(logDEBUG) Logger.debug(this, "Split: "+CSSPropertyVerifier.toString(words));
-							if(!ignoreElementsS2 && !ignoreElementsS3 && verifyToken(currentMedia,elements,obj,words))
-							{
-								if(changedAnything(words)) propertyValue = reconstruct(words);
-								filteredTokens.append(whitespaceBeforeProperty);
-								whitespaceBeforeProperty = "";
-								filteredTokens.append(propertyName);
                                                                 filteredTokens.append(':');
                                                                 filteredTokens.append(whitespaceAfterColon);
                                                                 filteredTokens.append(propertyValue);
-								if(logDEBUG) Logger.debug(this, "STATE3 CASE }: appending "+ propertyName+":"+propertyValue);
-							}
-						} else {
-							if(logDEBUG) Logger.debug(this, "No such property name \""+propertyName+"\"");
-						}
-						propertyName="";
-					} else {
-						// Whitespace at end
-						i = 0;
-						for(i=0;i<buffer.length();i++) {
-							char c1 = buffer.charAt(i);
-							if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-								continue;
-							break;
-						}
-						if(logDEBUG) Logger.debug(this, "Appending whitespace after colon (}): "+buffer.substring(0,i));
-						filteredTokens.append(buffer.substring(0, i));
-						buffer.delete(0, i);
-
-					}
-					ignoreElementsS3 = false;
-					if((!ignoreElementsS2) || closeIgnoredS2) {
-						filteredTokens.append(postSpace);
-						filteredTokens.append("}");
-						closeIgnoredS2 = false;
-						ignoreElementsS2 = false;
-					} else
-						ignoreElementsS2=false;
-					if(!ignoreElementsS1) {
-						w.write(filteredTokens.toString());
-						if(logDEBUG) Logger.debug(this, "writing filtered tokens: \""+filteredTokens.toString()+"\"");
-					}
-					filteredTokens.setLength(0);
-					whitespaceAfterColon = "";
-					if(forPage) {
-						forPage = false;
-						currentState = STATE1;
-					} else {
-						currentState=STATE2;
-					}
-					if(isInline) return;
-					buffer.setLength(0);
-					s2Comma=false;
-					if(logDEBUG) Logger.debug(this, "STATE3 CASE }: "+c);
-					break;
-
-				case '{':
-					// Correctly tokenise invalid properties including {}, see CSS2 section 4.1.6.
-					openBraces++;
-					buffer.append(c);
-					if(logDEBUG) Logger.debug(this, "openBraces now "+openBraces+" in S3");
-					break;
-				case '"':
-				case '\'':
-					if(prevc == '\\') {
-						// Leave in buffer, encoded.
-						buffer.append(c);
-						break;
+						if(logDEBUG) Logger.debug(this, "STATE3 CASE }: appending "+ propertyName+":"+propertyValue);
 					}
-					buffer.append(c);
-					currentState=STATE3INQUOTE;
-					currentQuote=c;
-					break;
-
-				default:
-					buffer.append(c);
-				if(logDEBUG) Logger.debug(this, "STATE3 default CASE : "+c);
-				break;
-
+				} else {
+					if(logDEBUG) Logger.debug(this, "No such property name \""+propertyName+"\"");
 				}
-				break;
-
-			case STATE3INQUOTE:
-				charsetPossible=false;
-				if(stopAtDetectedCharset)
-					return;
-				if(logDEBUG) Logger.debug(this, "STATE3INQUOTE: "+c);
-				switch(c)
-				{
-				case '"':
-					if(currentQuote=='"'&& prevc!='\\')
-						currentState=STATE3;
-					buffer.append(c);
-					break;
-				case '\'':
-					if(currentQuote=='\''&& prevc!='\\')
-						currentState=STATE3;
-					buffer.append(c);
+				propertyName="";
+			} else {
+				// Whitespace at end
+				i = 0;
+				for(i=0;i<buffer.length();i++) {
+					char c1 = buffer.charAt(i);
+					if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
+						continue;
 					break;
-				case '\n':
-					if(prevc == '\r') {
-						break;
-					}
-					// Otherwise same as \r ...
-				case '\r':
-				case '\f':
-					if(prevc != '\\') {
-						ignoreElementsS3 = true;
-						currentState = STATE3;
-						break;
-					} else {
-						// Wipe out the \ as well.
-						buffer.setLength(buffer.length()-1);
-						break;
-					}
-				default:
-					buffer.append(c);
-				break;
 				}
-				break;
+				if(logDEBUG) Logger.debug(this, "Appending whitespace after colon (}): "+buffer.substring(0,i));
+				filteredTokens.append(buffer.substring(0, i));
+				buffer.delete(0, i);
 
-			case STATECOMMENT:
-				// FIXME sanitize (remove potentially dangerous chars) and preserve comments.
-				charsetPossible=false;
-				if(stopAtDetectedCharset)
-					return;
-				switch(c)
-				{
-				case '/':
-					if(prevc=='*')
-					{
-						currentState=stateBeforeComment;
-						c = 0;
-						if(logDEBUG) Logger.debug(this, "Exiting the comment state "+currentState);
-					}
-					break;
-				}
-				break;
 			}
-		}
+			ignoreElementsS3 = false;
+			if((!ignoreElementsS2) || closeIgnoredS2) {
+				filteredTokens.append(postSpace);
+				filteredTokens.append("}");
+				closeIgnoredS2 = false;
+				ignoreElementsS2 = false;
+			} else
+				ignoreElementsS2=false;
+			if(!ignoreElementsS1) {
+				w.write(filteredTokens.toString());
+				if(logDEBUG) Logger.debug(this, "writing filtered tokens: \""+filteredTokens.toString()+"\"");
+			}
+			filteredTokens.setLength(0);
+			whitespaceAfterColon = "";
+			if(forPage) {
+				forPage = false;
+				currentState = STATE1;
+			} else {
+				currentState=STATE2;
+			}
+			if(isInline) return true;
+			buffer.setLength(0);
+			s2Comma=false;
+			if(logDEBUG) Logger.debug(this, "STATE3 CASE }: "+c);
+			break;
 
-		if(logDEBUG) Logger.debug(this, "Filtered tokens: \""+filteredTokens+"\"");
-		w.write(filteredTokens.toString());
-		for(int i=0;i<openBraces;i++)
-			w.write('}');
+		case '{':
+			// Correctly tokenise invalid properties including {}, see CSS2 section 4.1.6.
+			openBraces++;
+			buffer.append(c);
+			if(logDEBUG) Logger.debug(this, "openBraces now "+openBraces+" in S3");
+			break;
+		case '"':
+		case '\'':
+			if(prevc == '\\') {
+				// Leave in buffer, encoded.
+				buffer.append(c);
+				break;
+			}
+			buffer.append(c);
+			currentState=STATE3INQUOTE;
+			currentQuote=c;
+			break;
 
-		if(logDEBUG) Logger.debug(this, "Remaining buffer: \""+buffer+"\"");
+		default:
+			buffer.append(c);
+		if(logDEBUG) Logger.debug(this, "STATE3 default CASE : "+c);
+		break;
 
-		int i = 0;
-		for(i=0;i<buffer.length();i++) {
-			char c1 = buffer.charAt(i);
-			if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-				continue;
-			break;
 		}
-		w.write(buffer.substring(0, i));
-		buffer.delete(0, i);
+		return false;
+	}
 
-		while(buffer.toString().trim().equals("-->")) {
-			w.write("-->");
-			buffer.delete(0, 3);
-			for(i=0;i<buffer.length();i++) {
-				char c1 = buffer.charAt(i);
-				if(c1 == ' ' || c1 == '\f' || c1 == '\t' || c1 == '\r' || c1 == '\n')
-					continue;
+	/** In a string in a declaration block. Handles c.
+	 * @return True to stop parsing. */
+	private boolean parseState3InQuote() throws IOException {
+		charsetPossible=false;
+		if(stopAtDetectedCharset)
+			return true;
+		if(logDEBUG) Logger.debug(this, "STATE3INQUOTE: "+c);
+		switch(c)
+		{
+		case '"':
+			if(currentQuote=='"'&& prevc!='\\')
+				currentState=STATE3;
+			buffer.append(c);
+			break;
+		case '\'':
+			if(currentQuote=='\''&& prevc!='\\')
+				currentState=STATE3;
+			buffer.append(c);
+			break;
+		case '\n':
+			if(prevc == '\r') {
 				break;
 			}
-			w.write(buffer.substring(0, i));
-			buffer.delete(0, i);
+			// Otherwise same as \r ...
+		case '\r':
+		case '\f':
+			if(prevc != '\\') {
+				ignoreElementsS3 = true;
+				currentState = STATE3;
+				break;
+			} else {
+				// Wipe out the \ as well.
+				buffer.setLength(buffer.length()-1);
+				break;
+			}
+		default:
+			buffer.append(c);
+		break;
 		}
+		return false;
+	}
 
-		// FIXME CSS2.1 section 4.2 "Unexpected end of style sheet".
-		// We do NOT auto-close at the end.
-		// It might be worth implementing this one day.
-
+	/** In a comment. Handles c.
+	 * @return True to stop parsing. */
+	private boolean parseComment() throws IOException {
+		// FIXME sanitize (remove potentially dangerous chars) and preserve comments.
+		charsetPossible=false;
+		if(stopAtDetectedCharset)
+			return true;
+		switch(c)
+		{
+		case '/':
+			if(prevc=='*')
+			{
+				currentState=stateBeforeComment;
+				c = 0;
+				if(logDEBUG) Logger.debug(this, "Exiting the comment state "+currentState);
+			}
+			break;
+		}
+		return false;
 	}
 
 	private String reconstruct(ParsedWord[] words) {
@@ -60,6 +60,9 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 	public static int metaRefreshSamePageMinInterval = 1;
 	/** -1 means don't allow it */
 	public static int metaRefreshRedirectMinInterval = 30;
+
+	/** Characters read from the input at a time. */
+	private static final int READ_BUFFER_SIZE = 4096;
 	
 	@Override
 	public void readFilter(InputStream input, OutputStream output, String charset, HashMap<String, String> otherParams,
@@ -75,7 +78,9 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		try {
 			isr = new InputStreamReader(input, charset);
 			osw = new OutputStreamWriter(output, charset);
-			r = new BufferedReader(isr, 4096);
+			// The parser reads into its own buffer, so there is no need for a BufferedReader.
+			r = isr;
+			// Filtered output goes out whenever this fills up, rather than when we have finished.
 			w = new BufferedWriter(osw, 4096);
 		} catch(UnsupportedEncodingException e) {
 			throw UnknownCharsetException.create(e, charset);
@@ -139,6 +144,13 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		boolean wasHeadElementFound=false;
 		/** We can only have <head> once, and <meta>/<title> can't be outside it. This helps with robustness against charset attacks and allows us to stop looking for <meta> as soon as we see </head> when detecting charset. */
 		boolean headEnded=false;
+		/** Characters read from r but not yet parsed. We read a block at a time rather than calling
+		 * r.read() for every character, which takes a lock and is surprisingly expensive. */
+		private final char[] buffer = new char[READ_BUFFER_SIZE];
+		private int bufferPos;
+		private int bufferEnd;
+		/** Reused by saveText() and saveComment(). */
+		final StringBuilder textBuffer = new StringBuilder(1024);
 	
 		HTMLParseContext(Reader r, Writer w, String charset, FilterCallback cb, boolean onlyDetectingCharset) {
 			this.r = r;
@@ -149,6 +161,16 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			openElements=new Stack<String>();
 		}
 		
+		/** Read the next block into the buffer.
+		 * @return The number of characters read, or -1 at the end of the stream. */
+		private int fill() throws IOException {
+			int read;
+			do {
+				read = r.read(buffer, 0, buffer.length);
+			} while(read == 0);
+			return read;
+		}
+
 		public void setisXHTML(boolean value) {
 			isXHTML=value;
 		}
@@ -213,7 +235,11 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				int x;
 				
 				try {
-					x = r.read();
+					if(bufferPos == bufferEnd) {
+						bufferEnd = fill();
+						bufferPos = 0;
+					}
+					x = bufferEnd == -1 ? -1 : buffer[bufferPos++];
 				}
 				/** 
 				 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
@@ -234,7 +260,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 							if(textAllowed) {
 								saveText(b, currentTag, w, this);
 							} else {
-								if(!b.toString().trim().equals(""))
+								if(!isBlank(b))
 									throwFilterException(l10n("textBeforeHTML"));
 							}
 							break;
@@ -286,7 +312,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().equals(""))
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 								b.setLength(0);
@@ -294,6 +320,22 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								mode = INTAG;
 							} else {
 								b.append(c);
+								// Copy the rest of the text up to the next tag in one go.
+								int end = bufferPos;
+								while(end < bufferEnd) {
+									char next = buffer[end];
+									if(next == '<' || next == 0 || next == 0xFEFF) break;
+									end++;
+								}
+								if(end > bufferPos) {
+									b.append(buffer, bufferPos, end - bufferPos);
+									for(int i = Math.max(bufferPos, end - 3); i < end; i++) {
+										pprevC = prevC;
+										prevC = c;
+										c = buffer[i];
+									}
+									bufferPos = end;
+								}
 							}
 							break;
 						case INTAG :
@@ -308,7 +350,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().equals(""))
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 
@@ -445,7 +487,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().equals(""))
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 								balt.setLength(0);
@@ -516,6 +558,13 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 	}
 
 
+	/** Equivalent to s.toString().trim().isEmpty(), without the copies. */
+	static boolean isBlank(CharSequence s) {
+		for(int i=0;i<s.length();i++)
+			if(s.charAt(i) > ' ') return false;
+		return true;
+	}
+
 	void saveText(StringBuilder s, String tagName, Writer w, HTMLParseContext pc)
 		throws IOException {
 		
@@ -526,7 +575,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		
-		StringBuilder out = new StringBuilder(s.length()*2);
+		StringBuilder out = pc.textBuffer;
+		out.setLength(0);
 		
 		for(int i=0;i<s.length();i++) {
 			char c = s.charAt(i);
@@ -627,8 +677,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 						
 						t.write(w,pc);
 						if (pc.writeAfterTag.length() > 0) {
-							w.write(pc.writeAfterTag.toString());
-							pc.writeAfterTag = new StringBuilder(1024);
+							w.append(pc.writeAfterTag);
+							pc.writeAfterTag.setLength(0);
 						}
 					}
 				} else
@@ -638,8 +688,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				if(!pc.openElements.isEmpty())
 					return pc.openElements.peek();
 				if (pc.writeAfterTag.length() > 0) {
-					w.write(pc.writeAfterTag.toString());
-					pc.writeAfterTag = new StringBuilder(1024);
+					w.append(pc.writeAfterTag);
+					pc.writeAfterTag.setLength(0);
 				}
 				return null;
 			} else return t.element;
@@ -672,7 +722,9 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			pc.killTag = false;
 			return;
 		}
-		StringBuilder sb = new StringBuilder();
+		StringBuilder sb = pc.textBuffer;
+		sb.setLength(0);
+		sb.append("<!-- ");
 		for(int i=0;i<s.length();i++) {
 			char c = s.charAt(i);
 			if(c == '<') {
@@ -683,10 +735,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				sb.append(c);
 			}
 		}
-		s = sb;
-		w.write("<!-- ");
-		w.write(s.toString());
-		w.write(" -->");
+		sb.append(" -->");
+		w.append(sb);
 	}
 
 	static void throwFilterException(String msg) throws DataFilterException {
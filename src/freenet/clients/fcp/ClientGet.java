@@ -575,6 +575,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	@Override
 	public void receive(ClientEvent ce, ClientContext context) {
 	    if(logMINOR) Logger.minor(this, "Receiving "+ce+" on "+this);
+	    markChangedForCheckpoint();
 	    final FCPMessage progress;
 		final int verbosityMask;
 		if(ce instanceof SplitfileProgressEvent) {
@@ -589,6 +590,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			        cache.updateStatus(identifier, (progressPending).getEvent());
 			    }
 			}
+			notifyChanged();
             if((verbosity & verbosityMask) == 0)
                 return;
 		} else if(ce instanceof SendingToNetworkEvent) {
@@ -871,6 +873,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
+		ensureResumed(context);
 		if(!canRestart()) return false;
 		FreenetURI redirect = null;
 		synchronized(this) {
@@ -1050,7 +1053,11 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
         innerDOS = 
             new DataOutputStream(checker.checksumWriterWithLength(dos, new ArrayBucketFactory()));
         try {
-            if(getter.writeTrivialProgress(innerDOS)) {
+            if(isResumeDeferred()) {
+                // The getter can't tell us its progress until it has been resumed. We will 
+                // still have the serialized request; this is only the fallback.
+                innerDOS.writeBoolean(false);
+            } else if(getter.writeTrivialProgress(innerDOS)) {
                 writeTransientProgressFields(innerDOS);
             }
         } finally {
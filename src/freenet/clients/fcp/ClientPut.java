@@ -408,6 +408,7 @@ public class ClientPut extends ClientPutBase {
 
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
+		ensureResumed(context);
 		if(!canRestart()) return false;
 		setVarsRestart();
 		try {
@@ -215,6 +215,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				generatedURI = uri;
 			}
 		}
+		markChangedForCheckpoint();
 		trySendGeneratedURIMessage(null, null);
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
@@ -241,6 +242,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				generatedMetadata = metadata;
 			}
 		}
+		markChangedForCheckpoint();
 		if(delete) {
 			metadata.free();
 		} else {
@@ -290,6 +292,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	public void receive(final ClientEvent ce, ClientContext context) {
 		if(finished) return;
 		if(logMINOR) Logger.minor(this, "Receiving event "+ce+" on "+this);
+		markChangedForCheckpoint();
 		if(ce instanceof SplitfileProgressEvent) {
 			if((verbosity & VERBOSITY_SPLITFILE_PROGRESS) == VERBOSITY_SPLITFILE_PROGRESS) {
 				SimpleProgressMessage progress = 
@@ -302,6 +305,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 					cache.updateStatus(identifier, (SplitfileProgressEvent)ce);
 				}
 			}
+			notifyChanged();
 		} else if(ce instanceof StartedCompressionEvent) {
 			if((verbosity & VERBOSITY_COMPRESSION_START_END) == VERBOSITY_COMPRESSION_START_END) {
 				StartedCompressionMessage msg =
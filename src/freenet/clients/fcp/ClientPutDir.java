@@ -317,6 +317,7 @@ public class ClientPutDir extends ClientPutBase {
 
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
+		ensureResumed(context);
 		if(!canRestart()) return false;
 		setVarsRestart();
 		if(client != null) {
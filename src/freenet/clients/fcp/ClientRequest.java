@@ -64,6 +64,8 @@ public abstract class ClientRequest implements Serializable {
 	protected long completionTime;
 
 	protected transient RequestClient lowLevelClient;
+	/** True if the request may have changed since the ClientLayerPersister last wrote it. */
+	private transient volatile boolean changedSinceCheckpoint;
 	private final int hashCode; // for debugging it is good to have a persistent id
 	
 	@Override
@@ -209,6 +211,7 @@ public abstract class ClientRequest implements Serializable {
 	abstract void register(boolean noTags) throws IdentifierCollisionException;
 
 	public void cancel(ClientContext context) {
+		ensureResumed(context);
 		ClientRequester cr = getClientRequest();
 		// It might have been finished on startup.
 		if(logMINOR) Logger.minor(this, "Cancelling "+cr+" for "+this+" persistence = "+persistence);
@@ -252,6 +255,7 @@ public abstract class ClientRequest implements Serializable {
 
 	/** Request completed. But we may have to stick around until we are acked. */
 	protected void finish() {
+		markChangedForCheckpoint();
 		if(persistence == Persistence.CONNECTION)
 			origHandler.finishedClientRequest(this);
 		else
@@ -308,6 +312,28 @@ public abstract class ClientRequest implements Serializable {
 
 	public abstract boolean canRestart();
 
+	/** Tell the client's RequestIndex that something has changed, so that
+	 * ListPersistentRequests with ChangesSince will send this request. */
+	protected void notifyChanged() {
+		markChangedForCheckpoint();
+		if(client != null)
+			client.requestChanged(this);
+	}
+
+	/** The request has changed, so the next checkpoint should write it to the journal. */
+	protected void markChangedForCheckpoint() {
+		changedSinceCheckpoint = true;
+	}
+
+	/** Called by the ClientLayerPersister before it writes the request. Anything that changes
+	 * after this will set the flag again, so nothing is missed.
+	 * @return True if the request may have changed since it was last written. */
+	public boolean clearChangedForCheckpoint() {
+		boolean ret = changedSinceCheckpoint;
+		changedSinceCheckpoint = false;
+		return ret;
+	}
+
 	public abstract boolean restart(ClientContext context, boolean disableFilterData) throws PersistenceDisabledException;
 
 	/**
@@ -332,6 +358,7 @@ public abstract class ClientRequest implements Serializable {
 		}
 		
 		if(newPriorityClass >= 0 && newPriorityClass != priorityClass) {
+			ensureResumed(server.core.clientContext);
 			this.priorityClass = newPriorityClass;
 			ClientRequester r = getClientRequest();
 			r.setPriorityClass(priorityClass, server.core.clientContext);
@@ -348,6 +375,7 @@ public abstract class ClientRequest implements Serializable {
 			return; // quick return, nothing was changed
 		}
 		
+		notifyChanged();
 		server.core.clientContext.jobRunner.setCheckpointASAP();
 		
 		// this could become too complex with more parameters, but for now its ok
@@ -374,6 +402,7 @@ public abstract class ClientRequest implements Serializable {
 				cache.updateStarted(identifier, false);
 			}
 		}
+		notifyChanged();
 		if(persistence == Persistence.FOREVER) {
 		server.core.clientContext.jobRunner.queue(new PersistentJob() {
 
@@ -502,14 +531,79 @@ public abstract class ClientRequest implements Serializable {
      * @throws ResumeFailedException 
      */
     public final void onResume(ClientContext context) throws ResumeFailedException {
+        onResume(context, false);
+    }
+    
+    /** Called just after serializing in the request.
+     * @param deferRequester If true, register the request so that it is visible to clients, but
+     * don't resume the ClientRequester, which may be expensive (e.g. opening the splitfile 
+     * storage), until resumeIfDeferred() is called, or something needs it. This speeds up 
+     * startup with a large queue.
+     * @see #onResume(ClientContext) */
+    public final void onResume(ClientContext context, boolean deferRequester) throws ResumeFailedException {
         client = context.persistentRoot.makeClient(global, clientName);
         lowLevelClient = client.lowLevelClient(realTime);
         innerResume(context);
         ClientRequester req = getClientRequest();
-        if(req != null) req.onResume(context); // Can legally be null.
+        if(req != null) { // Can legally be null.
+            if(deferRequester) {
+                synchronized(this) {
+                    resumeDeferred = true;
+                }
+            } else {
+                req.onResume(context);
+            }
+        }
         context.persistentRoot.resume(this, global, clientName);
     }
     
+    /** True if onResume() did not resume the ClientRequester yet. */
+    private transient boolean resumeDeferred;
+    /** True if we need to call start() after resuming the ClientRequester. */
+    private transient boolean startDeferred;
+    
+    /** @return True if the ClientRequester has not been resumed yet, so we shouldn't do anything
+     * with it apart from serializing it. */
+    public synchronized boolean isResumeDeferred() {
+        return resumeDeferred;
+    }
+    
+    /** Resume the ClientRequester if onResume() deferred it, and start the request if 
+     * startAfterResume() was called. Does nothing otherwise. */
+    public void resumeIfDeferred(ClientContext context) throws ResumeFailedException {
+        boolean start;
+        synchronized(this) {
+            if(!resumeDeferred) return;
+            resumeDeferred = false;
+            start = startDeferred;
+            startDeferred = false;
+        }
+        ClientRequester req = getClientRequest();
+        if(req != null) req.onResume(context);
+        if(start) start(context);
+    }
+    
+    /** Make sure the ClientRequester has been resumed before we do anything to it. */
+    protected void ensureResumed(ClientContext context) {
+        try {
+            resumeIfDeferred(context);
+        } catch (ResumeFailedException e) {
+            Logger.error(this, "Unable to resume "+this+" : "+e, e);
+        }
+    }
+    
+    /** Start the request after resuming it, e.g. if it was restored from the fallback data. If 
+     * resuming was deferred, start it when it is resumed. */
+    public void startAfterResume(ClientContext context) {
+        synchronized(this) {
+            if(resumeDeferred) {
+                startDeferred = true;
+                return;
+            }
+        }
+        start(context);
+    }
+    
     protected abstract void innerResume(ClientContext context) throws ResumeFailedException;
 
     public RequestClient getRequestClient() {
@@ -542,6 +636,8 @@ public abstract class ClientRequest implements Serializable {
     /** Called just before the final write when the node is shutting down. Should write any dirty
      * data to disk etc. */
     public void onShutdown(ClientContext context) {
+        // Nothing can have changed if it hasn't been resumed.
+        if(isResumeDeferred()) return;
         ClientRequester request = getClientRequest();
         if(request != null)
             request.onShutdown(context);
@@ -6,6 +6,7 @@ package freenet.clients.fcp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import freenet.client.async.PersistenceDisabledException;
 import freenet.support.Logger;
@@ -13,6 +14,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.io.BucketTools;
+import freenet.support.io.FileChannelBucket;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NullBucket;
 import freenet.support.io.NullOutputStream;
@@ -65,6 +67,14 @@ public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
 	@Override
 	protected void writeData(OutputStream os) throws IOException {
 		long len = dataLength();
+		if(len > 0 && os instanceof FileTransferOutputStream && bucket instanceof FileChannelBucket) {
+			// Let the connection send it straight from the file.
+			FileChannel channel = ((FileChannelBucket)bucket).openFileChannel();
+			if(channel != null) {
+				((FileTransferOutputStream)os).transfer(channel, len, freeOnSent ? bucket : null);
+				return;
+			}
+		}
 		if(len > 0) BucketTools.copyTo(bucket, os, len);
 		if(freeOnSent) bucket.free(); // Always transient so no removeFrom() needed.
 	}
@@ -10,15 +10,34 @@ public class EndListPersistentRequestsMessage extends FCPMessage {
 
 	static final String name = "EndListPersistentRequests";
 	private final String listRequestIdentifier;
+	/** For a paged listing, where the next page starts, or null if this was the last page. */
+	private final String nextCursor;
+	/** For a paged or incremental listing, what to pass as ChangesSince next time. */
+	private final String changeToken;
+	/** ChangesSince was too old, or from before a restart, so the client must list everything. */
+	private final boolean resyncRequired;
 
 	public EndListPersistentRequestsMessage(String listRequestIdentifier) {
+		this(listRequestIdentifier, null, null, false);
+	}
+
+	EndListPersistentRequestsMessage(String listRequestIdentifier, String nextCursor, String changeToken, boolean resyncRequired) {
 		this.listRequestIdentifier = listRequestIdentifier;
+		this.nextCursor = nextCursor;
+		this.changeToken = changeToken;
+		this.resyncRequired = resyncRequired;
 	}
 
 	@Override
 	public SimpleFieldSet getFieldSet() {
 		SimpleFieldSet simpleFieldSet = new SimpleFieldSet(true);
 		simpleFieldSet.putSingle("Identifier", listRequestIdentifier);
+		if(nextCursor != null)
+			simpleFieldSet.putSingle("NextCursor", nextCursor);
+		if(changeToken != null)
+			simpleFieldSet.putSingle("ChangeToken", changeToken);
+		if(resyncRequired)
+			simpleFieldSet.put("ResyncRequired", true);
 		return simpleFieldSet;
 	}
 
@@ -0,0 +1,688 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import freenet.io.SelectorLoop;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.TooLongException;
+
+/**
+ * The network side of an FCP connection on a non-blocking channel, driven by an
+ * SelectorLoop rather than by an input and an output thread of its own.
+ *
+ * The loop reads whatever is available and parses it into messages with FCPMessageParser.
+ * Messages are run in order by a job on the executor, which only exists while there are
+ * messages to run. Data attached to a message is passed to the job through a bounded buffer,
+ * so the job can read it with readFrom() as before. Similarly, the messages queued on the
+ * FCPConnectionOutputHandler are serialized by a job which only exists while there are messages
+ * to send, into a bounded buffer which the loop writes out as the socket accepts it. So an idle
+ * connection doesn't use a thread at all. The data of messages with file-backed buckets, such as
+ * a large AllData, isn't copied into the output buffer: the loop sends it straight from the file
+ * with FileChannel.transferTo(), a chunk at a time.
+ *
+ * When too many messages are waiting to run, or the data buffer is full, we stop reading from
+ * the socket until they have been dealt with, so a fast client can't fill our memory; likewise
+ * the job sending messages waits when the output buffer is full, so a slow client throttles
+ * us, and the FCPConnectionOutputHandler queue backs up.
+ *
+ * LOCKING: The read buffer, the parser and the current data stream are only used on the loop.
+ * The job queue and the output buffer are synchronized on this.
+ */
+class FCPChannelConnection implements SelectorLoop.Handler {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(FCPChannelConnection.class);
+	}
+
+	static final int READ_BUFFER_SIZE = 16 * 1024;
+	/** Stop reading when this many messages are waiting to run. */
+	static final int MAX_QUEUED_MESSAGES = 32;
+	/** Stop reading when this much of a message's data is waiting for the message to read it. */
+	static final int MAX_BUFFERED_DATA = 256 * 1024;
+	static final int OUTPUT_CHUNK_SIZE = 16 * 1024;
+	/** Make the job sending messages wait when this much is waiting to be written. */
+	static final int MAX_BUFFERED_OUTPUT = 256 * 1024;
+	/** The most we send from a file in one go, so the loop doesn't wait too long for the disk. */
+	static final int MAX_FILE_TRANSFER = 256 * 1024;
+
+	private static final InputStream NO_DATA = new ByteArrayInputStream(new byte[0]);
+
+	private final FCPConnectionHandler handler;
+	private final SocketChannel channel;
+	private final SelectorLoop loop;
+	private final Executor executor;
+
+	// Only used on the loop.
+	private SelectionKey key;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final FCPMessageParser parser = new FCPMessageParser();
+	/** The data of the message being read, if we haven't read all of it yet. */
+	private DataStream data;
+
+	// Synchronized on this.
+	private final ArrayDeque<Runnable> inputJobs = new ArrayDeque<Runnable>();
+	private boolean runningInput;
+	/** Don't read any more, e.g. because we have reached the end of the stream. */
+	private boolean inputClosed;
+	private boolean inputFinished;
+	private final ArrayDeque<PendingOutput> output = new ArrayDeque<PendingOutput>();
+	private long outputBytes;
+	private boolean sendingMessages;
+	/** All the messages have been written to the output buffer. */
+	private boolean outputDone;
+	private boolean outputShutdown;
+	private boolean failed;
+
+	FCPChannelConnection(FCPConnectionHandler handler, SocketChannel channel, SelectorLoop loop) {
+		this.handler = handler;
+		this.channel = channel;
+		this.loop = loop;
+		this.executor = handler.server.node.executor;
+	}
+
+	void start() throws IOException {
+		channel.configureBlocking(false);
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					key = loop.register(channel, FCPChannelConnection.this);
+				} catch (IOException e) {
+					onError();
+					return;
+				}
+				updateInterest();
+			}
+
+		});
+	}
+
+	/** Called on the loop when we can read. */
+	@Override
+	public void onReadable() {
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e, e);
+			endOfInput();
+			return;
+		}
+		if(read < 0) {
+			endOfInput();
+			return;
+		}
+		processBuffered();
+		updateInterest();
+	}
+
+	/** Parse what we have read, on the loop. */
+	private void processBuffered() {
+		readBuffer.flip();
+		try {
+			processInput();
+		} catch (TooLongException e) {
+			Logger.normal(this, "Caught "+e.getMessage(), e);
+			endOfInput();
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e, e);
+			endOfInput();
+		} finally {
+			readBuffer.compact();
+		}
+	}
+
+	private void processInput() throws IOException {
+		while(readBuffer.hasRemaining()) {
+			if(data != null) {
+				if(!data.write(readBuffer)) return;
+				if(data.isComplete()) data = null;
+				continue;
+			}
+			synchronized(this) {
+				if(inputClosed) return;
+			}
+			if(!parser.parse(readBuffer)) return;
+			final FCPMessage msg = handler.inputHandler.parse(parser.getMessageType(), parser.getFieldSet());
+			if(handler.inputHandler.mustClose()) {
+				endOfInput();
+				return;
+			}
+			if(msg == null) continue;
+			final DataStream is;
+			long length = msg instanceof BaseDataCarryingMessage ? ((BaseDataCarryingMessage) msg).dataLength() : 0;
+			if(length > 0) {
+				is = new DataStream(length);
+				data = is;
+			} else {
+				is = null;
+			}
+			queueInput(new Runnable() {
+
+				@Override
+				public void run() {
+					runMessage(msg, is);
+				}
+
+			});
+		}
+	}
+
+	/** Run a message, on the job running input. */
+	private void runMessage(FCPMessage msg, DataStream is) {
+		try {
+			handler.inputHandler.run(msg, is == null ? NO_DATA : is);
+			// Don't let the rest of the data be parsed as messages if readFrom() didn't read it all.
+			if(is != null) is.skipRest();
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e, e);
+			finishInput();
+			return;
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t, t);
+			finishInput();
+			return;
+		}
+		if(handler.isClosed())
+			finishInput();
+	}
+
+	/** Stop reading, and close the handler after running the messages we have already read.
+	 * Called on the loop. */
+	private void endOfInput() {
+		synchronized(this) {
+			if(inputClosed) return;
+			inputClosed = true;
+		}
+		if(data != null) {
+			data.fail();
+			data = null;
+		}
+		queueInput(new Runnable() {
+
+			@Override
+			public void run() {
+				finishInput();
+			}
+
+		});
+		updateInterest();
+	}
+
+	/** Close the handler and our side of the input, as FCPConnectionInputHandler does when it
+	 * exits. Not called on the loop, since closing the handler may block. */
+	private void finishInput() {
+		synchronized(this) {
+			inputClosed = true;
+			if(inputFinished) return;
+			inputFinished = true;
+		}
+		handler.close();
+		handler.closedInput();
+		loop.execute(updateInterest);
+	}
+
+	private void queueInput(Runnable job) {
+		synchronized(this) {
+			inputJobs.add(job);
+			if(runningInput) return;
+			runningInput = true;
+		}
+		executor.execute(runInput, "FCP input for "+handler.sock.getRemoteSocketAddress());
+	}
+
+	private final Runnable runInput = new Runnable() {
+
+		@Override
+		public void run() {
+			while(true) {
+				Runnable job;
+				boolean resume;
+				synchronized(FCPChannelConnection.this) {
+					job = inputJobs.poll();
+					if(job == null) {
+						runningInput = false;
+						return;
+					}
+					resume = inputJobs.size() == MAX_QUEUED_MESSAGES - 1;
+				}
+				if(resume) loop.execute(resumeInput);
+				job.run();
+			}
+		}
+
+	};
+
+	/** Parse anything left in the read buffer and start reading again, if we stopped because
+	 * too much was waiting to be dealt with. */
+	private final Runnable resumeInput = new Runnable() {
+
+		@Override
+		public void run() {
+			processBuffered();
+			updateInterest();
+		}
+
+	};
+
+	private final Runnable updateInterest = new Runnable() {
+
+		@Override
+		public void run() {
+			updateInterest();
+		}
+
+	};
+
+	/** Select on what we are waiting for, and shut down the output once we have written
+	 * everything. Called on the loop. */
+	private void updateInterest() {
+		if(key == null || !key.isValid()) return;
+		int ops = 0;
+		boolean shutdown = false;
+		synchronized(this) {
+			if(!inputClosed && inputJobs.size() < MAX_QUEUED_MESSAGES && (data == null || !data.isFull()))
+				ops |= SelectionKey.OP_READ;
+			if(!output.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			else if(outputDone && !outputShutdown)
+				outputShutdown = shutdown = true;
+		}
+		try {
+			key.interestOps(ops);
+		} catch (CancelledKeyException e) {
+			// Closed by another thread.
+		}
+		if(shutdown) handler.closedOutput();
+	}
+
+	/** Called on the loop when we can write. */
+	@Override
+	public void onWritable() {
+		synchronized(this) {
+			try {
+				while(!output.isEmpty()) {
+					PendingOutput o = output.peek();
+					outputBytes -= o.writeTo(channel);
+					if(o.remaining() > 0) break;
+					output.poll();
+					o.release();
+				}
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Caught "+e, e);
+				onError();
+				return;
+			} finally {
+				notifyAll();
+			}
+		}
+		updateInterest();
+	}
+
+	/** Something has gone wrong with the connection, close it. */
+	@Override
+	public void onError() {
+		PendingOutput[] pending;
+		synchronized(this) {
+			if(failed) return;
+			failed = true;
+			inputClosed = true;
+			pending = output.toArray(new PendingOutput[output.size()]);
+			output.clear();
+			outputBytes = 0;
+			notifyAll();
+		}
+		for(PendingOutput o : pending)
+			o.release();
+		if(data != null) data.fail();
+		handler.outputHandler.closeOutputQueue();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				finishInput();
+				handler.closedOutput();
+			}
+
+		}, "Close FCP connection "+handler.sock.getRemoteSocketAddress());
+	}
+
+	/** Messages have been queued, or the handler closed. Start sending, if we aren't already. */
+	void wakeOutput() {
+		synchronized(this) {
+			if(sendingMessages || outputDone || failed) return;
+			sendingMessages = true;
+		}
+		executor.execute(sendMessages, "FCP output for "+handler.sock.getRemoteSocketAddress());
+	}
+
+	private final Runnable sendMessages = new Runnable() {
+
+		@Override
+		public void run() {
+			FCPConnectionOutputHandler queue = handler.outputHandler;
+			try {
+				while(true) {
+					FCPMessage msg = queue.poll();
+					if(msg != null) {
+						if(logMINOR) Logger.minor(this, "Sending "+msg);
+						msg.send(out);
+						continue;
+					}
+					out.flush();
+					if(queue.isQueueClosed()) {
+						synchronized(FCPChannelConnection.this) {
+							outputDone = true;
+							sendingMessages = false;
+						}
+						loop.execute(updateInterest);
+						return;
+					}
+					synchronized(FCPChannelConnection.this) {
+						sendingMessages = false;
+					}
+					// Don't miss a message queued after poll() but before we cleared the flag.
+					if(!queue.hasQueued()) return;
+					synchronized(FCPChannelConnection.this) {
+						if(sendingMessages) return;
+						sendingMessages = true;
+					}
+				}
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Caught "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+			// As FCPConnectionOutputHandler does when it fails.
+			queue.closeOutputQueue();
+			handler.close();
+			loop.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					onError();
+				}
+
+			});
+		}
+
+	};
+
+	/** Add something to write, waiting if too much is waiting already. */
+	private void queueOutput(PendingOutput o) throws IOException {
+		boolean wasEmpty;
+		synchronized(this) {
+			while(outputBytes >= MAX_BUFFERED_OUTPUT && !failed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(!failed) {
+				wasEmpty = output.isEmpty();
+				output.add(o);
+				outputBytes += o.remaining();
+				o = null;
+			} else {
+				wasEmpty = false;
+			}
+		}
+		if(o != null) {
+			o.release();
+			throw new IOException("Connection closed");
+		}
+		if(wasEmpty) loop.execute(updateInterest);
+	}
+
+	/** Collects what the job sending messages writes into buffers for the loop. */
+	private final FileTransferOutputStream out = new FileTransferOutputStream() {
+
+		private ByteBuffer current;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				if(current == null)
+					current = ByteBuffer.allocate(OUTPUT_CHUNK_SIZE);
+				int n = Math.min(len, current.remaining());
+				current.put(b, off, n);
+				off += n;
+				len -= n;
+				if(!current.hasRemaining()) flush();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(current == null || current.position() == 0) return;
+			current.flip();
+			ByteBuffer buf = current;
+			current = null;
+			queueOutput(new BufferOutput(buf));
+		}
+
+		@Override
+		void transfer(FileChannel file, long length, Bucket toFree) throws IOException {
+			flush();
+			queueOutput(new FileOutput(file, length, toFree));
+		}
+
+	};
+
+	/** Something waiting to be written to the socket. Written and released on the loop. */
+	private abstract static class PendingOutput {
+
+		/** Write as much as the socket will take.
+		 * @return The number of bytes written. */
+		abstract long writeTo(SocketChannel channel) throws IOException;
+
+		abstract long remaining();
+
+		/** Called once everything has been written, or if the connection fails. */
+		void release() {
+			// Do nothing.
+		}
+
+	}
+
+	private static class BufferOutput extends PendingOutput {
+
+		private final ByteBuffer buf;
+
+		BufferOutput(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		long writeTo(SocketChannel channel) throws IOException {
+			return channel.write(buf);
+		}
+
+		@Override
+		long remaining() {
+			return buf.remaining();
+		}
+
+	}
+
+	/** Data sent straight from a file, see FileTransferOutputStream. */
+	private class FileOutput extends PendingOutput {
+
+		private final FileChannel file;
+		private long position;
+		private final long end;
+		private final Bucket toFree;
+
+		FileOutput(FileChannel file, long length, Bucket toFree) {
+			this.file = file;
+			this.end = length;
+			this.toFree = toFree;
+		}
+
+		@Override
+		long writeTo(SocketChannel channel) throws IOException {
+			long written = file.transferTo(position, Math.min(end - position, MAX_FILE_TRANSFER), channel);
+			if(written == 0 && position >= file.size())
+				throw new EOFException("File is shorter than the data: "+file.size()+" < "+end);
+			position += written;
+			return written;
+		}
+
+		@Override
+		long remaining() {
+			return end - position;
+		}
+
+		@Override
+		void release() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			if(toFree == null) return;
+			// Deleting the file may block.
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					toFree.free();
+				}
+
+			}, "Free data sent on "+FCPChannelConnection.this);
+		}
+
+	}
+
+	/**
+	 * The data attached to a message, passed from the loop to the job running the message.
+	 */
+	private class DataStream extends InputStream {
+
+		private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+		private int chunkOffset;
+		/** Bytes the loop has yet to give us. */
+		private long toWrite;
+		private int buffered;
+		/** The loop has stopped reading because we were full. */
+		private boolean paused;
+		private boolean failed;
+
+		DataStream(long length) {
+			toWrite = length;
+		}
+
+		/** Take as much of the data as we can from the buffer. Called on the loop.
+		 * @return False if we are full, in which case the loop must stop reading. */
+		synchronized boolean write(ByteBuffer buf) {
+			if(paused) return false;
+			int len = (int) Math.min(buf.remaining(), Math.min(toWrite, MAX_BUFFERED_DATA - buffered));
+			byte[] chunk = new byte[len];
+			buf.get(chunk);
+			chunks.add(chunk);
+			buffered += len;
+			toWrite -= len;
+			// read() will resume reading once we are half empty.
+			if(buffered >= MAX_BUFFERED_DATA) paused = true;
+			notifyAll();
+			return true;
+		}
+
+		synchronized boolean isComplete() {
+			return toWrite == 0;
+		}
+
+		synchronized boolean isFull() {
+			return paused;
+		}
+
+		synchronized void fail() {
+			failed = true;
+			notifyAll();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int read = read(buf, 0, 1);
+			return read < 0 ? -1 : (buf[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if(len == 0) return 0;
+			boolean resume;
+			int read;
+			synchronized(this) {
+				while(chunks.isEmpty()) {
+					if(toWrite == 0) return -1;
+					if(failed) throw new IOException("Connection closed");
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				byte[] chunk = chunks.peek();
+				read = Math.min(len, chunk.length - chunkOffset);
+				System.arraycopy(chunk, chunkOffset, buf, off, read);
+				chunkOffset += read;
+				if(chunkOffset == chunk.length) {
+					chunks.poll();
+					chunkOffset = 0;
+				}
+				buffered -= read;
+				resume = paused && buffered < MAX_BUFFERED_DATA / 2;
+				if(resume) paused = false;
+			}
+			if(resume) loop.execute(resumeInput);
+			return read;
+		}
+
+		@Override
+		public synchronized int available() {
+			return buffered;
+		}
+
+		/** Discard whatever readFrom() didn't read. */
+		void skipRest() throws IOException {
+			byte[] buf = new byte[4096];
+			while(read(buf, 0, buf.length) >= 0);
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+" for "+handler.sock.getRemoteSocketAddress();
+	}
+
+}
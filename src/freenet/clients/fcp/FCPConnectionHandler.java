@@ -20,6 +20,7 @@ import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
 import freenet.client.async.TooManyFilesInsertException;
 import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.io.SelectorLoop;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
 import freenet.pluginmanager.PluginManager;
@@ -70,6 +71,9 @@ public class FCPConnectionHandler implements Closeable {
 	final FCPServer server;
 	final Socket sock;
 	final FCPConnectionInputHandler inputHandler;
+	/** If non-null, the connection is served by a selector, and the input and output handlers
+	 * don't have threads of their own. */
+	private final FCPChannelConnection channelConnection;
 	final Map<String, SubscribeUSK> uskSubscriptions;
 	public final FCPConnectionOutputHandler outputHandler;
 	private boolean isClosed;
@@ -137,6 +141,14 @@ public class FCPConnectionHandler implements Closeable {
 	public final RequestClient connectionRequestClientRT = new RequestClientBuilder().realTime().build();
 
 	public FCPConnectionHandler(Socket s, FCPServer server) {
+		this(s, server, null);
+	}
+
+	/**
+	 * @param loop If non-null and the socket has a channel, serve the connection on the loop
+	 * rather than with an input and an output thread.
+	 */
+	FCPConnectionHandler(Socket s, FCPServer server, SelectorLoop loop) {
 		this.sock = s;
 		this.server = server;
 		isClosed = false;
@@ -144,7 +156,11 @@ public class FCPConnectionHandler implements Closeable {
 		requestsByIdentifier = new HashMap<String, ClientRequest>();
 		uskSubscriptions = new HashMap<String, SubscribeUSK>();
 		this.inputHandler = new FCPConnectionInputHandler(this);
-		this.outputHandler = new FCPConnectionOutputHandler(this);
+		if(loop != null && s != null && s.getChannel() != null)
+			this.channelConnection = new FCPChannelConnection(this, s.getChannel(), loop);
+		else
+			this.channelConnection = null;
+		this.outputHandler = new FCPConnectionOutputHandler(this, channelConnection);
 		
 		byte[] identifier = new byte[16];
 		server.node.random.nextBytes(identifier);
@@ -170,7 +186,11 @@ public class FCPConnectionHandler implements Closeable {
         outputHandler.queue(message);
     }
 
-	void start() {
+	void start() throws IOException {
+		if(channelConnection != null) {
+			channelConnection.start();
+			return;
+		}
 		inputHandler.start();
 		outputHandler.start();
 	}
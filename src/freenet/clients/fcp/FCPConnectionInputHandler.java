@@ -32,6 +32,10 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	final FCPConnectionHandler handler;
+	/** True until we have accepted the ClientHello. Only used by the thread parsing messages. */
+	private boolean firstMessage = true;
+	/** Set by parse() if the connection must be closed. */
+	private boolean mustClose;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
@@ -65,16 +69,7 @@ public class FCPConnectionInputHandler implements Runnable {
 		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
 		LineReadingInputStream lis = new LineReadingInputStream(is);
 
-		boolean firstMessage = true;
-
 		while(true) {
-			SimpleFieldSet fs;
-			if(WrapperManager.hasShutdownHookBeenTriggered()) {
-				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
-				handler.outputHandler.queue(msg);
-				Closer.close(is);
-				return;
-			}
 			// Read a message
 			String messageType = lis.readLine(128, 128, true);
 			if(messageType == null) {
@@ -83,71 +78,104 @@ public class FCPConnectionInputHandler implements Runnable {
 			}
 			if(messageType.equals(""))
 				continue;
-			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
-
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.outputHandler.queue(err);
-				continue;
-			}
-
-			FCPMessage msg;
-			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.outputHandler.queue(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-				}
-				continue;
-			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-				handler.outputHandler.queue(err);
+			SimpleFieldSet fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+			FCPMessage msg = parse(messageType, fs);
+			if(mustClose) {
 				handler.close();
 				Closer.close(is);
 				return;
 			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-					continue;
-				}
+			if(msg != null)
+				run(msg, lis);
+			if(handler.isClosed()) {
+				Closer.close(is);
+				return;
 			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+		}
+	}
+
+	/**
+	 * Check and create a message we have just read. Must be called in the order the messages
+	 * were received, by one thread at a time.
+	 * @return The message, or null if there is nothing to run, in which case we have already
+	 * sent an error if necessary. If mustClose() is then true, the caller should close the
+	 * handler and stop reading. This doesn't close the handler itself, as that may block.
+	 */
+	FCPMessage parse(String messageType, SimpleFieldSet fs) {
+		if(WrapperManager.hasShutdownHookBeenTriggered()) {
+			FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+			handler.outputHandler.queue(msg);
+			mustClose = true;
+			return null;
+		}
+
+		// check for valid endmarker
+		if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.outputHandler.queue(err);
+			return null;
+		}
+
+		FCPMessage msg;
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+			msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
+			if(msg == null) return null;
+		} catch (MessageInvalidException e) {
+			if(firstMessage) {
+				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+				handler.outputHandler.queue(err);
+				mustClose = true;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
 			}
+			return null;
+		}
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.outputHandler.queue(err);
+			mustClose = true;
+			return null;
+		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.outputHandler.queue(err);
+			return null;
+		}
+		firstMessage = false;
+		return msg;
+	}
+
+	boolean mustClose() {
+		return mustClose;
+	}
+
+	/**
+	 * Read the data attached to a message returned by parse(), if any, and run it. Must be
+	 * called in the order the messages were received, by one thread at a time.
+	 * @param is The stream to read the data from.
+	 */
+	void run(FCPMessage msg, InputStream is) throws IOException {
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.server.node);
+				((BaseDataCarryingMessage)msg).readFrom(is, handler.bf, handler.server);
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
-			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
 				return;
 			}
 		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			msg.run(handler, handler.server.node);
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.outputHandler.queue(err);
+		}
 	}
 
 }
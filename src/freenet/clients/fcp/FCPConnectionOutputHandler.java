@@ -7,7 +7,9 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 
 import freenet.support.LogThresholdCallback;
 
@@ -20,6 +22,11 @@ public class FCPConnectionOutputHandler implements Runnable {
 	final Deque<FCPMessage> outQueue;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** Jobs waiting for the queue to drain, see runWhenQueueHasSpace(). Synced on outQueue. */
+	private final List<Runnable> waitingForSpace = new ArrayList<Runnable>();
+	/** If non-null, the messages are written by the connection's selector rather than by a
+	 * thread of our own. */
+	private final FCPChannelConnection channel;
 
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
@@ -34,12 +41,17 @@ public class FCPConnectionOutputHandler implements Runnable {
 	}
 	
 	public FCPConnectionOutputHandler(FCPConnectionHandler handler) {
+		this(handler, null);
+	}
+
+	FCPConnectionOutputHandler(FCPConnectionHandler handler, FCPChannelConnection channel) {
 		this.handler = handler;
 		this.outQueue = new ArrayDeque<FCPMessage>();
+		this.channel = channel;
 	}
 
 	void start() {
-		if (handler.sock == null)
+		if (handler.sock == null || channel != null)
 			return;
 		handler.server.node.executor.execute(this, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
 	}
@@ -60,6 +72,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 			// I.e. the other side closed the connection, and we threw an IOException.
 			synchronized(outQueue) {
 				closedOutputQueue = true;
+				waitingForSpace.clear();
 			}
 		}
 		handler.close();
@@ -96,6 +109,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 						msg = outQueue.removeFirst();
 					}
 				}
+				if(msg != null) onRemoved();
 				if(shouldFlush) {
 					if(logMINOR) Logger.minor(this, "Flushing");
 					os.flush();
@@ -156,9 +170,87 @@ public class FCPConnectionOutputHandler implements Runnable {
 			outQueue.add(msg);
 			outQueue.notifyAll();
 		}
+		if(channel != null) channel.wakeOutput();
+	}
+
+	/**
+	 * Take the next message to send, for a connection that doesn't have its own output thread.
+	 * @return The next message, or null if the queue is empty. If the handler has been closed,
+	 * the queue is then closed too, and the caller should close the output once it has written
+	 * the messages it has taken.
+	 */
+	FCPMessage poll() {
+		FCPMessage msg;
+		boolean closed = handler.isClosed();
+		synchronized(outQueue) {
+			msg = outQueue.pollFirst();
+			if(msg == null) {
+				if(closed) {
+					closedOutputQueue = true;
+					waitingForSpace.clear();
+					outQueue.notifyAll();
+				}
+				return null;
+			}
+		}
+		onRemoved();
+		return msg;
+	}
+
+	boolean isQueueClosed() {
+		synchronized(outQueue) {
+			return closedOutputQueue;
+		}
+	}
+
+	boolean hasQueued() {
+		synchronized(outQueue) {
+			return !outQueue.isEmpty();
+		}
+	}
+
+	/** The output has failed, don't queue anything more. */
+	void closeOutputQueue() {
+		synchronized(outQueue) {
+			closedOutputQueue = true;
+			waitingForSpace.clear();
+			outQueue.notifyAll();
+		}
+	}
+
+	/** Called after taking a message from the queue. Runs the jobs waiting for space if the
+	 * queue is now at most a quarter full. */
+	private void onRemoved() {
+		Runnable[] jobs;
+		synchronized(outQueue) {
+			if(waitingForSpace.isEmpty()) return;
+			if(outQueue.size() > handler.server.maxMessageQueueLength() / 4) return;
+			jobs = waitingForSpace.toArray(new Runnable[waitingForSpace.size()]);
+			waitingForSpace.clear();
+		}
+		for(Runnable job : jobs)
+			handler.server.node.executor.execute(job, "FCP output queue has space for "+handler);
+	}
+
+	/**
+	 * Run a job once the queue is at most a quarter full, or straight away if it is already.
+	 * This lets a job producing many messages, e.g. listing the persistent requests, wait for
+	 * the client to catch up, rather than polling isQueueHalfFull(). If the connection is
+	 * closed first, the job is never run.
+	 */
+	public void runWhenQueueHasSpace(Runnable job) {
+		synchronized(outQueue) {
+			if(closedOutputQueue) return;
+			if(outQueue.size() > handler.server.maxMessageQueueLength() / 4) {
+				waitingForSpace.add(job);
+				return;
+			}
+		}
+		handler.server.node.executor.execute(job, "FCP output queue has space for "+handler);
 	}
 
 	public void onClosed() {
+		if(channel != null) channel.wakeOutput();
 		synchronized(outQueue) {
 			outQueue.notifyAll();
 			// Give a chance to the output handler to flush
@@ -0,0 +1,90 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.TooLongException;
+
+/**
+ * Reads the text part of FCP messages from ByteBuffers as they arrive from a non-blocking
+ * socket: the message name, then the fields up to and including the end marker. It follows the
+ * same rules as FCPConnectionInputHandler does when reading from a stream: blank lines before
+ * the message name are ignored, the name is at most 128 bytes, other lines at most 4096 bytes,
+ * and everything is UTF-8. Any data following a message is up to the caller, who knows how long
+ * it is once the message has been created.
+ */
+class FCPMessageParser {
+
+	static final int MAX_MESSAGE_NAME_LENGTH = 128;
+	static final int MAX_LINE_LENGTH = 4096;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] line = new byte[128];
+	private int lineLength;
+	private String messageType;
+	private final List<String> fields = new ArrayList<String>();
+	private SimpleFieldSet fieldSet;
+
+	/**
+	 * Read from the buffer until a whole message has been read, or the buffer is empty.
+	 * @return True if a message has been read, see getMessageType() and getFieldSet(). Anything
+	 * after the end marker is left in the buffer.
+	 * @throws TooLongException If a line is too long.
+	 * @throws IOException If the fields are invalid.
+	 */
+	boolean parse(ByteBuffer buf) throws IOException {
+		if(fieldSet != null) {
+			// The previous message has been read.
+			messageType = null;
+			fieldSet = null;
+			fields.clear();
+		}
+		while(buf.hasRemaining()) {
+			byte b = buf.get();
+			if(b != '\n') {
+				int max = messageType == null ? MAX_MESSAGE_NAME_LENGTH : MAX_LINE_LENGTH;
+				if(lineLength >= max)
+					throw new TooLongException("We reached maxLength="+max+" parsing FCP message");
+				if(lineLength == line.length)
+					line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH + 1));
+				line[lineLength++] = b;
+				continue;
+			}
+			int len = lineLength;
+			if(len > 0 && line[len-1] == '\r') len--;
+			String s = new String(line, 0, len, UTF8);
+			lineLength = 0;
+			if(messageType == null) {
+				if(!s.isEmpty()) messageType = s;
+				continue;
+			}
+			fields.add(s);
+			if(!s.isEmpty() && s.charAt(0) != '#' && s.indexOf('=') == -1) {
+				// The end marker.
+				fieldSet = new SimpleFieldSet(fields.toArray(new String[fields.size()]), true, true, false);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** The name of the message, once parse() has returned true. */
+	String getMessageType() {
+		return messageType;
+	}
+
+	/** The fields of the message, once parse() has returned true. */
+	SimpleFieldSet getFieldSet() {
+		return fieldSet;
+	}
+
+}
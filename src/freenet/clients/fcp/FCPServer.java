@@ -33,8 +33,10 @@ import freenet.config.InvalidConfigValueException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
+import freenet.io.SelectorLoop;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
 import freenet.node.Node;
@@ -64,6 +66,10 @@ public class FCPServer implements Runnable, DownloadCache {
 	private static boolean logMINOR;
 	public final static int DEFAULT_FCP_PORT = 9481;
 	NetworkInterface networkInterface;
+	/** The threads serving connections on non-blocking sockets, or null if we use a thread per
+	 * connection, e.g. because of SSL. */
+	private SelectorLoop[] selectorLoops;
+	private int nextSelectorLoop;
 	public final NodeClientCore core;
 	final Node node;
 	final int port;
@@ -123,7 +129,7 @@ public class FCPServer implements Runnable, DownloadCache {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			} else {
-				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				tempNetworkInterface = ChannelNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
@@ -142,6 +148,7 @@ public class FCPServer implements Runnable, DownloadCache {
 			System.out.println("Starting FCP server on "+bindTo+ ':' +port+ '.');
 
 			if (this.networkInterface != null) {
+				if(!ssl) startSelectorLoops();
 				Thread t = new Thread(this, "FCP server");
 				t.setDaemon(true);
 				t.start();
@@ -160,6 +167,36 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	private void startSelectorLoops() {
+		int count = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		SelectorLoop[] loops = new SelectorLoop[count];
+		try {
+			for(int i=0;i<count;i++)
+				loops[i] = new SelectorLoop();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to open selector, using a thread per FCP connection: "+e, e);
+			for(SelectorLoop loop : loops)
+				if(loop != null) loop.close();
+			return;
+		}
+		for(int i=0;i<count;i++)
+			loops[i].start(node.executor, "FCP selector "+i);
+		selectorLoops = loops;
+	}
+
+	private SelectorLoop nextSelectorLoop() {
+		if(selectorLoops == null) return null;
+		// Masked so that it stays positive when the counter wraps around.
+		return selectorLoops[(nextSelectorLoop++ & Integer.MAX_VALUE) % selectorLoops.length];
+	}
+
+	private void closeSelectorLoops() {
+		if(selectorLoops == null) return;
+		for(SelectorLoop loop : selectorLoops)
+			loop.close();
+		selectorLoops = null;
+	}
+
 	@Override
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
@@ -172,8 +209,10 @@ public class FCPServer implements Runnable, DownloadCache {
 			} catch (Throwable t) {
 				Logger.error(this, "Caught "+t, t);
 			}
-			if (WrapperManager.hasShutdownHookBeenTriggered())
+			if (WrapperManager.hasShutdownHookBeenTriggered()) {
+				closeSelectorLoops();
 				return;
+			}
 			try{
 				Thread.sleep(2000);
 			}catch (InterruptedException e) {}
@@ -184,8 +223,17 @@ public class FCPServer implements Runnable, DownloadCache {
 		if(!node.isHasStarted()) return;
 		// Accept a connection
 		Socket s = networkInterface.accept();
-		FCPConnectionHandler ch = new FCPConnectionHandler(s, this);
-		ch.start();
+		FCPConnectionHandler ch = new FCPConnectionHandler(s, this, nextSelectorLoop());
+		try {
+			ch.start();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to start FCP connection from "+s.getRemoteSocketAddress()+": "+e, e);
+			try {
+				s.close();
+			} catch (IOException e1) {
+				// Ignore
+			}
+		}
 	}
 
 	static class FCPPortNumberCallback extends IntCallback  {
@@ -623,6 +671,16 @@ public class FCPServer implements Runnable, DownloadCache {
 		return v.toArray(new RequestStatus[v.size()]);
 	}
 
+	/**
+	 * Tell the listener about every request on the global queue, and every change to them from
+	 * now on, e.g. to keep the queue page up to date.
+	 */
+	public void addGlobalRequestStatusListener(RequestStatusCache.Listener listener) {
+		globalRebootClient.getRequestStatusCache().addListener(listener);
+		if(globalForeverClient != null)
+			globalForeverClient.getRequestStatusCache().addListener(listener);
+	}
+
 	public boolean removeGlobalRequestBlocking(final String identifier) throws MessageInvalidException, PersistenceDisabledException {
 		if(!globalRebootClient.removeByIdentifier(identifier, true, this, core.clientContext)) {
 			final CountDownLatch done = new CountDownLatch(1);
@@ -1172,6 +1230,11 @@ public class FCPServer implements Runnable, DownloadCache {
 
 	}
 
+	@Override
+	public void onFetched(FreenetURI key, FetchContext ctx, ClientMetadata metadata, Bucket data) {
+		// Completed requests on the global queue are already available.
+	}
+
 	@Override
 	public CacheFetchResult lookup(FreenetURI key, boolean noFilter, ClientContext context,
 			boolean mustCopy, Bucket preferred) {
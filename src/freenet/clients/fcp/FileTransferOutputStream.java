@@ -0,0 +1,27 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+import freenet.support.api.Bucket;
+
+/**
+ * An OutputStream to a connection which can send data straight from a file, with
+ * FileChannel.transferTo(), rather than having it written through the stream. Used by
+ * DataCarryingMessage for file-backed buckets.
+ */
+abstract class FileTransferOutputStream extends OutputStream {
+
+	/**
+	 * Send the first length bytes of a file, after whatever has been written so far. May return
+	 * before they have been sent; anything written afterwards is sent after them.
+	 * @param channel The file. We close it once it has been sent, or if the connection fails.
+	 * @param toFree If not null, free this once the file has been sent or the connection fails.
+	 */
+	abstract void transfer(FileChannel channel, long length, Bucket toFree) throws IOException;
+
+}
@@ -3,6 +3,11 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 import freenet.client.async.ClientContext;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
@@ -10,13 +15,70 @@ import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 import freenet.support.io.NativeThread;
 
+/**
+ * List the client's persistent requests, and those on the global queue if it is watching it.
+ *
+ * Without any of the fields below, we send the status of every request, and then
+ * EndListPersistentRequests. With a queue of tens of thousands of requests that is expensive,
+ * so a client can instead ask for a page at a time, and then for only what has changed:
+ * <ul>
+ * <li>SortBy=Identifier|Priority|Status: The order of the pages. Within a priority or status,
+ * the client's own requests come before those on the global queue, then by identifier.</li>
+ * <li>MaxResults: The size of a page, at most MAX_RESULTS. EndListPersistentRequests has a
+ * NextCursor if there may be more.</li>
+ * <li>After: The NextCursor from the previous page.</li>
+ * <li>ChangesSince: The ChangeToken from a previous EndListPersistentRequests. Only the requests
+ * which have changed since are sent, in the order they changed, with PersistentRequestRemoved
+ * for those which have been removed. If we can't tell what has changed, e.g. because the node
+ * has been restarted, EndListPersistentRequests has ResyncRequired=true, and the client must list
+ * everything again.</li>
+ * </ul>
+ * EndListPersistentRequests always has a ChangeToken in these modes. For a paged listing it is
+ * taken before the page is read, so changes made while paging through aren't missed.
+ */
 public class ListPersistentRequestsMessage extends FCPMessage {
 
 	static final String NAME = "ListPersistentRequests";
+	static final int DEFAULT_MAX_RESULTS = 100;
+	static final int MAX_RESULTS = 1000;
+	/** Requests to send before checking whether the output queue is filling up. */
+	static final int SEND_BATCH = 30;
 	private final String identifier;
+	/** Whether to page or send changes only, rather than sending everything. */
+	private final boolean paged;
+	private final RequestIndex.SortBy sortBy;
+	private final int maxResults;
+	private final Cursor after;
+	private final String changesSince;
 
-	public ListPersistentRequestsMessage(SimpleFieldSet fs) {
+	public ListPersistentRequestsMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		identifier = fs.get("Identifier");
+		String sortByString = fs.get("SortBy");
+		String maxResultsString = fs.get("MaxResults");
+		String afterString = fs.get("After");
+		changesSince = fs.get("ChangesSince");
+		paged = sortByString != null || maxResultsString != null || afterString != null || changesSince != null;
+		if(sortByString == null) {
+			sortBy = RequestIndex.SortBy.IDENTIFIER;
+		} else {
+			try {
+				sortBy = RequestIndex.SortBy.valueOf(sortByString.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Unknown SortBy: "+sortByString, identifier, false);
+			}
+		}
+		if(maxResultsString == null) {
+			maxResults = DEFAULT_MAX_RESULTS;
+		} else {
+			try {
+				maxResults = Integer.parseInt(maxResultsString, 10);
+			} catch (NumberFormatException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.ERROR_PARSING_NUMBER, "Error parsing MaxResults field: "+e.getMessage(), identifier, false);
+			}
+			if(maxResults <= 0 || maxResults > MAX_RESULTS)
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "MaxResults must be between 1 and "+MAX_RESULTS, identifier, false);
+		}
+		after = afterString == null ? null : Cursor.parse(afterString, identifier);
 	}
 	
 	@Override
@@ -42,8 +104,8 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 			this.listRequestIdentifier = listRequestIdentifier;
 		}
 		
-		int progressCompleted = 0;
-		int progressRunning = 0;
+		RequestIndex.Entry progressCompleted;
+		RequestIndex.Entry progressRunning;
 		
 		@Override
 		public boolean run(ClientContext context) {
@@ -52,12 +114,12 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 					reschedule(context);
 					return false;
 				}
-				int p = client.queuePendingMessagesOnConnectionRestart(outputHandler, listRequestIdentifier, progressCompleted, 30);
-				if(p <= progressCompleted) {
+				RequestIndex.Entry last = client.queuePendingMessagesOnConnectionRestart(outputHandler, listRequestIdentifier, progressCompleted, 30);
+				if(last == null) {
 					sentRestartJobs = true;
 					break;
 				}
-				progressCompleted = p;
+				progressCompleted = last;
 			}
 			if(noRunning()) {
 				complete(context);
@@ -67,12 +129,12 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 					reschedule(context);
 					return false;
 				}
-				int p = client.queuePendingMessagesFromRunningRequests(outputHandler, listRequestIdentifier, progressRunning, 30);
-				if(p <= progressRunning) {
+				RequestIndex.Entry last = client.queuePendingMessagesFromRunningRequests(outputHandler, listRequestIdentifier, progressRunning, 30);
+				if(last == null) {
 					complete(context);
 					return false;
 				}
-				progressRunning = p;
+				progressRunning = last;
 			}
 		}
 		
@@ -102,7 +164,7 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 
 		@Override
 		void reschedule(ClientContext context) {
-			context.ticker.queueTimedJob(this, 100);
+			outputHandler.runWhenQueueHasSpace(this);
 		}
 		
 	}
@@ -118,7 +180,7 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 		
 		@Override
 		void reschedule(ClientContext context) {
-			context.ticker.queueTimedJob(this, 100);
+			outputHandler.runWhenQueueHasSpace(this);
 		}
 		
 		@Override
@@ -132,10 +194,256 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 		
 	}
 	
+	/** A position in a paged listing: after this request. */
+	static class Cursor {
+		final int rank;
+		final boolean global;
+		final String identifier;
+
+		Cursor(int rank, boolean global, String identifier) {
+			this.rank = rank;
+			this.global = global;
+			this.identifier = identifier;
+		}
+
+		static Cursor parse(String s, String listRequestIdentifier) throws MessageInvalidException {
+			String[] split = s.split(",", 3);
+			try {
+				if(split.length == 3)
+					return new Cursor(Integer.parseInt(split[0]), Integer.parseInt(split[1]) != 0, split[2]);
+			} catch (NumberFormatException e) {
+				// Fall through.
+			}
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid After: "+s, listRequestIdentifier, false);
+		}
+
+		@Override
+		public String toString() {
+			return rank + "," + (global ? 1 : 0) + "," + identifier;
+		}
+	}
+
+	/** A request to send, and whether it is on the global queue. */
+	private static class PageItem {
+		final RequestIndex.Entry entry;
+		final boolean global;
+
+		PageItem(RequestIndex.Entry entry, boolean global) {
+			this.entry = entry;
+			this.global = global;
+		}
+	}
+
+	/**
+	 * Sends a page of a paged listing, or the changes since a ChangeToken. The clients listed are
+	 * always, in this order: the reboot client, the global reboot client, the forever client, and
+	 * the global forever client, the global ones only if we are watching the global queue, and
+	 * the forever ones only if persistence is enabled. A ChangeToken has the epoch and sequence
+	 * number of each one's RequestIndex.
+	 */
+	private class PageJob implements PersistentJob, Runnable {
+
+		private final FCPConnectionHandler handler;
+		private final ClientContext context;
+		/** Whether to run on the job runner, because we list the forever clients. */
+		private boolean persistent;
+		private List<PageItem> items;
+		private int sent;
+		private String nextCursor;
+		private String changeToken;
+		private boolean resyncRequired;
+
+		PageJob(FCPConnectionHandler handler, ClientContext context) {
+			this.handler = handler;
+			this.context = context;
+		}
+
+		void start() {
+			persistent = true;
+			try {
+				context.jobRunner.queue(this, NativeThread.PriorityLevel.HIGH_PRIORITY.value-1);
+			} catch (PersistenceDisabledException e) {
+				persistent = false;
+				run(context);
+			}
+		}
+
+		@Override
+		public void run() {
+			if(!persistent) {
+				run(context);
+				return;
+			}
+			try {
+				context.jobRunner.queue(this, NativeThread.PriorityLevel.HIGH_PRIORITY.value-1);
+			} catch (PersistenceDisabledException e) {
+				handler.send(new EndListPersistentRequestsMessage(identifier));
+			}
+		}
+
+		@Override
+		public boolean run(ClientContext context) {
+			if(items == null) {
+				PersistentRequestClient[] clients = getClients();
+				changeToken = makeChangeToken(clients);
+				items = changesSince == null ? makePage(clients) : makeChanges(clients);
+			}
+			FCPConnectionOutputHandler outputHandler = handler.outputHandler;
+			while(sent < items.size()) {
+				if(outputHandler.isQueueHalfFull()) {
+					outputHandler.runWhenQueueHasSpace(this);
+					return false;
+				}
+				for(int i=0;i<SEND_BATCH && sent < items.size();i++) {
+					PageItem item = items.get(sent++);
+					if(item.entry.request != null)
+						item.entry.request.sendPendingMessages(outputHandler, identifier, false, false);
+					else
+						handler.send(FCPMessage.withListRequestIdentifier(
+								new PersistentRequestRemovedMessage(item.entry.identifier, item.global), identifier));
+				}
+			}
+			handler.send(new EndListPersistentRequestsMessage(identifier, nextCursor, changeToken, resyncRequired));
+			return false;
+		}
+
+		private PersistentRequestClient[] getClients() {
+			boolean watchGlobal = handler.getRebootClient().watchGlobal;
+			return new PersistentRequestClient[] {
+					handler.getRebootClient(),
+					watchGlobal ? handler.server.globalRebootClient : null,
+					persistent ? handler.getForeverClient() : null,
+					persistent && watchGlobal ? handler.server.globalForeverClient : null
+			};
+		}
+
+		private boolean isGlobal(int slot) {
+			return slot % 2 == 1;
+		}
+
+		private String makeChangeToken(PersistentRequestClient[] clients) {
+			long[] sequences = new long[clients.length];
+			for(int i=0;i<clients.length;i++)
+				if(clients[i] != null)
+					sequences[i] = clients[i].getIndex().getSequence();
+			return makeChangeToken(clients, sequences);
+		}
+
+		private String makeChangeToken(PersistentRequestClient[] clients, long[] sequences) {
+			StringBuilder sb = new StringBuilder();
+			for(int i=0;i<clients.length;i++) {
+				if(i > 0) sb.append(',');
+				if(clients[i] == null) continue;
+				sb.append(Long.toHexString(clients[i].getIndex().getEpoch()));
+				sb.append(':');
+				sb.append(sequences[i]);
+			}
+			return sb.toString();
+		}
+
+		private List<PageItem> makePage(PersistentRequestClient[] clients) {
+			List<PageItem> page = new ArrayList<PageItem>();
+			for(int i=0;i<clients.length;i++) {
+				if(clients[i] == null) continue;
+				boolean global = isGlobal(i);
+				RequestIndex index = clients[i].getIndex();
+				List<RequestIndex.Entry> entries;
+				if(after == null) {
+					entries = index.page(sortBy, 0, null, false, maxResults + 1);
+				} else if(global == after.global) {
+					entries = index.page(sortBy, after.rank, after.identifier, false, maxResults + 1);
+				} else if(global) {
+					// Our own requests come first within a rank.
+					entries = index.page(sortBy, after.rank, null, false, maxResults + 1);
+				} else if(sortBy != RequestIndex.SortBy.IDENTIFIER) {
+					entries = index.page(sortBy, after.rank + 1, null, false, maxResults + 1);
+				} else {
+					// All of our own requests have been listed.
+					continue;
+				}
+				for(RequestIndex.Entry e : entries)
+					page.add(new PageItem(e, global));
+			}
+			Collections.sort(page, new Comparator<PageItem>() {
+
+				@Override
+				public int compare(PageItem item1, PageItem item2) {
+					int rank1 = sortBy.rank(item1.entry);
+					int rank2 = sortBy.rank(item2.entry);
+					if(rank1 != rank2) return rank1 < rank2 ? -1 : 1;
+					if(item1.global != item2.global) return item1.global ? 1 : -1;
+					return item1.entry.identifier.compareTo(item2.entry.identifier);
+				}
+
+			});
+			if(page.size() > maxResults) {
+				page = page.subList(0, maxResults);
+				PageItem last = page.get(maxResults - 1);
+				nextCursor = new Cursor(sortBy.rank(last.entry), last.global, last.entry.identifier).toString();
+			}
+			return page;
+		}
+
+		private List<PageItem> makeChanges(PersistentRequestClient[] clients) {
+			List<PageItem> changes = new ArrayList<PageItem>();
+			long[] since = parseChangeToken(clients);
+			if(since == null) {
+				resyncRequired = true;
+				return changes;
+			}
+			long[] upTo = new long[clients.length];
+			List<RequestIndex.Entry> entries = new ArrayList<RequestIndex.Entry>();
+			for(int i=0;i<clients.length;i++) {
+				if(clients[i] == null) continue;
+				entries.clear();
+				upTo[i] = clients[i].getIndex().changesSince(since[i], maxResults - changes.size(), entries);
+				if(upTo[i] < 0) {
+					resyncRequired = true;
+					changes.clear();
+					return changes;
+				}
+				for(RequestIndex.Entry e : entries)
+					changes.add(new PageItem(e, isGlobal(i)));
+			}
+			changeToken = makeChangeToken(clients, upTo);
+			return changes;
+		}
+
+		/** @return The sequence number for each client, or null if the token doesn't match
+		 * the clients we are listing. */
+		private long[] parseChangeToken(PersistentRequestClient[] clients) {
+			String[] split = changesSince.split(",", -1);
+			if(split.length != clients.length) return null;
+			long[] since = new long[clients.length];
+			for(int i=0;i<clients.length;i++) {
+				if(clients[i] == null) {
+					if(!split[i].isEmpty()) return null;
+					continue;
+				}
+				int idx = split[i].indexOf(':');
+				if(idx == -1) return null;
+				try {
+					if(Long.parseLong(split[i].substring(0, idx), 16) != clients[i].getIndex().getEpoch())
+						return null;
+					since[i] = Long.parseLong(split[i].substring(idx+1));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+			}
+			return since;
+		}
+
+	}
+
 	@Override
 	public void run(final FCPConnectionHandler handler, Node node)
 			throws MessageInvalidException {
 		
+		if(paged) {
+			new PageJob(handler, node.clientCore.clientContext).start();
+			return;
+		}
+		
 		PersistentRequestClient rebootClient = handler.getRebootClient();
 
 		TransientListJob job = new TransientListJob(rebootClient, handler.outputHandler, node.clientCore.clientContext, identifier) {
@@ -0,0 +1,66 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.nio.charset.Charset;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.ArrayBucket;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * The node's metrics, in reply to GetMetrics. The data is in the Prometheus text exposition
+ * format, see DataType.
+ */
+public class MetricsMessage extends DataCarryingMessage {
+
+	static final String NAME = "Metrics";
+
+	private final String identifier;
+	private final long dataLength;
+
+	public MetricsMessage(String identifier, String metrics) {
+		this.identifier = identifier;
+		byte[] data = metrics.getBytes(Charset.forName("UTF-8"));
+		this.dataLength = data.length;
+		this.bucket = new ArrayBucket(data);
+	}
+
+	@Override
+	String getIdentifier() {
+		return identifier;
+	}
+
+	@Override
+	boolean isGlobal() {
+		return false;
+	}
+
+	@Override
+	long dataLength() {
+		return dataLength;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(identifier != null)
+			fs.putSingle(IDENTIFIER, identifier);
+		fs.putSingle("DataType", MetricsRegistry.CONTENT_TYPE);
+		fs.put("DataLength", dataLength);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME + " goes from server to client not the other way around", identifier, false);
+	}
+
+}
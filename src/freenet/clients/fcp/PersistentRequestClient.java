@@ -67,6 +67,8 @@ public class PersistentRequestClient {
 	private final List<ClientRequest> completedUnackedRequests;
 	/** ClientRequest's by identifier */
 	private final Map<String, ClientRequest> clientRequestsByIdentifier;
+	/** The same requests sorted for paging, and what has changed, for ListPersistentRequests */
+	private transient final RequestIndex index = new RequestIndex();
 	/** Are we the global queue? */
 	public final boolean isGlobalQueue;
 	/** Are we watching the global queue? */
@@ -120,6 +122,7 @@ public class PersistentRequestClient {
 				completedUnackedRequests.add(get);
 			}	
 		}
+		index.changed(get);
 		if(statusCache != null) {
 			if(get instanceof ClientGet) {
 				ClientGet download = (ClientGet)get;
@@ -182,34 +185,45 @@ public class PersistentRequestClient {
 	 * Queue any and all pending messages from already completed, unacknowledged, persistent
 	 * requests, to be immediately sent. This happens automatically on startup and hopefully
 	 * will encourage clients to acknowledge persistent requests!
+	 * @param after The last request sent by the previous call, or null to start at the beginning.
+	 * @return The last request sent, or null if there are no more.
 	 */
-	public int queuePendingMessagesOnConnectionRestart(FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, int offset, int max) {
-		Object[] reqs;
-		synchronized(this) {
-			reqs = completedUnackedRequests.toArray();
-		}
-		int i = 0;
-		for(i=offset;i<Math.min(reqs.length,offset+max);i++) {
-			ClientRequest req = (ClientRequest) reqs[i];
-			((ClientRequest)reqs[i]).sendPendingMessages(outputHandler, listRequestIdentifier, false, false);
-		}
-		return i;
+	public RequestIndex.Entry queuePendingMessagesOnConnectionRestart(FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, RequestIndex.Entry after, int max) {
+		// Sorted by status, the completed requests follow the running ones.
+		List<RequestIndex.Entry> reqs = after == null ?
+				index.page(RequestIndex.SortBy.STATUS, RequestIndex.STATUS_FAILED, null, false, max) :
+				index.page(RequestIndex.SortBy.STATUS, after.status, after.identifier, false, max);
+		return sendPendingMessages(reqs, outputHandler, listRequestIdentifier);
 	}
 	
 	/**
 	 * Queue any and all pending messages from running requests. Happens on demand.
+	 * @param after The last request sent by the previous call, or null to start at the beginning.
+	 * @return The last request sent, or null if there are no more.
 	 */
-	public int queuePendingMessagesFromRunningRequests(FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, int offset, int max) {
-		Object[] reqs;
-		synchronized(this) {
-			reqs = runningPersistentRequests.toArray();
-		}
-		int i = 0;
-		for(i=offset;i<Math.min(reqs.length,offset+max);i++) {
-			ClientRequest req = (ClientRequest) reqs[i];
-			req.sendPendingMessages(outputHandler, listRequestIdentifier, false, false);
+	public RequestIndex.Entry queuePendingMessagesFromRunningRequests(FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, RequestIndex.Entry after, int max) {
+		List<RequestIndex.Entry> reqs = index.page(RequestIndex.SortBy.STATUS, RequestIndex.STATUS_RUNNING,
+				after == null ? null : after.identifier, true, max);
+		return sendPendingMessages(reqs, outputHandler, listRequestIdentifier);
+	}
+	
+	private RequestIndex.Entry sendPendingMessages(List<RequestIndex.Entry> reqs, FCPConnectionOutputHandler outputHandler, String listRequestIdentifier) {
+		RequestIndex.Entry last = null;
+		for(RequestIndex.Entry e : reqs) {
+			e.request.sendPendingMessages(outputHandler, listRequestIdentifier, false, false);
+			last = e;
 		}
-		return i;
+		return last;
+	}
+	
+	RequestIndex getIndex() {
+		return index;
+	}
+	
+	/** Called when something about a request has changed, e.g. its progress or priority, so
+	 * that ListPersistentRequests with ChangesSince will send it again. */
+	public void requestChanged(ClientRequest req) {
+		index.changed(req);
 	}
 	
 	public void register(ClientRequest cg) throws IdentifierCollisionException {
@@ -228,6 +242,7 @@ public class PersistentRequestClient {
 			}
 			clientRequestsByIdentifier.put(ident, cg);
 		}
+		index.add(cg);
 		if(statusCache != null) {
 			if(cg instanceof ClientGet) {
 				statusCache.addDownload((DownloadRequestStatus)(cg.getStatus()));
@@ -275,6 +290,7 @@ public class PersistentRequestClient {
 			}
 			clientRequestsByIdentifier.remove(identifier);
 		}
+		index.remove(identifier);
 		if(kill) {
 			if(logMINOR) Logger.minor(this, "Killing request "+req);
 			req.cancel(context);
@@ -479,6 +495,7 @@ public class PersistentRequestClient {
 			}
 			clientRequestsByIdentifier.clear();
 		}
+		index.clear();
 	}
 
 	public ClientGet getCompletedRequest(FreenetURI key) {
@@ -537,7 +554,7 @@ public class PersistentRequestClient {
             completedUnackedRequests.add(clientRequest);
         else
             runningPersistentRequests.add(clientRequest);
-        String identifier = clientRequest.identifier;
+        String identifier = clientRequest.getIdentifier();
         if(clientRequestsByIdentifier.get(identifier) != null) {
             if(clientRequest != clientRequestsByIdentifier.get(identifier))
                 throw new IllegalArgumentException("Adding new client request "+clientRequest+
@@ -550,6 +567,7 @@ public class PersistentRequestClient {
         } else {
             clientRequestsByIdentifier.put(identifier, clientRequest);
         }
+        index.add(clientRequest);
     }
 
 }
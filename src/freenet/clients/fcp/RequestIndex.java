@@ -0,0 +1,239 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The requests of a PersistentRequestClient, sorted by identifier, by priority and by status, so
+ * that ListPersistentRequests can return a page at a time from a cursor, without copying the
+ * whole queue. Every change to a request (added, progress, priority, finished, removed) gets
+ * the next sequence number, and we remember the last change to each request, so a client which
+ * has seen everything up to some sequence number can be sent just the requests which have
+ * changed since. Removed requests are remembered up to MAX_REMOVED; a client asking for changes
+ * from before the oldest one we have forgotten has to list everything again.
+ *
+ * The sequence numbers are only meaningful together with the epoch, which is random, so a client
+ * can't mistake the sequence numbers of an index created after a restart for ours.
+ *
+ * LOCKING: Synchronized on this. We never call out while holding the lock, so this may be
+ * called with the client or the request locked. The caller reads the request's state first.
+ */
+class RequestIndex {
+
+	static final int STATUS_RUNNING = 0;
+	static final int STATUS_FAILED = 1;
+	static final int STATUS_SUCCEEDED = 2;
+
+	/** How many removed requests to remember for changesSince(). */
+	static final int MAX_REMOVED = 4096;
+
+	enum SortBy {
+		IDENTIFIER,
+		PRIORITY,
+		STATUS;
+
+		/** The primary sort key of an entry, or 0 if sorting by identifier alone. */
+		int rank(Entry e) {
+			switch(this) {
+			case PRIORITY:
+				return e.priority;
+			case STATUS:
+				return e.status;
+			default:
+				return 0;
+			}
+		}
+	}
+
+	/** A snapshot of one request as far as the index is concerned. */
+	static final class Entry {
+		final String identifier;
+		/** Null if the request has been removed. */
+		final ClientRequest request;
+		final short priority;
+		final int status;
+		final long sequence;
+
+		Entry(String identifier, ClientRequest request, short priority, int status, long sequence) {
+			this.identifier = identifier;
+			this.request = request;
+			this.priority = priority;
+			this.status = status;
+			this.sequence = sequence;
+		}
+	}
+
+	private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if(e1.priority != e2.priority) return e1.priority < e2.priority ? -1 : 1;
+			return e1.identifier.compareTo(e2.identifier);
+		}
+
+	};
+
+	private static final Comparator<Entry> BY_STATUS = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if(e1.status != e2.status) return e1.status < e2.status ? -1 : 1;
+			return e1.identifier.compareTo(e2.identifier);
+		}
+
+	};
+
+	private final long epoch;
+	private long sequence;
+	/** Changes with sequence numbers up to this may have been forgotten. */
+	private long forgotten;
+	private final TreeMap<String, Entry> byIdentifier = new TreeMap<String, Entry>();
+	private final TreeSet<Entry> byPriority = new TreeSet<Entry>(BY_PRIORITY);
+	private final TreeSet<Entry> byStatus = new TreeSet<Entry>(BY_STATUS);
+	/** The latest change to each request, including the removed ones we still remember. */
+	private final TreeMap<Long, Entry> bySequence = new TreeMap<Long, Entry>();
+	/** Removed requests in the order they were removed. */
+	private final ArrayDeque<Entry> removed = new ArrayDeque<Entry>();
+
+	RequestIndex() {
+		epoch = new SecureRandom().nextLong() & Long.MAX_VALUE;
+	}
+
+	static int getStatus(ClientRequest req) {
+		if(!req.hasFinished()) return STATUS_RUNNING;
+		return req.hasSucceeded() ? STATUS_SUCCEEDED : STATUS_FAILED;
+	}
+
+	/** Add a request, replacing any other request with the same identifier. */
+	void add(ClientRequest req) {
+		short priority = req.getPriority();
+		int status = getStatus(req);
+		synchronized(this) {
+			put(new Entry(req.getIdentifier(), req, priority, status, ++sequence));
+		}
+	}
+
+	/** Something has changed about a request. Ignored if it isn't in the index. */
+	void changed(ClientRequest req) {
+		short priority = req.getPriority();
+		int status = getStatus(req);
+		synchronized(this) {
+			Entry old = byIdentifier.get(req.getIdentifier());
+			if(old == null || old.request != req) return;
+			put(new Entry(req.getIdentifier(), req, priority, status, ++sequence));
+		}
+	}
+
+	synchronized void remove(String identifier) {
+		Entry old = byIdentifier.get(identifier);
+		if(old == null) return;
+		unindex(old);
+		Entry e = new Entry(identifier, null, old.priority, old.status, ++sequence);
+		bySequence.put(e.sequence, e);
+		removed.add(e);
+		while(removed.size() > MAX_REMOVED) {
+			Entry forget = removed.poll();
+			bySequence.remove(forget.sequence);
+			forgotten = forget.sequence;
+		}
+	}
+
+	/** Remove everything. Clients asking for changes since before this have to list
+	 * everything again. */
+	synchronized void clear() {
+		byIdentifier.clear();
+		byPriority.clear();
+		byStatus.clear();
+		bySequence.clear();
+		removed.clear();
+		forgotten = ++sequence;
+	}
+
+	private void put(Entry e) {
+		Entry old = byIdentifier.get(e.identifier);
+		if(old != null) unindex(old);
+		byIdentifier.put(e.identifier, e);
+		byPriority.add(e);
+		byStatus.add(e);
+		bySequence.put(e.sequence, e);
+	}
+
+	private void unindex(Entry old) {
+		byIdentifier.remove(old.identifier);
+		byPriority.remove(old);
+		byStatus.remove(old);
+		bySequence.remove(old.sequence);
+	}
+
+	long getEpoch() {
+		return epoch;
+	}
+
+	synchronized long getSequence() {
+		return sequence;
+	}
+
+	synchronized int size() {
+		return byIdentifier.size();
+	}
+
+	/**
+	 * Get the requests after a position in some order.
+	 * @param rank The primary sort key to start at, see SortBy.rank(); 0 is the lowest for both
+	 * priority and status. Ignored if sorting by identifier.
+	 * @param after The identifier to start after, within rank, or null to start at the
+	 * beginning of rank.
+	 * @param onlyRank If true, only return entries with this rank, e.g. only running requests.
+	 * @param max The maximum number of entries to return.
+	 */
+	synchronized List<Entry> page(SortBy sortBy, int rank, String after, boolean onlyRank, int max) {
+		List<Entry> ret = new ArrayList<Entry>(Math.min(max, byIdentifier.size()));
+		Iterator<Entry> it;
+		if(sortBy == SortBy.IDENTIFIER) {
+			Map<String, Entry> tail = after == null ? byIdentifier : byIdentifier.tailMap(after, false);
+			it = tail.values().iterator();
+		} else {
+			NavigableSet<Entry> set = sortBy == SortBy.PRIORITY ? byPriority : byStatus;
+			// Identifiers are never null, and the empty one sorts first.
+			Entry probe = new Entry(after == null ? "" : after, null, (short) rank, rank, 0);
+			it = set.tailSet(probe, after == null).iterator();
+		}
+		while(it.hasNext() && ret.size() < max) {
+			Entry e = it.next();
+			if(onlyRank && sortBy.rank(e) != rank) break;
+			ret.add(e);
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the latest change to each request which has changed since a given sequence number, in
+	 * the order of the changes. A removed request's entry has a null request.
+	 * @param max The maximum number of changes to add.
+	 * @param changes The changes are added to this.
+	 * @return The sequence number up to which the client has now been told everything, to be
+	 * passed in next time, or -1 if we have forgotten some of the changes since the given one.
+	 */
+	synchronized long changesSince(long since, int max, List<Entry> changes) {
+		if(since < forgotten || since > sequence) return -1;
+		long upTo = since;
+		for(Entry e : bySequence.tailMap(since, false).values()) {
+			if(max-- <= 0) return upTo;
+			changes.add(e);
+			upTo = e.sequence;
+		}
+		return sequence;
+	}
+
+}
@@ -20,6 +20,19 @@ import freenet.support.io.NoFreeBucket;
 /** Per-PersistentRequestClient cache of status of requests. */
 public class RequestStatusCache {
 	
+	/**
+	 * Told about every change to the cache, e.g. to keep a view of the queue up to date without
+	 * copying the whole cache on every page load. Called with the cache locked, so it must be
+	 * quick and must not call back into the cache.
+	 */
+	public interface Listener {
+		/** A request has been added or its status has changed. The status object belongs to the
+		 * cache and will change later: clone() it to keep it. */
+		void statusChanged(RequestStatus status);
+		/** A request has been removed. */
+		void statusRemoved(String identifier);
+	}
+	
     private static volatile boolean logMINOR;
     
 	static {
@@ -31,6 +44,7 @@ public class RequestStatusCache {
 	private final HashMap<String, RequestStatus> requestsByIdentifier;
 	private final MultiValueTable<FreenetURI, RequestStatus> downloadsByURI;
 	private final MultiValueTable<FreenetURI, RequestStatus> uploadsByFinalURI;
+	private final ArrayList<Listener> listeners;
 	
 	RequestStatusCache() {
 		downloads = new ArrayList<RequestStatus>();
@@ -38,6 +52,28 @@ public class RequestStatusCache {
 		requestsByIdentifier = new HashMap<String, RequestStatus>();
 		downloadsByURI = new MultiValueTable<FreenetURI, RequestStatus>();
 		uploadsByFinalURI = new MultiValueTable<FreenetURI, RequestStatus>();
+		listeners = new ArrayList<Listener>();
+	}
+	
+	/** Add a listener, and tell it about all the requests already in the cache. */
+	public synchronized void addListener(Listener listener) {
+		listeners.add(listener);
+		for(RequestStatus status : requestsByIdentifier.values())
+			listener.statusChanged(status);
+	}
+	
+	public synchronized void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+	
+	private void changed(RequestStatus status) {
+		for(int i=0;i<listeners.size();i++)
+			listeners.get(i).statusChanged(status);
+	}
+	
+	private void removed(String identifier) {
+		for(int i=0;i<listeners.size();i++)
+			listeners.get(i).statusRemoved(identifier);
 	}
 	
 	synchronized void addDownload(DownloadRequestStatus status) {
@@ -49,6 +85,7 @@ public class RequestStatusCache {
 		    downloads.remove(old);
 		downloads.add(status);
 		downloadsByURI.put(status.getURI(), status);
+		changed(status);
 	}
 	
 	synchronized void addUpload(UploadRequestStatus status) {
@@ -62,6 +99,7 @@ public class RequestStatusCache {
 		FreenetURI uri = status.getURI();
 		if(uri != null)
 			uploadsByFinalURI.put(uri, status);
+		changed(status);
 	}
 	
 	synchronized void finishedDownload(String identifier, boolean success, long dataSize, 
@@ -70,6 +108,7 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.setFinished(success, dataSize, mimeType, failureCode, failureReasonLong,
 				failureReasonShort, dataShadow, filtered);
+		changed(status);
 	}
 	
 	synchronized void gotFinalURI(String identifier, FreenetURI finalURI) {
@@ -79,6 +118,7 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinalURI(finalURI);
+		changed(status);
 	}
 	
 	synchronized void finishedUpload(String identifier, boolean success,  
@@ -90,12 +130,14 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinished(success, finalURI, failureCode, failureReasonShort, failureReasonLong);
+		changed(status);
 	}
 	
 	synchronized void updateStatus(String identifier, SplitfileProgressEvent event) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateStatus(event);
+		changed(status);
 	}
 	
 	synchronized void updateDetectedCompatModes(String identifier, InsertContext.CompatibilityMode[] compatModes, byte[] splitfileKey, boolean dontCompress) {
@@ -103,6 +145,7 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateDetectedCompatModes(compatModes, dontCompress);
 		status.updateDetectedSplitfileKey(splitfileKey);
+		changed(status);
 	}
 	
 	synchronized void removeByIdentifier(String identifier) {
@@ -119,9 +162,12 @@ public class RequestStatusCache {
 			if(uri != null)
 				uploadsByFinalURI.removeElement(uri, status);
 		}
+		removed(identifier);
 	}
 
 	synchronized void clear() {
+		for(String identifier : requestsByIdentifier.keySet())
+			removed(identifier);
 		downloads.clear();
 		uploads.clear();
 		requestsByIdentifier.clear();
@@ -129,11 +175,12 @@ public class RequestStatusCache {
 		uploadsByFinalURI.clear();
 	}
 
-	public void updateCompressionStatus(String identifier,
+	public synchronized void updateCompressionStatus(String identifier,
 			COMPRESS_STATE compressing) {
 		UploadFileRequestStatus status = (UploadFileRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateCompressionStatus(compressing);
+		changed(status);
 	}
 
 	public synchronized void addTo(List<RequestStatus> status) {
@@ -147,18 +194,21 @@ public class RequestStatusCache {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedMIME(foundDataMimeType);
+		changed(status);
 	}
 
 	public synchronized void updateExpectedDataLength(String identifier, long expectedDataLength) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedDataLength(expectedDataLength);
+		changed(status);
 	}
 
-	public void setPriority(String identifier, short newPriorityClass) {
+	public synchronized void setPriority(String identifier, short newPriorityClass) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.setPriority(newPriorityClass);
+		changed(status);
 	}
 	
 	/** Restart a request. Caller should call ,false first, at which point we setStarted,
@@ -174,6 +224,7 @@ public class RequestStatusCache {
 		else
 			// Already restarted, just set started = true.
 			status.setStarted(started);
+		changed(status);
 	}
 	
 	/** Restart a download. Caller should call ,false first, at which point we setStarted,
@@ -189,6 +240,7 @@ public class RequestStatusCache {
 			status.redirect(redirect);
 			downloadsByURI.put(redirect, status);
 		}
+		changed(status);
 	}
 
 	public synchronized CacheFetchResult getShadowBucket(FreenetURI key, boolean noFilter) {
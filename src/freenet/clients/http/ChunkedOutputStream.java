@@ -0,0 +1,95 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an HTTP/1.1 reply body with chunked transfer encoding, so we can start sending a page
+ * before we know how long it is. Small writes are buffered and sent as one chunk. close() ends
+ * the body but does not close the underlying stream, which may be used for further requests.
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+
+	static final int CHUNK_SIZE = 8192;
+
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = new byte[] { '0', '\r', '\n', '\r', '\n' };
+
+	/** Chunk header, then data, then CRLF, so each chunk is a single write. */
+	private final byte[] buf;
+	private int count;
+	private boolean closed;
+
+	ChunkedOutputStream(OutputStream out) {
+		super(out);
+		// Up to 4 hex digits and CRLF before the data, CRLF after it.
+		buf = new byte[6 + CHUNK_SIZE + 2];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(closed) throw new IOException("Already closed");
+		if(count == CHUNK_SIZE) writeChunk();
+		buf[6 + count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if(closed) throw new IOException("Already closed");
+		if(length >= CHUNK_SIZE) {
+			// Don't copy large writes.
+			writeChunk();
+			out.write(header(length));
+			out.write(data, offset, length);
+			out.write(CRLF);
+			return;
+		}
+		if(count + length > CHUNK_SIZE) writeChunk();
+		System.arraycopy(data, offset, buf, 6 + count, length);
+		count += length;
+	}
+
+	private void writeChunk() throws IOException {
+		if(count == 0) return;
+		byte[] header = header(count);
+		int start = 6 - header.length;
+		System.arraycopy(header, 0, buf, start, header.length);
+		buf[6 + count] = '\r';
+		buf[6 + count + 1] = '\n';
+		out.write(buf, start, header.length + count + 2);
+		count = 0;
+	}
+
+	private static byte[] header(int length) {
+		String s = Integer.toHexString(length);
+		byte[] header = new byte[s.length() + 2];
+		for(int i=0;i<s.length();i++)
+			header[i] = (byte) s.charAt(i);
+		header[s.length()] = '\r';
+		header[s.length() + 1] = '\n';
+		return header;
+	}
+
+	/** Sends what is buffered as a chunk. */
+	@Override
+	public void flush() throws IOException {
+		if(closed) return;
+		writeChunk();
+		out.flush();
+	}
+
+	/** Sends the last chunk, ending the reply. */
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		writeChunk();
+		out.write(LAST_CHUNK);
+		out.flush();
+		closed = true;
+	}
+
+}
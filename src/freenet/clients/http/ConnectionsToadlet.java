@@ -609,7 +609,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 			drawNoderefBox(contentNode, getNoderef(), true);
 		}
 		
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	protected abstract boolean acceptRefPosts();
@@ -755,7 +755,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 			infoboxContent.addChild("p").addChild("a", "href", path(), l10n("goFriendConnectionStatus"));
 			addHomepageLink(infoboxContent.addChild("p"));
 			
-			writeHTMLReply(ctx, 500, l10n("reportOfNodeAddition"), pageNode.generate());
+			writeHTMLReply(ctx, 500, l10n("reportOfNodeAddition"), pageNode);
 		} else handleAltPost(uri, request, ctx, logMINOR);
 		
 		
@@ -1230,7 +1230,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 		}
 		addHomepageLink(infoboxContent);
 		
-		writeHTMLReply(ctx, code, desc, pageNode.generate());
+		writeHTMLReply(ctx, code, desc, pageNode);
 	}
 
 }
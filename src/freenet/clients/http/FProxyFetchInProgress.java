@@ -402,6 +402,9 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		wakeWaiters(true);
 		if(droppedData != null)
 			droppedData.free();
+		else if(state != null && tracker.context.downloadCache != null)
+			// Fetched from the network rather than the cache.
+			tracker.context.downloadCache.onFetched(uri, fctx, result.getMetadata(), result.asBucket());
 	}
 
 	public synchronized boolean hasData() {
@@ -1245,6 +1245,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		server.register(statisticsToadlet, "FProxyToadlet.categoryStatus", "/stats/", true,
 		        "FProxyToadlet.statsTitle", "FProxyToadlet.stats", true, null);
 
+		MetricsToadlet metricsToadlet = new MetricsToadlet(client, node.metrics);
+		server.register(metricsToadlet, null, MetricsToadlet.TOADLET_URL, true, true);
+
 		DiagnosticToadlet diagnosticToadlet = new DiagnosticToadlet(node, core, core.getFCPServer(), client);
 		server.register(diagnosticToadlet, "FProxyToadlet.categoryStatus", "/diagnostic/", true,
 		        "FProxyToadlet.diagnosticTitle", "FProxyToadlet.diagnostic", true, null);
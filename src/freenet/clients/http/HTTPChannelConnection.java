@@ -0,0 +1,555 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+
+import freenet.io.SelectorLoop;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.MultiValueTable;
+import freenet.support.io.NativeThread;
+import freenet.support.io.TooLongException;
+
+/**
+ * An FProxy connection on a non-blocking channel, driven by a SelectorLoop rather than by a
+ * thread of its own.
+ *
+ * The loop reads whatever is available and parses the request headers with HTTPRequestParser.
+ * Once it has a request, it is handled by ToadletContextImpl.handleRequest() on the executor,
+ * exactly as on a blocking connection: the content of the request is passed to it through a
+ * bounded buffer, and the reply it writes is collected into buffers which the loop writes out
+ * as the socket accepts them. When the reply is finished we go back to parsing, so a keep-alive
+ * connection waiting for the browser's next request doesn't use a thread. Neither does a
+ * request whose toadlet has suspended its reply (see ToadletContext.suspendReply()), e.g. a
+ * long poll for push notifications.
+ *
+ * Requests are handled one at a time, in order. We carry on reading while a request is handled,
+ * in case the client pipelines requests, until the read buffer is full; when the content buffer
+ * is full we stop until the toadlet has read some of it, and when too much of the reply is
+ * waiting to be written the toadlet waits.
+ *
+ * LOCKING: The read buffer, the parser and the content being read are only used on the loop.
+ * The request state and the output buffers are synchronized on this.
+ */
+class HTTPChannelConnection implements SelectorLoop.Handler {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(HTTPChannelConnection.class);
+	}
+
+	static final int READ_BUFFER_SIZE = 16 * 1024;
+	/** Stop reading when this much of a request's content is waiting for the toadlet to read it. */
+	static final int MAX_BUFFERED_CONTENT = 256 * 1024;
+	static final int OUTPUT_CHUNK_SIZE = 16 * 1024;
+	/** Make the toadlet wait when this much of its reply is waiting to be written. */
+	static final int MAX_BUFFERED_OUTPUT = 256 * 1024;
+
+	private static final InputStream NO_CONTENT = new ByteArrayInputStream(new byte[0]);
+
+	private final SimpleToadletServer server;
+	private final SocketChannel channel;
+	private final InetAddress remoteAddr;
+	private final SelectorLoop loop;
+	private final Executor executor;
+
+	// Only used on the loop.
+	private SelectionKey key;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final HTTPRequestParser parser = new HTTPRequestParser();
+	/** The content of the request being read, if we haven't read all of it yet. */
+	private ContentStream content;
+
+	// Synchronized on this.
+	/** A request is being handled: we have read its headers but not yet written all of its reply. */
+	private boolean handling;
+	/** ToadletContextImpl.handleRequest() hasn't returned yet. */
+	private boolean runningHandler;
+	/** The toadlet has suspended its reply. */
+	private boolean suspended;
+	/** The suspended reply was finished before handleRequest() returned. */
+	private boolean finishedEarly;
+	private boolean finishedEarlyKeepAlive;
+	/** We have reached the end of the input. */
+	private boolean inputClosed;
+	/** Close once everything has been written, rather than reading another request. */
+	private boolean closeWhenWritten;
+	private boolean closed;
+	private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+	private long outputBytes;
+
+	HTTPChannelConnection(SimpleToadletServer server, SocketChannel channel, SelectorLoop loop, Executor executor) {
+		this.server = server;
+		this.channel = channel;
+		this.remoteAddr = channel.socket().getInetAddress();
+		this.loop = loop;
+		this.executor = executor;
+	}
+
+	void start() throws IOException {
+		channel.configureBlocking(false);
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					key = loop.register(channel, HTTPChannelConnection.this);
+				} catch (IOException e) {
+					onError();
+					return;
+				}
+				updateInterest();
+			}
+
+		});
+	}
+
+	/** Called on the loop when we can read. */
+	@Override
+	public void onReadable() {
+		int read;
+		try {
+			read = channel.read(readBuffer);
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e, e);
+			onError();
+			return;
+		}
+		if(read < 0) {
+			endOfInput();
+			return;
+		}
+		processBuffered();
+		updateInterest();
+	}
+
+	/** The client has shut down its side of the connection. We still reply to a request we have
+	 * read, but then we close. */
+	private void endOfInput() {
+		if(content != null) {
+			content.fail();
+			content = null;
+		}
+		synchronized(this) {
+			inputClosed = true;
+			if(!handling) closeWhenWritten = true;
+		}
+		updateInterest();
+	}
+
+	/** Parse what we have read, and pass any content on, on the loop. */
+	private void processBuffered() {
+		readBuffer.flip();
+		try {
+			while(readBuffer.hasRemaining()) {
+				if(content != null) {
+					if(!content.write(readBuffer)) return;
+					if(content.isComplete()) content = null;
+					continue;
+				}
+				synchronized(this) {
+					if(handling || closeWhenWritten || closed) return;
+				}
+				if(!parser.parse(readBuffer)) return;
+				startRequest();
+			}
+		} catch (TooLongException e) {
+			sendParseError(e);
+		} catch (ParseException e) {
+			sendParseError(e);
+		} finally {
+			readBuffer.compact();
+		}
+	}
+
+	/** Handle the request the parser has just read, on the executor. */
+	private void startRequest() {
+		final String method = parser.getMethod();
+		final String uri = parser.getURI();
+		final String protocol = parser.getProtocol();
+		final MultiValueTable<String,String> headers = parser.getHeaders();
+		// handleRequest() rejects invalid lengths and closes the connection.
+		long length = 0;
+		String slen = headers.get("content-length");
+		if(slen != null) {
+			try {
+				length = Math.max(0, Integer.parseInt(slen));
+			} catch (NumberFormatException e) {
+				// Ignore
+			}
+		}
+		final ContentStream is = length > 0 ? new ContentStream(length) : null;
+		content = is;
+		synchronized(this) {
+			handling = true;
+			runningHandler = true;
+		}
+		executor.execute(new PrioRunnable() {
+
+			@Override
+			public void run() {
+				boolean keepAlive = server.handleRequest(method, uri, protocol, headers,
+						is == null ? NO_CONTENT : is, out, remoteAddr, HTTPChannelConnection.this);
+				// If the content hasn't all been read, we can't find the start of the next request.
+				if(is != null && !is.isFinished()) keepAlive = false;
+				try {
+					out.flush();
+				} catch (IOException e) {
+					keepAlive = false;
+				}
+				synchronized(HTTPChannelConnection.this) {
+					runningHandler = false;
+					if(suspended) {
+						if(!finishedEarly) return;
+						keepAlive = keepAlive && finishedEarlyKeepAlive;
+						suspended = false;
+						finishedEarly = false;
+					}
+				}
+				requestFinished(keepAlive);
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.PriorityLevel.HIGH_PRIORITY.value-1;
+			}
+
+		}, "HTTP request handler for "+remoteAddr);
+	}
+
+	/** Tell the client we couldn't parse its request, then close. Called on the loop. */
+	private void sendParseError(final Exception e) {
+		Logger.normal(this, "Caught "+e.getMessage(), e);
+		synchronized(this) {
+			handling = true;
+		}
+		// Writing may wait for the output buffer.
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				ToadletContextImpl.sendParseError(out, e);
+				try {
+					out.flush();
+				} catch (IOException e1) {
+					// Ignore
+				}
+				requestFinished(false);
+			}
+
+		}, "HTTP parse error for "+remoteAddr);
+	}
+
+	/** Called by ToadletContextImpl.suspendReply(), while handling the request. */
+	synchronized void suspendReply() {
+		suspended = true;
+	}
+
+	/** Called by ToadletContextImpl.replyFinished() once a suspended reply has been written. */
+	void replyFinished(boolean keepAlive) {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			keepAlive = false;
+		}
+		synchronized(this) {
+			if(!suspended)
+				throw new IllegalStateException("Reply was not suspended");
+			if(runningHandler) {
+				// The handler will finish when handleRequest() returns.
+				finishedEarly = true;
+				finishedEarlyKeepAlive = keepAlive;
+				return;
+			}
+			suspended = false;
+		}
+		requestFinished(keepAlive);
+	}
+
+	/** The reply has been queued. Read the next request, or close once it has been written. */
+	private void requestFinished(final boolean keepAlive) {
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized(HTTPChannelConnection.this) {
+					handling = false;
+					if(!keepAlive) closeWhenWritten = true;
+				}
+				if(keepAlive) {
+					// The next request may have been pipelined.
+					processBuffered();
+					synchronized(HTTPChannelConnection.this) {
+						if(inputClosed && !handling) closeWhenWritten = true;
+					}
+				}
+				updateInterest();
+			}
+
+		});
+	}
+
+	private final Runnable resumeInput = new Runnable() {
+
+		@Override
+		public void run() {
+			processBuffered();
+			updateInterest();
+		}
+
+	};
+
+	private final Runnable updateInterest = new Runnable() {
+
+		@Override
+		public void run() {
+			updateInterest();
+		}
+
+	};
+
+	/** Select on what we are waiting for, and close once we have written everything, if we are
+	 * closing. Called on the loop. */
+	private void updateInterest() {
+		if(key == null || !key.isValid()) return;
+		int ops = 0;
+		boolean close = false;
+		synchronized(this) {
+			if(!inputClosed && !closeWhenWritten && readBuffer.hasRemaining() && (content == null || !content.isFull()))
+				ops |= SelectionKey.OP_READ;
+			if(!output.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			else if(closeWhenWritten)
+				close = true;
+		}
+		if(close) {
+			close();
+			return;
+		}
+		try {
+			key.interestOps(ops);
+		} catch (CancelledKeyException e) {
+			// Closed by another thread.
+		}
+	}
+
+	/** Called on the loop when we can write. */
+	@Override
+	public void onWritable() {
+		synchronized(this) {
+			try {
+				while(!output.isEmpty()) {
+					ByteBuffer buf = output.peek();
+					outputBytes -= channel.write(buf);
+					if(buf.hasRemaining()) break;
+					output.poll();
+				}
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Caught "+e, e);
+				onError();
+				return;
+			} finally {
+				notifyAll();
+			}
+		}
+		updateInterest();
+	}
+
+	/** Something has gone wrong with the connection, close it. A toadlet still writing will get
+	 * an IOException. */
+	@Override
+	public void onError() {
+		if(content != null) {
+			content.fail();
+			content = null;
+		}
+		close();
+	}
+
+	private void close() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+			inputClosed = true;
+			output.clear();
+			outputBytes = 0;
+			notifyAll();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		server.channelConnectionClosed();
+	}
+
+	/** Add a buffer to write, waiting if too much is waiting already. */
+	private void queueOutput(ByteBuffer buf) throws IOException {
+		boolean wasEmpty;
+		synchronized(this) {
+			while(outputBytes >= MAX_BUFFERED_OUTPUT && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(closed) throw new IOException("Connection closed");
+			wasEmpty = output.isEmpty();
+			output.add(buf);
+			outputBytes += buf.remaining();
+		}
+		if(wasEmpty) loop.execute(updateInterest);
+	}
+
+	/** Collects the reply into buffers for the loop. Synchronized because a suspended reply may
+	 * be written while the handler is still flushing. */
+	private final OutputStream out = new OutputStream() {
+
+		private ByteBuffer current;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				if(current == null)
+					current = ByteBuffer.allocate(OUTPUT_CHUNK_SIZE);
+				int n = Math.min(len, current.remaining());
+				current.put(b, off, n);
+				off += n;
+				len -= n;
+				if(!current.hasRemaining()) flush();
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if(current == null || current.position() == 0) return;
+			current.flip();
+			ByteBuffer buf = current;
+			current = null;
+			queueOutput(buf);
+		}
+
+	};
+
+	/**
+	 * The content of a request, passed from the loop to the toadlet.
+	 */
+	private class ContentStream extends InputStream {
+
+		private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+		private int chunkOffset;
+		/** Bytes the loop has yet to give us. */
+		private long toWrite;
+		private int buffered;
+		/** The loop has stopped reading because we were full. */
+		private boolean paused;
+		private boolean failed;
+
+		ContentStream(long length) {
+			toWrite = length;
+		}
+
+		/** Take as much of the content as we can from the buffer. Called on the loop.
+		 * @return False if we are full, in which case the loop must stop reading. */
+		synchronized boolean write(ByteBuffer buf) {
+			if(paused) return false;
+			int len = (int) Math.min(buf.remaining(), Math.min(toWrite, MAX_BUFFERED_CONTENT - buffered));
+			byte[] chunk = new byte[len];
+			buf.get(chunk);
+			chunks.add(chunk);
+			buffered += len;
+			toWrite -= len;
+			// read() will resume reading once we are half empty.
+			if(buffered >= MAX_BUFFERED_CONTENT) paused = true;
+			notifyAll();
+			return true;
+		}
+
+		synchronized boolean isComplete() {
+			return toWrite == 0;
+		}
+
+		/** All the content has been read by the toadlet. */
+		synchronized boolean isFinished() {
+			return toWrite == 0 && buffered == 0;
+		}
+
+		synchronized boolean isFull() {
+			return paused;
+		}
+
+		synchronized void fail() {
+			failed = true;
+			notifyAll();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int read = read(buf, 0, 1);
+			return read < 0 ? -1 : (buf[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if(len == 0) return 0;
+			boolean resume;
+			int read;
+			synchronized(this) {
+				while(chunks.isEmpty()) {
+					if(toWrite == 0) return -1;
+					if(failed) throw new IOException("Connection closed");
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				byte[] chunk = chunks.peek();
+				read = Math.min(len, chunk.length - chunkOffset);
+				System.arraycopy(chunk, chunkOffset, buf, off, read);
+				chunkOffset += read;
+				if(chunkOffset == chunk.length) {
+					chunks.poll();
+					chunkOffset = 0;
+				}
+				buffered -= read;
+				resume = paused && buffered < MAX_BUFFERED_CONTENT / 2;
+				if(resume) paused = false;
+			}
+			if(resume) loop.execute(resumeInput);
+			return read;
+		}
+
+		@Override
+		public synchronized int available() {
+			return buffered;
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+" for "+remoteAddr;
+	}
+
+}
@@ -0,0 +1,93 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import freenet.support.MultiValueTable;
+import freenet.support.io.TooLongException;
+
+/**
+ * Reads the request line and the headers of HTTP requests from ByteBuffers as they arrive from
+ * a non-blocking socket. It follows the same rules as ToadletContextImpl.handle() does when
+ * reading from a stream: blank lines before the request line are ignored, lines end with \n or
+ * \r\n, are at most MAX_LINE_LENGTH bytes, and are ISO-8859-1. The content of the request, if
+ * any, is up to the caller.
+ */
+class HTTPRequestParser {
+
+	static final int MAX_LINE_LENGTH = 32768;
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private byte[] line = new byte[128];
+	private int lineLength;
+	private String[] requestLine;
+	private MultiValueTable<String,String> headers;
+	private boolean complete;
+
+	/**
+	 * Read from the buffer until the headers of a request have been read, or the buffer is empty.
+	 * @return True if a request has been read, see getMethod() etc. Anything after the blank line
+	 * ending the headers is left in the buffer.
+	 * @throws TooLongException If a line is too long.
+	 * @throws ParseException If the request line or a header is invalid.
+	 */
+	boolean parse(ByteBuffer buf) throws TooLongException, ParseException {
+		if(complete) {
+			// The previous request has been read.
+			complete = false;
+			requestLine = null;
+			headers = null;
+		}
+		while(buf.hasRemaining()) {
+			byte b = buf.get();
+			if(b != '\n') {
+				if(lineLength >= MAX_LINE_LENGTH)
+					throw new TooLongException("We reached maxLength="+MAX_LINE_LENGTH+" parsing HTTP request");
+				if(lineLength == line.length)
+					line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH + 1));
+				line[lineLength++] = b;
+				continue;
+			}
+			int len = lineLength;
+			if(len > 0 && line[len-1] == '\r') len--;
+			String s = new String(line, 0, len, ISO_8859_1);
+			lineLength = 0;
+			if(requestLine == null) {
+				if(s.isEmpty()) continue;
+				requestLine = ToadletContextImpl.parseRequestLine(s);
+				headers = new MultiValueTable<String,String>();
+				continue;
+			}
+			if(s.isEmpty()) {
+				complete = true;
+				return true;
+			}
+			ToadletContextImpl.parseHeader(s, headers);
+		}
+		return false;
+	}
+
+	String getMethod() {
+		return requestLine[0];
+	}
+
+	String getURI() {
+		return requestLine[1];
+	}
+
+	String getProtocol() {
+		return requestLine[2];
+	}
+
+	/** The headers, with lower case names, once parse() has returned true. */
+	MultiValueTable<String,String> getHeaders() {
+		return headers;
+	}
+
+}
@@ -0,0 +1,39 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.URI;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.support.api.HTTPRequest;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * Exports the node's metrics in the Prometheus text exposition format, for monitoring tools to
+ * scrape. Accessible from <code>http://.../metrics/</code>. Requires full access.
+ */
+public class MetricsToadlet extends Toadlet {
+
+	public static final String TOADLET_URL = "/metrics/";
+
+	private final MetricsRegistry metrics;
+
+	MetricsToadlet(HighLevelSimpleClient client, MetricsRegistry metrics) {
+		super(client);
+		this.metrics = metrics;
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
+		if(!ctx.checkFullAccess(this))
+			return;
+		writeReply(ctx, 200, MetricsRegistry.CONTENT_TYPE, "OK", metrics.export());
+	}
+
+	@Override
+	public String path() {
+		return TOADLET_URL;
+	}
+
+}
@@ -0,0 +1,393 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.DefaultMIMETypes;
+import freenet.client.filter.ContentFilter;
+import freenet.clients.fcp.DownloadRequestStatus;
+import freenet.clients.fcp.RequestStatus;
+import freenet.clients.fcp.RequestStatusCache;
+import freenet.clients.fcp.UploadDirRequestStatus;
+import freenet.clients.fcp.UploadFileRequestStatus;
+import freenet.clients.fcp.UploadRequestStatus;
+import freenet.clients.http.QueueToadlet.QueueType;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestStarter;
+import freenet.support.Fields;
+import freenet.support.Logger;
+
+/**
+ * The downloads or the uploads on the global queue, as shown on the queue page: grouped by
+ * QueueType (and by MIME type for the downloads which failed because of it), with the totals the
+ * page shows, and sorted in whatever orders pages have been asked for. It is kept up to date by
+ * the RequestStatusCache's of the global queue, so rendering a page only costs as much as the
+ * requests on it, rather than copying, grouping and sorting the whole queue every time.
+ *
+ * We keep our own copy of each request's status, replaced on every change, so the copies handed
+ * out by page() never change and can be rendered after the lock is released.
+ *
+ * LOCKING: Synchronized on this. Updates arrive with a RequestStatusCache locked; we never call
+ * out while holding our lock.
+ */
+class QueueModel implements RequestStatusCache.Listener {
+
+	/** The orders the queue page can be sorted in, as given in the sortBy parameter. */
+	enum SortBy {
+		PRIORITY(null),
+		IDENTIFIER("id"),
+		SIZE("size"),
+		PROGRESS("progress"),
+		LAST_ACTIVITY("lastActivity"),
+		LAST_FAILURE("lastFailure");
+
+		final String param;
+		final Comparator<RequestStatus> comparator;
+
+		private SortBy(String param) {
+			this.param = param;
+			this.comparator = new RequestComparator(this);
+		}
+
+		/** @return The order for a sortBy parameter, PRIORITY if unknown or null. */
+		static SortBy fromParam(String param) {
+			if(param != null) {
+				for(SortBy sortBy : values())
+					if(param.equals(sortBy.param)) return sortBy;
+			}
+			return PRIORITY;
+		}
+	}
+
+	/** The same order as the queue page has always used, with the identifier as a tie breaker
+	 * so that it is a total order. */
+	private static class RequestComparator implements Comparator<RequestStatus> {
+
+		private final SortBy sortBy;
+
+		RequestComparator(SortBy sortBy) {
+			this.sortBy = sortBy;
+		}
+
+		@Override
+		public int compare(RequestStatus first, RequestStatus second) {
+			if(first == second) return 0;
+			int result = 0;
+			switch(sortBy) {
+			case IDENTIFIER:
+				result = first.getIdentifier().compareToIgnoreCase(second.getIdentifier());
+				break;
+			case SIZE:
+				result = Fields.compare(first.getTotalBlocks(), second.getTotalBlocks());
+				break;
+			case PROGRESS:
+				boolean firstFinalized = first.isTotalFinalized();
+				boolean secondFinalized = second.isTotalFinalized();
+				if(firstFinalized && !secondFinalized)
+					result = 1;
+				else if(secondFinalized && !firstFinalized)
+					result = -1;
+				else {
+					double firstProgress = ((double)first.getFetchedBlocks()) / ((double)first.getMinBlocks());
+					double secondProgress = ((double)second.getFetchedBlocks()) / ((double)second.getMinBlocks());
+					result = Fields.compare(firstProgress, secondProgress);
+				}
+				break;
+			case LAST_ACTIVITY:
+				result = Fields.compare(first.getLastSuccess(), second.getLastSuccess());
+				break;
+			case LAST_FAILURE:
+				result = Fields.compare(first.getLastFailure(), second.getLastFailure());
+				break;
+			case PRIORITY:
+				result = Fields.compare(first.getPriority(), second.getPriority());
+				break;
+			}
+			if(result != 0) return result;
+			return first.getIdentifier().compareTo(second.getIdentifier());
+		}
+
+	}
+
+	/** The requests of one table on the page. */
+	private static class Group {
+		final Map<String, RequestStatus> byIdentifier = new HashMap<String, RequestStatus>();
+		/** Created when a page first asks for an order, and then kept up to date. */
+		final EnumMap<SortBy, TreeSet<RequestStatus>> sorted = new EnumMap<SortBy, TreeSet<RequestStatus>>(SortBy.class);
+
+		void add(RequestStatus status) {
+			byIdentifier.put(status.getIdentifier(), status);
+			for(TreeSet<RequestStatus> set : sorted.values())
+				set.add(status);
+		}
+
+		void remove(RequestStatus status) {
+			byIdentifier.remove(status.getIdentifier());
+			for(TreeSet<RequestStatus> set : sorted.values())
+				set.remove(status);
+		}
+
+		NavigableSet<RequestStatus> sorted(SortBy sortBy) {
+			TreeSet<RequestStatus> set = sorted.get(sortBy);
+			if(set == null) {
+				set = new TreeSet<RequestStatus>(sortBy.comparator);
+				set.addAll(byIdentifier.values());
+				sorted.put(sortBy, set);
+			}
+			return set;
+		}
+	}
+
+	/** Which group a request is in, and what it adds to the totals. */
+	private static class Placement {
+		final RequestStatus status;
+		final QueueType type;
+		/** Only for FailedBadMIMEType and FailedUnknownMIMEType. */
+		final String mimeType;
+		/** What the request adds to the total size shown on the page. */
+		final long queuedSize;
+
+		Placement(RequestStatus status, QueueType type, String mimeType, long queuedSize) {
+			this.status = status;
+			this.type = type;
+			this.mimeType = mimeType;
+			this.queuedSize = queuedSize;
+		}
+	}
+
+	private final boolean uploads;
+	private final EnumMap<QueueType, Group> groups = new EnumMap<QueueType, Group>(QueueType.class);
+	private final Map<QueueType, TreeMap<String, Group>> groupsByMIMEType = new EnumMap<QueueType, TreeMap<String, Group>>(QueueType.class);
+	private final Map<String, Placement> placements = new HashMap<String, Placement>();
+	private long totalQueuedSize;
+	/** The number of queued (not finished) requests at each priority. */
+	private final int[] queuedByPriority = new int[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+
+	/**
+	 * @param uploads If true, this is the model for the uploads page, otherwise for the downloads
+	 * page. Other requests are ignored.
+	 */
+	QueueModel(boolean uploads) {
+		this.uploads = uploads;
+	}
+
+	@Override
+	public synchronized void statusChanged(RequestStatus status) {
+		boolean isUpload = status instanceof UploadRequestStatus;
+		if(isUpload != uploads || !(isUpload || status instanceof DownloadRequestStatus)) return;
+		// Copy it: it will be changed under us.
+		status = status.clone();
+		remove(status.getIdentifier());
+		Placement placement = place(status);
+		Group group;
+		if(placement.mimeType != null) {
+			TreeMap<String, Group> byType = groupsByMIMEType.get(placement.type);
+			if(byType == null) {
+				byType = new TreeMap<String, Group>();
+				groupsByMIMEType.put(placement.type, byType);
+			}
+			group = byType.get(placement.mimeType);
+			if(group == null) {
+				group = new Group();
+				byType.put(placement.mimeType, group);
+			}
+		} else {
+			group = groups.get(placement.type);
+			if(group == null) {
+				group = new Group();
+				groups.put(placement.type, group);
+			}
+		}
+		group.add(status);
+		placements.put(status.getIdentifier(), placement);
+		totalQueuedSize += placement.queuedSize;
+		if(isQueued(placement.type))
+			queuedByPriority[priorityIndex(status)]++;
+	}
+
+	@Override
+	public synchronized void statusRemoved(String identifier) {
+		remove(identifier);
+	}
+
+	private void remove(String identifier) {
+		Placement placement = placements.remove(identifier);
+		if(placement == null) return;
+		if(placement.mimeType != null) {
+			TreeMap<String, Group> byType = groupsByMIMEType.get(placement.type);
+			Group group = byType.get(placement.mimeType);
+			group.remove(placement.status);
+			if(group.byIdentifier.isEmpty())
+				byType.remove(placement.mimeType);
+		} else {
+			groups.get(placement.type).remove(placement.status);
+		}
+		totalQueuedSize -= placement.queuedSize;
+		if(isQueued(placement.type))
+			queuedByPriority[priorityIndex(placement.status)]--;
+	}
+
+	private static boolean isQueued(QueueType type) {
+		return !(type.isCompleted || type.isFailed);
+	}
+
+	private static int priorityIndex(RequestStatus status) {
+		short prio = status.getPriority();
+		if(prio < 0) return 0;
+		return Math.min(prio, RequestStarter.NUMBER_OF_PRIORITY_CLASSES - 1);
+	}
+
+	/** Decide where a request goes, the same way the queue page always has. */
+	private Placement place(RequestStatus req) {
+		if(req instanceof DownloadRequestStatus) {
+			DownloadRequestStatus download = (DownloadRequestStatus) req;
+			if(download.hasSucceeded()) {
+				if(download.toTempSpace())
+					return new Placement(req, QueueType.CompletedDownloadToTemp, null, 0);
+				else
+					return new Placement(req, QueueType.CompletedDownloadToDisk, null, 0);
+			} else if(download.hasFinished()) {
+				FetchExceptionMode failureCode = download.getFailureCode();
+				if(failureCode != FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME && failureCode != FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME)
+					return new Placement(req, QueueType.FailedDownload, null, 0);
+				String mimeType = download.getMIMEType();
+				if(mimeType == null) {
+					Logger.error(this, "MIME type is null but failure code is "+failureCode+" for "+download.getIdentifier()+" : "+download.getURI());
+					mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
+				}
+				mimeType = ContentFilter.stripMIMEType(mimeType);
+				if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME) {
+					if(ContentFilter.getMIMEType(mimeType) != null)
+						return new Placement(req, QueueType.FailedBadMIMEType, mimeType, 0);
+					Logger.error(this, "Bad MIME failure code yet MIME is "+mimeType+" which does not have a handler!");
+				}
+				return new Placement(req, QueueType.FailedUnknownMIMEType, mimeType, 0);
+			} else {
+				long size = download.getDataSize();
+				return new Placement(req, QueueType.UncompletedDownload, null, size > 0 ? size : 0);
+			}
+		} else if(req instanceof UploadFileRequestStatus) {
+			long size = req.getDataSize();
+			if(size < 0) size = 0;
+			if(req.hasSucceeded())
+				return new Placement(req, QueueType.CompletedUpload, null, size);
+			else if(req.hasFinished())
+				return new Placement(req, QueueType.FailedUpload, null, size);
+			else
+				return new Placement(req, QueueType.UncompletedUpload, null, size);
+		} else {
+			long size = ((UploadDirRequestStatus) req).getTotalDataSize();
+			if(size < 0) size = 0;
+			if(req.hasSucceeded())
+				return new Placement(req, QueueType.CompletedDirUpload, null, size);
+			else if(req.hasFinished())
+				return new Placement(req, QueueType.FailedDirUpload, null, size);
+			else
+				return new Placement(req, QueueType.UncompletedDirUpload, null, size);
+		}
+	}
+
+	synchronized boolean isEmpty() {
+		return placements.isEmpty();
+	}
+
+	/** @return The number of requests in a group other than FailedBadMIMEType and
+	 * FailedUnknownMIMEType. */
+	synchronized int count(QueueType type) {
+		Group group = groups.get(type);
+		return group == null ? 0 : group.byIdentifier.size();
+	}
+
+	/** @return The number of requests of each MIME type in FailedBadMIMEType or
+	 * FailedUnknownMIMEType, in order of MIME type. */
+	synchronized SortedMap<String, Integer> countByMIMEType(QueueType type) {
+		TreeMap<String, Integer> ret = new TreeMap<String, Integer>();
+		TreeMap<String, Group> byType = groupsByMIMEType.get(type);
+		if(byType != null) {
+			for(Map.Entry<String, Group> e : byType.entrySet())
+				ret.put(e.getKey(), e.getValue().byIdentifier.size());
+		}
+		return ret;
+	}
+
+	/** @return The total size of the queued downloads, or of all the uploads. */
+	synchronized long getTotalQueuedSize() {
+		return totalQueuedSize;
+	}
+
+	/** @return The most urgent priority of any queued request, or the paused priority if none. */
+	synchronized short getLowestQueuedPriority() {
+		for(short i=0;i<queuedByPriority.length;i++)
+			if(queuedByPriority[i] > 0) return i;
+		return RequestStarter.PAUSED_PRIORITY_CLASS;
+	}
+
+	/**
+	 * Get one page of a group.
+	 * @param type The group.
+	 * @param mimeType The MIME type for FailedBadMIMEType and FailedUnknownMIMEType, otherwise null.
+	 * @param sortBy The order.
+	 * @param reversed If true, in the opposite order.
+	 * @param filter If not null, only requests whose identifier, key or filename contain this,
+	 * ignoring case.
+	 * @param offset The number of (matching) requests to skip.
+	 * @param max The maximum number of requests to return.
+	 * @param out The requests are added to this. They won't change.
+	 * @return The number of matching requests in the group. If there is a filter, this means
+	 * checking every request in the group, otherwise it is quick.
+	 */
+	synchronized int page(QueueType type, String mimeType, SortBy sortBy, boolean reversed, String filter, int offset, int max, List<RequestStatus> out) {
+		Group group;
+		if(mimeType != null) {
+			TreeMap<String, Group> byType = groupsByMIMEType.get(type);
+			group = byType == null ? null : byType.get(mimeType);
+		} else
+			group = groups.get(type);
+		if(group == null) return 0;
+		NavigableSet<RequestStatus> set = group.sorted(sortBy);
+		if(reversed) set = set.descendingSet();
+		if(filter != null) filter = filter.toLowerCase(Locale.ROOT);
+		int matched = 0;
+		for(Iterator<RequestStatus> it = set.iterator(); it.hasNext();) {
+			RequestStatus status = it.next();
+			if(filter != null && !matches(status, filter)) continue;
+			if(matched >= offset && matched - offset < max)
+				out.add(status);
+			matched++;
+			if(filter == null && matched - offset >= max) {
+				// Don't need to look at the rest to count them.
+				return set.size();
+			}
+		}
+		return matched;
+	}
+
+	private static boolean matches(RequestStatus status, String filter) {
+		if(status.getIdentifier().toLowerCase(Locale.ROOT).contains(filter)) return true;
+		FreenetURI uri = status.getURI();
+		if(uri != null && uri.toString().toLowerCase(Locale.ROOT).contains(filter)) return true;
+		String filename = null;
+		if(status instanceof DownloadRequestStatus) {
+			if(((DownloadRequestStatus) status).getDestFilename() != null)
+				filename = ((DownloadRequestStatus) status).getDestFilename().getName();
+		} else if(status instanceof UploadFileRequestStatus) {
+			if(((UploadFileRequestStatus) status).getOrigFilename() != null)
+				filename = ((UploadFileRequestStatus) status).getOrigFilename().getName();
+		}
+		return filename != null && filename.toLowerCase(Locale.ROOT).contains(filter);
+	}
+
+}
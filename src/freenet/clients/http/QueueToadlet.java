@@ -20,21 +20,17 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
 
 import freenet.client.DefaultMIMETypes;
-import freenet.client.FetchException;
-import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.HighLevelSimpleClientImpl;
 import freenet.client.InsertContext;
@@ -73,7 +69,6 @@ import freenet.node.RequestStarter;
 import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
 import freenet.node.useralerts.StoringUserEvent;
 import freenet.node.useralerts.UserAlert;
-import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
@@ -82,6 +77,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.MultiValueTable;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
+import freenet.support.URLEncoder;
 import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
 import freenet.support.api.RandomAccessBucket;
@@ -110,7 +106,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		COMPAT_MODE
 	}
 
-	private enum QueueType {
+	enum QueueType {
 		CompletedDownloadToTemp(true, false, false),
 		CompletedDownloadToDisk(true, false, false),
 		CompletedUpload(true, false, true),
@@ -136,6 +132,85 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	}
 
 	private static final int MAX_IDENTIFIER_LENGTH = 1024*1024;
+
+	/** How many requests to show in each table, unless the rows parameter says otherwise. */
+	static final int DEFAULT_ROWS_PER_TABLE = 100;
+	static final int MAX_ROWS_PER_TABLE = 10000;
+
+	/** How the page was asked to show the queue: the order, the filter, and which part of each
+	 * table. */
+	private static class QueueView {
+		final QueueModel.SortBy sortBy;
+		final boolean reversed;
+		/** Null to show everything. */
+		final String filter;
+		final int rows;
+		private final HTTPRequest request;
+
+		QueueView(HTTPRequest request) {
+			this.request = request;
+			sortBy = QueueModel.SortBy.fromParam(request.getParam("sortBy", null));
+			reversed = request.isParameterSet("reversed");
+			String f = request.getParam("filter").trim();
+			filter = f.isEmpty() ? null : f;
+			rows = Math.max(1, Math.min(MAX_ROWS_PER_TABLE, request.getIntParam("rows", DEFAULT_ROWS_PER_TABLE)));
+		}
+
+		/** @return The offset of the first request to show in a table. */
+		int start(String anchor) {
+			return Math.max(0, request.getIntParam("start-"+anchor, 0));
+		}
+
+		/** @return A link to the same view, but starting a table at a different request. */
+		String link(String anchor, int start) {
+			StringBuilder sb = new StringBuilder("?");
+			if(sortBy.param != null)
+				sb.append("sortBy=").append(sortBy.param).append('&');
+			if(reversed)
+				sb.append("reversed&");
+			if(filter != null)
+				sb.append("filter=").append(URLEncoder.encode(filter, false)).append('&');
+			if(rows != DEFAULT_ROWS_PER_TABLE)
+				sb.append("rows=").append(rows).append('&');
+			sb.append("start-").append(anchor).append('=').append(start);
+			sb.append('#').append(anchor);
+			return sb.toString();
+		}
+	}
+
+	/** The part of one table of the queue page which is shown. */
+	private static class TablePage {
+		final QueueView view;
+		final String anchor;
+		final int start;
+		final List<RequestStatus> requests = new ArrayList<RequestStatus>();
+		/** The number of requests in the table, not just on this page. */
+		private final int total;
+
+		TablePage(QueueModel model, QueueType type, String mimeType, QueueView view) {
+			if(mimeType == null) {
+				String name = type.name();
+				anchor = Character.toLowerCase(name.charAt(0)) + name.substring(1);
+			} else {
+				String atype = mimeType.replace("-", "--").replace('/', '-');
+				anchor = (type == QueueType.FailedBadMIMEType ? "failedDownload-badtype-" : "failedDownload-unknowntype-") + atype;
+			}
+			this.view = view;
+			start = view.start(anchor);
+			total = model.page(type, mimeType, view.sortBy, view.reversed, view.filter, start, view.rows, requests);
+		}
+
+		int size() {
+			return total;
+		}
+
+		boolean isEmpty() {
+			return total == 0;
+		}
+	}
+
+	/** Created on the first page load, then kept up to date by the global queue. */
+	private QueueModel model;
 	static final int MAX_FILENAME_LENGTH = 1024*1024;
 	private static final int MAX_TYPE_LENGTH = 1024;
 	static final int MAX_KEY_LENGTH = 1024*1024;
@@ -161,6 +236,14 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	private boolean isReversed = false;
 	private final boolean uploads;
 
+	private synchronized QueueModel getModel() {
+		if(model == null) {
+			model = new QueueModel(uploads);
+			fcp.addGlobalRequestStatusListener(model);
+		}
+		return model;
+	}
+
     private static final String KEY_LIST_LOCATION = "listKeys.txt";
 
 	public QueueToadlet(NodeClientCore core, FCPServer fcp, HighLevelSimpleClient client, boolean uploads) {
@@ -283,7 +366,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				        new String[] { "type", "name", "value" },
 				        new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.no") });
 
-				this.writeHTMLReply(ctx, 200, "OK", page.outer.generate());
+				this.writeHTMLReply(ctx, 200, "OK", page.outer);
 				return;
 			} else if(request.isPartSet("remove_request") && (request.getPartAsStringFailsafe("remove_request", 128).length() > 0)) {
 				// Remove all requested (i.e. selected) requests from the queue, regardless of
@@ -531,7 +614,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				}
 				alertContent.addChild("a", "href", path(),
 				        NodeL10n.getBase().getString("Toadlet.returnToQueuepage"));
-				writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else if (request.isPartSet("change_priority_top")) {
 				handleChangePriority(request, ctx, "_top");
@@ -910,7 +993,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				        new String[]{"type", "name", "value"},
 				        new String[]{"submit", "recommend_uri", l10n("recommend")});
 
-				this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				this.writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else if(request.isPartSet("recommend_uri") && request.isPartSet("URI")) {
 				String description = request.getPartAsStringFailsafe("description", 32768);
@@ -971,7 +1054,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		alert.addChild("ul", l10n("downloadDisallowed", "directory", downloadPath));
 		alert.addChild("a", "href", path(),
 			NodeL10n.getBase().getString("Toadlet.returnToQueuepage"));
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private File getDownloadsDir (String downloadPath) throws NotAllowedException {
@@ -985,7 +1068,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	}
 
 	private void sendPanicingPage(ToadletContext ctx) throws ToadletContextClosedException, IOException {
-		writeHTMLReply(ctx, 200, "OK", WelcomeToadlet.sendRestartingPageInner(ctx).generate());
+		writeHTMLReply(ctx, 200, "OK", WelcomeToadlet.sendRestartingPageInner(ctx));
 	}
 
 	private void sendConfirmPanicPage(ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -1012,7 +1095,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		else
 			content.addChild("p").addChild("a", "href", path(), l10n("backToDownloadsPage"));
 
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void sendPersistenceDisabledError(ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -1028,7 +1111,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 			addHomepageLink(infoboxContent);
 
-			writeHTMLReply(ctx, 500, "Internal Server Error", pageNode.generate());
+			writeHTMLReply(ctx, 500, "Internal Server Error", pageNode);
 			return;
 
 		}
@@ -1062,7 +1145,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			NodeL10n.getBase().addL10nSubstitution(infoboxContent.addChild("div"), "QueueToadlet.returnToQueuePage", new String[] { "link" }, new HTMLNode[] { HTMLNode.link(path()) });
 		else if(returnToInsertPage)
 			NodeL10n.getBase().addL10nSubstitution(infoboxContent.addChild("div"), "QueueToadlet.tryAgainUploadFilePage", new String[] { "link" }, new HTMLNode[] { HTMLNode.link(FileInsertWizardToadlet.PATH) });
-		writeHTMLReply(context, 400, "Bad request", pageNode.generate());
+		writeHTMLReply(context, 400, "Bad request", pageNode);
 	}
 
 	public void handleMethodGET(URI uri, final HTTPRequest request, final ToadletContext ctx)
@@ -1107,10 +1190,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		
 		if(!(count || keys)) {
 			try {
-				RequestStatus[] reqs = fcp.getGlobalRequests();
+				if(core.killedDatabase()) throw new PersistenceDisabledException();
 				MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
-				HTMLNode pageNode = handleGetInner(pageMaker, reqs, core.clientContext, request, ctx);
-				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+				HTMLNode pageNode = handleGetInner(pageMaker, getModel(), core.clientContext, request, ctx);
+				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 				return;
 			} catch (PersistenceDisabledException e) {
 				sendPersistenceDisabledError(ctx);
@@ -1189,7 +1272,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 		MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 		if(pageNode != null)
-			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 		else if(plainText != null)
 			this.writeReply(ctx, 200, "text/plain", "OK", plainText);
 		else {
@@ -1224,203 +1307,49 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return sb.toString();
 	}
 
-	private HTMLNode handleGetInner(PageMaker pageMaker, RequestStatus[] reqs, ClientContext context, final HTTPRequest request, ToadletContext ctx) throws PersistenceDisabledException {
+	private HTMLNode handleGetInner(PageMaker pageMaker, QueueModel model, ClientContext context, final HTTPRequest request, ToadletContext ctx) {
 
-		// First, get the queued requests, and separate them into different types.
-		LinkedList<DownloadRequestStatus> completedDownloadToDisk = new LinkedList<DownloadRequestStatus>();
-		LinkedList<DownloadRequestStatus> completedDownloadToTemp = new LinkedList<DownloadRequestStatus>();
-		LinkedList<UploadFileRequestStatus> completedUpload = new LinkedList<UploadFileRequestStatus>();
-		LinkedList<UploadDirRequestStatus> completedDirUpload = new LinkedList<UploadDirRequestStatus>();
+		if(model.isEmpty()) {
+		    return sendEmptyQueuePage(ctx, pageMaker);
+		}
 
-		LinkedList<DownloadRequestStatus> failedDownload = new LinkedList<DownloadRequestStatus>();
-		LinkedList<UploadFileRequestStatus> failedUpload = new LinkedList<UploadFileRequestStatus>();
-		LinkedList<UploadDirRequestStatus> failedDirUpload = new LinkedList<UploadDirRequestStatus>();
+		QueueView view = new QueueView(request);
+		isReversed = view.reversed;
 
-		LinkedList<DownloadRequestStatus> uncompletedDownload = new LinkedList<DownloadRequestStatus>();
-		LinkedList<UploadFileRequestStatus> uncompletedUpload = new LinkedList<UploadFileRequestStatus>();
-		LinkedList<UploadDirRequestStatus> uncompletedDirUpload = new LinkedList<UploadDirRequestStatus>();
+		// Get the page of each table to show. The counts are of the requests matching the
+		// filter, if any.
+		TablePage completedDownloadToTemp = new TablePage(model, QueueType.CompletedDownloadToTemp, null, view);
+		TablePage completedDownloadToDisk = new TablePage(model, QueueType.CompletedDownloadToDisk, null, view);
+		TablePage completedUpload = new TablePage(model, QueueType.CompletedUpload, null, view);
+		TablePage completedDirUpload = new TablePage(model, QueueType.CompletedDirUpload, null, view);
 
-		Map<String, LinkedList<DownloadRequestStatus>> failedUnknownMIMEType = new HashMap<String, LinkedList<DownloadRequestStatus>>();
-		Map<String, LinkedList<DownloadRequestStatus>> failedBadMIMEType = new HashMap<String, LinkedList<DownloadRequestStatus>>();
+		TablePage failedDownload = new TablePage(model, QueueType.FailedDownload, null, view);
+		TablePage failedUpload = new TablePage(model, QueueType.FailedUpload, null, view);
+		TablePage failedDirUpload = new TablePage(model, QueueType.FailedDirUpload, null, view);
 
-		if(logMINOR)
-			Logger.minor(this, "Request count: "+reqs.length);
+		TablePage uncompletedDownload = new TablePage(model, QueueType.UncompletedDownload, null, view);
+		TablePage uncompletedUpload = new TablePage(model, QueueType.UncompletedUpload, null, view);
+		TablePage uncompletedDirUpload = new TablePage(model, QueueType.UncompletedDirUpload, null, view);
 
-		if(reqs.length < 1){
-		    return sendEmptyQueuePage(ctx, pageMaker);
+		Map<String, TablePage> failedUnknownMIMEType = new TreeMap<String, TablePage>();
+		for(String type : model.countByMIMEType(QueueType.FailedUnknownMIMEType).keySet()) {
+			TablePage page = new TablePage(model, QueueType.FailedUnknownMIMEType, type, view);
+			if(!page.isEmpty()) failedUnknownMIMEType.put(type, page);
+		}
+		Map<String, TablePage> failedBadMIMEType = new TreeMap<String, TablePage>();
+		for(String type : model.countByMIMEType(QueueType.FailedBadMIMEType).keySet()) {
+			TablePage page = new TablePage(model, QueueType.FailedBadMIMEType, type, view);
+			if(!page.isEmpty()) failedBadMIMEType.put(type, page);
 		}
 
-		short lowestQueuedPrio = RequestStarter.PAUSED_PRIORITY_CLASS;
+		short lowestQueuedPrio = model.getLowestQueuedPriority();
 
-		long totalQueuedDownloadSize = 0;
-		long totalQueuedUploadSize = 0;
+		long totalQueuedDownloadSize = uploads ? 0 : model.getTotalQueuedSize();
+		long totalQueuedUploadSize = uploads ? model.getTotalQueuedSize() : 0;
 
-		boolean added = false;
-		for(RequestStatus req: reqs) {
-			if(req instanceof DownloadRequestStatus && !uploads) {
-				DownloadRequestStatus download = (DownloadRequestStatus)req;
-				if(download.hasSucceeded()) {
-					if(download.toTempSpace())
-						completedDownloadToTemp.add(download);
-					else // to disk
-						completedDownloadToDisk.add(download);
-				} else if(download.hasFinished()) {
-				    FetchExceptionMode failureCode = download.getFailureCode();
-					String mimeType = download.getMIMEType();
-					if(mimeType == null && (failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME || failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME)) {
-						Logger.error(this, "MIME type is null but failure code is "+FetchException.getMessage(failureCode)+" for "+download.getIdentifier()+" : "+download.getURI());
-						mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
-					}
-					if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME) {
-						mimeType = ContentFilter.stripMIMEType(mimeType);
-						LinkedList<DownloadRequestStatus> list = failedUnknownMIMEType.get(mimeType);
-						if(list == null) {
-							list = new LinkedList<DownloadRequestStatus>();
-							failedUnknownMIMEType.put(mimeType, list);
-						}
-						list.add(download);
-					} else if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME) {
-						mimeType = ContentFilter.stripMIMEType(mimeType);
-						FilterMIMEType type = ContentFilter.getMIMEType(mimeType);
-						LinkedList<DownloadRequestStatus> list;
-						if(type == null) {
-							Logger.error(this, "Bad MIME failure code yet MIME is "+mimeType+" which does not have a handler!");
-							list = failedUnknownMIMEType.get(mimeType);
-							if(list == null) {
-								list = new LinkedList<DownloadRequestStatus>();
-								failedUnknownMIMEType.put(mimeType, list);
-							}
-						} else {
-							list = failedBadMIMEType.get(mimeType);
-							if(list == null) {
-								list = new LinkedList<DownloadRequestStatus>();
-								failedBadMIMEType.put(mimeType, list);
-							}
-						}
-						list.add(download);
-					} else {
-						failedDownload.add(download);
-					}
-				} else {
-					short prio = download.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedDownload.add(download);
-					long size = download.getDataSize();
-					if(size > 0)
-						totalQueuedDownloadSize += size;
-				}
-				added = true;
-			} else if(req instanceof UploadFileRequestStatus && uploads) {
-				UploadFileRequestStatus upload = (UploadFileRequestStatus)req;
-				if(upload.hasSucceeded()) {
-					completedUpload.add(upload);
-				} else if(upload.hasFinished()) {
-					failedUpload.add(upload);
-				} else {
-					short prio = upload.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedUpload.add(upload);
-				}
-				long size = upload.getDataSize();
-				if(size > 0)
-					totalQueuedUploadSize += size;
-				added = true;
-			} else if(req instanceof UploadDirRequestStatus && uploads) {
-				UploadDirRequestStatus upload = (UploadDirRequestStatus)req;
-				if(upload.hasSucceeded()) {
-					completedDirUpload.add(upload);
-				} else if(upload.hasFinished()) {
-					failedDirUpload.add(upload);
-				} else {
-					short prio = upload.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedDirUpload.add(upload);
-				}
-				long size = upload.getTotalDataSize();
-				if(size > 0)
-					totalQueuedUploadSize += size;
-                added = true;
-			}
-		}
-		if(!added) {
-		    return sendEmptyQueuePage(ctx, pageMaker);
-		}
 		Logger.minor(this, "Total queued downloads: "+SizeUtil.formatSize(totalQueuedDownloadSize));
 		Logger.minor(this, "Total queued uploads: "+SizeUtil.formatSize(totalQueuedUploadSize));
 
-		Comparator<RequestStatus> jobComparator = new Comparator<RequestStatus>() {
-			@Override
-			public int compare(RequestStatus firstRequest, RequestStatus secondRequest) {
-				
-				if(firstRequest == secondRequest) return 0; // Short cut.
-				
-				int result = 0;
-				boolean isSet = true;
-
-				if(request.isParameterSet("sortBy")){
-					final String sortBy = request.getParam("sortBy");
-
-					if(sortBy.equals("id")){
-						result = firstRequest.getIdentifier().compareToIgnoreCase(secondRequest.getIdentifier());
-						if(result == 0)
-							result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
-					}else if(sortBy.equals("size")){
-						result = Fields.compare(firstRequest.getTotalBlocks(), secondRequest.getTotalBlocks());
-					}else if(sortBy.equals("progress")){
-						boolean firstFinalized = firstRequest.isTotalFinalized();
-						boolean secondFinalized = secondRequest.isTotalFinalized();
-						if(firstFinalized && !secondFinalized)
-							result = 1;
-						else if(secondFinalized && !firstFinalized)
-							result = -1;
-						else {
-							double firstProgress = ((double)firstRequest.getFetchedBlocks()) / ((double)firstRequest.getMinBlocks());
-							double secondProgress = ((double)secondRequest.getFetchedBlocks()) / ((double)secondRequest.getMinBlocks());
-							result = Fields.compare(firstProgress, secondProgress);
-						}
-					} else if (sortBy.equals("lastActivity")) {
-                        result = Fields.compare(firstRequest.getLastSuccess(),
-                                                secondRequest.getLastSuccess());
-                    } else if (sortBy.equals("lastFailure")) {
-                        result = Fields.compare(firstRequest.getLastFailure(),
-                                                secondRequest.getLastFailure());
-					}else
-						isSet=false;
-				}else
-					isSet=false;
-
-				if(!isSet){
-					result = Fields.compare(firstRequest.getPriority(), secondRequest.getPriority());
-					if(result == 0)
-						result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
-				}
-
-				if(result == 0){
-					return 0;
-				}else if(request.isParameterSet("reversed")){
-					isReversed = true;
-					return result > 0 ? -1 : 1;
-				}else{
-					isReversed = false;
-					return result < 0 ? -1 : 1;
-				}
-			}
-		};
-
-		Collections.sort(completedDownloadToDisk, jobComparator);
-		Collections.sort(completedDownloadToTemp, jobComparator);
-		Collections.sort(completedUpload, jobComparator);
-		Collections.sort(completedDirUpload, jobComparator);
-		Collections.sort(failedDownload, jobComparator);
-		Collections.sort(failedUpload, jobComparator);
-		Collections.sort(failedDirUpload, jobComparator);
-		Collections.sort(uncompletedDownload, jobComparator);
-		Collections.sort(uncompletedUpload, jobComparator);
-		Collections.sort(uncompletedDirUpload, jobComparator);
-
 		String pageName;
 		if(uploads)
 			pageName =
@@ -1447,78 +1376,64 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		InfoboxNode infobox = pageMaker.getInfobox("navbar", l10n("requestNavigation"), null, false);
 		HTMLNode navigationBar = infobox.outer;
 		HTMLNode navigationContent = infobox.content.addChild("ul");
-		boolean includeNavigationBar = false;
 		if (!completedDownloadToTemp.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#completedDownloadToTemp", l10n("completedDtoTemp", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }));
-			includeNavigationBar = true;
 		}
 		if (!completedDownloadToDisk.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#completedDownloadToDisk", l10n("completedDtoDisk", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }));
-			includeNavigationBar = true;
 		}
 		if (!completedUpload.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#completedUpload", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }));
-			includeNavigationBar = true;
 		}
 		if (!completedDirUpload.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#completedDirUpload", l10n("completedDU", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }));
-			includeNavigationBar = true;
 		}
 		if (!failedDownload.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#failedDownload", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }));
-			includeNavigationBar = true;
 		}
 		if (!failedUpload.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#failedUpload", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }));
-			includeNavigationBar = true;
 		}
 		if (!failedDirUpload.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#failedDirUpload", l10n("failedDU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }));
-			includeNavigationBar = true;
 		}
-		if (failedUnknownMIMEType.size() > 0) {
-			String[] types = failedUnknownMIMEType.keySet().toArray(new String[failedUnknownMIMEType.size()]);
-			Arrays.sort(types);
-			for(String type : types) {
-				String atype = type.replace("-", "--").replace('/', '-');
-				navigationContent.addChild("li").addChild("a", "href", "#failedDownload-unknowntype-"+atype, l10n("failedDUnknownMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(failedUnknownMIMEType.get(type).size()), type }));
-			}
+		for(Map.Entry<String, TablePage> e : failedUnknownMIMEType.entrySet()) {
+			String type = e.getKey();
+			navigationContent.addChild("li").addChild("a", "href", "#"+e.getValue().anchor, l10n("failedDUnknownMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(e.getValue().size()), type }));
 		}
-		if (failedBadMIMEType.size() > 0) {
-			String[] types = failedBadMIMEType.keySet().toArray(new String[failedBadMIMEType.size()]);
-			Arrays.sort(types);
-			for(String type : types) {
-				String atype = type.replace("-", "--").replace('/', '-');
-				navigationContent.addChild("li").addChild("a", "href", "#failedDownload-badtype-"+atype, l10n("failedDBadMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(failedBadMIMEType.get(type).size()), type }));
-			}
+		for(Map.Entry<String, TablePage> e : failedBadMIMEType.entrySet()) {
+			String type = e.getKey();
+			navigationContent.addChild("li").addChild("a", "href", "#"+e.getValue().anchor, l10n("failedDBadMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(e.getValue().size()), type }));
 		}
 		if (!uncompletedDownload.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#uncompletedDownload", l10n("DinProgress", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDownload.size()) }));
-			includeNavigationBar = true;
 		}
 		if (!uncompletedUpload.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#uncompletedUpload", l10n("UinProgress", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedUpload.size()) }));
-			includeNavigationBar = true;
 		}
 		if (!uncompletedDirUpload.isEmpty()) {
 			navigationContent.addChild("li").addChild("a", "href", "#uncompletedDirUpload", l10n("DUinProgress", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDirUpload.size()) }));
-			includeNavigationBar = true;
 		}
 		if (totalQueuedDownloadSize > 0) {
 			navigationContent.addChild("li", l10n("totalQueuedDownloads", "size", SizeUtil.formatSize(totalQueuedDownloadSize)));
-			includeNavigationBar = true;
 		}
 		if (totalQueuedUploadSize > 0) {
 			navigationContent.addChild("li", l10n("totalQueuedUploads", "size", SizeUtil.formatSize(totalQueuedUploadSize)));
-			includeNavigationBar = true;
 		}
 
         navigationContent.addChild("li").addChild("a", "href", KEY_LIST_LOCATION,
                                                   l10n("openKeyList"));
 
-		if (includeNavigationBar) {
-			contentNode.addChild(navigationBar);
-		}
+		HTMLNode filterForm = infobox.content.addChild("form", new String[] { "action", "method" }, new String[] { path(), "get" });
+		if(view.sortBy.param != null)
+			filterForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "sortBy", view.sortBy.param });
+		if(view.reversed)
+			filterForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "reversed", "true" });
+		filterForm.addChild("#", l10n("filterQueue")+" ");
+		filterForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "text", "filter", view.filter == null ? "" : view.filter });
+		filterForm.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("filterQueueButton") });
+
+		contentNode.addChild(navigationBar);
 
 		final String[] priorityClasses = new String[] {
 				l10n("priority0"),
@@ -1633,12 +1548,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		}
 
 		if(!failedBadMIMEType.isEmpty()) {
-			String[] types = failedBadMIMEType.keySet().toArray(new String[failedBadMIMEType.size()]);
-			Arrays.sort(types);
-			for(String type : types) {
-				LinkedList<DownloadRequestStatus> getters = failedBadMIMEType.get(type);
+			for(Map.Entry<String, TablePage> entry : failedBadMIMEType.entrySet()) {
+				String type = entry.getKey();
+				TablePage getters = entry.getValue();
 				String atype = type.replace("-", "--").replace('/', '-');
-				contentNode.addChild("a", "id", "failedDownload-badtype-"+atype);
+				contentNode.addChild("a", "id", getters.anchor);
 				FilterMIMEType typeHandler = ContentFilter.getMIMEType(type);
 				HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedDBadMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(getters.size()), type }), contentNode, "download-failed-"+atype, false);
 				// FIXME add a class for easier styling.
@@ -1651,7 +1565,6 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 						list.addChild("li", s);
 				}
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
 					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				} else {
@@ -1661,17 +1574,15 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		}
 
 		if(!failedUnknownMIMEType.isEmpty()) {
-			String[] types = failedUnknownMIMEType.keySet().toArray(new String[failedUnknownMIMEType.size()]);
-			Arrays.sort(types);
-			for(String type : types) {
-				LinkedList<DownloadRequestStatus> getters = failedUnknownMIMEType.get(type);
+			for(Map.Entry<String, TablePage> entry : failedUnknownMIMEType.entrySet()) {
+				String type = entry.getKey();
+				TablePage getters = entry.getValue();
 				String atype = type.replace("-", "--").replace('/', '-');
-				contentNode.addChild("a", "id", "failedDownload-unknowntype-"+atype);
+				contentNode.addChild("a", "id", getters.anchor);
 				HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedDUnknownMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(getters.size()), type }), contentNode, "download-failed-"+atype, false);
 				// FIXME add a class for easier styling.
 				failedContent.addChild("p", NodeL10n.getBase().getString("UnknownContentTypeException.explanation", "type", type));
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
 					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				} else {
@@ -2089,13 +2000,13 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
         return lastFailureCell;
     }
 
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
-		return createRequestTable(pageMaker, ctx, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, TablePage page, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
+		return createRequestTable(pageMaker, ctx, page, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
 	}
 	
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
+	private HTMLNode createRequestTable(PageMaker pageMaker, final ToadletContext ctx, final TablePage page, final QueueColumn[] columns, final String[] priorityClasses, final boolean advancedModeEnabled, String id, String mimeType, final QueueType queueType) {
 		boolean hasFriends = core.node.getDarknetConnections().length > 0;
-		long now = System.currentTimeMillis();
+		final long now = System.currentTimeMillis();
 		
 		HTMLNode formDiv = new HTMLNode("div", "class", "request-table-form");
 		HTMLNode form = ctx.addFormChild(formDiv, path(), "request-table-form-"+id+(advancedModeEnabled?"-advanced":"-simple"));
@@ -2157,98 +2068,149 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					break;
 			}
 		}
-		//Add a row with a checkbox for each request.
-		int x = 0;
-		for (RequestStatus clientRequest : requests) {
-			HTMLNode requestRow = table.addChild("tr", "class", "priority" + clientRequest.getPriority());
-			requestRow.addChild(createCheckboxCell(clientRequest, x++));
-
-			for (QueueColumn column : columns) {
-				switch (column) {
-					case IDENTIFIER:
-						requestRow.addChild(createIdentifierCell(clientRequest.getURI(), clientRequest.getIdentifier(), clientRequest instanceof UploadDirRequestStatus));
-						break;
-					case SIZE:
-						boolean isFinal = true;
-						if(clientRequest instanceof DownloadRequestStatus)
-							isFinal = ((DownloadRequestStatus)clientRequest).isTotalFinalized();
-						requestRow.addChild(createSizeCell(clientRequest.getDataSize(), isFinal, advancedModeEnabled));
-						break;
-					case MIME_TYPE:
-						if (clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createTypeCell(((DownloadRequestStatus) clientRequest).getMIMEType()));
-						} else if (clientRequest instanceof UploadFileRequestStatus) {
-							requestRow.addChild(createTypeCell(((UploadFileRequestStatus) clientRequest).getMIMEType()));
-						}
-						break;
-					case PERSISTENCE:
-						requestRow.addChild(createPersistenceCell(clientRequest.isPersistent(), clientRequest.isPersistentForever()));
-						break;
-					case KEY:
-						if (clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createKeyCell(((DownloadRequestStatus) clientRequest).getURI(), false));
-						} else if (clientRequest instanceof UploadFileRequestStatus) {
-							requestRow.addChild(createKeyCell(((UploadFileRequestStatus) clientRequest).getFinalURI(), false));
-						}else {
-							requestRow.addChild(createKeyCell(((UploadDirRequestStatus) clientRequest).getFinalURI(), true));
-						}
-						break;
-					case FILENAME:
-						if (clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createFilenameCell(((DownloadRequestStatus) clientRequest).getDestFilename()));
-						} else if (clientRequest instanceof UploadFileRequestStatus) {
-							requestRow.addChild(createFilenameCell(((UploadFileRequestStatus) clientRequest).getOrigFilename()));
-						}
-						break;
-					case PRIORITY:
-						requestRow.addChild(createPriorityCell(clientRequest.getPriority(), priorityClasses));
-						break;
-					case FILES:
-						requestRow.addChild(createNumberCell(((UploadDirRequestStatus) clientRequest).getNumberOfFiles()));
-						break;
-					case TOTAL_SIZE:
-						requestRow.addChild(createSizeCell(((UploadDirRequestStatus) clientRequest).getTotalDataSize(), true, advancedModeEnabled));
-						break;
-					case PROGRESS:
-						if(clientRequest instanceof UploadFileRequestStatus)
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), ((UploadFileRequestStatus)clientRequest).isCompressing(),
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
-						else
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), COMPRESS_STATE.WORKING,
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
-						break;
-					case REASON:
-						requestRow.addChild(createReasonCell(clientRequest.getFailureReason(false)));
-						break;
-					case LAST_ACTIVITY:
-						requestRow.addChild(createLastActivityCell(now, clientRequest.getLastSuccess()));
-						break;
+		//Add a row with a checkbox for each request. The rows are only built when the page is
+		//rendered, so a long queue streamed to the browser is never all in memory at once.
+		table.addChild(HTMLNode.lazy(new Iterable<HTMLNode>() {
+
+			@Override
+			public Iterator<HTMLNode> iterator() {
+				final Iterator<RequestStatus> it = page.requests.iterator();
+				return new Iterator<HTMLNode>() {
+
+					private int x = 0;
+
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public HTMLNode next() {
+						return createRequestRow(it.next(), x++, columns, priorityClasses, advancedModeEnabled, now, ctx, queueType);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+
+				};
+			}
+
+		}));
+		if(page.requests.size() < page.size())
+			form.addChild(createPager(page));
+		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, false, queueType);
+		return formDiv;
+	}
+
+	/** Links to the previous and next pages of a table which doesn't fit on one page. */
+	private HTMLNode createPager(TablePage page) {
+		QueueView view = page.view;
+		HTMLNode pager = new HTMLNode("p", "class", "request-table-pager");
+		int from = Math.min(page.start + 1, page.size());
+		int to = page.start + page.requests.size();
+		pager.addChild("#", l10n("pageOfRequests", new String[] { "from", "to", "total" },
+				new String[] { Integer.toString(from), Integer.toString(to), Integer.toString(page.size()) }));
+		if(page.start > 0) {
+			pager.addChild("#", " ");
+			pager.addChild("a", "href", view.link(page.anchor, Math.max(0, page.start - view.rows)), l10n("previousPage"));
+		}
+		if(to < page.size()) {
+			pager.addChild("#", " ");
+			pager.addChild("a", "href", view.link(page.anchor, to), l10n("nextPage"));
+		}
+		return pager;
+	}
+
+	private HTMLNode createRequestRow(RequestStatus clientRequest, int x, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, long now, ToadletContext ctx, QueueType queueType) {
+		HTMLNode requestRow = new HTMLNode("tr", "class", "priority" + clientRequest.getPriority());
+		requestRow.addChild(createCheckboxCell(clientRequest, x));
+
+		for (QueueColumn column : columns) {
+			switch (column) {
+				case IDENTIFIER:
+					requestRow.addChild(createIdentifierCell(clientRequest.getURI(), clientRequest.getIdentifier(), clientRequest instanceof UploadDirRequestStatus));
+					break;
+				case SIZE:
+					boolean isFinal = true;
+					if(clientRequest instanceof DownloadRequestStatus)
+						isFinal = ((DownloadRequestStatus)clientRequest).isTotalFinalized();
+					requestRow.addChild(createSizeCell(clientRequest.getDataSize(), isFinal, advancedModeEnabled));
+					break;
+				case MIME_TYPE:
+					if (clientRequest instanceof DownloadRequestStatus) {
+						requestRow.addChild(createTypeCell(((DownloadRequestStatus) clientRequest).getMIMEType()));
+					} else if (clientRequest instanceof UploadFileRequestStatus) {
+						requestRow.addChild(createTypeCell(((UploadFileRequestStatus) clientRequest).getMIMEType()));
+					}
+					break;
+				case PERSISTENCE:
+					requestRow.addChild(createPersistenceCell(clientRequest.isPersistent(), clientRequest.isPersistentForever()));
+					break;
+				case KEY:
+					if (clientRequest instanceof DownloadRequestStatus) {
+						requestRow.addChild(createKeyCell(((DownloadRequestStatus) clientRequest).getURI(), false));
+					} else if (clientRequest instanceof UploadFileRequestStatus) {
+						requestRow.addChild(createKeyCell(((UploadFileRequestStatus) clientRequest).getFinalURI(), false));
+					}else {
+						requestRow.addChild(createKeyCell(((UploadDirRequestStatus) clientRequest).getFinalURI(), true));
+					}
+					break;
+				case FILENAME:
+					if (clientRequest instanceof DownloadRequestStatus) {
+						requestRow.addChild(createFilenameCell(((DownloadRequestStatus) clientRequest).getDestFilename()));
+					} else if (clientRequest instanceof UploadFileRequestStatus) {
+						requestRow.addChild(createFilenameCell(((UploadFileRequestStatus) clientRequest).getOrigFilename()));
+					}
+					break;
+				case PRIORITY:
+					requestRow.addChild(createPriorityCell(clientRequest.getPriority(), priorityClasses));
+					break;
+				case FILES:
+					requestRow.addChild(createNumberCell(((UploadDirRequestStatus) clientRequest).getNumberOfFiles()));
+					break;
+				case TOTAL_SIZE:
+					requestRow.addChild(createSizeCell(((UploadDirRequestStatus) clientRequest).getTotalDataSize(), true, advancedModeEnabled));
+					break;
+				case PROGRESS:
+					if(clientRequest instanceof UploadFileRequestStatus)
+						requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
+								clientRequest.isStarted(), ((UploadFileRequestStatus)clientRequest).isCompressing(),
+								clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
+								clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
+								clientRequest.getTotalBlocks(),
+								clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
+								queueType.isUpload));
+					else
+						requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
+								clientRequest.isStarted(), COMPRESS_STATE.WORKING,
+								clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
+								clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
+								clientRequest.getTotalBlocks(),
+								clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
+								queueType.isUpload));
+					break;
+				case REASON:
+					requestRow.addChild(createReasonCell(clientRequest.getFailureReason(false)));
+					break;
+				case LAST_ACTIVITY:
+					requestRow.addChild(createLastActivityCell(now, clientRequest.getLastSuccess()));
+					break;
                     case LAST_FAILURE:
                         requestRow.addChild(createLastFailureCell(now,
                                 clientRequest.getLastFailure()));
                         break;
-					case COMPAT_MODE:
-						if(clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createCompatModeCell((DownloadRequestStatus)clientRequest));
-						} else {
-							requestRow.addChild("td");
-						}
-						break;
-				}
+				case COMPAT_MODE:
+					if(clientRequest instanceof DownloadRequestStatus) {
+						requestRow.addChild(createCompatModeCell((DownloadRequestStatus)clientRequest));
+					} else {
+						requestRow.addChild("td");
+					}
+					break;
 			}
 		}
-		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, false, queueType);
-		return formDiv;
+		return requestRow;
 	}
 
 	private void createRequestTableButtons(HTMLNode form, PageMaker pageMaker,
@@ -7,6 +7,8 @@ import org.tanukisoftware.wrapper.WrapperManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
@@ -28,8 +30,10 @@ import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
+import freenet.io.SelectorLoop;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
 import freenet.node.Node;
@@ -45,6 +49,7 @@ import freenet.support.HTMLNode;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.MultiValueTable;
 import freenet.support.Ticker;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.BucketFactory;
@@ -124,6 +129,12 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	
 	private boolean finishedStartup;
 	
+	/** Serve non-SSL connections once we have finished starting up. Null if we haven't started
+	 * them yet, or couldn't. */
+	private SelectorLoop[] selectorLoops;
+	private boolean triedSelectorLoops;
+	private int nextSelectorLoop;
+	
 	/** The PushDataManager handles all the pushing tasks*/
 	public PushDataManager pushDataManager; 
 	
@@ -827,7 +838,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
-			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			this.networkInterface = ChannelNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
 	}		
 
@@ -994,20 +1005,91 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				}
 				if((!finishedStartup) && this.finishedStartup)
 					finishedStartup = true;
-				if(myThread == null) return;
+				if(myThread == null) {
+					closeSelectorLoops();
+					return;
+				}
 			}
 			Socket conn = networkInterface.accept();
-			if (WrapperManager.hasShutdownHookBeenTriggered())
+			if (WrapperManager.hasShutdownHookBeenTriggered()) {
+				closeSelectorLoops();
 				return;
+			}
             if(conn == null)
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            SelectorLoop loop = finishedStartup ? nextSelectorLoop() : null;
+            if(loop != null && conn.getChannel() != null) {
+            	synchronized(this) {
+            		fproxyConnections++;
+            	}
+            	try {
+            		new HTTPChannelConnection(this, conn.getChannel(), loop, executor).start();
+            	} catch (IOException e) {
+            		Logger.error(this, "Unable to start HTTP connection from "+conn.getRemoteSocketAddress()+": "+e, e);
+            		try {
+            			conn.close();
+            		} catch (IOException e1) {
+            			// Ignore
+            		}
+            		channelConnectionClosed();
+            	}
+            	continue;
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
 	
+	/** @return The loop to serve the next connection, or null to use a thread. */
+	private synchronized SelectorLoop nextSelectorLoop() {
+		if(!triedSelectorLoops) {
+			triedSelectorLoops = true;
+			int count = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+			SelectorLoop[] loops = new SelectorLoop[count];
+			try {
+				for(int i=0;i<count;i++)
+					loops[i] = new SelectorLoop();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to open selector, using a thread per HTTP connection: "+e, e);
+				for(SelectorLoop loop : loops)
+					if(loop != null) loop.close();
+				return null;
+			}
+			for(int i=0;i<count;i++)
+				loops[i].start(executor, "HTTP selector "+i);
+			selectorLoops = loops;
+		}
+		if(selectorLoops == null) return null;
+		// Masked so that it stays positive when the counter wraps around.
+		return selectorLoops[(nextSelectorLoop++ & Integer.MAX_VALUE) % selectorLoops.length];
+	}
+
+	/** Called when the server thread exits. */
+	private synchronized void closeSelectorLoops() {
+		// FProxy has been restarted already, and the new thread will use them.
+		if(myThread != null && myThread != Thread.currentThread()) return;
+		if(selectorLoops != null) {
+			for(SelectorLoop loop : selectorLoops)
+				loop.close();
+		}
+		selectorLoops = null;
+		triedSelectorLoops = false;
+	}
+	
+	/** Handle a request read by an HTTPChannelConnection, see ToadletContextImpl.handleRequest(). */
+	boolean handleRequest(String method, String uri, String protocol, MultiValueTable<String,String> headers, InputStream is, OutputStream os, InetAddress remoteAddr, HTTPChannelConnection conn) {
+		return ToadletContextImpl.handleRequest(method, uri, protocol, headers, is, os, remoteAddr, this, pageMaker, getUserAlertManager(), bookmarkManager, conn);
+	}
+	
+	void channelConnectionClosed() {
+		synchronized(this) {
+			fproxyConnections--;
+			notifyAll();
+		}
+	}
+	
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import freenet.node.Node;
+import freenet.support.Logger;
+
+/**
+ * Builds a StatisticsSnapshot every INTERVAL on the ticker, so that the statistics page doesn't
+ * walk the peers, threads and stores on the request path. It only runs while somebody is
+ * looking: if no snapshot has been asked for in IDLE_TIMEOUT it stops, and the next request
+ * builds a fresh snapshot and starts it again.
+ *
+ * LOCKING: Only the bookkeeping is synchronized on this. Snapshots are built outside the lock.
+ */
+class StatisticsAggregator implements Runnable {
+
+	static final long INTERVAL = SECONDS.toMillis(10);
+	static final long IDLE_TIMEOUT = MINUTES.toMillis(5);
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(StatisticsAggregator.class);
+	}
+
+	private final Node node;
+	private StatisticsSnapshot snapshot;
+	/** When get() was last called. */
+	private long lastRead;
+	/** True if the job is queued on the ticker. */
+	private boolean running;
+
+	StatisticsAggregator(Node node) {
+		this.node = node;
+	}
+
+	/**
+	 * @return The latest snapshot, at most INTERVAL old, or more if building it takes longer.
+	 * If the aggregator is not running, starts it, building a snapshot first if the last one is
+	 * too old.
+	 */
+	StatisticsSnapshot get() {
+		StatisticsSnapshot s;
+		boolean start;
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			lastRead = now;
+			s = snapshot;
+			start = !running;
+			running = true;
+		}
+		if(start) schedule();
+		if(s == null || (start && now - s.time > INTERVAL))
+			s = refresh();
+		return s;
+	}
+
+	@Override
+	public void run() {
+		synchronized(this) {
+			if(System.currentTimeMillis() - lastRead > IDLE_TIMEOUT) {
+				if(logMINOR) Logger.minor(this, "Nobody is reading statistics, stopping");
+				running = false;
+				return;
+			}
+		}
+		try {
+			refresh();
+		} catch (Throwable t) {
+			Logger.error(this, "Failed to collect statistics: "+t, t);
+		} finally {
+			schedule();
+		}
+	}
+
+	private void schedule() {
+		node.ticker.queueTimedJob(this, "Statistics aggregator", INTERVAL, false, true);
+	}
+
+	private StatisticsSnapshot refresh() {
+		long start = System.currentTimeMillis();
+		StatisticsSnapshot s = new StatisticsSnapshot(node);
+		if(logMINOR) Logger.minor(this, "Collected statistics in "+(System.currentTimeMillis() - start)+"ms");
+		synchronized(this) {
+			// A request may have built one concurrently.
+			if(snapshot == null || snapshot.time < s.time)
+				snapshot = s;
+			return snapshot;
+		}
+	}
+
+}
@@ -0,0 +1,501 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import freenet.io.xfer.BlockReceiver;
+import freenet.io.xfer.BlockTransmitter;
+import freenet.node.Location;
+import freenet.node.Node;
+import freenet.node.NodeStats;
+import freenet.node.PeerManager;
+import freenet.node.PeerNodeStatus;
+import freenet.node.RequestTracker;
+import freenet.node.stats.DataStoreInstanceType;
+import freenet.node.stats.DataStoreStats;
+import freenet.node.stats.StatsNotAvailableException;
+import freenet.node.stats.StoreAccessStats;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.NativeThread;
+
+/**
+ * The numbers shown on the statistics page which are expensive to collect: peer statuses and
+ * the histograms computed from them, thread usage, datastore statistics, request counts and
+ * the volatile NodeStats. Built by StatisticsAggregator off the request path and never changed
+ * afterwards, so it can be read by any number of requests without locking.
+ */
+final class StatisticsSnapshot {
+
+	/** Number of buckets in the FOAF link length histogram. */
+	static final int HISTOGRAM_LENGTH = 10;
+
+	/** When the snapshot was taken. */
+	final long time;
+	/** Peer statuses, sorted by status. */
+	private final PeerNodeStatus[] peerNodeStatuses;
+	/** Peers by status, only counting peers whose status is recorded. */
+	private final int[] recordedPeerCounts;
+	/** Peers by status, including those whose status isn't recorded. */
+	private final int[] peerCounts;
+	final int seedServers;
+	final int seedClients;
+	private final int[] foafLinkHistogram;
+	final int foafLinkCount;
+	private final Map<String, Integer> backoffReasonsBulk;
+	private final Map<String, Integer> backoffReasonsRT;
+
+	final RequestCounts requests;
+
+	final long usedMemory;
+	final long allocatedMemory;
+	final long maxMemory;
+	final int availableCPUs;
+	final int activeThreads;
+	final int threadLimit;
+	private final int[] runningThreadsByPriority;
+	private final int[] waitingThreadsByPriority;
+	private final ThreadBunch[] threadBunches;
+	final int totalThreads;
+
+	private final Map<DataStoreInstanceType, DataStoreStats> storeStats;
+	final long totalUptimeSeconds;
+
+	private final SimpleFieldSet nodeStats;
+
+	/** How many requests of each kind are running, from the RequestTracker. */
+	static final class RequestCounts {
+		final int localCHKInserts;
+		final int remoteCHKInserts;
+		final int localSSKInserts;
+		final int remoteSSKInserts;
+		final int localCHKRequests;
+		final int remoteCHKRequests;
+		final int localSSKRequests;
+		final int remoteSSKRequests;
+		final int transferringRequestSenders;
+		final int transferringRequestHandlers;
+		final int chkOfferReplies;
+		final int sskOfferReplies;
+		final int runningBlockSends;
+		final int runningBlockReceives;
+
+		RequestCounts(RequestTracker tracker) {
+			localCHKInserts = tracker.getNumLocalCHKInserts();
+			remoteCHKInserts = tracker.getNumRemoteCHKInserts();
+			localSSKInserts = tracker.getNumLocalSSKInserts();
+			remoteSSKInserts = tracker.getNumRemoteSSKInserts();
+			localCHKRequests = tracker.getNumLocalCHKRequests();
+			remoteCHKRequests = tracker.getNumRemoteCHKRequests();
+			localSSKRequests = tracker.getNumLocalSSKRequests();
+			remoteSSKRequests = tracker.getNumRemoteSSKRequests();
+			transferringRequestSenders = tracker.getNumTransferringRequestSenders();
+			transferringRequestHandlers = tracker.getNumTransferringRequestHandlers();
+			chkOfferReplies = tracker.getNumCHKOfferReplies();
+			sskOfferReplies = tracker.getNumSSKOfferReplies();
+			runningBlockSends = BlockTransmitter.getRunningSends();
+			runningBlockReceives = BlockReceiver.getRunningReceives();
+		}
+
+		void toFieldSet(SimpleFieldSet fs) {
+			fs.put("localCHKInserts", localCHKInserts);
+			fs.put("remoteCHKInserts", remoteCHKInserts);
+			fs.put("localSSKInserts", localSSKInserts);
+			fs.put("remoteSSKInserts", remoteSSKInserts);
+			fs.put("localCHKRequests", localCHKRequests);
+			fs.put("remoteCHKRequests", remoteCHKRequests);
+			fs.put("localSSKRequests", localSSKRequests);
+			fs.put("remoteSSKRequests", remoteSSKRequests);
+			fs.put("transferringRequestSenders", transferringRequestSenders);
+			fs.put("transferringRequestHandlers", transferringRequestHandlers);
+			fs.put("chkOfferReplies", chkOfferReplies);
+			fs.put("sskOfferReplies", sskOfferReplies);
+			fs.put("runningBlockSends", runningBlockSends);
+			fs.put("runningBlockReceives", runningBlockReceives);
+		}
+	}
+
+	/** Threads with the same normalized name. */
+	static final class ThreadBunch {
+		final String name;
+		private int count;
+
+		ThreadBunch(String name) {
+			this.name = name;
+		}
+
+		int count() {
+			return count;
+		}
+	}
+
+	/** A copy of the access counts of a store. */
+	private static final class FrozenAccessStats extends StoreAccessStats {
+		private final long hits;
+		private final long misses;
+		private final long falsePos;
+		private final long writes;
+
+		FrozenAccessStats(StoreAccessStats stats) {
+			hits = stats.hits();
+			misses = stats.misses();
+			falsePos = stats.falsePos();
+			writes = stats.writes();
+		}
+
+		@Override
+		public long hits() {
+			return hits;
+		}
+
+		@Override
+		public long misses() {
+			return misses;
+		}
+
+		@Override
+		public long falsePos() {
+			return falsePos;
+		}
+
+		@Override
+		public long writes() {
+			return writes;
+		}
+	}
+
+	/** A copy of the statistics of a store. Unavailable values are stored as NaN. */
+	private static final class FrozenStoreStats implements DataStoreStats {
+		private final long keys;
+		private final long capacity;
+		private final long dataSize;
+		private final double utilization;
+		private final double avgLocation;
+		private final double avgSuccess;
+		private final double furthestSuccess;
+		private final double avgDist;
+		private final double distanceStats;
+		private final StoreAccessStats sessionAccess;
+		private final StoreAccessStats totalAccess;
+
+		FrozenStoreStats(DataStoreStats stats) {
+			keys = stats.keys();
+			capacity = stats.capacity();
+			dataSize = stats.dataSize();
+			utilization = stats.utilization();
+			double d;
+			try {
+				d = stats.avgLocation();
+			} catch (StatsNotAvailableException e) {
+				d = Double.NaN;
+			}
+			avgLocation = d;
+			try {
+				d = stats.avgSuccess();
+			} catch (StatsNotAvailableException e) {
+				d = Double.NaN;
+			}
+			avgSuccess = d;
+			try {
+				d = stats.furthestSuccess();
+			} catch (StatsNotAvailableException e) {
+				d = Double.NaN;
+			}
+			furthestSuccess = d;
+			try {
+				d = stats.avgDist();
+			} catch (StatsNotAvailableException e) {
+				d = Double.NaN;
+			}
+			avgDist = d;
+			try {
+				d = stats.distanceStats();
+			} catch (StatsNotAvailableException e) {
+				d = Double.NaN;
+			}
+			distanceStats = d;
+			sessionAccess = new FrozenAccessStats(stats.getSessionAccessStats());
+			StoreAccessStats total;
+			try {
+				total = new FrozenAccessStats(stats.getTotalAccessStats());
+			} catch (StatsNotAvailableException e) {
+				total = null;
+			}
+			totalAccess = total;
+		}
+
+		private static double available(double d) throws StatsNotAvailableException {
+			if(Double.isNaN(d)) throw new StatsNotAvailableException();
+			return d;
+		}
+
+		@Override
+		public long keys() {
+			return keys;
+		}
+
+		@Override
+		public long capacity() {
+			return capacity;
+		}
+
+		@Override
+		public long dataSize() {
+			return dataSize;
+		}
+
+		@Override
+		public double utilization() {
+			return utilization;
+		}
+
+		@Override
+		public double avgLocation() throws StatsNotAvailableException {
+			return available(avgLocation);
+		}
+
+		@Override
+		public double avgSuccess() throws StatsNotAvailableException {
+			return available(avgSuccess);
+		}
+
+		@Override
+		public double furthestSuccess() throws StatsNotAvailableException {
+			return available(furthestSuccess);
+		}
+
+		@Override
+		public double avgDist() throws StatsNotAvailableException {
+			return available(avgDist);
+		}
+
+		@Override
+		public double distanceStats() throws StatsNotAvailableException {
+			return available(distanceStats);
+		}
+
+		@Override
+		public StoreAccessStats getSessionAccessStats() {
+			return sessionAccess;
+		}
+
+		@Override
+		public StoreAccessStats getTotalAccessStats() throws StatsNotAvailableException {
+			if(totalAccess == null) throw new StatsNotAvailableException();
+			return totalAccess;
+		}
+	}
+
+	/** Collect the statistics. Takes the locks of the peers, the stores and so on in turn. */
+	StatisticsSnapshot(Node node) {
+		time = System.currentTimeMillis();
+		PeerManager peers = node.peers;
+		NodeStats stats = node.nodeStats;
+
+		PeerNodeStatus[] statuses = peers.getPeerNodeStatuses(true);
+		Arrays.sort(statuses, new Comparator<PeerNodeStatus>() {
+			@Override
+			public int compare(PeerNodeStatus firstNode, PeerNodeStatus secondNode) {
+				return firstNode.getStatusValue() - secondNode.getStatusValue();
+			}
+		});
+		peerNodeStatuses = statuses;
+		int maxStatus = 0;
+		for(PeerNodeStatus status : statuses)
+			maxStatus = Math.max(maxStatus, status.getStatusValue());
+		recordedPeerCounts = new int[maxStatus + 1];
+		peerCounts = new int[maxStatus + 1];
+		int servers = 0;
+		int clients = 0;
+		foafLinkHistogram = new int[HISTOGRAM_LENGTH];
+		int links = 0;
+		for(PeerNodeStatus status : statuses) {
+			peerCounts[status.getStatusValue()]++;
+			if(status.recordStatus())
+				recordedPeerCounts[status.getStatusValue()]++;
+			if(status.isSeedServer()) servers++;
+			if(status.isSeedClient()) clients++;
+			if(!status.isSearchable() || !status.isRoutable()) continue;
+			double peerLoc = status.getLocation();
+			if(!Location.isValid(peerLoc)) continue;
+			double[] foafLocs = status.getPeersLocation();
+			if(foafLocs == null) continue;
+			for(double foafLoc : foafLocs) {
+				if(!Location.isValid(foafLoc)) continue;
+				int idx = (int)Math.floor(Location.distance(peerLoc, foafLoc) * HISTOGRAM_LENGTH / 0.5);
+				foafLinkHistogram[Math.min(idx, HISTOGRAM_LENGTH - 1)]++;
+				links++;
+			}
+		}
+		seedServers = servers;
+		seedClients = clients;
+		foafLinkCount = links;
+		backoffReasonsBulk = backoffReasons(peers, false);
+		backoffReasonsRT = backoffReasons(peers, true);
+
+		requests = new RequestCounts(node.tracker);
+
+		Runtime rt = Runtime.getRuntime();
+		long freeMemory = rt.freeMemory();
+		allocatedMemory = rt.totalMemory();
+		usedMemory = allocatedMemory - freeMemory;
+		maxMemory = rt.maxMemory();
+		availableCPUs = rt.availableProcessors();
+		activeThreads = stats.getActiveThreadCount();
+		threadLimit = stats.getThreadLimit();
+		runningThreadsByPriority = stats.getActiveThreadsByPriority();
+		waitingThreadsByPriority = stats.getWaitingThreadsByPriority();
+		LinkedHashMap<String, ThreadBunch> bunches = new LinkedHashMap<String, ThreadBunch>();
+		int threadCount = 0;
+		for(Thread thread : stats.getThreads()) {
+			if(thread == null) break;
+			String name = NativeThread.normalizeName(thread.getName());
+			ThreadBunch bunch = bunches.get(name);
+			if(bunch == null) {
+				bunch = new ThreadBunch(name);
+				bunches.put(name, bunch);
+			}
+			bunch.count++;
+			threadCount++;
+		}
+		threadBunches = bunches.values().toArray(new ThreadBunch[bunches.size()]);
+		Arrays.sort(threadBunches, new Comparator<ThreadBunch>() {
+			@Override
+			public int compare(ThreadBunch b0, ThreadBunch b1) {
+				if(b0.count > b1.count) return -1;
+				if(b0.count < b1.count) return 1;
+				return b0.name.compareTo(b1.name);
+			}
+		});
+		totalThreads = threadCount;
+
+		LinkedHashMap<DataStoreInstanceType, DataStoreStats> stores = new LinkedHashMap<DataStoreInstanceType, DataStoreStats>();
+		for(Map.Entry<DataStoreInstanceType, DataStoreStats> entry : node.getDataStoreStats().entrySet())
+			stores.put(entry.getKey(), new FrozenStoreStats(entry.getValue()));
+		storeStats = Collections.unmodifiableMap(stores);
+		totalUptimeSeconds = node.clientCore.bandwidthStatsPutter.getLatestUptimeData().totalUptime;
+
+		nodeStats = stats.exportVolatileFieldSet();
+	}
+
+	private static Map<String, Integer> backoffReasons(PeerManager peers, boolean realTime) {
+		Map<String, Integer> reasons = new LinkedHashMap<String, Integer>();
+		for(String reason : peers.getPeerNodeRoutingBackoffReasons(realTime)) {
+			int count = peers.getPeerNodeRoutingBackoffReasonSize(reason, realTime);
+			if(count > 0) reasons.put(reason, count);
+		}
+		return Collections.unmodifiableMap(reasons);
+	}
+
+	/** Peer statuses, sorted by status. Do not modify the array. */
+	PeerNodeStatus[] getPeerNodeStatuses() {
+		return peerNodeStatuses;
+	}
+
+	/** The number of peers with the given status, not counting peers whose status isn't recorded. */
+	int countPeers(int status) {
+		return status < recordedPeerCounts.length ? recordedPeerCounts[status] : 0;
+	}
+
+	/** The number of peers with the given status. */
+	int countAllPeers(int status) {
+		return status < peerCounts.length ? peerCounts[status] : 0;
+	}
+
+	int getFOAFLinkHistogram(int bucket) {
+		return foafLinkHistogram[bucket];
+	}
+
+	/** Current routing backoff reasons and how many peers are backed off for each. */
+	Map<String, Integer> getBackoffReasons(boolean realTime) {
+		return realTime ? backoffReasonsRT : backoffReasonsBulk;
+	}
+
+	int getPriorityCount() {
+		return runningThreadsByPriority.length;
+	}
+
+	int getRunningThreads(int priority) {
+		return runningThreadsByPriority[priority];
+	}
+
+	int getWaitingThreads(int priority) {
+		return waitingThreadsByPriority[priority];
+	}
+
+	/** Threads grouped by name, the largest groups first. */
+	Iterable<ThreadBunch> getThreadBunches() {
+		return Collections.unmodifiableList(Arrays.asList(threadBunches));
+	}
+
+	/** Copies of the datastore statistics, which don't change. */
+	Map<DataStoreInstanceType, DataStoreStats> getStoreStats() {
+		return storeStats;
+	}
+
+	/** Everything in the snapshot, for the machine-readable statistics. */
+	SimpleFieldSet toFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.put("time", time);
+
+		SimpleFieldSet peers = new SimpleFieldSet(true);
+		peers.put("total", peerNodeStatuses.length);
+		TreeMap<String, Integer> byName = new TreeMap<String, Integer>();
+		for(PeerNodeStatus status : peerNodeStatuses) {
+			Integer count = byName.get(status.getStatusName());
+			byName.put(status.getStatusName(), count == null ? 1 : count + 1);
+		}
+		for(Map.Entry<String, Integer> entry : byName.entrySet())
+			peers.put("status."+entry.getKey(), entry.getValue());
+		peers.put("seedServers", seedServers);
+		peers.put("seedClients", seedClients);
+		peers.put("foafLinkHistogram", foafLinkHistogram);
+		for(Map.Entry<String, Integer> entry : backoffReasonsBulk.entrySet())
+			peers.put("backoff.bulk."+entry.getKey(), entry.getValue());
+		for(Map.Entry<String, Integer> entry : backoffReasonsRT.entrySet())
+			peers.put("backoff.realtime."+entry.getKey(), entry.getValue());
+		fs.put("peers", peers);
+
+		SimpleFieldSet requestCounts = new SimpleFieldSet(true);
+		requests.toFieldSet(requestCounts);
+		fs.put("requests", requestCounts);
+
+		SimpleFieldSet jvm = new SimpleFieldSet(true);
+		jvm.put("usedMemory", usedMemory);
+		jvm.put("allocatedMemory", allocatedMemory);
+		jvm.put("maxMemory", maxMemory);
+		jvm.put("availableCPUs", availableCPUs);
+		jvm.put("activeThreads", activeThreads);
+		jvm.put("threadLimit", threadLimit);
+		jvm.put("totalThreads", totalThreads);
+		jvm.put("runningThreadsByPriority", runningThreadsByPriority);
+		jvm.put("waitingThreadsByPriority", waitingThreadsByPriority);
+		fs.put("jvm", jvm);
+
+		SimpleFieldSet stores = new SimpleFieldSet(true);
+		for(Map.Entry<DataStoreInstanceType, DataStoreStats> entry : storeStats.entrySet()) {
+			DataStoreInstanceType instance = entry.getKey();
+			DataStoreStats stats = entry.getValue();
+			String prefix = instance.key.name() + '.' + instance.store.name() + '.';
+			stores.put(prefix+"keys", stats.keys());
+			stores.put(prefix+"capacity", stats.capacity());
+			stores.put(prefix+"dataSize", stats.dataSize());
+			StoreAccessStats access = stats.getSessionAccessStats();
+			stores.put(prefix+"readRequests", access.readRequests());
+			stores.put(prefix+"successfulReads", access.successfulReads());
+			stores.put(prefix+"writes", access.writes());
+			stores.put(prefix+"falsePos", access.falsePos());
+		}
+		fs.tput("store", stores);
+
+		fs.tput("nodeStats", new SimpleFieldSet(nodeStats));
+		return fs;
+	}
+
+}
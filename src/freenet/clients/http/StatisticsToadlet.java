@@ -12,17 +12,15 @@ import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
 import freenet.client.async.ClientRequester;
+import freenet.client.async.USKPollScheduler;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
-import freenet.io.xfer.BlockReceiver;
-import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
 import freenet.keys.FreenetURI;
 import freenet.node.Location;
@@ -35,7 +33,6 @@ import freenet.node.PeerManager;
 import freenet.node.PeerNodeStatus;
 import freenet.node.RequestClient;
 import freenet.node.RequestStarterGroup;
-import freenet.node.RequestTracker;
 import freenet.node.Version;
 import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
@@ -46,7 +43,7 @@ import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
-import freenet.support.io.NativeThread;
+import freenet.support.io.DirectBufferArena;
 
 public class StatisticsToadlet extends Toadlet {
 
@@ -66,6 +63,7 @@ public class StatisticsToadlet extends Toadlet {
 	private final NodeClientCore core;
 	private final NodeStats stats;
 	private final PeerManager peers;
+	private final StatisticsAggregator aggregator;
 	private final DecimalFormat fix1p1 = new DecimalFormat("0.0");
 	private final DecimalFormat fix1p2 = new DecimalFormat("0.00");
 	private final DecimalFormat fix1p4 = new DecimalFormat("0.0000");
@@ -81,41 +79,7 @@ public class StatisticsToadlet extends Toadlet {
 		this.core = core;
 		stats = node.nodeStats;
 		peers = node.peers;
-	}
-
-	/**
-	 * Counts the peers in <code>peerNodes</code> that have the specified
-	 * status.
-	 * @param peerNodeStatuses The peer nodes' statuses
-	 * @param status The status to count
-	 * @return The number of peers that have the specified status.
-	 */
-	private int getPeerStatusCount(PeerNodeStatus[] peerNodeStatuses, int status) {
-		int count = 0;
-		for (PeerNodeStatus peerNodeStatus: peerNodeStatuses) {
-			if(!peerNodeStatus.recordStatus())
-				continue;
-			if (peerNodeStatus.getStatusValue() == status) {
-				count++;
-			}
-		}
-		return count;
-	}
-	
-	private int getCountSeedServers(PeerNodeStatus[] peerNodeStatuses) {
-		int count = 0;
-		for (PeerNodeStatus peerNodeStatus: peerNodeStatuses) {
-			if(peerNodeStatus.isSeedServer()) count++;
-		}
-		return count;
-	}
-
-	private int getCountSeedClients(PeerNodeStatus[] peerNodeStatuses) {
-		int count = 0;
-		for (PeerNodeStatus peerNodeStatus: peerNodeStatuses) {
-			if(peerNodeStatus.isSeedClient()) count++;
-		}
-		return count;
+		aggregator = new StatisticsAggregator(n);
 	}
 
 	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
@@ -131,6 +95,10 @@ public class StatisticsToadlet extends Toadlet {
 				showRequesters(request, ctx);
 				return;
 			}
+			if(requestPath.equals("snapshot.txt") || requestPath.equals("/snapshot.txt")) {
+				writeTextReply(ctx, 200, "OK", aggregator.get().toFieldSet().toOrderedString());
+				return;
+			}
 		}
 
 		node.clientCore.bandwidthStatsPutter.updateData(node);
@@ -141,35 +109,26 @@ public class StatisticsToadlet extends Toadlet {
 		synchronized(this) {
 		
 		/* gather connection statistics */
-		PeerNodeStatus[] peerNodeStatuses = peers.getPeerNodeStatuses(true);
-		Arrays.sort(peerNodeStatuses, new Comparator<PeerNodeStatus>() {
-			@Override
-			public int compare(PeerNodeStatus firstNode, PeerNodeStatus secondNode) {
-				int statusDifference = firstNode.getStatusValue() - secondNode.getStatusValue();
-				if (statusDifference != 0) {
-					return statusDifference;
-				}
-				return 0;
-			}
-		});
-
-		int numberOfConnected = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_CONNECTED);
-		int numberOfRoutingBackedOff = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_ROUTING_BACKED_OFF);
-		int numberOfTooNew = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_TOO_NEW);
-		int numberOfTooOld = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_TOO_OLD);
-		int numberOfDisconnected = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_DISCONNECTED);
-		int numberOfNeverConnected = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_NEVER_CONNECTED);
-		int numberOfDisabled = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_DISABLED);
-		int numberOfBursting = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_BURSTING);
-		int numberOfListening = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_LISTENING);
-		int numberOfListenOnly = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_LISTEN_ONLY);
-		int numberOfSeedServers = getCountSeedServers(peerNodeStatuses);
-		int numberOfSeedClients = getCountSeedClients(peerNodeStatuses);
-		int numberOfRoutingDisabled = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_ROUTING_DISABLED);
-		int numberOfClockProblem = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_CLOCK_PROBLEM);
-		int numberOfConnError = getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_CONN_ERROR);
-		int numberOfDisconnecting = PeerNodeStatus.getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_DISCONNECTING);
-		int numberOfNoLoadStats = PeerNodeStatus.getPeerStatusCount(peerNodeStatuses, PeerManager.PEER_NODE_STATUS_NO_LOAD_STATS);
+		StatisticsSnapshot snapshot = aggregator.get();
+		PeerNodeStatus[] peerNodeStatuses = snapshot.getPeerNodeStatuses();
+
+		int numberOfConnected = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_CONNECTED);
+		int numberOfRoutingBackedOff = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_ROUTING_BACKED_OFF);
+		int numberOfTooNew = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_TOO_NEW);
+		int numberOfTooOld = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_TOO_OLD);
+		int numberOfDisconnected = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_DISCONNECTED);
+		int numberOfNeverConnected = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_NEVER_CONNECTED);
+		int numberOfDisabled = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_DISABLED);
+		int numberOfBursting = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_BURSTING);
+		int numberOfListening = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_LISTENING);
+		int numberOfListenOnly = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_LISTEN_ONLY);
+		int numberOfSeedServers = snapshot.seedServers;
+		int numberOfSeedClients = snapshot.seedClients;
+		int numberOfRoutingDisabled = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_ROUTING_DISABLED);
+		int numberOfClockProblem = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_CLOCK_PROBLEM);
+		int numberOfConnError = snapshot.countPeers(PeerManager.PEER_NODE_STATUS_CONN_ERROR);
+		int numberOfDisconnecting = snapshot.countAllPeers(PeerManager.PEER_NODE_STATUS_DISCONNECTING);
+		int numberOfNoLoadStats = snapshot.countAllPeers(PeerManager.PEER_NODE_STATUS_NO_LOAD_STATS);
 
 		PageNode page = ctx.getPageMaker().getPageNode(l10n("fullTitle"), ctx);
 		boolean advancedMode = ctx.isAdvancedModeEnabled();
@@ -200,7 +159,7 @@ public class StatisticsToadlet extends Toadlet {
 		// jvm stats box
 		HTMLNode jvmStatsInfobox = nextTableCell.addChild("div", "class", "infobox");
 		
-		drawJVMStatsBox(jvmStatsInfobox, advancedMode);
+		drawJVMStatsBox(jvmStatsInfobox, snapshot, advancedMode);
 		
 		// Statistic gathering box
 		HTMLNode statGatheringContent = ctx.getPageMaker().getInfobox("#", l10n("statisticGatheringTitle"), nextTableCell, "statistics-generating", true);
@@ -221,7 +180,7 @@ public class StatisticsToadlet extends Toadlet {
 			//HTMLNode storeSizeInfobox = nextTableCell.addChild("div", "class", "infobox");
              HTMLNode storeSizeInfobox = contentNode.addChild("div","class", "infobox");
 			
-			drawStoreSizeBox(storeSizeInfobox, myLocation, nodeUptimeSeconds);
+			drawStoreSizeBox(storeSizeInfobox, snapshot, nodeUptimeSeconds);
            
 			
 			if(numberOfConnected + numberOfRoutingBackedOff > 0) {
@@ -266,12 +225,12 @@ public class StatisticsToadlet extends Toadlet {
 			nextTableCell = overviewTableRow.addChild("td", "class", "last");
 			HTMLNode activityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			
-			drawActivityBox(activityInfobox, advancedMode);
+			drawActivityBox(activityInfobox, snapshot, advancedMode);
 
 			/* node status overview box */
 			if(advancedMode) {
 				HTMLNode overviewInfobox = nextTableCell.addChild("div", "class", "infobox");
-				drawOverviewBox(overviewInfobox, nodeUptimeSeconds, node.clientCore.bandwidthStatsPutter.getLatestUptimeData().totalUptime, now, swaps, noSwaps);
+				drawOverviewBox(overviewInfobox, nodeUptimeSeconds, snapshot.totalUptimeSeconds, now, swaps, noSwaps);
 			}
 
 			// Peer statistics box
@@ -299,34 +258,26 @@ public class StatisticsToadlet extends Toadlet {
 			curBackoffReasonInfobox.addChild("div", "class", "infobox-header", "Current backoff reasons (bulk)");
 			HTMLNode curBackoffReasonContent = curBackoffReasonInfobox.addChild("div", "class", "infobox-content");
 
-			String [] routingBackoffReasons = peers.getPeerNodeRoutingBackoffReasons(false);
-			if(routingBackoffReasons.length == 0) {
+			Map<String, Integer> routingBackoffReasons = snapshot.getBackoffReasons(false);
+			if(routingBackoffReasons.isEmpty()) {
 				curBackoffReasonContent.addChild("#", l10n("notBackedOff"));
 			} else {
 				HTMLNode reasonList = curBackoffReasonContent.addChild("ul");
-				for(String routingBackoffReason: routingBackoffReasons) {
-					int reasonCount = peers.getPeerNodeRoutingBackoffReasonSize(routingBackoffReason, false);
-					if(reasonCount > 0) {
-						reasonList.addChild("li", routingBackoffReason + '\u00a0' + reasonCount);
-					}
-				}
+				for(Map.Entry<String, Integer> reason : routingBackoffReasons.entrySet())
+					reasonList.addChild("li", reason.getKey() + '\u00a0' + reason.getValue());
 			}
 
 			curBackoffReasonInfobox = backoffReasonContent.addChild("div", "class", "infobox");
 			curBackoffReasonInfobox.addChild("div", "class", "infobox-header", "Current backoff reasons (realtime)");
 			curBackoffReasonContent = curBackoffReasonInfobox.addChild("div", "class", "infobox-content");
 
-			routingBackoffReasons = peers.getPeerNodeRoutingBackoffReasons(true);
-			if(routingBackoffReasons.length == 0) {
+			routingBackoffReasons = snapshot.getBackoffReasons(true);
+			if(routingBackoffReasons.isEmpty()) {
 				curBackoffReasonContent.addChild("#", l10n("notBackedOff"));
 			} else {
 				HTMLNode reasonList = curBackoffReasonContent.addChild("ul");
-				for(String routingBackoffReason: routingBackoffReasons) {
-					int reasonCount = peers.getPeerNodeRoutingBackoffReasonSize(routingBackoffReason, true);
-					if(reasonCount > 0) {
-						reasonList.addChild("li", routingBackoffReason + '\u00a0' + reasonCount);
-					}
-				}
+				for(Map.Entry<String, Integer> reason : routingBackoffReasons.entrySet())
+					reasonList.addChild("li", reason.getKey() + '\u00a0' + reason.getValue());
 			}
 
 			// Per backoff-type count and avg backoff lengths
@@ -436,7 +387,7 @@ public class StatisticsToadlet extends Toadlet {
 
 						
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
-			drawThreadPriorityStatsBox(threadsPriorityInfobox);
+			drawThreadPriorityStatsBox(threadsPriorityInfobox, snapshot);
 			
 			nextTableCell = overviewTableRow.addChild("td");
 
@@ -445,7 +396,7 @@ public class StatisticsToadlet extends Toadlet {
 			threadUsageInfobox.addChild("div", "class", "infobox-header", "Thread usage");
 			HTMLNode threadUsageContent = threadUsageInfobox.addChild("div", "class", "infobox-content");
 			HTMLNode threadUsageList = threadUsageContent.addChild("ul");
-			getThreadNames(threadUsageList);
+			getThreadNames(threadUsageList, snapshot);
 			
 			// rejection reasons box
 			drawRejectReasonsBox(nextTableCell, false);
@@ -520,12 +471,12 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode foafLinkInfobox = nextTableCell.addChild("div", "class", "infobox");
 			foafLinkInfobox.addChild("div", "class", "infobox-header", "FOAF\u00a0Link-Length\u00a0Distribution");
 			HTMLNode foafLinkTable = foafLinkInfobox.addChild("div", "class", "infobox-content").addChild("table");
-			addFOAFLinkLengthHistogram(foafLinkTable, peerNodeStatuses);
+			addFOAFLinkLengthHistogram(foafLinkTable, snapshot);
 		}
 		
 		}
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void showRequesters(HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -534,7 +485,7 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode contentNode = page.content;
 
 		drawClientRequestersBox(contentNode);
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void drawLoadBalancingBox(HTMLNode loadStatsInfobox, boolean realTime) {
@@ -588,29 +539,24 @@ public class StatisticsToadlet extends Toadlet {
 		node.getNodeUpdater().addChangelogLinks(Version.buildNumber(), versionInfobox);
 	}
 
-	private void drawJVMStatsBox(HTMLNode jvmStatsInfobox, boolean advancedModeEnabled) {
+	private void drawJVMStatsBox(HTMLNode jvmStatsInfobox, StatisticsSnapshot snapshot, boolean advancedModeEnabled) {
 		
 		jvmStatsInfobox.addChild("div", "class", "infobox-header", l10n("jvmInfoTitle"));
 		HTMLNode jvmStatsInfoboxContent = jvmStatsInfobox.addChild("div", "class", "infobox-content");
 		HTMLNode jvmStatsList = jvmStatsInfoboxContent.addChild("ul");
 
-		Runtime rt = Runtime.getRuntime();
-		long freeMemory = rt.freeMemory();
-		long totalMemory = rt.totalMemory();
-		long maxMemory = rt.maxMemory();
+		long usedJavaMem = snapshot.usedMemory;
+		long allocatedJavaMem = snapshot.allocatedMemory;
+		long maxJavaMem = snapshot.maxMemory;
+		int availableCpus = snapshot.availableCPUs;
 
-		long usedJavaMem = totalMemory - freeMemory;
-		long allocatedJavaMem = totalMemory;
-		long maxJavaMem = maxMemory;
-		int availableCpus = rt.availableProcessors();
-
-		int threadCount = stats.getActiveThreadCount();
+		int threadCount = snapshot.activeThreads;
 
 		jvmStatsList.addChild("li", l10n("usedMemory", "memory", SizeUtil.formatSize(usedJavaMem, true)));
 		jvmStatsList.addChild("li", l10n("allocMemory", "memory", SizeUtil.formatSize(allocatedJavaMem, true)));
 		jvmStatsList.addChild("li", l10n("maxMemory", "memory", SizeUtil.formatSize(maxJavaMem, true)));
 		jvmStatsList.addChild("li", l10n("threads", new String[] { "running", "max" },
-				new String[] { thousandPoint.format(threadCount), Integer.toString(stats.getThreadLimit()) }));
+				new String[] { thousandPoint.format(threadCount), Integer.toString(snapshot.threadLimit) }));
 		jvmStatsList.addChild("li", l10n("cpus", "count", Integer.toString(availableCpus)));
 		jvmStatsList.addChild("li", l10n("javaVersion", "version", System.getProperty("java.version")));
 		jvmStatsList.addChild("li", l10n("jvmVendor", "vendor", System.getProperty("java.vendor")));
@@ -627,12 +573,10 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 	
-	private void drawThreadPriorityStatsBox(HTMLNode node) {
+	private void drawThreadPriorityStatsBox(HTMLNode node, StatisticsSnapshot snapshot) {
 		
 		node.addChild("div", "class", "infobox-header", l10n("threadsByPriority"));
 		HTMLNode threadsInfoboxContent = node.addChild("div", "class", "infobox-content");
-		int[] activeThreadsByPriority = stats.getActiveThreadsByPriority();
-		int[] waitingThreadsByPriority = stats.getWaitingThreadsByPriority();
 		
 		HTMLNode threadsByPriorityTable = threadsInfoboxContent.addChild("table", "border", "0");
 		HTMLNode row = threadsByPriorityTable.addChild("tr");
@@ -641,11 +585,11 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
 		
-		for(int i=0; i<activeThreadsByPriority.length; i++) {
+		for(int i=0; i<snapshot.getPriorityCount(); i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
-			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
-			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			row.addChild("td", String.valueOf(snapshot.getRunningThreads(i)));
+			row.addChild("td", String.valueOf(snapshot.getWaitingThreads(i)));
 		}
 	}
 
@@ -710,7 +654,7 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 
-	private void drawStoreSizeBox(HTMLNode storeSizeInfobox, double loc, long nodeUptimeSeconds) {
+	private void drawStoreSizeBox(HTMLNode storeSizeInfobox, StatisticsSnapshot snapshot, long nodeUptimeSeconds) {
 		storeSizeInfobox.addChild("div", "class", "infobox-header", l10n("datastore"));
 		HTMLNode storeSizeInfoboxContent = storeSizeInfobox.addChild("div", "class", "infobox-content");
 
@@ -740,7 +684,7 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("distanceStats"));
 
 
-		Map<DataStoreInstanceType, DataStoreStats> storeStats = node.getDataStoreStats();
+		Map<DataStoreInstanceType, DataStoreStats> storeStats = snapshot.getStoreStats();
 		for (Map.Entry<DataStoreInstanceType, DataStoreStats> entry : storeStats.entrySet()) {
 			DataStoreInstanceType instance = entry.getKey();
 			DataStoreStats stats = entry.getValue();
@@ -752,8 +696,7 @@ public class StatisticsToadlet extends Toadlet {
 				totalAccess = stats.getTotalAccessStats();
 				// FIXME this is not necessarily the same as the datastore's uptime if we've switched.
 				// Ideally we'd track uptime there too.
-				totalUptimeSeconds = 
-					node.clientCore.bandwidthStatsPutter.getLatestUptimeData().totalUptime;
+				totalUptimeSeconds = snapshot.totalUptimeSeconds;
 			} catch (StatsNotAvailableException e) {
 				totalAccess = null;
 			}
@@ -1043,12 +986,12 @@ public class StatisticsToadlet extends Toadlet {
 		return NodeL10n.getBase().getString("StatisticsToadlet."+key, patterns, values);
 	}
 	
-	private void drawActivityBox(HTMLNode activityInfobox, boolean advancedModeEnabled) {
+	private void drawActivityBox(HTMLNode activityInfobox, StatisticsSnapshot snapshot, boolean advancedModeEnabled) {
 		
 		activityInfobox.addChild("div", "class", "infobox-header", l10nDark("activityTitle"));
 		HTMLNode activityInfoboxContent = activityInfobox.addChild("div", "class", "infobox-content");
 		
-		HTMLNode activityList = drawActivity(activityInfoboxContent, node);
+		HTMLNode activityList = drawActivity(activityInfoboxContent, snapshot.requests);
 		
 		int numARKFetchers = node.getNumARKFetchers();
 
@@ -1057,6 +1000,10 @@ public class StatisticsToadlet extends Toadlet {
 				activityList.addChild("li", "ARK\u00a0Fetch\u00a0Requests:\u00a0" + numARKFetchers);
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.clientCore.uskManager.getTemporaryBackgroundFetchersLRU());
+			USKPollScheduler polls = node.clientCore.uskManager.getPollScheduler();
+			activityList.addChild("li", "USKPolling:\u00a0" + (polls.isAdaptive() ? "adaptive" : "fixed") + ",\u00a0" + polls.countPolledUSKs() + "\u00a0USKs,\u00a0" + thousandPoint.format(polls.getDemand()) + "\u00a0rounds/hour\u00a0wanted");
+			for(boolean adaptive : new boolean[] { false, true })
+				activityList.addChild("li", "USKPolling(" + (adaptive ? "adaptive" : "fixed") + "):\u00a0" + polls.getPollRounds(adaptive) + "\u00a0rounds,\u00a0" + polls.getNewEditions(adaptive) + "\u00a0new\u00a0editions");
 			activityList.addChild("li", "outputBandwidthLiabilityUsage:\u00a0" + this.fix3p1pct.format(node.nodeStats.getBandwidthLiabilityUsage()));
 		}
 		
@@ -1152,19 +1099,22 @@ public class StatisticsToadlet extends Toadlet {
 	}
 
 	static HTMLNode drawActivity(HTMLNode activityInfoboxContent, Node node) {
-		RequestTracker tracker = node.tracker;
-		int numLocalCHKInserts = tracker.getNumLocalCHKInserts();
-		int numRemoteCHKInserts = tracker.getNumRemoteCHKInserts();
-		int numLocalSSKInserts = tracker.getNumLocalSSKInserts();
-		int numRemoteSSKInserts = tracker.getNumRemoteSSKInserts();
-		int numLocalCHKRequests = tracker.getNumLocalCHKRequests();
-		int numRemoteCHKRequests = tracker.getNumRemoteCHKRequests();
-		int numLocalSSKRequests = tracker.getNumLocalSSKRequests();
-		int numRemoteSSKRequests = tracker.getNumRemoteSSKRequests();
-		int numTransferringRequests = tracker.getNumTransferringRequestSenders();
-		int numTransferringRequestHandlers = tracker.getNumTransferringRequestHandlers();
-		int numCHKOfferReplys = tracker.getNumCHKOfferReplies();
-		int numSSKOfferReplys = tracker.getNumSSKOfferReplies();
+		return drawActivity(activityInfoboxContent, new StatisticsSnapshot.RequestCounts(node.tracker));
+	}
+
+	static HTMLNode drawActivity(HTMLNode activityInfoboxContent, StatisticsSnapshot.RequestCounts counts) {
+		int numLocalCHKInserts = counts.localCHKInserts;
+		int numRemoteCHKInserts = counts.remoteCHKInserts;
+		int numLocalSSKInserts = counts.localSSKInserts;
+		int numRemoteSSKInserts = counts.remoteSSKInserts;
+		int numLocalCHKRequests = counts.localCHKRequests;
+		int numRemoteCHKRequests = counts.remoteCHKRequests;
+		int numLocalSSKRequests = counts.localSSKRequests;
+		int numRemoteSSKRequests = counts.remoteSSKRequests;
+		int numTransferringRequests = counts.transferringRequestSenders;
+		int numTransferringRequestHandlers = counts.transferringRequestHandlers;
+		int numCHKOfferReplys = counts.chkOfferReplies;
+		int numSSKOfferReplys = counts.sskOfferReplies;
 		int numCHKRequests = numLocalCHKRequests + numRemoteCHKRequests;
 		int numSSKRequests = numLocalSSKRequests + numRemoteSSKRequests;
 		int numCHKInserts = numLocalCHKInserts + numRemoteCHKInserts;
@@ -1198,7 +1148,7 @@ public class StatisticsToadlet extends Toadlet {
 						new String[] { "chk", "ssk" }, new String[] { Integer.toString(numCHKOfferReplys), Integer.toString(numSSKOfferReplys) }));
 			}
 			activityList.addChild("li", NodeL10n.getBase().getString("StatisticsToadlet.runningBlockTransfers", 
-					new String[] { "sends", "receives" }, new String[] { Integer.toString(BlockTransmitter.getRunningSends()), Integer.toString(BlockReceiver.getRunningReceives()) }));
+					new String[] { "sends", "receives" }, new String[] { Integer.toString(counts.runningBlockSends), Integer.toString(counts.runningBlockReceives) }));
 			return activityList;
 		}
 	}
@@ -1278,6 +1228,9 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		DirectBufferArena arena = core.tempBucketFactory.getArena();
+		if(arena != null)
+			overviewList.addChild("li", "RAMBucketArena:\u00a0" + SizeUtil.formatSize(arena.getUsedBytes()) + " in " + arena.getChunksInUse() + " chunks / " + SizeUtil.formatSize(arena.getAllocatedBytes()) + " allocated / " + SizeUtil.formatSize(arena.getCapacity()));
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
 		long[] decoded = IncomingPacketFilterImpl.getDecodedPackets();
@@ -1296,47 +1249,12 @@ public class StatisticsToadlet extends Toadlet {
 		
 	}
 
-	// FIXME this should probably be moved to nodestats so it can be used by FCP??? would have to make ThreadBunch public :<
-	private void getThreadNames(HTMLNode threadUsageList) {
-		Thread[] threads = stats.getThreads();
-
-		LinkedHashMap<String, ThreadBunch> map = new LinkedHashMap<String, ThreadBunch>();
-		int totalCount = 0;
-		for(Thread thread: threads) {
-			if(thread == null) break;
-			String name = NativeThread.normalizeName(thread.getName());
-			ThreadBunch bunch = map.get(name);
-			if(bunch != null) {
-				bunch.count++;
-			} else {
-				map.put(name, new ThreadBunch(name, 1));
-			}
-			totalCount++;
-		}
-		ThreadBunch[] bunches = map.values().toArray(new ThreadBunch[map.size()]);
-		Arrays.sort(bunches, new Comparator<ThreadBunch>() {
-			@Override
-			public int compare(ThreadBunch b0, ThreadBunch b1) {
-				if(b0.count > b1.count) return -1;
-				if(b0.count < b1.count) return 1;
-				return b0.name.compareTo(b1.name);
-			}
-
-		});
+	private void getThreadNames(HTMLNode threadUsageList, StatisticsSnapshot snapshot) {
 		double thisThreadPercentOfTotal;
-		for(ThreadBunch bunch: bunches) {
-			thisThreadPercentOfTotal = ((double) bunch.count) / ((double) totalCount);
-			threadUsageList.addChild("li", "" + bunch.name + ":\u00a0" + Integer.toString(bunch.count) + "\u00a0(" + fix3p1pct.format(thisThreadPercentOfTotal) + ')');
-		}
-	}
-
-	private static class ThreadBunch {
-		public ThreadBunch(String name2, int i) {
-			this.name = name2;
-			this.count = i;
+		for(StatisticsSnapshot.ThreadBunch bunch: snapshot.getThreadBunches()) {
+			thisThreadPercentOfTotal = ((double) bunch.count()) / ((double) snapshot.totalThreads);
+			threadUsageList.addChild("li", "" + bunch.name + ":\u00a0" + Integer.toString(bunch.count()) + "\u00a0(" + fix3p1pct.format(thisThreadPercentOfTotal) + ')');
 		}
-		String name;
-		int count;
 	}
 
 	private final static int PEER_CIRCLE_RADIUS = 100;
@@ -1463,33 +1381,13 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 
-	private void addFOAFLinkLengthHistogram(HTMLNode circleTable, PeerNodeStatus[] peerNodeStatuses) {
-		int[] peersLinkHistogram = new int[HISTOGRAM_LENGTH];
-		
+	private void addFOAFLinkLengthHistogram(HTMLNode circleTable, StatisticsSnapshot snapshot) {
 		HTMLNode peerHistogramLegendTableRow = circleTable.addChild("tr");
 		HTMLNode peerHistogramGraphTableRow = circleTable.addChild("tr");
 		HTMLNode peerHistogramLegendCell;
 		HTMLNode peerHistogramGraphCell;
 
-		int peersLinkCount = 0;
-		for (PeerNodeStatus pns : peerNodeStatuses) {
-			if (!pns.isSearchable()) continue;
-			if (!pns.isRoutable()) continue;
-
-			double peerLoc = pns.getLocation();
-			if (!Location.isValid(peerLoc)) continue;
-
-			double[] foafLocs = pns.getPeersLocation();
-			if (foafLocs == null) continue;
-			
-			for (double foafLoc : foafLocs) {
-				if (!Location.isValid(foafLoc)) continue;
-				
-				int idx = (int)Math.floor(Location.distance(peerLoc, foafLoc) * HISTOGRAM_LENGTH / 0.5);
-				peersLinkHistogram[idx]++;
-				peersLinkCount++;
-			}
-		}
+		int peersLinkCount = snapshot.foafLinkCount;
 		
 		double cumulativeFraction = 0;
 		for (int i = 0; i < HISTOGRAM_LENGTH; i++) {
@@ -1498,7 +1396,7 @@ public class StatisticsToadlet extends Toadlet {
 			peerHistogramLegendCell.addChild("div", "class", "histogramLabel").addChild("#", fix1p2.format(((double)i) / HISTOGRAM_LENGTH * 0.5));
 			if (peersLinkCount == 0) continue;
 
-			double histogramFraction = ((double)peersLinkHistogram[i]) / peersLinkCount;
+			double histogramFraction = ((double)snapshot.getFOAFLinkHistogram(i)) / peersLinkCount;
 			peerHistogramGraphCell.addChild("div", new String[] { "class", "style" }, new String[] { "histogramConnected", "height: " + fix3pctUS.format(histogramFraction) + "; width: 100%;" }, "\u00a0");
 			peerHistogramGraphCell.addChild("div", new String[] { "class", "style" }, new String[] { "histogramDisconnected", "height: " + fix3pctUS.format(cumulativeFraction) + "; width: 100%;" }, "\u00a0");
 			cumulativeFraction += histogramFraction;
@@ -4,9 +4,12 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.net.URI;
 
@@ -259,6 +262,33 @@ public abstract class Toadlet {
 		writeReply(ctx, code, "text/html; charset=utf-8", desc, null, reply, false);
 	}
 	
+	/**
+	 * Write an HTTP response as HTML, rendering the page as it is sent rather than generating it
+	 * as a String first. Use this for pages which may be large, e.g. the queue.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param page The HTML page.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, HTMLNode page) throws ToadletContextClosedException, IOException {
+		writeHTMLReply(ctx, code, desc, null, page);
+	}
+
+	/**
+	 * Write an HTTP response as HTML with custom headers, rendering the page as it is sent.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param headers The additional HTTP headers to send.
+	 * @param page The HTML page.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, MultiValueTable<String, String> headers, HTMLNode page) throws ToadletContextClosedException, IOException {
+		OutputStream os = ctx.sendReplyHeadersChunked(code, desc, headers, "text/html; charset=utf-8", false);
+		Writer w = new OutputStreamWriter(os, "UTF-8");
+		page.generate(w);
+		w.close();
+	}
+	
 	/**
 	 * Write an HTTP response as plain text.
 	 * @param ctx The specific request to reply to.
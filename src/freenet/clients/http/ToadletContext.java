@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.text.ParseException;
 import java.util.Date;
@@ -44,6 +45,21 @@ public interface ToadletContext {
      */
     void sendReplyHeaders(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, long length, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException;
     
+    /**
+     * Write reply headers for generated content whose length is not known in advance, e.g. a page
+     * which is rendered as it is sent.
+     * @param code HTTP code.
+     * @param desc HTTP code description.
+     * @param mvt Any extra headers. Can be null.
+     * @param mimeType The MIME type of the reply.
+     * @param forceDisableJavascript Disable javascript even if it is enabled for the web interface
+     * as a whole.
+     * @return A stream to write the reply to. This uses chunked transfer encoding if the client
+     * supports it, otherwise the connection is closed after the reply. The caller must close it
+     * when the reply is complete; this does not close the connection.
+     */
+    OutputStream sendReplyHeadersChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException;
+
     /**
      * @deprecated
      * Write reply headers for either generated content (web interface pages) or static content.
@@ -87,7 +103,22 @@ public interface ToadletContext {
 	 * been sent, how long the attached data should be, how much data has been sent etc.
 	 */
 	void forceDisconnect();
-	
+
+	/**
+	 * Don't finish the request when the handle method returns: the reply will be written later,
+	 * from another thread, which must then call {@link #replyFinished()}. Used for long polling,
+	 * so that a request waiting for something to happen doesn't hold a thread.
+	 * @return False if this connection can't do that, in which case the reply must be written
+	 * before returning as usual.
+	 */
+	boolean suspendReply();
+
+	/**
+	 * The reply has been written, after {@link #suspendReply()}. The next request on the
+	 * connection can be read.
+	 */
+	void replyFinished();
+
 	/**
 	 * Convenience method that simply calls {@link #writeData(byte[], int, int)}.
 	 * 
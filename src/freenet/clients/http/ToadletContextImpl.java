@@ -40,6 +40,7 @@ import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.io.FileUtil;
 import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NoCloseProxyOutputStream;
 import freenet.support.io.TooLongException;
 
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -75,6 +76,8 @@ public class ToadletContextImpl implements ToadletContext {
 	private final InetAddress remoteAddr;
 	private Exception firstReplySendingException;
 	private volatile Toadlet activeToadlet;
+	/** Null if the connection has a thread of its own, and so can't suspend replies. */
+	private final HTTPChannelConnection channelConnection;
 	
 	/** The unique id of the request*/
 	private final String uniqueId;
@@ -98,15 +101,22 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	private boolean closed;
 	private boolean shouldDisconnect;
+	/** Did the client specify HTTP/1.0? If so it may not understand chunked encoding. */
+	private boolean isHTTP10;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
+		this(sock.getInetAddress(), sock.getOutputStream(), headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, uniqueID, null);
+	}
+	
+	ToadletContextImpl(InetAddress remoteAddr, OutputStream sockOutputStream, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID, HTTPChannelConnection channelConnection) {
 		this.headers = headers;
 		this.cookies = null;
 		this.replyCookies = null;
 		this.closed = false;
 		this.uri=uri;
-		sockOutputStream = sock.getOutputStream();
-		remoteAddr = sock.getInetAddress();
+		this.sockOutputStream = sockOutputStream;
+		this.remoteAddr = remoteAddr;
+		this.channelConnection = channelConnection;
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
 		this.bf = bf;
@@ -186,6 +196,21 @@ public class ToadletContextImpl implements ToadletContext {
 	    sendReplyHeaders(code, desc, mvt, mimeType, length, null, false, false, enableJavascript);
 	}
 
+	@Override
+	public OutputStream sendReplyHeadersChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException {
+		if(isHTTP10) {
+			// The end of the reply is the end of the connection.
+			shouldDisconnect = true;
+			sendReplyHeaders(code, desc, mvt, mimeType, -1, forceDisableJavascript);
+			return new NoCloseProxyOutputStream(sockOutputStream);
+		}
+		if(mvt == null)
+			mvt = new MultiValueTable<String,String>();
+		mvt.put("transfer-encoding", "chunked");
+		sendReplyHeaders(code, desc, mvt, mimeType, -1, forceDisableJavascript);
+		return new ChunkedOutputStream(sockOutputStream);
+	}
+
 	@Deprecated
 	public void sendReplyHeaders(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, long length, Date mTime) throws ToadletContextClosedException, IOException {
 	    if(mTime != null)
@@ -487,8 +512,10 @@ public class ToadletContextImpl implements ToadletContext {
 	 * Handle an incoming connection. Blocking, obviously.
 	 */
 	public static void handle(Socket sock, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		OutputStream os = null;
 		try {
 			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
+			os = sock.getOutputStream();
 			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
 			
@@ -502,26 +529,7 @@ public class ToadletContextImpl implements ToadletContext {
 					continue;
 				}
 				
-				if(logMINOR)
-					Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
-				
-				String[] split = firstLine.split(" ");
-				
-				if(split.length != 3)
-					throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
-				
-				if(!split[2].startsWith("HTTP/1."))
-					throw new ParseException("Unrecognized protocol "+split[2], -1);
-				
-				URI uri;
-				try {
-					uri = URIPreEncoder.encodeURI(split[1]).normalize();
-					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
-				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
-				}
-				String method = split[0];
+				String[] split = parseRequestLine(firstLine);
 				
 				MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
 				
@@ -533,159 +541,221 @@ public class ToadletContextImpl implements ToadletContext {
 					}
 					//System.out.println("Length="+line.length()+": "+line);
 					if(line.length() == 0) break;
-					int index = line.indexOf(':');
-					if (index < 0) {
-						throw new ParseException("Missing ':' in request header field", -1);
-					}
-					String before = line.substring(0, index).toLowerCase();
-					String after = line.substring(index+1);
-					after = after.trim();
-					headers.put(before, after);
+					parseHeader(line, headers);
 				}
 				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				if(!handleRequest(split[0], split[1], split[2], headers, is, os, sock.getInetAddress(), container, pageMaker, userAlertManager, bookmarkManager, null)) {
+					sock.close();
+					return;
+				}
+			}
+			
+		} catch (ParseException e) {
+			sendParseError(os, e);
+		} catch (TooLongException e) {
+			sendParseError(os, e);
+		} catch (IOException e) {
+			// ignore and return
+		}
+	}
+	
+	/**
+	 * Split the first line of a request into the method, the URI and the protocol.
+	 * @throws ParseException If it isn't a valid HTTP/1.x request line.
+	 */
+	static String[] parseRequestLine(String firstLine) throws ParseException {
+		if(logMINOR)
+			Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
+		
+		String[] split = firstLine.split(" ");
+		
+		if(split.length != 3)
+			throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
+		
+		if(!split[2].startsWith("HTTP/1."))
+			throw new ParseException("Unrecognized protocol "+split[2], -1);
+		return split;
+	}
+	
+	/**
+	 * Add a request header line to the headers, with the name in lower case.
+	 * @throws ParseException If it isn't a valid header line.
+	 */
+	static void parseHeader(String line, MultiValueTable<String,String> headers) throws ParseException {
+		int index = line.indexOf(':');
+		if (index < 0) {
+			throw new ParseException("Missing ':' in request header field", -1);
+		}
+		String before = line.substring(0, index).toLowerCase();
+		String after = line.substring(index+1);
+		after = after.trim();
+		headers.put(before, after);
+	}
+	
+	/**
+	 * Tell the client that we couldn't parse its request, before disconnecting.
+	 * @param e A ParseException or a TooLongException.
+	 */
+	static void sendParseError(OutputStream os, Exception e) {
+		if(os == null) return;
+		try {
+			if(e instanceof TooLongException)
+				sendError(os, 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+			else
+				sendError(os, 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
+		} catch (IOException e1) {
+			// Ignore
+		}
+	}
+	
+	/**
+	 * Handle a request whose headers have been read, reading its content from is, and writing
+	 * the reply to os.
+	 * @param channelConnection The connection, if it is served by a SelectorLoop rather than by a
+	 * thread of its own, in which case toadlets can use suspendReply().
+	 * @return True if we can read another request from the connection afterwards, false if it
+	 * must be closed.
+	 */
+	static boolean handleRequest(String method, String requestURI, String protocol, MultiValueTable<String,String> headers, InputStream is, OutputStream os, InetAddress remoteAddr, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, HTTPChannelConnection channelConnection) {
+		try {
+			URI uri;
+			try {
+				uri = URIPreEncoder.encodeURI(requestURI).normalize();
+				if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
+			} catch (URISyntaxException e) {
+				sendURIParseError(os, true, e);
+				return false;
+			}
+			
+			boolean isHTTP10 = protocol.equals("HTTP/1.0");
+			boolean disconnect = shouldDisconnectAfterHandled(isHTTP10, headers) || !container.enablePersistentConnections();
 
-				boolean allowPost = container.allowPosts();
-				BucketFactory bf = container.getBucketFactory();
-				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
-				ctx.shouldDisconnect = disconnect;
-				
-				/*
-				 * copy the data into a bucket now,
-				 * before we go into the redirect loop
-				 */
-				
-				Bucket data;
+			boolean allowPost = container.allowPosts();
+			BucketFactory bf = container.getBucketFactory();
+			
+			ToadletContextImpl ctx = new ToadletContextImpl(remoteAddr, os, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID(), channelConnection);
+			ctx.shouldDisconnect = disconnect;
+			ctx.isHTTP10 = isHTTP10;
+			
+			/*
+			 * copy the data into a bucket now,
+			 * before we go into the redirect loop
+			 */
+			
+			Bucket data;
 
-				boolean methodIsConfigurable = true;
+			boolean methodIsConfigurable = true;
 
-				String slen = headers.get("content-length");
+			String slen = headers.get("content-length");
 
-				if (METHODS_MUST_HAVE_DATA.contains(method)) {
-					// <method> must have data
-					methodIsConfigurable = false;
-					if (slen == null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
-					// <method> can not have data
-					methodIsConfigurable = false;
-					if (slen != null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
+			if (METHODS_MUST_HAVE_DATA.contains(method)) {
+				// <method> must have data
+				methodIsConfigurable = false;
+				if (slen == null) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
 				}
-
+			} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
+				// <method> can not have data
+				methodIsConfigurable = false;
 				if (slen != null) {
-					long len;
-					try {
-						len = Integer.parseInt(slen);
-						if(len < 0) throw new NumberFormatException("content-length less than 0");
-					} catch (NumberFormatException e) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
-						data = bf.makeBucket(len);
-						BucketTools.copyFrom(data, is, len);
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
+				}
+			}
+
+			if (slen != null) {
+				long len;
+				try {
+					len = Integer.parseInt(slen);
+					if(len < 0) throw new NumberFormatException("content-length less than 0");
+				} catch (NumberFormatException e) {
+					ctx.shouldDisconnect = true;
+					ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+					return false;
+				}
+				if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
+					data = bf.makeBucket(len);
+					BucketTools.copyFrom(data, is, len);
+				} else {
+					FileUtil.skipFully(is, len);
+					if (method.equals("POST")) {
+						ctx.sendMethodNotAllowed("POST", true);
 					} else {
-						FileUtil.skipFully(is, len);
-						if (method.equals("POST")) {
-							ctx.sendMethodNotAllowed("POST", true);
-						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
-						}
-						ctx.close();
-						return;
+						sendError(os, 403, "Forbidden", "Content not allowed in this configuration", true, null);
 					}
-				} else {
-					// we're not doing to use it, but we have to keep
-					// the compiler happy
-					data = null;
+					ctx.close();
+					return false;
 				}
+			} else {
+				// we're not doing to use it, but we have to keep
+				// the compiler happy
+				data = null;
+			}
 
-				if (!container.enableExtendedMethodHandling()) {
-					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
-					}
+			if (!container.enableExtendedMethodHandling()) {
+				if (!METHODS_RESTRICTED_MODE.contains(method)) {
+					sendError(os, 403, "Forbidden", "Method not allowed in this configuration", true, null);
+					return false;
 				}
+			}
 
-				// Handle it.
-				try {
-					boolean redirect = true;
-					while (redirect) {
-						// don't go around the loop unless set explicitly
-						redirect = false;
-						
-						Toadlet t;
-						try {
-							t = container.findToadlet(uri);
-						} catch (PermanentRedirectException e) {
-							Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
-							break;
-						}
+			// Handle it.
+			try {
+				boolean redirect = true;
+				while (redirect) {
+					// don't go around the loop unless set explicitly
+					redirect = false;
 					
-						if(t == null) {
-							ctx.sendNoToadletError(ctx.shouldDisconnect);
-							break;
-						}
+					Toadlet t;
+					try {
+						t = container.findToadlet(uri);
+					} catch (PermanentRedirectException e) {
+						Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
+						break;
+					}
+				
+					if(t == null) {
+						ctx.sendNoToadletError(ctx.shouldDisconnect);
+						break;
+					}
 
-						// if the Toadlet does not support the method, we don't need to parse the data
-						// also due this pre check a 'NoSuchMethodException' should never appear
-						if (!(t.findSupportedMethods().contains(method))) {
-							ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
-							break;
-						}
+					// if the Toadlet does not support the method, we don't need to parse the data
+					// also due this pre check a 'NoSuchMethodException' should never appear
+					if (!(t.findSupportedMethods().contains(method))) {
+						ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
+						break;
+					}
 
-						HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
-						
-						// require form password if it's a POST, unless the toadlet requests otherwise
-						if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
-							if (!ctx.checkFormPassword(req, t.path())) {
-								break;
-							}
-						}
-						
-						if(ctx.isAllowedFullAccess()) {
-							ctx.getPageMaker().parseMode(req, container);
-						}
-						
-						try {
-							callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
-						} catch (RedirectException re) {
-							uri = re.newuri;
-							redirect = true;
-						} finally {
-							req.freeParts();
+					HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+					
+					// require form password if it's a POST, unless the toadlet requests otherwise
+					if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
+						if (!ctx.checkFormPassword(req, t.path())) {
+							break;
 						}
 					}
-					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
+					
+					if(ctx.isAllowedFullAccess()) {
+						ctx.getPageMaker().parseMode(req, container);
+					}
+					
+					try {
+						callToadletMethod(t, method, uri, req, ctx, data, os, redirect);
+					} catch (RedirectException re) {
+						uri = re.newuri;
+						redirect = true;
+					} finally {
+						req.freeParts();
 					}
-				} finally {
-					if(data != null) data.free();
 				}
+				return !ctx.shouldDisconnect;
+			} finally {
+				if(data != null) data.free();
 			}
-			
-		} catch (ParseException e) {
-			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
-			} catch (IOException e1) {
-				// Ignore
-			}
-		} catch (TooLongException e) {
-			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
-			} catch (IOException e1) {
-				// Ignore
-			}
+		
 		} catch (IOException e) {
 			// ignore and return
 		} catch (ToadletContextClosedException e) {
@@ -701,21 +771,22 @@ public class ToadletContextImpl implements ToadletContext {
 				pw.flush();
 				msg = msg + sw.toString() + "</pre></body></html>";
 				byte[] messageBytes = msg.getBytes("UTF-8");
-				sendReplyHeaders(sock.getOutputStream(), 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
-				sock.getOutputStream().write(messageBytes);
+				sendReplyHeaders(os, 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
+				os.write(messageBytes);
 			} catch (IOException e1) {
 				// ignore and return
 			}
 		}
+		return false;
 	}
 	
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
-			ToadletContextImpl ctx, Bucket data, Socket sock, boolean methodIsConfigurable) throws Throwable {
+			ToadletContextImpl ctx, Bucket data, OutputStream os, boolean methodIsConfigurable) throws Throwable {
 		String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
 		if("GET".equals(method)) {
 			// Short cut the common case.
 			if (data != null) {
-				sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+				sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 				ctx.close();
 				return;
 			}
@@ -730,13 +801,13 @@ public class ToadletContextImpl implements ToadletContext {
 				AllowData anno = m.getAnnotation(AllowData.class);
 				if (anno == null) {
 					if (data != null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+						sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 						ctx.close();
 						return;
 					}
 				} else if (anno.value()) {
 					if (data == null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+						sendError(os, 400, "Bad Request", "Missing Content", true, null);
 						ctx.close();
 						return;
 					}
@@ -837,6 +908,19 @@ public class ToadletContextImpl implements ToadletContext {
 		this.shouldDisconnect = true;
 	}
 
+	@Override
+	public boolean suspendReply() {
+		if(channelConnection == null) return false;
+		channelConnection.suspendReply();
+		return true;
+	}
+
+	@Override
+	public void replyFinished() {
+		if(channelConnection == null) throw new IllegalStateException("Reply was not suspended");
+		channelConnection.replyFinished(!shouldDisconnect);
+	}
+
 	@Override
 	public ToadletContainer getContainer() {
 		return container;
@@ -15,7 +15,7 @@ import freenet.support.Base64;
 import freenet.support.Logger;
 import freenet.support.api.HTTPRequest;
 
-/** This toadlet provides notifications for clients. It will block until one is present. It requires the requestId parameter. */
+/** This toadlet provides notifications for clients. It will block until one is present, without holding a thread if the connection supports it. It requires the requestId parameter. */
 public class PushNotificationToadlet extends Toadlet {
 
 	private static volatile boolean	logMINOR;
@@ -28,9 +28,34 @@ public class PushNotificationToadlet extends Toadlet {
 		super(client);
 	}
 
-	public void handleMethodGET(URI uri, HTTPRequest req, ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
+	public void handleMethodGET(URI uri, HTTPRequest req, final ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
 		String requestId = req.getParam("requestId");
-		PushDataManager.UpdateEvent event = ((SimpleToadletServer) ctx.getContainer()).pushDataManager.getNextNotification(requestId);
+		PushDataManager pushDataManager = ((SimpleToadletServer) ctx.getContainer()).pushDataManager;
+		if (ctx.suspendReply()) {
+			// Don't hold a thread while we wait.
+			pushDataManager.getNextNotification(requestId, new PushDataManager.NotificationCallback() {
+				@Override
+				public void onNotification(PushDataManager.UpdateEvent event) {
+					try {
+						sendNotification(ctx, event);
+					} catch (ToadletContextClosedException e) {
+						Logger.error(this, "Context closed sending push notification", e);
+					} catch (IOException e) {
+						if (logMINOR) {
+							Logger.minor(this, "Unable to send push notification: " + e, e);
+						}
+						ctx.forceDisconnect();
+					} finally {
+						ctx.replyFinished();
+					}
+				}
+			});
+			return;
+		}
+		sendNotification(ctx, pushDataManager.getNextNotification(requestId));
+	}
+
+	private void sendNotification(ToadletContext ctx, PushDataManager.UpdateEvent event) throws ToadletContextClosedException, IOException {
 		if (event != null) {
 			String elementRequestId = event.getRequestId();
 			String elementId = event.getElementId();
@@ -2,6 +2,7 @@ package freenet.clients.http.updateableelements;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -21,6 +22,9 @@ public class PushDataManager {
 	/** What notifications are waiting for the leader */
 	private Map<String, List<UpdateEvent>>				awaitingNotifications	= new HashMap<String, List<UpdateEvent>>();
 
+	/** Callbacks waiting for the next notification for a request, in the order they asked */
+	private Map<String, List<NotificationCallback>>	waitingCallbacks		= new HashMap<String, List<NotificationCallback>>();
+
 	/** What elements are on the page */
 	private Map<String, List<BaseUpdateableElement>>	pages					= new HashMap<String, List<BaseUpdateableElement>>();
 
@@ -86,6 +90,7 @@ public class PushDataManager {
 				Logger.minor(this, "Waking up notification polls");
 			}
 			notifyAll();
+			wakeCallbacks();
 		}
 	}
 
@@ -169,6 +174,7 @@ public class PushDataManager {
 				Logger.minor(this, "copied " + awaitingNotifications.get(newRequestId).size() + " notification:" + awaitingNotifications.get(newRequestId));
 			}
 			notifyAll();
+			wakeCallbacks();
 			return true;
 		} else {
 			if (logMINOR) {
@@ -210,6 +216,7 @@ public class PushDataManager {
 		isKeepaliveReceived.put(requestId, true);
 		isFirstKeepaliveReceived.put(requestId, true);
 		notifyAll();
+		wakeCallbacks();
 		return true;
 	}
 
@@ -224,14 +231,64 @@ public class PushDataManager {
 		if (logMINOR) {
 			Logger.minor(this, "Polling for notification:" + requestId);
 		}
-		while (awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() == 0 || // No notifications 
-				(awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() != 0 && isFirstKeepaliveReceived.containsKey(awaitingNotifications.get(requestId).get(0).requestId)==false)) { // Not asked us yet
+		while (!isNotificationReady(requestId)) {
 			try {
 				wait();
 			} catch (InterruptedException ie) {
 				return null;
 			}
 		}
+		return takeNotification(requestId);
+	}
+
+	/** Called with the next notification for a request, see
+	 * {@link PushDataManager#getNextNotification(String, NotificationCallback)}. */
+	public interface NotificationCallback {
+		/** @param event The notification, or null if the request has been deleted. */
+		void onNotification(UpdateEvent event);
+	}
+
+	/**
+	 * Like {@link #getNextNotification(String)}, but doesn't wait: if there is no notification
+	 * yet, the callback is called later, on another thread, when there is one.
+	 * 
+	 * @param requestId
+	 *            - The id of the request
+	 * @param callback
+	 *            - Called with the next notification, or null if the request is deleted
+	 */
+	public void getNextNotification(String requestId, NotificationCallback callback) {
+		UpdateEvent event;
+		synchronized (this) {
+			if (logMINOR) {
+				Logger.minor(this, "Polling for notification without waiting:" + requestId);
+			}
+			if (!isNotificationReady(requestId)) {
+				List<NotificationCallback> callbacks = waitingCallbacks.get(requestId);
+				if (callbacks == null) {
+					callbacks = new ArrayList<NotificationCallback>();
+					waitingCallbacks.put(requestId, callbacks);
+				}
+				callbacks.add(callback);
+				return;
+			}
+			event = takeNotification(requestId);
+		}
+		callback.onNotification(event);
+	}
+
+	/** Whether getNextNotification() can return, either because there is a notification which
+	 * has been asked for, or because the request has been deleted. */
+	private boolean isNotificationReady(String requestId) {
+		List<UpdateEvent> notifications = awaitingNotifications.get(requestId);
+		if (notifications == null) {
+			return true;
+		}
+		// Don't send a notification until the page it is for has asked us.
+		return notifications.size() != 0 && isFirstKeepaliveReceived.containsKey(notifications.get(0).requestId);
+	}
+
+	private UpdateEvent takeNotification(String requestId) {
 		if (awaitingNotifications.get(requestId) == null) {
 			return null;
 		}
@@ -241,6 +298,32 @@ public class PushDataManager {
 		return awaitingNotifications.get(requestId).remove(0);
 	}
 
+	/** Give notifications to the callbacks waiting for them, wherever we notifyAll(). The
+	 * callbacks write to the network, so they are run on the executor rather than with the lock
+	 * held. */
+	private void wakeCallbacks() {
+		Iterator<Entry<String, List<NotificationCallback>>> it = waitingCallbacks.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<String, List<NotificationCallback>> entry = it.next();
+			List<NotificationCallback> callbacks = entry.getValue();
+			while (!callbacks.isEmpty() && isNotificationReady(entry.getKey())) {
+				final NotificationCallback callback = callbacks.remove(0);
+				final UpdateEvent event = takeNotification(entry.getKey());
+				cleaner.getExecutor().execute(new Runnable() {
+
+					@Override
+					public void run() {
+						callback.onNotification(event);
+					}
+
+				}, "Push notification");
+			}
+			if (callbacks.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
 	/** Returns the cleaner's delay in ms */
 	private int getDelayInMs() {
 		return (int) (UpdaterConstants.KEEPALIVE_INTERVAL_SECONDS * 1000 * 2.1);
@@ -288,6 +371,7 @@ public class PushDataManager {
 			}
 		}
 		awaitingNotifications.remove(requestId);
+		wakeCallbacks();
 		return true;
 	}
 
@@ -0,0 +1,143 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * One of the threads doing the network I/O for non-blocking connections, e.g. FCP and FProxy.
+ * Each connection is assigned to one loop for its lifetime, and all reads and writes on its
+ * channel, and all changes to what we select on, happen on that loop's thread. Other threads
+ * hand work to the loop with execute(). Nothing running on the loop may block: the connection
+ * must do anything slow, such as running a request, on the node's executor.
+ */
+public class SelectorLoop implements Runnable {
+
+	/** A connection registered with a loop. All methods are called on the loop. */
+	public interface Handler {
+
+		/** The channel can be read from. */
+		void onReadable();
+
+		/** The channel can be written to. */
+		void onWritable();
+
+		/** Something has gone wrong, e.g. a handler threw, or the loop is shutting down. Close
+		 * the connection. */
+		void onError();
+
+	}
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(SelectorLoop.class);
+	}
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean closed;
+	private boolean started;
+
+	public SelectorLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	public void start(Executor executor, String name) {
+		synchronized(this) {
+			if(closed) return;
+			started = true;
+		}
+		executor.execute(this, name);
+	}
+
+	/** Run a task on the loop's thread, after the current task or select. */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		// Even on the loop, so that the next select() doesn't block before running it.
+		selector.wakeup();
+	}
+
+	/** Register a channel. Must be called on the loop. */
+	public SelectionKey register(SocketChannel channel, Handler handler) throws ClosedChannelException {
+		return channel.register(selector, 0, handler);
+	}
+
+	/** Stop the loop, closing its connections. If it was never started, just close the
+	 * selector. */
+	public void close() {
+		boolean running;
+		synchronized(this) {
+			closed = true;
+			running = started;
+		}
+		if(running) {
+			selector.wakeup();
+			return;
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		try {
+			while(!closed) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					Logger.error(this, "Select failed: "+e, e);
+					continue;
+				}
+				Runnable task;
+				while((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" running "+task, t);
+					}
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Handler conn = (Handler) key.attachment();
+					try {
+						if(key.isReadable())
+							conn.onReadable();
+						if(key.isValid() && key.isWritable())
+							conn.onWritable();
+					} catch (CancelledKeyException e) {
+						if(logMINOR) Logger.minor(this, "Cancelled: "+conn);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" handling "+conn, t);
+						conn.onError();
+					}
+				}
+			}
+		} finally {
+			for(SelectionKey key : selector.keys())
+				((Handler) key.attachment()).onError();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+}
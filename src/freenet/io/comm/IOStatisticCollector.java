@@ -11,6 +11,10 @@ import java.util.Map;
 
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.metrics.Counter;
+import freenet.support.metrics.FunctionCounter;
+import freenet.support.metrics.Metric;
+import freenet.support.metrics.MetricsRegistry;
 
 public class IOStatisticCollector {
 	public static final int STATISTICS_ENTRIES = 10;
@@ -23,9 +27,13 @@ public class IOStatisticCollector {
 	private long totalbytesout;
 	private final LinkedHashMap<String, StatisticEntry> targets;
 	static boolean ENABLE_PER_ADDRESS_TRACKING = false;
+	private final Counter packetsIn;
+	private final Counter packetsOut;
 	
 	public IOStatisticCollector() {
 		targets = new LinkedHashMap<String, StatisticEntry>();
+		packetsIn = new Counter("freenet_packets_total", "UDP packets sent and received, including local ones.", Metric.labels("direction", "in"));
+		packetsOut = new Counter("freenet_packets_total", "UDP packets sent and received, including local ones.", Metric.labels("direction", "out"));
 		// TODO: only for testing!!!!
 		// This should only happen once
 		//SNMPAgent.create();
@@ -34,6 +42,8 @@ public class IOStatisticCollector {
 	}
 	
 	public void addInfo(InetAddress addr, int port, int inbytes, int outbytes, boolean isLocal) {
+		if(inbytes > 0) packetsIn.increment();
+		if(outbytes > 0) packetsOut.increment();
 		try {
 			synchronized (this) {
 				_addInfo(addr, port, inbytes, outbytes, isLocal);
@@ -64,6 +74,24 @@ public class IOStatisticCollector {
 		}
 	}
 	
+	/** Export the packet counts and the total bytes, which don't include local traffic. */
+	public void registerMetrics(MetricsRegistry metrics) {
+		metrics.register(packetsIn);
+		metrics.register(packetsOut);
+		metrics.register(new FunctionCounter("freenet_transferred_bytes_total", "Bytes sent and received over UDP, including headers, not including local traffic.", Metric.labels("direction", "in")) {
+			@Override
+			public long getValue() {
+				return getTotalIO()[1];
+			}
+		});
+		metrics.register(new FunctionCounter("freenet_transferred_bytes_total", "Bytes sent and received over UDP, including headers, not including local traffic.", Metric.labels("direction", "out")) {
+			@Override
+			public long getValue() {
+				return getTotalIO()[0];
+			}
+		});
+	}
+
 	public void dumpInfo() {
 		synchronized (this) {
 			_dumpInfo();
@@ -147,6 +147,7 @@ import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MersenneTwister;
+import freenet.support.metrics.MetricsRegistry;
 import freenet.support.transport.ip.HostnameSyntaxException;
 
 /**
@@ -682,6 +683,8 @@ public class Node implements TimeSkewDetectorCallback {
 	/** Should inserts fork when the HTL reaches cacheability? */
 	public static final boolean FORK_ON_CACHEABLE_DEFAULT = true;
 	public final IOStatisticCollector collector;
+	/** Metrics exported on /metrics/ and over FCP. */
+	public final MetricsRegistry metrics;
 	/** Type identifier for fproxy node to node messages, as sent on DMT.nodeToNodeMessage's */
 	public static final int N2N_MESSAGE_TYPE_FPROXY = 1;
 	/** Type identifier for differential node reference messages, as sent on DMT.nodeToNodeMessage's */
@@ -964,7 +967,9 @@ public class Node implements TimeSkewDetectorCallback {
 		fixCertsFiles();
 		Logger.normal(this, tmp);
 		System.out.println(tmp);
+		metrics = new MetricsRegistry();
 		collector = new IOStatisticCollector();
+		collector.registerMetrics(metrics);
 		this.executor = executor;
 		nodeStarter=ns;
 		if(logConfigHandler != lc)
@@ -1650,7 +1655,7 @@ public class Node implements TimeSkewDetectorCallback {
 		// Then read the peers
 		peers = new PeerManager(this, shutdownHook);
 		
-		tracker = new RequestTracker(peers, ticker);
+		tracker = new RequestTracker(peers, ticker, metrics);
 
 		usm.setDispatcher(dispatcher=new NodeDispatcher(this));
 
@@ -2526,6 +2531,8 @@ public class Node implements TimeSkewDetectorCallback {
 		registerNodeToNodeMessageListener(N2N_MESSAGE_TYPE_FPROXY, fproxyN2NMListener);
 		registerNodeToNodeMessageListener(Node.N2N_MESSAGE_TYPE_DIFFNODEREF, diffNoderefListener);
 
+		NodeMetrics.register(this, metrics);
+
 		// FIXME this is a hack
 		// toadlet server should start after all initialized
 		// see NodeClientCore line 437
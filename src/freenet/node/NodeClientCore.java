@@ -16,10 +16,13 @@ import freenet.client.async.ClientContext;
 import freenet.client.async.ClientLayerPersister;
 import freenet.client.async.ClientRequestScheduler;
 import freenet.client.async.DatastoreChecker;
+import freenet.client.async.DiskDownloadCache;
+import freenet.client.async.DownloadCacheChain;
 import freenet.client.async.HealingQueue;
 import freenet.client.async.PersistentStatsPutter;
 import freenet.client.async.SimpleHealingQueue;
 import freenet.client.async.USKManager;
+import freenet.client.async.USKPollScheduler;
 import freenet.client.events.SimpleEventProducer;
 import freenet.client.filter.FilterCallback;
 import freenet.client.filter.FoundURICallback;
@@ -103,6 +106,8 @@ public class NodeClientCore implements Persistable {
 	public final ArchiveManager archiveManager;
 	public final RequestStarterGroup requestStarters;
 	private final HealingQueue healingQueue;
+	/** Null unless enabled. */
+	private DiskDownloadCache downloadCache;
 	public final MemoryLimitedJobRunner memoryLimitedJobRunner;
 	/**
 	 * <p>Must be included as a hidden field in order for any dangerous HTTP operation to complete successfully.</p>
@@ -166,6 +171,7 @@ public class NodeClientCore implements Persistable {
 	static final long MAX_CACHED_ARCHIVE_DATA = 32 * 1024 * 1024; // make a fixed fraction of the store by default? FIXME
 	static final long MAX_ARCHIVED_FILE_SIZE = 1024 * 1024; // arbitrary... FIXME
 	static final int MAX_CACHED_ELEMENTS = 256 * 1024; // equally arbitrary! FIXME hopefully we can cache many of these though
+	static final long MAX_QUEUED_HEALING_BYTES = 256 * CHKBlock.DATA_LENGTH; // healing blocks waiting to be inserted are kept in RAM
 	private UserAlert startingUpAlert;
 	private boolean alwaysCommit;
 	private final PluginStores pluginStores;
@@ -418,6 +424,27 @@ public class NodeClientCore implements Persistable {
 					}
 				});
 
+		nodeConfig.register("directMemoryTempBuckets", false, sortOrder++, true, false,
+				    "NodeClientCore.directMemoryTempBuckets",
+				    "NodeClientCore.directMemoryTempBucketsLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return (tempBucketFactory == null ? false
+										  : tempBucketFactory
+									.isUsingDirectMemory());
+					}
+
+					@Override
+					public void set(Boolean val)
+							throws InvalidConfigValueException {
+						if (get().equals(val) || (tempBucketFactory
+									  == null))
+							return;
+						tempBucketFactory.setUseDirectMemory(val);
+					}
+				});
+
 		initDiskSpaceLimits(nodeConfig, sortOrder);
 
 		cryptoSecretTransient = new MasterSecret();
@@ -428,6 +455,7 @@ public class NodeClientCore implements Persistable {
 						      node.fastWeakRandom,
 						      nodeConfig.getBoolean("encryptTempBuckets"),
 						      minDiskFreeShortTerm, cryptoSecretTransient);
+		tempBucketFactory.setUseDirectMemory(nodeConfig.getBoolean("directMemoryTempBuckets"));
 
 		bandwidthStatsPutter = new PersistentStatsPutter();
 
@@ -437,6 +465,92 @@ public class NodeClientCore implements Persistable {
 								tempBucketFactory,
 								bandwidthStatsPutter);
 
+		nodeConfig.register("lazyResumePersistentRequests", false, sortOrder++, true, false,
+				    "NodeClientCore.lazyResumePersistentRequests",
+				    "NodeClientCore.lazyResumePersistentRequestsLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return clientLayerPersister.isLazyResume();
+					}
+
+					@Override
+					public void set(Boolean val)
+							throws InvalidConfigValueException {
+						// Takes effect on the next startup.
+						clientLayerPersister.setLazyResume(val);
+					}
+				});
+		clientLayerPersister.setLazyResume(nodeConfig.getBoolean("lazyResumePersistentRequests"));
+
+		nodeConfig.register("adaptiveUSKPolling", false, sortOrder++, true, false,
+				    "NodeClientCore.adaptiveUSKPolling",
+				    "NodeClientCore.adaptiveUSKPollingLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return uskManager.getPollScheduler().isAdaptive();
+					}
+
+					@Override
+					public void set(Boolean val)
+							throws InvalidConfigValueException {
+						// Background fetchers pick it up on their next poll round.
+						uskManager.getPollScheduler().setAdaptive(val);
+					}
+				});
+		uskManager.getPollScheduler().setAdaptive(nodeConfig.getBoolean("adaptiveUSKPolling"));
+
+		nodeConfig.register("uskPollBudget", Integer.toString(USKPollScheduler.DEFAULT_POLL_BUDGET),
+				    sortOrder++, true, false,
+				    "NodeClientCore.uskPollBudget",
+				    "NodeClientCore.uskPollBudgetLong", new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return uskManager.getPollScheduler().getPollBudget();
+					}
+
+					@Override
+					public void set(Integer val)
+							throws InvalidConfigValueException {
+						if (val <= 0)
+							throw new InvalidConfigValueException(
+									l10n("uskPollBudgetMustBeGreaterThanZero"));
+						uskManager.getPollScheduler().setPollBudget(val);
+					}
+				}, false);
+		uskManager.getPollScheduler().setPollBudget(nodeConfig.getInt("uskPollBudget"));
+
+		nodeConfig.register("downloadCacheSize", "0", sortOrder++, true, false,
+				    "NodeClientCore.downloadCacheSize",
+				    "NodeClientCore.downloadCacheSizeLong", new LongCallback() {
+
+					@Override
+					public Long get() {
+						return downloadCache == null ? 0 : downloadCache.getMaxSize();
+					}
+
+					@Override
+					public void set(Long val)
+							throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 0)
+							throw new InvalidConfigValueException(l10n("downloadCacheSizeNegative"));
+						if(downloadCache == null || val == 0) {
+							if(!get().equals(val))
+								throw new NodeNeedRestartException(l10n("downloadCacheSizeNeedRestart"));
+							return;
+						}
+						downloadCache.setMaxSize(val);
+					}
+				}, true);
+		long downloadCacheSize = nodeConfig.getLong("downloadCacheSize");
+		if(downloadCacheSize > 0) {
+			downloadCache = new DiskDownloadCache(node.storeDir().file("download-cache"),
+					downloadCacheSize, node.executor, node.ticker, tempBucketFactory);
+			downloadCache.start();
+		}
+
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
 
 		shutdownHook.addEarlyJob(new NativeThread("Shutdown RealCompressor",
@@ -486,7 +600,8 @@ public class NodeClientCore implements Persistable {
 						false, Node.FORK_ON_CACHEABLE_DEFAULT, false,
 						Compressor.DEFAULT_COMPRESSORDESCRIPTOR, 0, 0,
 						InsertContext.CompatibilityMode.COMPAT_DEFAULT),
-				RequestStarter.PREFETCH_PRIORITY_CLASS, 512 /* FIXME make configurable */);
+				RequestStarter.PREFETCH_PRIORITY_CLASS, 512 /* FIXME make configurable */,
+				MAX_QUEUED_HEALING_BYTES);
 
 		PooledFileRandomAccessBufferFactory raff =
 				new PooledFileRandomAccessBufferFactory(persistentFilenameGenerator,
@@ -804,7 +919,10 @@ public class NodeClientCore implements Persistable {
 			fcpServer =
 					FCPServer.maybeCreate(node, this, node.config,
 							      fcpPersistentRoot);
-			clientContext.setDownloadCache(fcpServer);
+			if(downloadCache != null)
+				clientContext.setDownloadCache(new DownloadCacheChain(fcpServer, downloadCache));
+			else
+				clientContext.setDownloadCache(fcpServer);
 			if (!killedDatabase())
 				fcpServer.load();
 		} catch (IOException e) {
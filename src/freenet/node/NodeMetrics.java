@@ -0,0 +1,112 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.node.stats.DataStoreInstanceType;
+import freenet.node.stats.DataStoreStats;
+import freenet.support.metrics.FunctionCounter;
+import freenet.support.metrics.Gauge;
+import freenet.support.metrics.Metric;
+import freenet.support.metrics.MetricsRegistry;
+
+/**
+ * Exports numbers the node already keeps track of: datastore access counts and sizes, peers,
+ * threads and memory. Counters updated on hot paths are registered where they are updated, e.g.
+ * by RequestTracker and IOStatisticCollector.
+ */
+final class NodeMetrics {
+
+	private NodeMetrics() {
+		// Static only.
+	}
+
+	static void register(final Node node, MetricsRegistry metrics) {
+		for(final DataStoreInstanceType instance : node.getDataStoreStats().keySet())
+			registerStore(node, metrics, instance);
+
+		metrics.register(new Gauge("freenet_peers_connected", "Connected peers, darknet and opennet.", null) {
+			@Override
+			public double getValue() {
+				return node.peers.countConnectedPeers();
+			}
+		});
+		metrics.register(new Gauge("freenet_uptime_seconds", "Time since the node started.", null) {
+			@Override
+			public double getValue() {
+				return (System.currentTimeMillis() - node.startupTime) / 1000;
+			}
+		});
+		metrics.register(new Gauge("freenet_threads_running", "Threads running, not counting idle ones in the thread pool.", null) {
+			@Override
+			public double getValue() {
+				return node.nodeStats.getActiveThreadCount();
+			}
+		});
+		metrics.register(new Gauge("freenet_threads_limit", "Maximum number of threads.", null) {
+			@Override
+			public double getValue() {
+				return node.nodeStats.getThreadLimit();
+			}
+		});
+		metrics.register(new Gauge("freenet_jvm_memory_used_bytes", "Java heap in use.", null) {
+			@Override
+			public double getValue() {
+				Runtime rt = Runtime.getRuntime();
+				return rt.totalMemory() - rt.freeMemory();
+			}
+		});
+		metrics.register(new Gauge("freenet_jvm_memory_max_bytes", "Maximum Java heap.", null) {
+			@Override
+			public double getValue() {
+				return Runtime.getRuntime().maxMemory();
+			}
+		});
+	}
+
+	/** The stores can be replaced at runtime, so look them up each time. */
+	private static DataStoreStats storeStats(Node node, DataStoreInstanceType instance) {
+		return node.getDataStoreStats().get(instance);
+	}
+
+	private static void registerStore(final Node node, MetricsRegistry metrics, final DataStoreInstanceType instance) {
+		String labels = Metric.labels("key", instance.key.name().toLowerCase(), "store", instance.store.name().toLowerCase());
+		metrics.register(new FunctionCounter("freenet_store_hits_total", "Datastore reads which found the key, this session.", labels) {
+			@Override
+			public long getValue() {
+				return storeStats(node, instance).getSessionAccessStats().hits();
+			}
+		});
+		metrics.register(new FunctionCounter("freenet_store_misses_total", "Datastore reads which didn't find the key, this session.", labels) {
+			@Override
+			public long getValue() {
+				return storeStats(node, instance).getSessionAccessStats().misses();
+			}
+		});
+		metrics.register(new FunctionCounter("freenet_store_false_positives_total", "Datastore reads which the Bloom filter got wrong, this session.", labels) {
+			@Override
+			public long getValue() {
+				return storeStats(node, instance).getSessionAccessStats().falsePos();
+			}
+		});
+		metrics.register(new FunctionCounter("freenet_store_writes_total", "Datastore writes, this session.", labels) {
+			@Override
+			public long getValue() {
+				return storeStats(node, instance).getSessionAccessStats().writes();
+			}
+		});
+		metrics.register(new Gauge("freenet_store_keys", "Keys in the datastore.", labels) {
+			@Override
+			public double getValue() {
+				return storeStats(node, instance).keys();
+			}
+		});
+		metrics.register(new Gauge("freenet_store_capacity_keys", "Maximum number of keys in the datastore.", labels) {
+			@Override
+			public double getValue() {
+				return storeStats(node, instance).capacity();
+			}
+		});
+	}
+
+}
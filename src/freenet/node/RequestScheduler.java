@@ -5,6 +5,8 @@ package freenet.node;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
+import java.util.Collection;
+
 import freenet.client.async.ChosenBlock;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestSelector;
@@ -45,6 +47,17 @@ public interface RequestScheduler {
 	public boolean addToFetching(Key key);
 
 	public ChosenBlock grabRequest();
+	
+	/**
+	 * Choose several requests to run at once, in the same order that repeated calls to 
+	 * grabRequest() would. Unlike grabRequest(), the blocks are already registered as running 
+	 * (addToFetching() or addRunningInsert()), so the caller must either send them or remove 
+	 * them again with removeFetchingKey() or removeRunningInsert().
+	 * @param max The maximum number of blocks to choose.
+	 * @param out The chosen blocks are added to this collection.
+	 * @return The number of blocks chosen.
+	 */
+	public int grabRequests(int max, Collection<ChosenBlock> out);
 
 	public void removeRunningRequest(SendableRequest request);
 
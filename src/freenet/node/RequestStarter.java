@@ -6,6 +6,8 @@ package freenet.node;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.util.ArrayDeque;
+
 import freenet.client.async.ChosenBlock;
 import freenet.client.async.ClientContext;
 import freenet.client.async.RequestSelectionTreeNode;
@@ -75,6 +77,21 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	final boolean realTime;
 	
 	static final int MAX_WAITING_FOR_SLOTS = 50;
+	/** Maximum number of requests to choose at once. */
+	static final int MAX_BATCH_SIZE = 32;
+	/** Choose enough requests for roughly this long at the current throttle delay. Chosen 
+	 * requests are already registered as running, so we don't want to hold on to them for long. */
+	static final long BATCH_PERIOD = SECONDS.toMillis(1);
+	/** How long a sender waits for more requests before returning its thread to the pool. */
+	static final long SENDER_IDLE_TIMEOUT = SECONDS.toMillis(10);
+	
+	/** Requests chosen but not yet started. Only accessed by the RequestStarter thread. All of 
+	 * them have already been added to keysFetching / runningInserts. */
+	private final ArrayDeque<ChosenBlock> chosen = new ArrayDeque<ChosenBlock>();
+	/** Requests waiting for a sender. LOCKING: Synchronize on the queue. */
+	private final ArrayDeque<ChosenBlock> toSend = new ArrayDeque<ChosenBlock>();
+	/** Senders waiting for toSend to become non-empty. LOCKING: Synchronized on toSend. */
+	private int idleSenders;
 	
 	public RequestStarter(NodeClientCore node, BaseRequestThrottle throttle, String name, 
 			RunningAverage averageOutputBytesPerRequest, RunningAverage averageInputBytesPerRequest, boolean isInsert, boolean isSSK, boolean realTime) {
@@ -104,6 +121,12 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		return name;
 	}
 	
+	/** @return How many requests to choose at once, given the current throttle delay. */
+	static int batchSize(long delay) {
+		if(delay <= 0) return MAX_BATCH_SIZE;
+		return (int) Math.max(1, Math.min(MAX_BATCH_SIZE, BATCH_PERIOD / delay));
+	}
+	
 	void realRun() {
 		ChosenBlock req = null;
 		// The last time at which we sent a request or decided not to
@@ -113,6 +136,8 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 			OpennetManager om;
 			if(core.node.peers.countConnectedPeers() < 3 && (om = core.node.getOpennet()) != null &&
 					System.currentTimeMillis() - om.getCreationTime() < MINUTES.toMillis(5)) {
+				releaseChosen();
+				req = null;
 				try {
 					synchronized(this) {
 						wait(1000);
@@ -124,7 +149,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				continue;
 			}
 			if(req == null) {
-				req = sched.grabRequest();
+				req = nextRequest();
 			}
 			if(req != null) {
 				if(logMINOR) Logger.minor(this, "Running "+req+" priority "+req.getPriority());
@@ -172,6 +197,9 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 					if(reason != null) {
 						if(logMINOR)
 							Logger.minor(this, "Not sending local request: "+reason);
+						// Don't keep the batch marked as running while we can't send it.
+						releaseChosen();
+						req = null;
 						// Wait one throttle-delay before trying again
 						cycleTime = System.currentTimeMillis();
 						continue; // Let local requests compete with all the others
@@ -184,7 +212,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				// Always take the lock on RequestStarter first. AFAICS we don't synchronize on RequestStarter anywhere else.
 				// Nested locks here prevent extra latency when there is a race, and therefore allow us to sleep indefinitely
 				synchronized(this) {
-					req = sched.grabRequest();
+					req = nextRequest();
 					if(req == null) {
 						try {
 							wait();
@@ -195,6 +223,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				}
 			}
 			if(req == null) continue;
+			chosen.poll();
 			if(!startRequest(req, logMINOR)) {
 				// Don't log if it's a cancelled transient request.
 				if(!((!req.isPersistent()) && req.isCancelled()))
@@ -206,24 +235,54 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		}
 	}
 
+	/** @return The next request to start, choosing a new batch if necessary. The request stays 
+	 * at the head of the batch until it is started. */
+	private ChosenBlock nextRequest() {
+		ChosenBlock req = chosen.peek();
+		if(req != null) return req;
+		int max = batchSize(throttle.getDelay());
+		if(sched.grabRequests(max, chosen) > 0 && logMINOR)
+			Logger.minor(this, "Chose "+chosen.size()+" requests, asked for "+max);
+		return chosen.peek();
+	}
+
+	/** Give back all the requests chosen but not yet started, so they are no longer marked as
+	 * running and can be chosen again later. */
+	private void releaseChosen() {
+		ChosenBlock req;
+		while((req = chosen.poll()) != null)
+			release(req);
+	}
+
+	/** Remove a request we are not going to send from keysFetching or runningInserts. */
+	private void release(ChosenBlock req) {
+		if(req.key != null)
+			sched.removeFetchingKey(req.key);
+		else if(((ChosenBlockImpl)req).request instanceof SendableInsert)
+			sched.removeRunningInsert((SendableInsert)(((ChosenBlockImpl)req).request), req.token.getKey());
+		req.onDumped();
+	}
+
+	/** Send a request. It has already been added to keysFetching or runningInserts by 
+	 * grabRequests(). */
 	private boolean startRequest(ChosenBlock req, boolean logMINOR) {
 		if((!req.isPersistent()) && req.isCancelled()) {
-			req.onDumped();
+			release(req);
 			return false;
 		}
-		if(req.key != null) {
-			if(!sched.addToFetching(req.key)) {
-				req.onDumped();
-				return false;
-			}
-		} else if(((ChosenBlockImpl)req).request instanceof SendableInsert) {
-			if(!sched.addRunningInsert((SendableInsert)(((ChosenBlockImpl)req).request), req.token.getKey())) {
-				req.onDumped();
-				return false;
+		if(logMINOR) Logger.minor(this, "Running request "+req+" priority "+req.getPriority());
+		boolean startSender;
+		synchronized(toSend) {
+			toSend.add(req);
+			if(idleSenders >= toSend.size()) {
+				toSend.notify();
+				startSender = false;
+			} else {
+				startSender = true;
 			}
 		}
-		if(logMINOR) Logger.minor(this, "Running request "+req+" priority "+req.getPriority());
-		core.getExecutor().execute(new SenderThread(req, req.key), "RequestStarter$SenderThread for "+req);
+		if(startSender)
+			core.getExecutor().execute(new SenderThread(), "RequestStarter$SenderThread for "+name);
 		return true;
 	}
 
@@ -239,20 +298,43 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
             }
 	}
 	
+	/** Sends requests from toSend, one at a time. Most requests (fetches) don't block in send(),
+	 * so a few senders can keep up with a fast request starter without a thread handoff per 
+	 * request. If all the senders are busy (e.g. with blocking inserts), another one is started.
+	 * Senders exit after being idle for a while. */
 	private class SenderThread implements Runnable {
 
-		private final ChosenBlock req;
-		private final Key key;
-		
-		public SenderThread(ChosenBlock req, Key key) {
-			this.req = req;
-			this.key = key;
-		}
-
 		@Override
 		public void run() {
 		    freenet.support.Logger.OSThread.logPID(this);
+		    while(true) {
+		    	ChosenBlock req;
+		    	synchronized(toSend) {
+		    		req = toSend.poll();
+		    		if(req == null) {
+		    			idleSenders++;
+		    			try {
+		    				toSend.wait(SENDER_IDLE_TIMEOUT);
+		    			} catch (InterruptedException e) {
+		    				// Ignore
+		    			} finally {
+		    				idleSenders--;
+		    			}
+		    			req = toSend.poll();
+		    			if(req == null) return;
+		    		}
+		    	}
+		    	try {
+		    		send(req);
+		    	} catch (Throwable t) {
+		    		Logger.error(this, "Caught "+t+" sending "+req, t);
+		    	}
+		    }
+		}
+		
+		private void send(ChosenBlock req) {
 		    // FIXME ? key is not known for inserts here
+		    Key key = req.key;
 		    if (key != null)
 		    	stats.reportOutgoingLocalRequestLocation(key.toNormalizedDouble());
 		    if(!req.send(core, sched)) {
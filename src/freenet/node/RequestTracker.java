@@ -4,6 +4,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -12,6 +13,10 @@ import java.util.Map;
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
 import freenet.support.Ticker;
+import freenet.support.metrics.Counter;
+import freenet.support.metrics.Histogram;
+import freenet.support.metrics.Metric;
+import freenet.support.metrics.MetricsRegistry;
 
 public class RequestTracker {
 	
@@ -56,10 +61,38 @@ public class RequestTracker {
 	private final HashMap<NodeCHK, RequestSender> transferringRequestSendersBulk;
 	/** UIDs of RequestHandler's currently transferring */
 	private final HashSet<Long> transferringRequestHandlers;
+
+	/** Requests, inserts and offer replies started, see metricIndex(). */
+	private final Counter[] started;
+	/** How long requests, inserts and offer replies took, see metricIndex(). Not split by
+	 * realtime flag. */
+	private final Histogram[] durations;
 	
-	RequestTracker(PeerManager peers, Ticker ticker) {
+	RequestTracker(PeerManager peers, Ticker ticker, MetricsRegistry metrics) {
 		this.peers = peers;
 		this.ticker = ticker;
+		started = new Counter[24];
+		durations = new Histogram[12];
+		for(boolean ssk : new boolean[] { false, true }) {
+			for(int kind = 0; kind < 3; kind++) {
+				for(boolean local : new boolean[] { false, true }) {
+					String[] labels = new String[] {
+							"key", ssk ? "ssk" : "chk",
+							"kind", kind == 0 ? "request" : (kind == 1 ? "insert" : "offer_reply"),
+							"origin", local ? "local" : "remote" };
+					int index = metricIndex(ssk, kind == 1, kind == 2, local);
+					durations[index] = metrics.histogram("freenet_request_duration_milliseconds",
+							"How long requests took from being accepted to completing.", Metric.labels(labels));
+					for(boolean realTime : new boolean[] { false, true }) {
+						String[] rtLabels = Arrays.copyOf(labels, labels.length + 2);
+						rtLabels[labels.length] = "realtime";
+						rtLabels[labels.length+1] = Boolean.toString(realTime);
+						started[index * 2 + (realTime ? 1 : 0)] = metrics.counter("freenet_requests_started_total",
+								"Requests accepted, both from peers and local.", Metric.labels(rtLabels));
+					}
+				}
+			}
+		}
 		runningCHKGetUIDsRT = new HashMap<Long,RequestTag>();
 		runningLocalCHKGetUIDsRT = new HashMap<Long,RequestTag>();
 		runningSSKGetUIDsRT = new HashMap<Long,RequestTag>();
@@ -93,19 +126,29 @@ public class RequestTracker {
 
 	public boolean lockUID(long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag, UIDTag tag) {
 		// If these are switched around, we must remember to remove from both.
+		boolean locked;
 		if(offerReply) {
 			// local irrelevant for OfferReplyTag's.
 			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			return innerLock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
+			locked = innerLock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
+			local = false;
 		} else if(insert) {
 			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
 			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk, local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local);
+			locked = innerLock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local);
 		} else {
 			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk,false, realTimeFlag);
 			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local);
+			locked = innerLock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local);
 		}
+		if(locked)
+			started[metricIndex(ssk, insert, offerReply, local) * 2 + (realTimeFlag ? 1 : 0)].increment();
+		return locked;
+	}
+
+	private static int metricIndex(boolean ssk, boolean insert, boolean offerReply, boolean local) {
+		int kind = offerReply ? 2 : (insert ? 1 : 0);
+		return (ssk ? 6 : 0) + kind * 2 + (local ? 1 : 0);
 	}
 
 	private<T extends UIDTag> boolean innerLock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
@@ -150,18 +193,22 @@ public class RequestTracker {
 		if(!noRecord)
 			completed(uid);
 
+		boolean unlocked;
 		if(offerReply) {
 			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			innerUnlock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
+			unlocked = innerUnlock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
+			local = false;
 		} else if(insert) {
 			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
 			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
+			unlocked = innerUnlock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		} else {
 			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk, false, realTimeFlag);
 			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
+			unlocked = innerUnlock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		}
+		if(unlocked)
+			durations[metricIndex(ssk, insert, offerReply, local)].record(tag.age());
 	}
 
 	/**
@@ -179,8 +226,10 @@ public class RequestTracker {
 	 * @param local Whether it is local. If it is local we use both maps. If
 	 * it is not we expect the latter to be null.
 	 * @param canFail
+	 * @return True if the tag was removed from the overall map.
 	 */
-	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
+	private<T extends UIDTag> boolean innerUnlock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
+		boolean removed = false;
 		synchronized(overallMap) {
 			if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
 			if(overallMap.get(uid) != tag) {
@@ -189,8 +238,10 @@ public class RequestTracker {
 				} else {
 					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
 				}
-			} else
+			} else {
 				overallMap.remove(uid);
+				removed = true;
+			}
 			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(localMap.get(uid) != tag) {
@@ -207,6 +258,7 @@ public class RequestTracker {
 				assert(localMap == null);
 			}
 		}
+		return removed;
 	}
 
 	public static class CountedRequests {
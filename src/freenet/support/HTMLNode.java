@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -16,6 +18,9 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 	private static final Pattern simpleNamePattern = Pattern.compile("^[A-Za-z][A-Za-z0-9]*$");
 	public static HTMLNode STRONG = new HTMLNode("strong").setReadOnly();
 
+	/** When rendering to a Writer, write out the buffer once it reaches this many chars. */
+	private static final int FLUSH_THRESHOLD = 8192;
+
 	protected final String name;
 	
 	private boolean readOnly;
@@ -374,23 +379,56 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 	}
 
 	public StringBuilder generate(StringBuilder tagBuffer, int indentDepth ) {
+		try {
+			generate(tagBuffer, indentDepth, null);
+		} catch (IOException e) {
+			// Impossible, nothing is written out.
+			throw new Error(e);
+		}
+		return tagBuffer;
+	}
+
+	/**
+	 * Render the node to a Writer, a bounded chunk at a time, rather than building the whole
+	 * page as one String. The output is identical to generate().
+	 */
+	public void generate(Writer out) throws IOException {
+		StringBuilder tagBuffer = new StringBuilder(FLUSH_THRESHOLD * 2);
+		generate(tagBuffer, 0, out);
+		out.append(tagBuffer);
+	}
+
+	/** If we are writing to out, write out the buffer once it is big enough. */
+	protected static void maybeWriteOut(StringBuilder tagBuffer, Writer out) throws IOException {
+		if(out != null && tagBuffer.length() >= FLUSH_THRESHOLD) {
+			out.append(tagBuffer);
+			tagBuffer.setLength(0);
+		}
+	}
+
+	/**
+	 * Render the node into tagBuffer. If out is not null, the buffer may be written out to it and
+	 * emptied at any point.
+	 */
+	protected void generate(StringBuilder tagBuffer, int indentDepth, Writer out) throws IOException {
 		if("#".equals(name)) {
 			if(content != null) {
 				HTMLEncoder.encodeToBuffer(content, tagBuffer);
-				return tagBuffer;
+				return;
 			}
 			
 			for(int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
 				HTMLNode childNode = children.get(childIndex);
-				childNode.generate(tagBuffer);
+				childNode.generate(tagBuffer, 0, out);
+				maybeWriteOut(tagBuffer, out);
 			}
-			return tagBuffer;
+			return;
 		}
 		// Perhaps this should be something else, but since I don't know if '#' was not just arbitrary chosen, I'll just pick '%'
 		// This allows non-encoded text to be appended to the tag buffer
 		if ("%".equals(name)) {
 			tagBuffer.append(content);
-			return tagBuffer;
+			return;
 		}
 		/* start the open tag */
 		tagBuffer.append('<').append(name);
@@ -423,7 +461,8 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			}
 			for (int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
 				HTMLNode childNode = children.get(childIndex);
-				childNode.generate(tagBuffer,indentDepth+1);
+				childNode.generate(tagBuffer, indentDepth+1, out);
+				maybeWriteOut(tagBuffer, out);
 			}
 		}
 		/* add a closing tag */
@@ -436,7 +475,6 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			tagBuffer.append('\n');
 			tagBuffer.append(indentString(indentDepth));
 		}
-		return tagBuffer;
 	}
 	
 	public String generateChildren(){
@@ -482,19 +520,52 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 		}
 
 		/**
-		 * @see freenet.support.HTMLNode#generate(java.lang.StringBuilder)
+		 * @see freenet.support.HTMLNode#generate(java.lang.StringBuilder, int, java.io.Writer)
 		 */
 		@Override
-		public StringBuilder generate(StringBuilder tagBuffer) {
+		protected void generate(StringBuilder tagBuffer, int indentDepth, Writer out) throws IOException {
 			tagBuffer.append("<!DOCTYPE ").append(name).append(" PUBLIC \"").append(systemUri).append("\">\n");
 			//TODO A meaningful exception should be raised 
 			// when trying to call the method for a HTMLDoctype 
 			// with number of child != 1 
-			return children.get(0).generate(tagBuffer);
+			children.get(0).generate(tagBuffer, 0, out);
 		}
 
 	}
 
+	/**
+	 * A node whose children are only produced when it is rendered, e.g. the rows of a long table
+	 * generated from an iterator, so they never all need to be in memory at once. It adds nothing
+	 * itself, and can only be rendered once if the Iterable can only be iterated once.
+	 */
+	private static class LazyNode extends HTMLNode {
+
+		private final Iterable<HTMLNode> lazyChildren;
+
+		LazyNode(Iterable<HTMLNode> children) {
+			super("#");
+			this.lazyChildren = children;
+			setReadOnly();
+		}
+
+		@Override
+		protected void generate(StringBuilder tagBuffer, int indentDepth, Writer out) throws IOException {
+			for(HTMLNode childNode : lazyChildren) {
+				childNode.generate(tagBuffer, indentDepth, out);
+				maybeWriteOut(tagBuffer, out);
+			}
+		}
+
+	}
+
+	/**
+	 * Create a node which renders the nodes returned by the Iterable when the page is generated,
+	 * rather than when it is built. Use with generate(Writer) for long lists.
+	 */
+	public static HTMLNode lazy(Iterable<HTMLNode> children) {
+		return new LazyNode(children);
+	}
+
 	public static HTMLNode link(String path) {
 		return new HTMLNode("a", "href", path);
 	}
@@ -1,10 +1,7 @@
 package freenet.support;
 
-import static java.util.concurrent.TimeUnit.MINUTES;
-
 import java.util.Arrays;
-
-import org.tanukisoftware.wrapper.WrapperManager;
+import java.util.IdentityHashMap;
 
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestSelector;
@@ -13,15 +10,15 @@ import freenet.client.async.RequestSelectionTreeNode;
 /**
  * An array which supports very fast remove-and-return-a-random-element.
  * 
- * This is *NOT* persistent. The request selection structures are reconstructed on restart. However
- * it used to be, and probably has a lot of cruft and inefficiency as a result. 
+ * This is *NOT* persistent. The request selection structures are reconstructed on restart.
  * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * Adding, removing and looking up an item are O(1): Items are kept in a single array, and once
+ * there are more than a few of them, an identity map gives each item's position, so removal 
+ * just swaps the last item into the gap.
  * 
- * FIXME Simplify and improve performance. A lot of this is O(n), and this should probably be fixed. 
- * Memory usage was an issue but probably isn't now given that the individual items are now quite 
- * large (entire splitfiles or at least entire segments).
+ * LOCKING: Each priority in the tree has its own lock, which is passed in when the node is 
+ * created. It must be taken before calling any methods on RGA or SRGA. See the javadocs on 
+ * ClientRequestSelector for deeper explanation.
  */
 public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	private static volatile boolean logMINOR;
@@ -30,31 +27,29 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		Logger.registerClass(RandomGrabArray.class);
 	}
 	
-	private static class Block {
-		RandomGrabArrayItem[] reqs;
-	}
-	
-	/** Array of items. Non-null's followed by null's. 
-	 * We used to have a Set so we could check whether something is in the set quickly.
-	 * We got rid of this because for persistent requests it is vastly faster to just loop the
-	 * loop and check ==, and for non-persistent requests it doesn't matter much. */
-	private Block[] blocks;
+	/** Array of items. Non-null's followed by null's. */
+	private RandomGrabArrayItem[] reqs;
 	/** Index of first null item. */
 	private int index;
+	/** Position of each item in reqs. Only created when there are more than INDEX_THRESHOLD 
+	 * items; below that it is cheaper to just loop and check ==. */
+	private IdentityHashMap<RandomGrabArrayItem, Integer> positions;
 	private final static int MIN_SIZE = 32;
-	private final static int BLOCK_SIZE = 1024;
+	private final static int INDEX_THRESHOLD = 16;
 	private final int hashCode;
 	private RemoveRandomParent parent;
-	protected ClientRequestSelector root;
+	protected final ClientRequestSelector root;
+	/** The lock for the subtree this node is in. */
+	protected final Object lock;
 	private long wakeupTime;
 
-	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
-		this.blocks = new Block[] { new Block() };
-		blocks[0].reqs = new RandomGrabArrayItem[MIN_SIZE];
+	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
+		this.reqs = new RandomGrabArrayItem[MIN_SIZE];
 		index = 0;
 		this.hashCode = super.hashCode();
 		this.parent = parent;
 		this.root = root;
+		this.lock = lock;
 	}
 	
 	@Override
@@ -68,65 +63,106 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			return;
 		}
 		req.setParentGrabArray(this); // will store() self
-		synchronized(root) {
+		synchronized(lock) {
 			if(context != null) {
 			    clearWakeupTime(context);
 			}
-			int x = 0;
-			if(blocks.length == 1 && index < BLOCK_SIZE) {
-				for(int i=0;i<index;i++) {
-					if(blocks[0].reqs[i] == req) {
-						return;
-					}
-				}
-				if(index >= blocks[0].reqs.length) {
-					blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.min(BLOCK_SIZE, blocks[0].reqs.length*2));
-				}
-				blocks[0].reqs[index++] = req;
-				if(logMINOR) Logger.minor(this, "Added "+req+" before index "+index);
+			if(indexOf(req) != -1) {
+				if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+index);
 				return;
 			}
-			int targetBlock = index / BLOCK_SIZE;
-			for(int i=0;i<blocks.length;i++) {
-				Block block = blocks[i];
-				if(i != (blocks.length - 1) && block.reqs.length != BLOCK_SIZE) {
-					Logger.error(this, "Block "+i+" of "+blocks.length+" is wrong size: "+block.reqs.length+" should be "+BLOCK_SIZE);
-				}
-				for(int j=0;j<block.reqs.length;j++) {
-					if(x >= index) break;
-					if(block.reqs[j] == req) {
-						if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+index);
-						return;
-					}
-					if(block.reqs[j] == null) {
-						Logger.error(this, "reqs["+i+"."+j+"] = null on "+this);
-					}
-					x++;
+			append(req);
+			if(logMINOR) Logger.minor(this, "Added: "+req+" to "+this+" size now "+index);
+		}
+	}
+	
+	/** Add several items at once, when moving them from another RGA. Items which are finished,
+	 * or have been unregistered from the old RGA since they were removed from it, are dropped.
+	 * @param from The RGA the items were removed from with removeAll(). */
+	public void addAll(RandomGrabArrayItem[] items, RandomGrabArray from, ClientContext context) {
+		long now = System.currentTimeMillis();
+		synchronized(lock) {
+			boolean added = false;
+			for(RandomGrabArrayItem req : items) {
+				synchronized(req) {
+					// Atomic with SendableRequest.unregister() clearing the parent.
+					if(req.getParentGrabArray() != from) continue;
+					req.setParentGrabArray(this);
 				}
-			}
-			if(blocks.length <= targetBlock) {
-				if(logMINOR)
-					Logger.minor(this, "Adding blocks on "+this);
-				Block[] newBlocks = Arrays.copyOf(blocks, targetBlock+1);
-				for(int i=blocks.length;i<newBlocks.length;i++) {
-					newBlocks[i] = new Block();
-					newBlocks[i].reqs = new RandomGrabArrayItem[BLOCK_SIZE];
+				if(context != null && req.getWakeupTime(context, now) < 0) {
+					req.setParentGrabArray(null);
+					continue;
 				}
-				blocks = newBlocks;
+				if(indexOf(req) != -1) continue;
+				append(req);
+				added = true;
 			}
-			Block target = blocks[targetBlock];
-			target.reqs[index++ % BLOCK_SIZE] = req;
-			if(logMINOR) Logger.minor(this, "Added: "+req+" to "+this+" size now "+index);
+			if(added && context != null)
+				clearWakeupTime(context);
+		}
+	}
+	
+	/** Remove and return all the items, leaving their parent set to this RGA. The caller must 
+	 * pass them to addAll() on another RGA. */
+	public RandomGrabArrayItem[] removeAll() {
+		synchronized(lock) {
+			RandomGrabArrayItem[] ret = Arrays.copyOf(reqs, index);
+			reqs = new RandomGrabArrayItem[MIN_SIZE];
+			index = 0;
+			positions = null;
+			return ret;
 		}
 	}
 	
-	/** Must be less than BLOCK_SIZE */
+	/** Caller must hold the lock. */
+	private int indexOf(RandomGrabArrayItem req) {
+		if(positions != null) {
+			Integer pos = positions.get(req);
+			return pos == null ? -1 : pos;
+		}
+		for(int i=0;i<index;i++)
+			if(reqs[i] == req) return i;
+		return -1;
+	}
+	
+	/** Caller must hold the lock. */
+	private void append(RandomGrabArrayItem req) {
+		if(index == reqs.length)
+			reqs = Arrays.copyOf(reqs, reqs.length*2);
+		reqs[index] = req;
+		if(positions != null) {
+			positions.put(req, index);
+		} else if(index >= INDEX_THRESHOLD) {
+			positions = new IdentityHashMap<RandomGrabArrayItem, Integer>();
+			for(int i=0;i<=index;i++)
+				positions.put(reqs[i], i);
+		}
+		index++;
+	}
+	
+	/** Remove the item at the given position by moving the last item into it. Caller must hold
+	 * the lock. */
+	private void removeAt(int i) {
+		RandomGrabArrayItem removed = reqs[i];
+		int last = --index;
+		RandomGrabArrayItem moved = reqs[last];
+		reqs[i] = moved;
+		reqs[last] = null;
+		if(positions != null) {
+			positions.remove(removed);
+			if(i != last) positions.put(moved, i);
+			if(index < INDEX_THRESHOLD / 2) positions = null;
+		}
+		if(index < reqs.length / 4 && reqs.length > MIN_SIZE)
+			reqs = Arrays.copyOf(reqs, Math.max(index * 2, MIN_SIZE));
+	}
+	
 	static final int MAX_EXCLUDED = 10;
 	
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
 		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" index="+index);
-		synchronized(root) {
+		synchronized(lock) {
 			if(index == 0) {
 				if(logMINOR) Logger.minor(this, "All null on "+this);
 				return null;
@@ -149,65 +185,29 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
 		int excluded = 0;
-		while(true) {
+		while(index > 0) {
 			int i = context.fastWeakRandom.nextInt(index);
-			int blockNo = i / BLOCK_SIZE;
-			RandomGrabArrayItem ret, oret;
-			ret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-			if(ret == null) {
-				Logger.error(this, "reqs["+i+"] = null");
-				remove(blockNo, i);
-				continue;
-			}
-			if(ret.getWakeupTime(context, now) > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					return null;
-				}
-				continue;
-			}
-			oret = ret;
+			RandomGrabArrayItem ret = reqs[i];
 			long itemWakeTime = ret.getWakeupTime(context, now);
 			if(itemWakeTime == -1) {
-				if(logMINOR) Logger.minor(this, "Not returning because cancelled: "+ret);
-				ret = null;
-				// Will be removed in the do{} loop
-				// Tell it that it's been removed first.
-				oret.setParentGrabArray(null);
+				if(logMINOR) Logger.minor(this, "Removing cancelled item "+ret);
+				ret.setParentGrabArray(null);
+				removeAt(i);
+				continue;
 			}
 			if(itemWakeTime == 0)
 				itemWakeTime = excluding.exclude(ret, context, now);
-			if(ret != null && itemWakeTime > 0) {
+			if(itemWakeTime > 0) {
 				excluded++;
 				if(excluded > MAX_EXCLUDED) {
 					return null;
 				}
 				continue;
 			}
-			if(ret != null) {
-				if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
-				return ret;
-			}
-			// Remove an element.
-			do {
-				remove(blockNo, i);
-				oret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-				// Check for nulls, but don't check for cancelled, since we'd have to activate.
-			} while (index > i && oret == null);
-			int newBlockCount;
-			// Shrink array
-			if(blocks.length == 1 && index < blocks[0].reqs.length / 4 && blocks[0].reqs.length > MIN_SIZE) {
-				// Shrink array
-				blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.max(index * 2, MIN_SIZE));
-			} else if(blocks.length > 1 &&
-					(newBlockCount = (((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1)) < 
-					blocks.length) {
-				if(logMINOR)
-					Logger.minor(this, "Shrinking blocks on "+this);
-				blocks = Arrays.copyOf(blocks, newBlockCount);
-			}
+			if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
 			return ret;
 		}
+		return null;
 	}
 
 	private RemoveRandomReturn removeRandomExhaustiveSearch(
@@ -216,132 +216,52 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		if(logMINOR)
 			Logger.minor(this, "Doing exhaustive search and compaction on "+this);
 		long wakeupTime = Long.MAX_VALUE;
-		RandomGrabArrayItem ret = null;
-		int random = -1;
-		while(true) {
-			RandomGrabArrayItem[] reqsReading = blocks[0].reqs;
-			RandomGrabArrayItem[] reqsWriting = blocks[0].reqs;
-			int blockNumReading = 0;
-			int blockNumWriting = 0;
-			int offset = -1;
-			int writeOffset = -1;
-			int exclude = 0;
-			int valid = 0;
-			int validIndex = -1;
-			int target = 0;
-			RandomGrabArrayItem chosenItem = null;
-			RandomGrabArrayItem validItem = null;
-			for(int i=0;i<index;i++) {
-				offset++;
-				// Compact the array.
-				RandomGrabArrayItem item;
-				if(offset == BLOCK_SIZE) {
-					offset = 0;
-					blockNumReading++;
-					reqsReading = blocks[blockNumReading].reqs;
+		RandomGrabArrayItem chosenItem = null;
+		int exclude = 0;
+		int valid = 0;
+		// Go backwards so removing doesn't move anything we haven't seen yet.
+		for(int i=index-1;i>=0;i--) {
+			RandomGrabArrayItem item = reqs[i];
+			long itemWakeTime = item.getWakeupTime(context, now);
+			if (itemWakeTime > 0) {
+				// The item is in cooldown, will be wanted later.
+				exclude++;
+				if (itemWakeTime < wakeupTime) {
+					wakeupTime = itemWakeTime;
 				}
-				item = reqsReading[offset];
-				if(item == null) {
-					if(logMINOR) Logger.minor(this, "Found null item at offset "+offset+" i="+i+" block = "+blockNumReading+" on "+this);
-					continue;
-				}
-				boolean excludeItem = false;
-				long itemWakeTime = item.getWakeupTime(context, now);
-				if (itemWakeTime > 0) {
-					// The item is in cooldown, will be wanted later.
-					excludeItem = true;
-					if (itemWakeTime < wakeupTime) {
-						wakeupTime = itemWakeTime;
-					}
-				} else if (itemWakeTime == -1) {
-					// The item is no longer needed and should be removed.
-					if(logMINOR) {
-						Logger.minor(this, "Removing "+item+" on "+this);
-					}
-					// We are doing compaction here. We don't need to swap with the end; we write valid ones to the target location.
-					reqsReading[offset] = null;
-					item.setParentGrabArray(null);
-					continue;
-				} else {
-					long excludeTime = excluding.exclude(item, context, now);
-					if (excludeTime > 0) {
-						excludeItem = true;
-						if(excludeTime < wakeupTime) {
-							wakeupTime = excludeTime;
-						}
-					}
-				}
-				writeOffset++;
-				if(writeOffset == BLOCK_SIZE) {
-					writeOffset = 0;
-					blockNumWriting++;
-					reqsWriting = blocks[blockNumWriting].reqs;
+			} else if (itemWakeTime == -1) {
+				// The item is no longer needed and should be removed.
+				if(logMINOR) {
+					Logger.minor(this, "Removing "+item+" on "+this);
 				}
-				if(i != target) {
-					reqsReading[offset] = null;
-					reqsWriting[writeOffset] = item;
-				} // else the request can happily stay where it is
-				target++;
-				if(excludeItem) {
+				item.setParentGrabArray(null);
+				removeAt(i);
+			} else {
+				long excludeTime = excluding.exclude(item, context, now);
+				if (excludeTime > 0) {
 					exclude++;
-				} else {
-					if(valid == random) { // Picked on previous round
-						chosenItem = item;
-					}
-					if(validIndex == -1) {
-						// Take the first valid item
-						validIndex = target-1;
-						validItem = item;
+					if(excludeTime < wakeupTime) {
+						wakeupTime = excludeTime;
 					}
+				} else {
+					// Choose uniformly from the valid items without a second pass.
 					valid++;
+					if(valid == 1 || context.fastWeakRandom.nextInt(valid) == 0)
+						chosenItem = item;
 				}
 			}
-			if(index != target) {
-				index = target;
-			}
-			// We reach this point if 1) the random number we picked last round is invalid because an item became cancelled or excluded
-			// or 2) we are on the first round anyway.
-			if(chosenItem != null) {
-				ret = chosenItem;
-				if(logMINOR) Logger.minor(this, "Chosen random item "+ret+" out of "+valid+" total "+index);
-				return new RemoveRandomReturn(ret);
-			}
-			if(valid == 0 && exclude == 0) {
-				if(logMINOR) Logger.minor(this, "No valid or excluded items total "+index);
-				return null; // Caller should remove the whole RGA
-			} else if(valid == 0) {
-				if(logMINOR) Logger.minor(this, "No valid items, "+exclude+" excluded items total "+index);
-				setWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			} else if(valid == 1) {
-				ret = validItem;
-				if(logMINOR) Logger.minor(this, "No valid or excluded items apart from "+ret+" total "+index);
-				return new RemoveRandomReturn(ret);
-			} else {
-				random = context.fastWeakRandom.nextInt(valid);
-				if(logMINOR) Logger.minor(this, "Looping to choose valid item "+random+" of "+valid+" (excluded "+exclude+")");
-				// Loop
-			}
 		}
-	}
-
-	/**
-	 * blockNo is assumed to be already active. The last block is assumed not 
-	 * to be.
-	 */
-	private void remove(int blockNo, int i) {
-		index--;
-		int endBlock = index / BLOCK_SIZE;
-		if(blocks.length == 1 || blockNo == endBlock) {
-			RandomGrabArrayItem[] items = blocks[blockNo].reqs;
-			int idx = index % BLOCK_SIZE;
-			items[i % BLOCK_SIZE] = items[idx];
-			items[idx] = null;
+		if(chosenItem != null) {
+			if(logMINOR) Logger.minor(this, "Chosen random item "+chosenItem+" out of "+valid+" total "+index);
+			return new RemoveRandomReturn(chosenItem);
+		}
+		if(exclude == 0) {
+			if(logMINOR) Logger.minor(this, "No valid or excluded items total "+index);
+			return null; // Caller should remove the whole RGA
 		} else {
-			RandomGrabArrayItem[] toItems = blocks[blockNo].reqs;
-			RandomGrabArrayItem[] endItems = blocks[endBlock].reqs;
-			toItems[i % BLOCK_SIZE] = endItems[index % BLOCK_SIZE];
-			endItems[index % BLOCK_SIZE] = null;
+			if(logMINOR) Logger.minor(this, "No valid items, "+exclude+" excluded items total "+index);
+			setWakeupTime(wakeupTime, context);
+			return new RemoveRandomReturn(wakeupTime);
 		}
 	}
 
@@ -351,44 +271,13 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		
 		boolean matched = false;
 		boolean empty = false;
-		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == it) {
-						block.reqs[i] = block.reqs[--index];
-						block.reqs[index] = null;
-						matched = true;
-						break;
-					}
-				}
-				if(index == 0) empty = true;
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[j] == it) {
-							int pullFrom = --index;
-							int idx = pullFrom % BLOCK_SIZE;
-							int endBlock = pullFrom / BLOCK_SIZE;
-							if(i == endBlock) {
-								block.reqs[j] = block.reqs[idx];
-								block.reqs[idx] = null;
-							} else {
-								Block fromBlock = blocks[endBlock];
-								block.reqs[j] = fromBlock.reqs[idx];
-								fromBlock.reqs[idx] = null;
-							}
-							matched = true;
-							break;
-						}
-					}
-				}
-				if(index == 0) empty = true;
+		synchronized(lock) {
+			int i = indexOf(it);
+			if(i != -1) {
+				removeAt(i);
+				matched = true;
 			}
+			if(index == 0) empty = true;
 		}
 		// Caller will typically clear it before calling for synchronization reasons.
 		RandomGrabArray oldArray = it.getParentGrabArray();
@@ -406,85 +295,46 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return index == 0;
 	    }
 	}
 	
 	public boolean contains(RandomGrabArrayItem item) {
-		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == item) {
-						return true;
-					}
-				}
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[i] == item) {
-							return true;
-						}
-					}
-				}
-			}
+		synchronized(lock) {
+			return indexOf(item) != -1;
 		}
-		return false;
 	}
 	
 	public int size() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return index;
 	    }
 	}
 
 	public RandomGrabArrayItem get(int idx) {
-	    synchronized(root) {
-	        int blockNo = idx / BLOCK_SIZE;
-	        RandomGrabArrayItem item = blocks[blockNo].reqs[idx % BLOCK_SIZE];
-	        return item;
+	    synchronized(lock) {
+	        return reqs[idx];
 	    }
 	}
 	
-	// REDFLAG this method does not move cooldown items.
-	// At present it is only called on startup so this is okay.
-	public void moveElementsTo(RandomGrabArray existingGrabber,
-			boolean canCommit) {
-		WrapperManager.signalStarting((int) MINUTES.toMillis(5));
-		for(Block block: blocks) {
-			for(int j=0;j<block.reqs.length;j++) {
-				RandomGrabArrayItem item = block.reqs[j];
-				if(item == null) continue;
-				item.setParentGrabArray(null);
-				existingGrabber.add(item, null);
-				block.reqs[j] = null;
-			}
-			System.out.println("Moved block in RGA "+this);
-		}
-	}
-
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        this.parent = newParent;
 	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
+        synchronized(lock) {
             return parent;
         }
     }
 
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
+        synchronized(lock) {
             if(wakeupTime < now) wakeupTime = 0;
             return wakeupTime;
         }
@@ -499,7 +349,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
      */
     private void setWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "setCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime; // Set before calling parent.
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -512,7 +362,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -525,7 +375,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             wakeupTime = 0;
             if(parent != null) parent.clearWakeupTime(context);
         }
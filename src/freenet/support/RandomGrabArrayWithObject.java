@@ -6,21 +6,21 @@ public class RandomGrabArrayWithObject<T> extends RandomGrabArray implements Rem
 
 	private T client;
 	
-	public RandomGrabArrayWithObject(T client, RemoveRandomParent parent, ClientRequestSelector root) {
-		super(parent, root);
+	public RandomGrabArrayWithObject(T client, RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
+		super(parent, root, lock);
 		this.client = client;
 	}
 
 	@Override
 	public final T getObject() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return client;
 	    }
 	}
 
 	@Override
 	public void setObject(T client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        this.client = client;
 	    }
 	}
@@ -16,20 +16,14 @@ public class SectoredRandomGrabArraySimple<MyType,ChildType> extends SectoredRan
     }
     
     public SectoredRandomGrabArraySimple(MyType object, RemoveRandomParent parent,
-            ClientRequestSelector root) {
-        super(object, parent, root);
+            ClientRequestSelector root, Object lock) {
+        super(object, parent, root, lock);
     }
 
     /** Add directly to a RandomGrabArrayWithObject under us. */
     public void add(ChildType client, RandomGrabArrayItem item, ClientContext context) {
-        synchronized(root) {
-        RandomGrabArrayWithObject<ChildType> rga = getGrabber(client);
-        if(rga == null) {
-            if(logMINOR)
-                Logger.minor(this, "Adding new RGAWithClient for "+client+" on "+this+" for "+item);
-            rga = new RandomGrabArrayWithObject<ChildType>(client, this, root);
-            addElement(client, rga);
-        }
+        synchronized(lock) {
+        RandomGrabArrayWithObject<ChildType> rga = makeGrabber(client);
         if(logMINOR)
             Logger.minor(this, "Adding "+item+" to RGA "+rga+" for "+client);
         rga.add(item, context);
@@ -40,5 +34,30 @@ public class SectoredRandomGrabArraySimple<MyType,ChildType> extends SectoredRan
             Logger.minor(this, "Size now " + size() + " on " + this);
         }
     }
+    
+    /** Add several items for the same client at once, when changing priority.
+     * @see RandomGrabArray#addAll(RandomGrabArrayItem[], RandomGrabArray, ClientContext) */
+    public void addAll(ChildType client, RandomGrabArrayItem[] items, RandomGrabArray from, 
+            ClientContext context) {
+        synchronized(lock) {
+            RandomGrabArrayWithObject<ChildType> rga = makeGrabber(client);
+            rga.addAll(items, from, context);
+            if(rga.isEmpty())
+                maybeRemove(rga, context);
+            else if(context != null)
+                clearWakeupTime(context);
+        }
+    }
+    
+    private RandomGrabArrayWithObject<ChildType> makeGrabber(ChildType client) {
+        RandomGrabArrayWithObject<ChildType> rga = getGrabber(client);
+        if(rga == null) {
+            if(logMINOR)
+                Logger.minor(this, "Adding new RGAWithClient for "+client+" on "+this);
+            rga = new RandomGrabArrayWithObject<ChildType>(client, this, root, lock);
+            addElement(client, rga);
+        }
+        return rga;
+    }
 
 }
@@ -27,7 +27,11 @@ public interface Compressor {
 		GZIP("GZIP", new GzipCompressor(), (short) 0),
 		BZIP2("BZIP2", new Bzip2Compressor(), (short) 1),
 		LZMA("LZMA", new OldLZMACompressor(), (short)2),
-		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3);
+		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3),
+		// Chunked multi-threaded variants. Not decodable by older nodes, so only used if
+		// explicitly requested in the compressor descriptor.
+		BZIP2_PARALLEL("BZIP2_PARALLEL", new ParallelCompressor(new Bzip2Compressor(), 900*1024), (short)4),
+		LZMA_PARALLEL("LZMA_PARALLEL", new ParallelCompressor(new NewLZMACompressor(), NewLZMACompressor.MAX_DICTIONARY_SIZE), (short)5);
 
 		public final String name;
 		public final Compressor compressor;
@@ -42,6 +46,21 @@ public interface Compressor {
 			this.metadataID = metadataID;
 		}
 
+		/** Whether this codec may be used when the compressor descriptor is not specified. */
+		public boolean isDefault(boolean pre1254) {
+			switch(this) {
+			case LZMA:
+				return pre1254;
+			case LZMA_NEW:
+				return !pre1254;
+			case BZIP2_PARALLEL:
+			case LZMA_PARALLEL:
+				return false;
+			default:
+				return true;
+			}
+		}
+
 		public static COMPRESSOR_TYPE getCompressorByMetadataID(short id) {
 			for(COMPRESSOR_TYPE current : values)
 				if(current.metadataID == id)
@@ -88,7 +107,7 @@ public interface Compressor {
 		 * make a COMPRESSOR_TYPE[] from a descriptor string<BR>
 		 * the descriptor string is a comma separated list of numbers or names(can be mixed)<BR>
 		 * it is better to store the string in db4o instead of the compressors?<BR>
-		 * if the string is null/empty, it returns COMPRESSOR_TYPE.values() as default
+		 * if the string is null/empty, it returns the default codecs (see isDefault())
 		 * @param compressordescriptor
 		 * @return
 		 * @throws InvalidCompressionCodecException 
@@ -96,14 +115,12 @@ public interface Compressor {
 		public static COMPRESSOR_TYPE[] getCompressorsArray(String compressordescriptor, boolean pre1254) throws InvalidCompressionCodecException {
 			COMPRESSOR_TYPE[] result = getCompressorsArrayNoDefault(compressordescriptor);
 			if (result == null) {
-				COMPRESSOR_TYPE[] ret = new COMPRESSOR_TYPE[values.length-1];
-				int x = 0;
+				ArrayList<COMPRESSOR_TYPE> ret = new ArrayList<COMPRESSOR_TYPE>(values.length);
 				for(COMPRESSOR_TYPE v: values) {
-					if((v == LZMA) && !pre1254) continue;
-					if((v == LZMA_NEW) && pre1254) continue;
-					ret[x++] = v;
+					if(v.isDefault(pre1254))
+						ret.add(v);
 				}
-				result = ret;
+				result = ret.toArray(new COMPRESSOR_TYPE[ret.size()]);
 			}
 			return result;
 		}
@@ -32,6 +32,12 @@ import freenet.support.io.Closer;
 */
 public class DecompressorThreadManager {
 
+	/** Buffer size for the pipes connecting the stages of the fetch pipeline (fetched data,
+	 * decompressors, filter, final bucket). The JDK default of 1KB means a thread switch for
+	 * every kilobyte passed between stages. This is still small enough that a fetch never holds
+	 * more than a few buffers' worth of data in memory between the stages. */
+	public static final int PIPE_BUFFER_SIZE = 32768;
+
 	final Queue<DecompressorThread> threads;
 	PipedInputStream input;
 	PipedOutputStream output = new PipedOutputStream();
@@ -67,7 +73,7 @@ public class DecompressorThreadManager {
 			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
 			DecompressorThread thread = new DecompressorThread(compressor, this, input, output, maxLen);
 			threads.add(thread);
-			input = new PipedInputStream(output);
+			input = new PipedInputStream(output, PIPE_BUFFER_SIZE);
 			output = new PipedOutputStream();
 		}
 	}
@@ -0,0 +1,236 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.CountedOutputStream;
+
+/**
+ * {@link Compressor} which splits its input into fixed size chunks and compresses each chunk
+ * independently with an inner {@link Compressor}, using all available cores.
+ *
+ * The output is a sequence of frames, each consisting of a 4-byte big-endian compressed length
+ * followed by the output of the inner compressor for that chunk. A frame of length 0 terminates
+ * the stream. This is NOT decodable by the inner compressor's decompress(), hence the parallel
+ * codecs have their own {@link Compressor.COMPRESSOR_TYPE}s, and are never used unless explicitly
+ * requested in the compressor descriptor.
+ *
+ * Compression ratio is slightly worse than compressing a single stream, because each chunk
+ * starts with an empty dictionary.
+ */
+public class ParallelCompressor implements Compressor {
+
+	/** Shared pool for all parallel compressors. Compression runs at low priority, and the pool
+	 * is sized by the same rules as the {@link RealCompressor}. */
+	private static final ForkJoinPool pool = new ForkJoinPool(
+			RealCompressor.getMaxRunningCompressionThreads(), new CompressorWorkerThreadFactory(),
+			null, false);
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ParallelCompressor.class);
+	}
+
+	private final Compressor inner;
+	private final int chunkSize;
+
+	/**
+	 * @param inner The compressor to apply to each chunk.
+	 * @param chunkSize The size of each chunk before compression. Should be at least the block
+	 * or dictionary size of the inner compressor, or we lose compression ratio for no gain.
+	 */
+	public ParallelCompressor(Compressor inner, int chunkSize) {
+		if(chunkSize <= 0) throw new IllegalArgumentException();
+		this.inner = inner;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		// It is essential that the close()'s throw if there is any problem.
+		try (InputStream is = data.getInputStream();
+				OutputStream os = output.getOutputStream()) {
+			compress(is, os, maxReadLength, maxWriteLength);
+		}
+		return output;
+	}
+
+	@Override
+	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		if(maxReadLength <= 0)
+			throw new IllegalArgumentException();
+		CountedOutputStream cos = new CountedOutputStream(os);
+		DataOutputStream dos = new DataOutputStream(cos);
+		// Bound the number of chunks in flight, so memory usage doesn't depend on the data size.
+		int maxQueued = pool.getParallelism() * 2;
+		ArrayDeque<ForkJoinTask<byte[]>> queued = new ArrayDeque<ForkJoinTask<byte[]>>(maxQueued);
+		long read = 0;
+		int chunks = 0;
+		try {
+			while(true) {
+				int toRead = (int) Math.min(chunkSize, maxReadLength - read);
+				byte[] buf = toRead == 0 ? null : readChunk(is, toRead);
+				if(buf == null) break;
+				read += buf.length;
+				if(queued.size() >= maxQueued)
+					writeFrame(dos, cos, queued.removeFirst(), maxWriteLength);
+				queued.addLast(pool.submit(new ChunkCompressor(buf, maxWriteLength)));
+				chunks++;
+			}
+			while(!queued.isEmpty())
+				writeFrame(dos, cos, queued.removeFirst(), maxWriteLength);
+			dos.writeInt(0);
+			dos.flush();
+		} finally {
+			for(ForkJoinTask<byte[]> task : queued)
+				task.cancel(false);
+		}
+		if(cos.written() > maxWriteLength)
+			throw new CompressionOutputSizeException(cos.written());
+		if(logMINOR)
+			Logger.minor(this, "Read "+read+" written "+cos.written()+" in "+chunks+" chunks using "+inner);
+		return cos.written();
+	}
+
+	/** Read up to length bytes, stopping early only at EOF.
+	 * @return The bytes read, or null if we are already at EOF. */
+	private static byte[] readChunk(InputStream is, int length) throws IOException {
+		byte[] buf = new byte[length];
+		int offset = 0;
+		while(offset < length) {
+			int x = is.read(buf, offset, length - offset);
+			if(x <= -1) break;
+			if(x == 0) throw new IOException("Returned zero from read()");
+			offset += x;
+		}
+		if(offset == 0) return null;
+		if(offset < length) {
+			byte[] shorter = new byte[offset];
+			System.arraycopy(buf, 0, shorter, 0, offset);
+			return shorter;
+		}
+		return buf;
+	}
+
+	private static void writeFrame(DataOutputStream dos, CountedOutputStream cos, ForkJoinTask<byte[]> task, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		byte[] compressed;
+		try {
+			compressed = task.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof CompressionOutputSizeException)
+				throw (CompressionOutputSizeException) cause;
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+		dos.writeInt(compressed.length);
+		dos.write(compressed);
+		if(cos.written() > maxWriteLength)
+			throw new CompressionOutputSizeException(cos.written());
+	}
+
+	private class ChunkCompressor implements Callable<byte[]> {
+
+		private final byte[] data;
+		private final long maxWriteLength;
+
+		ChunkCompressor(byte[] data, long maxWriteLength) {
+			this.data = data;
+			this.maxWriteLength = maxWriteLength;
+		}
+
+		@Override
+		public byte[] call() throws IOException, CompressionOutputSizeException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2);
+			inner.compress(new ByteArrayInputStream(data), baos, data.length, maxWriteLength);
+			return baos.toByteArray();
+		}
+
+	}
+
+	@Override
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		DataInputStream dis = new DataInputStream(is);
+		long written = 0;
+		while(true) {
+			int length = dis.readInt();
+			if(length == 0) return written;
+			if(length < 0) throw new InvalidCompressedDataException("Invalid chunk length "+length);
+			// A chunk can't be much bigger compressed than uncompressed.
+			if(length > chunkSize * 2L + 65536) throw new InvalidCompressedDataException("Chunk too big: "+length);
+			byte[] buf = new byte[length];
+			try {
+				dis.readFully(buf);
+			} catch (EOFException e) {
+				throw new InvalidCompressedDataException("Truncated chunk");
+			}
+			long remaining = maxLength - written;
+			try {
+				written += inner.decompress(new ByteArrayInputStream(buf), os, remaining, maxCheckSizeBytes);
+			} catch (CompressionOutputSizeException e) {
+				if(e.estimatedSize > 0)
+					throw new CompressionOutputSizeException(written + e.estimatedSize);
+				throw e;
+			}
+			if(written > maxLength)
+				throw new CompressionOutputSizeException(written);
+		}
+	}
+
+	@Override
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(output.length);
+		int bytes = 0;
+		try {
+			decompress(bais, baos, output.length, -1);
+			bytes = baos.size();
+		} catch (IOException e) {
+			// Impossible
+			throw new Error("Got IOException: " + e.getMessage(), e);
+		}
+		byte[] buf = baos.toByteArray();
+		System.arraycopy(buf, 0, output, 0, bytes);
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "ParallelCompressor["+inner.getClass().getSimpleName()+", chunk="+chunkSize+"]";
+	}
+
+	private static class CompressorWorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {};
+			t.setName("Parallel compressor thread");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	}
+}
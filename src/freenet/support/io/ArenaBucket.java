@@ -0,0 +1,305 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.DirectBufferArena.Chunk;
+
+/**
+ * A bucket that stores data off-heap, in chunks allocated from a {@link DirectBufferArena}.
+ * Equivalent to an {@link ArrayBucket}, but growing it doesn't copy, and it doesn't add to GC
+ * pressure. Unlike an ArrayBucket it can run out of space: callers must use reserve() to check
+ * that there is room before writing, and migrate elsewhere if there isn't.
+ */
+public class ArenaBucket implements RandomAccessBucket {
+
+    private static final int COPY_BUFFER_SIZE = 32768;
+
+    private final DirectBufferArena arena;
+    private final String name;
+    /** LOCKING: Synchronized on (this). */
+    private final ArrayList<Chunk> chunks = new ArrayList<Chunk>(1);
+    /** Offset of the first byte of each chunk, so chunkAt() doesn't walk the list. Chunks are
+     * not all the same size, so we can't just divide. */
+    private long[] chunkOffsets = new long[1];
+    /** Total size of the chunks. */
+    private long capacity;
+    /** Bytes written. */
+    private long size;
+    private boolean readOnly;
+    private boolean freed;
+
+    public ArenaBucket(DirectBufferArena arena, String name) {
+        this.arena = arena;
+        this.name = name;
+    }
+
+    /** Make sure there is room for at least the given number of bytes.
+     * @return False if the arena is full. Any chunks allocated are kept. */
+    public synchronized boolean reserve(long newSize) {
+        if(freed) return false;
+        while(capacity < newSize) {
+            // Small buckets stay in small chunks, larger buckets move up to larger chunks as
+            // they grow.
+            int sizeClass = DirectBufferArena.sizeClassFor(Math.max(newSize - capacity, capacity));
+            Chunk c = arena.allocate(sizeClass);
+            if(c == null) return false;
+            if(chunks.size() == chunkOffsets.length)
+                chunkOffsets = Arrays.copyOf(chunkOffsets, chunkOffsets.length * 2);
+            chunkOffsets[chunks.size()] = capacity;
+            chunks.add(c);
+            capacity += c.size();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        return getOutputStreamUnbuffered();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStreamUnbuffered() throws IOException {
+        if(readOnly) throw new IOException("Read only");
+        if(freed) throw new IOException("Already freed");
+        // Same semantics as a file: Opening an OutputStream truncates.
+        size = 0;
+        return new ArenaBucketOutputStream();
+    }
+
+    private class ArenaBucketOutputStream extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized(ArenaBucket.this) {
+                checkWrite(1);
+                ByteBuffer buf = chunkAt(size);
+                buf.put((byte)b);
+                size++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized(ArenaBucket.this) {
+                checkWrite(len);
+                while(len > 0) {
+                    ByteBuffer buf = chunkAt(size);
+                    int written = Math.min(len, buf.remaining());
+                    buf.put(b, off, written);
+                    off += written;
+                    len -= written;
+                    size += written;
+                }
+            }
+        }
+
+        private void checkWrite(int len) throws IOException {
+            if(closed) throw new IOException("Closed");
+            if(freed) throw new IOException("Already freed");
+            if(readOnly) throw new IOException("Read only");
+            if(!reserve(size + len)) throw new IOException("Out of space in direct memory arena");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    /** @return A buffer positioned at the given offset, with its limit at the end of the chunk
+     * containing it. Caller must hold the lock. */
+    private ByteBuffer chunkAt(long offset) {
+        if(offset < 0 || offset >= capacity) throw new IllegalStateException("Offset beyond capacity");
+        int i = Arrays.binarySearch(chunkOffsets, 0, chunks.size(), offset);
+        // If not found, the chunk is the one before the insertion point.
+        if(i < 0) i = -i - 2;
+        ByteBuffer buf = chunks.get(i).buffer();
+        buf.position((int)(offset - chunkOffsets[i]));
+        return buf;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        return getInputStreamUnbuffered();
+    }
+
+    @Override
+    public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        return new ArenaBucketInputStream();
+    }
+
+    private class ArenaBucketInputStream extends InputStream {
+
+        private long offset;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            synchronized(ArenaBucket.this) {
+                checkRead();
+                if(offset >= size) return -1;
+                ByteBuffer buf = chunkAt(offset);
+                offset++;
+                return buf.get() & 0xFF;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized(ArenaBucket.this) {
+                checkRead();
+                if(len == 0) return 0;
+                if(offset >= size) return -1;
+                len = (int)Math.min(len, size - offset);
+                int read = 0;
+                while(read < len) {
+                    ByteBuffer buf = chunkAt(offset);
+                    int x = Math.min(len - read, buf.remaining());
+                    buf.get(b, off + read, x);
+                    read += x;
+                    offset += x;
+                }
+                return read;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            synchronized(ArenaBucket.this) {
+                checkRead();
+                if(n <= 0) return 0;
+                long skipped = Math.min(n, size - offset);
+                offset += skipped;
+                return skipped;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized(ArenaBucket.this) {
+                checkRead();
+                return (int)Math.min(Integer.MAX_VALUE, size - offset);
+            }
+        }
+
+        private void checkRead() throws IOException {
+            if(closed) throw new IOException("Closed");
+            if(freed) throw new IOException("Already freed");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    /** Copy the first length bytes to a stream. If the stream writes directly to a file, the
+     * data goes straight from the direct buffers to the FileChannel, without passing through
+     * the heap. */
+    public synchronized void copyTo(OutputStream os, long length) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(length > size) throw new IOException("Not enough data");
+        FileChannel channel = null;
+        byte[] buf = null;
+        if(os instanceof FileOutputStream)
+            channel = ((FileOutputStream)os).getChannel();
+        for(Chunk c : chunks) {
+            if(length <= 0) break;
+            ByteBuffer b = c.buffer();
+            b.limit((int)Math.min(b.capacity(), length));
+            length -= b.remaining();
+            if(channel != null) {
+                while(b.hasRemaining())
+                    channel.write(b);
+            } else {
+                if(buf == null) buf = new byte[COPY_BUFFER_SIZE];
+                while(b.hasRemaining()) {
+                    int x = Math.min(buf.length, b.remaining());
+                    b.get(buf, 0, x);
+                    os.write(buf, 0, x);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public synchronized void free() {
+        if(freed) return;
+        freed = true;
+        for(Chunk c : chunks)
+            c.release();
+        chunks.clear();
+        capacity = 0;
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Do nothing.
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        // Should not be used for persistent requests.
+        throw new UnsupportedOperationException();
+    }
+
+    /** The chunks are shared with the new buffer, so this does not copy. This bucket becomes
+     * read-only. Freeing the buffer also frees the bucket, but the memory is only returned to
+     * the arena once neither of them is using it. */
+    @Override
+    public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        readOnly = true;
+        return new ArenaRandomAccessBuffer(chunks, size, true, this);
+    }
+
+    @Override
+    public String toString() {
+        return super.toString()+":"+name;
+    }
+
+}
@@ -0,0 +1,182 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.DirectBufferArena.Chunk;
+
+/**
+ * Fixed size LockableRandomAccessBuffer stored off-heap in chunks from a
+ * {@link DirectBufferArena}. The off-heap equivalent of {@link ByteArrayRandomAccessBuffer}.
+ */
+public class ArenaRandomAccessBuffer implements LockableRandomAccessBuffer {
+
+    private final Chunk[] chunks;
+    private final long size;
+    /** If we were created from a bucket, we must free it when we are freed. */
+    private final ArenaBucket parent;
+    private boolean readOnly;
+    private boolean closed;
+    private boolean freed;
+
+    /** Create a buffer sharing the given chunks, for ArenaBucket.toRandomAccessBuffer(). */
+    ArenaRandomAccessBuffer(List<Chunk> chunks, long size, boolean readOnly, ArenaBucket parent) {
+        this.chunks = chunks.toArray(new Chunk[chunks.size()]);
+        for(Chunk c : this.chunks)
+            c.retain();
+        this.size = size;
+        this.readOnly = readOnly;
+        this.parent = parent;
+    }
+
+    private ArenaRandomAccessBuffer(Chunk[] chunks, long size) {
+        this.chunks = chunks;
+        this.size = size;
+        this.parent = null;
+    }
+
+    /** Allocate a new buffer.
+     * @return Null if there is not enough space in the arena. */
+    public static ArenaRandomAccessBuffer create(DirectBufferArena arena, long size) {
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        long capacity = 0;
+        while(capacity < size) {
+            Chunk c = arena.allocate(DirectBufferArena.sizeClassFor(size - capacity));
+            if(c == null) {
+                for(Chunk chunk : chunks)
+                    chunk.release();
+                return null;
+            }
+            chunks.add(c);
+            capacity += c.size();
+        }
+        return new ArenaRandomAccessBuffer(chunks.toArray(new Chunk[chunks.size()]), size);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void pread(long fileOffset, byte[] buf, int bufOffset, int length)
+            throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot read before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        if(length == 0) return;
+        int chunk = 0;
+        while(fileOffset >= chunks[chunk].size()) {
+            fileOffset -= chunks[chunk].size();
+            chunk++;
+        }
+        while(length > 0) {
+            ByteBuffer b = chunks[chunk].buffer();
+            b.position((int)fileOffset);
+            int x = Math.min(length, b.remaining());
+            b.get(buf, bufOffset, x);
+            bufOffset += x;
+            length -= x;
+            fileOffset = 0;
+            chunk++;
+        }
+    }
+
+    @Override
+    public synchronized void pwrite(long fileOffset, byte[] buf, int bufOffset, int length)
+            throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot write before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot write after end: trying to write from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        if(readOnly) throw new IOException("Read-only");
+        if(length == 0) return;
+        int chunk = 0;
+        while(fileOffset >= chunks[chunk].size()) {
+            fileOffset -= chunks[chunk].size();
+            chunk++;
+        }
+        while(length > 0) {
+            ByteBuffer b = chunks[chunk].buffer();
+            b.position((int)fileOffset);
+            int x = Math.min(length, b.remaining());
+            b.put(buf, bufOffset, x);
+            bufOffset += x;
+            length -= x;
+            fileOffset = 0;
+            chunk++;
+        }
+    }
+
+    /** @return Views of the data, in order, with limits set so that the total remaining is
+     * exactly size(). For writing the contents to a FileChannel without copying. */
+    synchronized ByteBuffer[] getBuffers() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        ByteBuffer[] buffers = new ByteBuffer[chunks.length];
+        long remaining = size;
+        for(int i=0;i<chunks.length;i++) {
+            ByteBuffer b = chunks[i].buffer();
+            b.limit((int)Math.min(b.capacity(), remaining));
+            remaining -= b.limit();
+            buffers[i] = b;
+        }
+        return buffers;
+    }
+
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    @Override
+    public RAFLock lockOpen() {
+        return new RAFLock() {
+
+            @Override
+            protected void innerUnlock() {
+                // Do nothing. Always open.
+            }
+
+        };
+    }
+
+    @Override
+    public void free() {
+        synchronized(this) {
+            if(freed) return;
+            freed = true;
+            closed = true;
+            for(Chunk c : chunks)
+                c.release();
+        }
+        if(parent != null) parent.free();
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Do nothing.
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Default hashCode() and equals() are correct for this type.
+
+}
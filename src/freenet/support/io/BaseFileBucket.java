@@ -14,6 +14,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
@@ -28,7 +29,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.api.RandomAccessBucket;
 
-public abstract class BaseFileBucket implements RandomAccessBucket {
+public abstract class BaseFileBucket implements RandomAccessBucket, FileChannelBucket {
     private static volatile boolean logMINOR;
     private static volatile boolean logDEBUG;
 
@@ -314,6 +315,18 @@ public abstract class BaseFileBucket implements RandomAccessBucket {
 	    return new BufferedInputStream(getInputStreamUnbuffered());
 	}
 
+	@Override
+	public synchronized FileChannel openFileChannel() throws IOException {
+		if(freed)
+			throw new IOException("File already freed: "+this);
+		File file = getFile();
+		if(!file.exists()) return null;
+		// Closing the channel closes the stream, so free() knows about it.
+		FileBucketInputStream is = new FileBucketInputStream(file);
+		addStream(is);
+		return is.getChannel();
+	}
+
 	/**
 	 * @return the name of the file.
 	 */
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 
 import freenet.client.async.ClientContext;
 import freenet.crypt.MasterSecret;
@@ -20,7 +21,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.RandomAccessBucket;
 
-public class DelayedFreeBucket implements Bucket, Serializable, DelayedFree {
+public class DelayedFreeBucket implements Bucket, Serializable, DelayedFree, FileChannelBucket {
 
     private static final long serialVersionUID = 1L;
     // Only set on construction and on onResume() on startup. So shouldn't need locking.
@@ -91,6 +92,17 @@ public class DelayedFreeBucket implements Bucket, Serializable, DelayedFree {
         return bucket.getInputStreamUnbuffered();
     }
 
+    @Override
+    public FileChannel openFileChannel() throws IOException {
+        synchronized(this) {
+            if(migrated) throw new IOException("Already migrated to a RandomAccessBucket");
+            if(freed) throw new IOException("Already freed");
+        }
+        if(bucket instanceof FileChannelBucket)
+            return ((FileChannelBucket)bucket).openFileChannel();
+        return null;
+    }
+
 	@Override
 	public String getName() {
 		return bucket.getName();
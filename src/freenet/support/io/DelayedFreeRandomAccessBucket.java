@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 
 import freenet.client.async.ClientContext;
 import freenet.crypt.MasterSecret;
@@ -21,7 +22,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.api.RandomAccessBucket;
 
-public class DelayedFreeRandomAccessBucket implements Bucket, Serializable, RandomAccessBucket, DelayedFree {
+public class DelayedFreeRandomAccessBucket implements Bucket, Serializable, RandomAccessBucket, DelayedFree, FileChannelBucket {
 
     private static final long serialVersionUID = 1L;
     // Only set on construction and on onResume() on startup. So shouldn't need locking.
@@ -84,6 +85,16 @@ public class DelayedFreeRandomAccessBucket implements Bucket, Serializable, Rand
         return bucket.getInputStreamUnbuffered();
     }
 
+    @Override
+    public FileChannel openFileChannel() throws IOException {
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+        }
+        if(bucket instanceof FileChannelBucket)
+            return ((FileChannelBucket)bucket).openFileChannel();
+        return null;
+    }
+
 	@Override
 	public String getName() {
 		return bucket.getName();
@@ -0,0 +1,204 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import freenet.support.Logger;
+
+/**
+ * Off-heap memory for in-RAM temporary storage. Memory is allocated as direct ByteBuffer slabs,
+ * each of which is divided into chunks of a single size class. A slab whose chunks are all free
+ * goes back to the pool and can be reused for any size class. Slabs are never returned to the
+ * JVM, so after warm-up there is no allocation and nothing for the garbage collector to copy.
+ *
+ * Chunks are reference counted so that a {@link ArenaBucket} and the
+ * {@link ArenaRandomAccessBuffer} created from it can share the same memory.
+ *
+ * LOCKING: All state is protected by the arena's lock. Contention is low because callers hold
+ * it only to take or return a chunk, never while copying data.
+ */
+public class DirectBufferArena {
+
+    /** Maximum size of each slab allocated from the JVM. */
+    static final int SLAB_SIZE = 1024 * 1024;
+    /** Chunk sizes. Small buckets (metadata, single blocks) use the smaller classes, while a
+     * growing bucket moves up to the bigger ones so it doesn't need too many chunks. Each must
+     * divide SLAB_SIZE. */
+    static final int[] CHUNK_SIZES = new int[] { 4096, 32768, 131072 };
+
+    /** Size of each slab. SLAB_SIZE unless the initial capacity is smaller, in which case it is
+     * the biggest power of two that fits, so that a small arena is still usable. */
+    private final int slabSize;
+    /** Maximum total size of slabs. Can be changed at runtime; if reduced, slabs already
+     * allocated are kept. */
+    private long capacity;
+    /** Total size of slabs allocated so far. */
+    private long slabBytes;
+    /** Total size of chunks currently handed out. */
+    private long usedBytes;
+    private int chunksInUse;
+    /** Slabs with no chunks in use. */
+    private final ArrayDeque<Slab> emptySlabs = new ArrayDeque<Slab>();
+    /** For each size class, slabs with at least one free chunk and at least one used chunk. */
+    private final ArrayDeque<Slab>[] partialSlabs;
+
+    @SuppressWarnings("unchecked")
+    public DirectBufferArena(long capacity) {
+        if(capacity < 0) throw new IllegalArgumentException();
+        this.capacity = capacity;
+        slabSize = (int) Math.max(CHUNK_SIZES[0], Math.min(SLAB_SIZE, Long.highestOneBit(capacity)));
+        partialSlabs = (ArrayDeque<Slab>[]) new ArrayDeque<?>[CHUNK_SIZES.length];
+        for(int i=0;i<CHUNK_SIZES.length;i++)
+            partialSlabs[i] = new ArrayDeque<Slab>();
+    }
+
+    private final class Slab {
+        private final ByteBuffer buffer;
+        private int sizeClass = -1;
+        private int used;
+        private final ArrayDeque<Chunk> free = new ArrayDeque<Chunk>();
+
+        Slab() {
+            buffer = ByteBuffer.allocateDirect(slabSize);
+        }
+
+        /** Split the slab into chunks of the given size class. Chunk objects are recreated
+         * because they are final; this only happens when a slab changes size class. */
+        void format(int sizeClass) {
+            this.sizeClass = sizeClass;
+            free.clear();
+            int chunkSize = Math.min(CHUNK_SIZES[sizeClass], slabSize);
+            for(int offset = 0; offset < slabSize; offset += chunkSize) {
+                ByteBuffer b = buffer.duplicate();
+                b.position(offset);
+                b.limit(offset + chunkSize);
+                free.add(new Chunk(this, b.slice()));
+            }
+        }
+    }
+
+    /** A fixed size piece of off-heap memory. Do not keep the buffer after release(). */
+    public final class Chunk {
+        private final Slab slab;
+        private final ByteBuffer buffer;
+        private int refCount;
+
+        private Chunk(Slab slab, ByteBuffer buffer) {
+            this.slab = slab;
+            this.buffer = buffer;
+        }
+
+        /** @return The size of the chunk. */
+        public int size() {
+            return buffer.capacity();
+        }
+
+        /** @return A new view of the chunk's memory, with independent position and limit. The
+         * caller must hold a reference. */
+        public ByteBuffer buffer() {
+            ByteBuffer b = buffer.duplicate();
+            b.clear();
+            return b;
+        }
+
+        /** Add a reference, for sharing the chunk with another owner. */
+        public void retain() {
+            synchronized(DirectBufferArena.this) {
+                if(refCount <= 0) throw new IllegalStateException("Already released");
+                refCount++;
+            }
+        }
+
+        /** Drop a reference. The chunk returns to the arena when there are none left. */
+        public void release() {
+            synchronized(DirectBufferArena.this) {
+                if(refCount <= 0) throw new IllegalStateException("Already released");
+                if(--refCount > 0) return;
+                usedBytes -= size();
+                chunksInUse--;
+                Slab s = slab;
+                boolean wasFull = s.free.isEmpty();
+                s.free.push(this);
+                s.used--;
+                if(s.used == 0) {
+                    partialSlabs[s.sizeClass].remove(s);
+                    emptySlabs.push(s);
+                } else if(wasFull) {
+                    partialSlabs[s.sizeClass].push(s);
+                }
+            }
+        }
+    }
+
+    /** @return The index of the smallest size class that fits the given size, or the biggest
+     * size class if none does. */
+    static int sizeClassFor(long size) {
+        for(int i=0;i<CHUNK_SIZES.length;i++)
+            if(CHUNK_SIZES[i] >= size) return i;
+        return CHUNK_SIZES.length-1;
+    }
+
+    /**
+     * Allocate a chunk.
+     * @param sizeClass Index into CHUNK_SIZES.
+     * @return A chunk with a reference count of 1, or null if the arena is full.
+     */
+    public synchronized Chunk allocate(int sizeClass) {
+        ArrayDeque<Slab> partial = partialSlabs[sizeClass];
+        Slab s = partial.peek();
+        if(s == null) {
+            s = emptySlabs.poll();
+            if(s == null) {
+                if(slabBytes + slabSize > capacity) return null;
+                try {
+                    s = new Slab();
+                } catch (OutOfMemoryError e) {
+                    // Direct memory is limited separately from the heap.
+                    Logger.error(this, "Unable to allocate direct memory for temp buckets: "+e+
+                            " : increase -XX:MaxDirectMemorySize or reduce RAMBucketPoolSize");
+                    capacity = slabBytes;
+                    return null;
+                }
+                slabBytes += slabSize;
+            }
+            if(s.sizeClass != sizeClass)
+                s.format(sizeClass);
+            partial.push(s);
+        }
+        Chunk c = s.free.pop();
+        s.used++;
+        if(s.free.isEmpty())
+            partial.remove(s);
+        c.refCount = 1;
+        usedBytes += c.size();
+        chunksInUse++;
+        return c;
+    }
+
+    public synchronized void setCapacity(long capacity) {
+        if(capacity < 0) throw new IllegalArgumentException();
+        this.capacity = capacity;
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /** @return The total size of the direct memory allocated for slabs. */
+    public synchronized long getAllocatedBytes() {
+        return slabBytes;
+    }
+
+    /** @return The total size of chunks currently in use. */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getChunksInUse() {
+        return chunksInUse;
+    }
+
+}
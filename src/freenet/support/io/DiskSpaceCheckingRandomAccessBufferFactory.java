@@ -2,6 +2,7 @@ package freenet.support.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -61,6 +62,36 @@ public class DiskSpaceCheckingRandomAccessBufferFactory implements LockableRando
         }
     }
     
+    /** Create a RAF from the contents of some ByteBuffer's. If the underlying factory creates
+     * plain files, the data is written with a gathering write, avoiding copying it through the
+     * heap. */
+    public LockableRandomAccessBuffer makeRAF(ByteBuffer[] initialContents, long size, boolean readOnly)
+            throws IOException {
+        lock.lock();
+        try {
+            if(dir.getUsableSpace() <= size + minDiskSpace)
+                throw new InsufficientDiskSpaceException();
+            if(underlying instanceof PooledFileRandomAccessBufferFactory)
+                return ((PooledFileRandomAccessBufferFactory)underlying).makeRAF(initialContents, size, readOnly);
+            LockableRandomAccessBuffer ret = underlying.makeRAF(size);
+            long offset = 0;
+            byte[] buf = null;
+            for(ByteBuffer b : initialContents) {
+                if(buf == null) buf = new byte[32768];
+                while(b.hasRemaining()) {
+                    int x = Math.min(buf.length, b.remaining());
+                    b.get(buf, 0, x);
+                    ret.pwrite(offset, buf, 0, x);
+                    offset += x;
+                }
+            }
+            if(readOnly) ret = new ReadOnlyRandomAccessBuffer(ret);
+            return ret;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
     public String toString() {
         return super.toString()+":"+underlying.toString();
     }
@@ -0,0 +1,22 @@
+package freenet.support.io;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import freenet.support.api.Bucket;
+
+/**
+ * A Bucket which may keep its data as is in a single file, so that it can be sent with
+ * FileChannel.transferTo() (i.e. sendfile()) rather than by copying it through the heap.
+ */
+public interface FileChannelBucket extends Bucket {
+
+    /**
+     * Open the file holding the data, for reading.
+     * @return A channel whose contents from offset 0 to size() are the data, or null if the data
+     * isn't kept that way, e.g. because it is in RAM or encrypted, in which case the caller
+     * should use getInputStream(). The caller must close it.
+     */
+    FileChannel openFileChannel() throws IOException;
+
+}
@@ -6,6 +6,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Random;
@@ -139,6 +141,36 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         }
     }
     
+    /** Create a file from the contents of some (typically direct) ByteBuffer's, using a 
+     * gathering write so the data doesn't need to be copied through the heap. */
+    public PooledFileRandomAccessBuffer(File file, String mode, ByteBuffer[] initialContents,
+            long size, long persistentTempID, boolean deleteOnFree, boolean readOnly) throws IOException {
+        this.file = file;
+        this.readOnly = readOnly;
+        this.length = size;
+        this.persistentTempID = persistentTempID;
+        this.deleteOnFree = deleteOnFree;
+        this.fds = DEFAULT_FDTRACKER;
+        lockLevel = 0;
+        RAFLock lock = lockOpen(true);
+        try {
+            FileChannel channel = raf.getChannel();
+            long written = 0;
+            while(written < size) {
+                long x = channel.write(initialContents);
+                if(x <= 0 && written < size) throw new IOException("Unable to write to "+file);
+                written += x;
+            }
+            lock.unlock();
+        } catch (IOException e) {
+            synchronized(this) {
+                raf.close();
+                raf = null;
+            }
+            throw e;
+        }
+    }
+    
     protected PooledFileRandomAccessBuffer() {
         // For serialization.
         file = null;
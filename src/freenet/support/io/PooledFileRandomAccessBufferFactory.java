@@ -2,6 +2,7 @@ package freenet.support.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import freenet.support.api.LockableRandomAccessBuffer;
@@ -50,4 +51,19 @@ public class PooledFileRandomAccessBufferFactory implements LockableRandomAccess
         }
     }
 
+    /** Create a RAF from the contents of some ByteBuffer's without copying them through the 
+     * heap. The total remaining in the buffers must be equal to size. */
+    public LockableRandomAccessBuffer makeRAF(ByteBuffer[] initialContents, long size, boolean readOnly)
+            throws IOException {
+        long id = fg.makeRandomFilename();
+        File file = fg.getFilename(id);
+        LockableRandomAccessBuffer ret = null;
+        try {
+            ret = new PooledFileRandomAccessBuffer(file, "rw", initialContents, size, id, true, readOnly);
+            return ret;
+        } finally {
+            if(ret == null) file.delete();
+        }
+    }
+
 }
@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -41,11 +42,11 @@ import freenet.support.api.RandomAccessBucket;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- ArrayBuckets (or ArenaBuckets, off-heap, if direct memory is enabled)
  * OR
  *	- FileBuckets
  * 
- * ArrayBuckets are used if and only if:
+ * In-RAM buckets are used if and only if:
  *	1) there is enough room remaining on the pool (@see maxRamUsed and @see bytesInUse)
  *	2) the initial size is smaller than (@maxRAMBucketSize)
  * 
@@ -72,6 +73,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private long maxRAMBucketSize;
 	/** How much memory do we dedicate to the RAMBucketPool? (in bytes) */
 	private long maxRamUsed;
+	/** If non-null, in-RAM buckets are kept off-heap here rather than in byte[]'s. */
+	private volatile DirectBufferArena arena;
 
 	/** How old is a long-lived RAMBucket? */
 	private final static long RAMBUCKET_MAX_AGE = MINUTES.toMillis(5);
@@ -98,7 +101,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    
 	};
 	
-	public class TempBucket implements Bucket, Migratable, RandomAccessBucket {
+	public class TempBucket implements Bucket, Migratable, RandomAccessBucket, FileChannelBucket {
 		/** The underlying bucket itself */
 		private RandomAccessBucket currentBucket;
 		/** We have to account the size of the underlying bucket ourself in order to be able to access it fast */
@@ -169,12 +172,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					// DO NOT INCREMENT THE osIndex HERE!
 					os = tempFB.getOutputStreamUnbuffered();
 					if(size > 0)
-						BucketTools.copyTo(toMigrate, os, size);
+						copyRAMBucket(toMigrate, os, size);
 				} else {
 					if(size > 0) {
 						OutputStream temp = tempFB.getOutputStreamUnbuffered();
 						try {
-						BucketTools.copyTo(toMigrate, temp, size);
+						copyRAMBucket(toMigrate, temp, size);
 						} finally {
 						temp.close();
 						}
@@ -203,7 +206,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof ArrayBucket) || (currentBucket instanceof ArenaBucket);
 		}
 		
 		@Override
@@ -247,6 +250,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 						shouldMigrate = true;
 					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
 						shouldMigrate = true;
+					else if (currentBucket instanceof ArenaBucket && 
+							!((ArenaBucket)currentBucket).reserve(futureSize))
+						// Chunk rounding means the arena can fill up before maxRamUsed.
+						shouldMigrate = true;
 					
 					if(shouldMigrate) {
 						if(logMINOR) {
@@ -333,6 +340,18 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				Logger.minor(this, "Got "+is+" for "+this, new Exception());
 			return is;
 		}
+
+		/** Only once we have migrated to disk, and only if the file isn't encrypted. */
+		@Override
+		public synchronized FileChannel openFileChannel() throws IOException {
+			if(!hasWritten)
+				throw new IOException("No OutputStream has been openned! Why would you want an InputStream then?");
+			if(hasBeenFreed) throw new IOException("Already freed");
+			if(os != null) return null; // Still being written.
+			if(currentBucket instanceof FileChannelBucket)
+				return ((FileChannelBucket)currentBucket).openFileChannel();
+			return null;
+		}
 		
 		private class TempBucketInputStream extends InputStream {
 			/** The current InputStream we use from the underlying bucket */
@@ -577,6 +596,25 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		DirectBufferArena a = arena;
+		if(a != null) a.setCapacity(size);
+	}
+	
+	/** Keep in-RAM buckets in direct (off-heap) memory rather than on the Java heap. Existing
+	 * buckets are not affected. */
+	public synchronized void setUseDirectMemory(boolean value) {
+		if(value == (arena != null)) return;
+		arena = value ? new DirectBufferArena(maxRamUsed) : null;
+	}
+	
+	public boolean isUsingDirectMemory() {
+		return arena != null;
+	}
+	
+	/** @return The arena used for off-heap buckets, for statistics, or null if direct memory 
+	 * is not being used. */
+	public DirectBufferArena getArena() {
+		return arena;
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -638,7 +676,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		realBucket = (useRAMBucket ? _makeRAMBucket() : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -775,6 +813,21 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	private final Queue<WeakReference<Migratable>> ramBucketQueue = new LinkedBlockingQueue<WeakReference<Migratable>>();
 	
+	private RandomAccessBucket _makeRAMBucket() {
+		DirectBufferArena a = arena;
+		if(a != null)
+			return new ArenaBucket(a, "TempBucket");
+		return new ArrayBucket();
+	}
+	
+	/** Copy from an in-RAM bucket to the on-disk bucket replacing it. */
+	private static void copyRAMBucket(Bucket ramBucket, OutputStream os, long size) throws IOException {
+		if(ramBucket instanceof ArenaBucket)
+			((ArenaBucket)ramBucket).copyTo(os, size);
+		else
+			BucketTools.copyTo(ramBucket, os, size);
+	}
+	
 	private RandomAccessBucket _makeFileBucket() throws IOException {
 		RandomAccessBucket ret = new TempFileBucket(filenameGenerator.makeRandomFilename(), filenameGenerator, true);
 		// Do we want it to be encrypted?
@@ -801,8 +854,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    /** For debugging leaks if TRACE_BUCKET_LEAKS is enabled */
 	    private final Throwable tracer;
 	    
-	    TempRandomAccessBuffer(int size, long time) throws IOException {
-	        super(new ByteArrayRandomAccessBuffer(size), size);
+	    TempRandomAccessBuffer(LockableRandomAccessBuffer inRAM, long time) throws IOException {
+	        super(inRAM, inRAM.size());
 	        creationTime = time;
 	        hasMigrated = false;
 	        original = null;
@@ -836,6 +889,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
         @Override
         protected LockableRandomAccessBuffer innerMigrate(LockableRandomAccessBuffer underlying) throws IOException {
+            if(underlying instanceof ArenaRandomAccessBuffer) {
+                // Write directly from the off-heap chunks to the file.
+                ArenaRandomAccessBuffer b = (ArenaRandomAccessBuffer)underlying;
+                return diskRAFFactory.makeRAF(b.getBuffers(), size, b.isReadOnly());
+            }
             ByteArrayRandomAccessBuffer b = (ByteArrayRandomAccessBuffer)underlying;
             byte[] buf = b.getBuffer();
             return diskRAFFactory.makeRAF(buf, 0, (int)size, b.isReadOnly());
@@ -928,8 +986,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    
 	    synchronized(this) {
 	        if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
-	            raf = new TempRandomAccessBuffer((int)size, now);
-	            bytesInUse += size;
+	            LockableRandomAccessBuffer inRAM = _makeRAMRAF((int)size);
+	            if(inRAM != null) {
+	                raf = new TempRandomAccessBuffer(inRAM, now);
+	                bytesInUse += size;
+	            }
 	        }
 	        if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
 	            runningCleaner = true;
@@ -976,8 +1037,19 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         
         synchronized(this) {
             if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
-                raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
-                bytesInUse += size;
+                DirectBufferArena a = arena;
+                if(a == null) {
+                    raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
+                    bytesInUse += size;
+                } else {
+                    ArenaRandomAccessBuffer inRAM = ArenaRandomAccessBuffer.create(a, size);
+                    if(inRAM != null) {
+                        inRAM.pwrite(0, initialContents, offset, size);
+                        if(readOnly) inRAM.setReadOnly();
+                        raf = new TempRandomAccessBuffer(inRAM, now);
+                        bytesInUse += size;
+                    }
+                }
             }
             if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
                 runningCleaner = true;
@@ -1002,6 +1074,14 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         }
     }
 
+    /** @return An in-RAM LockableRandomAccessBuffer, or null if the arena is full. */
+    private LockableRandomAccessBuffer _makeRAMRAF(int size) {
+        DirectBufferArena a = arena;
+        if(a != null)
+            return ArenaRandomAccessBuffer.create(a, size);
+        return new ByteArrayRandomAccessBuffer(size);
+    }
+
     public DiskSpaceCheckingRandomAccessBufferFactory getUnderlyingRAFFactory() {
         return diskRAFFactory;
     }
@@ -0,0 +1,41 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+/**
+ * A count which only goes up, e.g. of packets sent. Cheap enough to update on hot paths: it
+ * doesn't lock or allocate, and threads mostly update different cache lines.
+ */
+public final class Counter extends Metric {
+
+	private final StripedLong value = new StripedLong();
+
+	public Counter(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void increment() {
+		value.add(1);
+	}
+
+	public void add(long n) {
+		if(n < 0) throw new IllegalArgumentException("Counters only go up");
+		value.add(n);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+
+	@Override
+	public Type getType() {
+		return Type.COUNTER;
+	}
+
+	@Override
+	void writeSamples(StringBuilder sb) {
+		writeSample(sb, name, labels, null, Long.toString(get()));
+	}
+
+}
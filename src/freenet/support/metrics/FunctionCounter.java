@@ -0,0 +1,28 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+/**
+ * A counter that somebody else already keeps, e.g. the total bytes in IOStatisticCollector,
+ * read when the metrics are exported. Implement getValue() in an anonymous subclass.
+ */
+public abstract class FunctionCounter extends Metric {
+
+	public FunctionCounter(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public abstract long getValue();
+
+	@Override
+	public Type getType() {
+		return Type.COUNTER;
+	}
+
+	@Override
+	void writeSamples(StringBuilder sb) {
+		writeSample(sb, name, labels, null, Long.toString(getValue()));
+	}
+
+}
@@ -0,0 +1,36 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+/**
+ * A value which is read when the metrics are exported, e.g. the number of connected peers.
+ * Implement getValue() in an anonymous subclass. It is called on the exporting thread and
+ * must not take locks that could be held for long on the hot paths.
+ */
+public abstract class Gauge extends Metric {
+
+	public Gauge(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public abstract double getValue();
+
+	@Override
+	public Type getType() {
+		return Type.GAUGE;
+	}
+
+	@Override
+	void writeSamples(StringBuilder sb) {
+		writeSample(sb, name, labels, null, format(getValue()));
+	}
+
+	static String format(double d) {
+		if(Double.isNaN(d)) return "NaN";
+		if(Double.isInfinite(d)) return d > 0 ? "+Inf" : "-Inf";
+		if(d == Math.rint(d) && Math.abs(d) < 1e15) return Long.toString((long) d);
+		return Double.toString(d);
+	}
+
+}
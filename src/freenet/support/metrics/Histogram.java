@@ -0,0 +1,111 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The distribution of a non-negative value, e.g. request times in milliseconds. Like an HDR
+ * histogram, buckets are log-linear: each power of two is split into SUB_BUCKETS linear buckets,
+ * so any value is recorded with a relative error of at most 1/SUB_BUCKETS, from 0 to
+ * Long.MAX_VALUE, in a fixed BUCKETS counts. Recording doesn't lock or allocate.
+ *
+ * Exported as a Prometheus histogram with a bucket for each boundary up to the largest value
+ * recorded so far.
+ */
+public final class Histogram extends Metric {
+
+	static final int SUB_BUCKET_BITS = 2;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Values below SUB_BUCKETS get a bucket each, then SUB_BUCKETS for each power of two. */
+	static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedLong sum = new StripedLong();
+
+	public Histogram(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	/** Record a value. Negative values are recorded as 0. */
+	public void record(long value) {
+		if(value < 0) value = 0;
+		counts.incrementAndGet(bucket(value));
+		sum.add(value);
+	}
+
+	static int bucket(long value) {
+		if(value < SUB_BUCKETS) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int mantissa = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + shift * SUB_BUCKETS + mantissa;
+	}
+
+	/** The largest value which goes in the bucket. */
+	static long upperBound(int bucket) {
+		if(bucket < SUB_BUCKETS) return bucket;
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int mantissa = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		// Wraps around to Long.MAX_VALUE for the last bucket.
+		return ((long) (SUB_BUCKETS + mantissa + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for(int i=0;i<BUCKETS;i++)
+			count += counts.get(i);
+		return count;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile.
+	 * @return The upper bound of the bucket containing the given fraction of the values
+	 * recorded, or 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double fraction) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for(int i=0;i<BUCKETS;i++)
+			count += (snapshot[i] = counts.get(i));
+		if(count == 0) return 0;
+		long target = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++) {
+			seen += snapshot[i];
+			if(seen >= target && seen > 0) return upperBound(i);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	@Override
+	public Type getType() {
+		return Type.HISTOGRAM;
+	}
+
+	@Override
+	void writeSamples(StringBuilder sb) {
+		long[] snapshot = new long[BUCKETS];
+		int last = -1;
+		for(int i=0;i<BUCKETS;i++) {
+			snapshot[i] = counts.get(i);
+			if(snapshot[i] != 0) last = i;
+		}
+		String bucketName = name + "_bucket";
+		long cumulative = 0;
+		for(int i=0;i<=last && i<BUCKETS-1;i++) {
+			cumulative += snapshot[i];
+			writeSample(sb, bucketName, labels, "le=\""+upperBound(i)+"\"", Long.toString(cumulative));
+		}
+		if(last == BUCKETS - 1) cumulative += snapshot[last];
+		writeSample(sb, bucketName, labels, "le=\"+Inf\"", Long.toString(cumulative));
+		writeSample(sb, name + "_sum", labels, null, Long.toString(getSum()));
+		writeSample(sb, name + "_count", labels, null, Long.toString(cumulative));
+	}
+
+}
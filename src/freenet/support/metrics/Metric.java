@@ -0,0 +1,110 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+/**
+ * A named value exported by a MetricsRegistry in the Prometheus text exposition format. Metrics
+ * with the same name but different labels form a family, which shares the help text and type.
+ */
+public abstract class Metric {
+
+	public enum Type {
+		COUNTER,
+		GAUGE,
+		HISTOGRAM;
+
+		String exposition() {
+			return name().toLowerCase();
+		}
+	}
+
+	final String name;
+	/** Formatted labels, without the braces, e.g. type="chk",local="true". Empty if none. */
+	final String labels;
+	final String help;
+
+	/**
+	 * @param name The name of the family, e.g. freenet_requests_total.
+	 * @param help What is being measured. Should be the same for all the metrics in the family.
+	 * @param labels Labels distinguishing this metric from others in the family, see labels(),
+	 * or null.
+	 */
+	protected Metric(String name, String help, String labels) {
+		if(!isValidName(name))
+			throw new IllegalArgumentException("Invalid metric name: "+name);
+		this.name = name;
+		this.help = help;
+		this.labels = labels == null ? "" : labels;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public abstract Type getType();
+
+	/** Write the samples, one per line. The HELP and TYPE lines are written by the registry. */
+	abstract void writeSamples(StringBuilder sb);
+
+	/** Write a single sample line. */
+	static void writeSample(StringBuilder sb, String name, String labels, String extraLabel, String value) {
+		sb.append(name);
+		if(labels.length() > 0 || extraLabel != null) {
+			sb.append('{').append(labels);
+			if(extraLabel != null) {
+				if(labels.length() > 0) sb.append(',');
+				sb.append(extraLabel);
+			}
+			sb.append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Format labels for the constructor.
+	 * @param namesAndValues Alternating label names and values.
+	 */
+	public static String labels(String... namesAndValues) {
+		if(namesAndValues.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must be name, value pairs");
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<namesAndValues.length;i+=2) {
+			if(!isValidName(namesAndValues[i]) || namesAndValues[i].indexOf(':') != -1)
+				throw new IllegalArgumentException("Invalid label name: "+namesAndValues[i]);
+			if(i > 0) sb.append(',');
+			sb.append(namesAndValues[i]).append("=\"");
+			escape(sb, namesAndValues[i+1], true);
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	static void escape(StringBuilder sb, String s, boolean quotes) {
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(c == '\\')
+				sb.append("\\\\");
+			else if(c == '\n')
+				sb.append("\\n");
+			else if(c == '"' && quotes)
+				sb.append("\\\"");
+			else
+				sb.append(c);
+		}
+	}
+
+	static boolean isValidName(String name) {
+		if(name == null || name.isEmpty()) return false;
+		for(int i=0;i<name.length();i++) {
+			char c = name.charAt(i);
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':')
+				continue;
+			if(i > 0 && c >= '0' && c <= '9')
+				continue;
+			return false;
+		}
+		return true;
+	}
+
+}
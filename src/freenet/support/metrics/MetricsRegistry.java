@@ -0,0 +1,93 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import freenet.support.Logger;
+
+/**
+ * Keeps track of the metrics of a node, and exports them in the Prometheus text exposition
+ * format, version 0.0.4, for the /metrics/ toadlet and FCP GetMetrics.
+ *
+ * Code that updates a metric on a hot path should create it once, keep it in a field, and
+ * update it directly; the registry is only consulted when registering and exporting.
+ *
+ * LOCKING: Registering and exporting synchronize on the registry. Gauges and function counters
+ * are read while holding the lock.
+ */
+public class MetricsRegistry {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/** By name, then labels, so that families are written together. */
+	private final TreeMap<String, Metric> metrics = new TreeMap<String, Metric>();
+
+	private static String key(Metric metric) {
+		// Space sorts before any character allowed in a name.
+		return metric.name + ' ' + metric.labels;
+	}
+
+	/**
+	 * Register a metric.
+	 * @return The metric.
+	 * @throws IllegalArgumentException If a metric with the same name and labels is already
+	 * registered, or the family has a different type.
+	 */
+	public synchronized <T extends Metric> T register(T metric) {
+		String key = key(metric);
+		if(metrics.containsKey(key))
+			throw new IllegalArgumentException("Already registered: "+metric.name+'{'+metric.labels+'}');
+		Map.Entry<String, Metric> sibling = metrics.ceilingEntry(metric.name + ' ');
+		if(sibling != null && sibling.getValue().name.equals(metric.name)
+				&& sibling.getValue().getType() != metric.getType())
+			throw new IllegalArgumentException(metric.name+" is a "+sibling.getValue().getType()+" not a "+metric.getType());
+		metrics.put(key, metric);
+		return metric;
+	}
+
+	public synchronized void unregister(Metric metric) {
+		String key = key(metric);
+		if(metrics.get(key) == metric)
+			metrics.remove(key);
+	}
+
+	public Counter counter(String name, String help, String labels) {
+		return register(new Counter(name, help, labels));
+	}
+
+	public Histogram histogram(String name, String help, String labels) {
+		return register(new Histogram(name, help, labels));
+	}
+
+	/** Write all the metrics in the text exposition format. */
+	public synchronized void writeTo(StringBuilder sb) {
+		String family = null;
+		for(Metric metric : metrics.values()) {
+			if(!metric.name.equals(family)) {
+				family = metric.name;
+				if(metric.help != null) {
+					sb.append("# HELP ").append(family).append(' ');
+					Metric.escape(sb, metric.help, false);
+					sb.append('\n');
+				}
+				sb.append("# TYPE ").append(family).append(' ').append(metric.getType().exposition()).append('\n');
+			}
+			try {
+				metric.writeSamples(sb);
+			} catch (RuntimeException e) {
+				Logger.error(this, "Failed to export "+metric.name+": "+e, e);
+			}
+		}
+	}
+
+	/** All the metrics in the text exposition format. */
+	public String export() {
+		StringBuilder sb = new StringBuilder();
+		writeTo(sb);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,41 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum that many threads can add to without contending on a single cache line. Each thread
+ * adds to one of several cells, chosen by its ID, and reading sums the cells. Like LongAdder,
+ * which we can't use as long as we support Java 7. Adding doesn't allocate.
+ */
+final class StripedLong {
+
+	/** Longs per cell, so that cells are on different cache lines. */
+	private static final int PADDING = 8;
+	private static final int STRIPES;
+	static {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while(stripes < cpus * 2 && stripes < 64)
+			stripes <<= 1;
+		STRIPES = stripes;
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	void add(long n) {
+		long id = Thread.currentThread().getId();
+		cells.getAndAdd((int)(id & (STRIPES - 1)) * PADDING, n);
+	}
+
+	/** The sum. Not atomic with respect to concurrent adds. */
+	long sum() {
+		long sum = 0;
+		for(int i=0;i<STRIPES;i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+}
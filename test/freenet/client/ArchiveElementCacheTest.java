@@ -0,0 +1,230 @@
+package freenet.client;
+
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class ArchiveElementCacheTest extends TestCase {
+
+    private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+
+    static class MyItem extends ArchiveStoreItem {
+
+        final long size;
+
+        MyItem(ArchiveStoreContext ctx, String name, long size) {
+            super(new ArchiveKey(ctx.getKey(), name), ctx);
+            this.size = size;
+        }
+
+        @Override
+        Bucket getDataOrThrow() {
+            return null;
+        }
+
+        @Override
+        long spaceUsed() {
+            return size;
+        }
+
+        @Override
+        Bucket getReaderBucket() {
+            return null;
+        }
+
+    }
+
+    private static ArchiveStoreContext makeContext(String name) throws MalformedURLException {
+        return new ArchiveStoreContext(new FreenetURI(CHK+name), ARCHIVE_TYPE.TAR);
+    }
+
+    public void testGetPutRemove() throws MalformedURLException {
+        ArchiveElementCache cache = new ArchiveElementCache(1000, 100);
+        ArchiveStoreContext ctx = makeContext("a.tar");
+        MyItem item = new MyItem(ctx, "index.html", 100);
+        assertNull(cache.put(item, 0));
+        assertSame(item, cache.get(item.key, 0));
+        assertSame(item, cache.get(new ArchiveKey(ctx.getKey(), "index.html"), 0));
+        MyItem replacement = new MyItem(ctx, "index.html", 50);
+        assertSame(item, cache.put(replacement, 0));
+        assertEquals(50, cache.getCachedData());
+        // Already replaced.
+        assertFalse(cache.remove(item));
+        assertTrue(cache.remove(replacement));
+        assertNull(cache.get(item.key, 0));
+        assertEquals(0, cache.getCachedData());
+        assertEquals(0, cache.size());
+    }
+
+    public void testTrimLRU() throws MalformedURLException {
+        ArchiveElementCache cache = new ArchiveElementCache(1000, 100);
+        ArchiveStoreContext ctx = makeContext("a.tar");
+        MyItem[] items = new MyItem[10];
+        for(int i=0;i<items.length;i++) {
+            items[i] = new MyItem(ctx, "file"+i, 100);
+            cache.put(items[i], 0);
+        }
+        assertTrue(cache.trim(0).isEmpty());
+        cache.get(items[0].key, 0);
+        cache.put(new MyItem(ctx, "file10", 100), 0);
+        List<ArchiveStoreItem> removed = cache.trim(0);
+        // Trims to 90%, least recently used first.
+        assertEquals(2, removed.size());
+        assertTrue(removed.contains(items[1]));
+        assertTrue(removed.contains(items[2]));
+        assertNotNull(cache.get(items[0].key, 0));
+        assertEquals(900, cache.getCachedData());
+    }
+
+    public void testElementLimit() throws MalformedURLException {
+        ArchiveElementCache cache = new ArchiveElementCache(1000000, 10);
+        ArchiveStoreContext ctx = makeContext("a.tar");
+        for(int i=0;i<11;i++)
+            cache.put(new MyItem(ctx, "file"+i, 1), 0);
+        assertEquals(2, cache.trim(0).size());
+        assertEquals(9, cache.size());
+    }
+
+    public void testRecentlyUsedArchive() throws MalformedURLException {
+        ArchiveElementCache cache = new ArchiveElementCache(1000, 100);
+        ArchiveStoreContext old = makeContext("old.tar");
+        ArchiveStoreContext recent = makeContext("recent.tar");
+        long now = ArchiveElementCache.RECENTLY_USED_TIME * 10;
+        MyItem recentItem = new MyItem(recent, "index.html", 500);
+        cache.put(recentItem, now - ArchiveElementCache.RECENTLY_USED_TIME / 2);
+        for(int i=0;i<6;i++)
+            cache.put(new MyItem(old, "file"+i, 100), 0);
+        // The recent archive's item is older but still kept.
+        List<ArchiveStoreItem> removed = cache.trim(now);
+        assertEquals(2, removed.size());
+        assertFalse(removed.contains(recentItem));
+        // Once it is no longer recent, it goes first.
+        for(int i=6;i<9;i++)
+            cache.put(new MyItem(old, "file"+i, 100), 0);
+        removed = cache.trim(now + ArchiveElementCache.RECENTLY_USED_TIME);
+        assertTrue(removed.contains(recentItem));
+    }
+
+    public void testPinned() throws MalformedURLException {
+        ArchiveElementCache cache = new ArchiveElementCache(1000, 100);
+        ArchiveStoreContext ctx = makeContext("a.tar");
+        long now = ArchiveElementCache.RECENTLY_USED_TIME * 10;
+        cache.pin(ctx.getKey(), 0);
+        for(int i=0;i<20;i++)
+            cache.put(new MyItem(ctx, "file"+i, 100), 0);
+        // Pinned, even though it hasn't been used for a long time.
+        assertTrue(cache.trim(now).isEmpty());
+        assertEquals(2000, cache.getCachedData());
+        cache.unpin(ctx.getKey(), 0);
+        assertEquals(11, cache.trim(now).size());
+        assertEquals(900, cache.getCachedData());
+    }
+
+    private static Bucket makeTar(String[] names, int[] sizes) throws Exception {
+        ArrayBucket bucket = new ArrayBucket();
+        OutputStream os = bucket.getOutputStream();
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(os);
+        for(int i=0;i<names.length;i++) {
+            TarArchiveEntry entry = new TarArchiveEntry(names[i]);
+            entry.setSize(sizes[i]);
+            tar.putArchiveEntry(entry);
+            tar.write(new byte[sizes[i]]);
+            tar.closeArchiveEntry();
+        }
+        tar.close();
+        return bucket;
+    }
+
+    private static Bucket makeZip(String[] names, int[] sizes) throws Exception {
+        ArrayBucket bucket = new ArrayBucket();
+        // Deflated entries are streamed, so their sizes are unknown until read.
+        ZipOutputStream zip = new ZipOutputStream(bucket.getOutputStream());
+        for(int i=0;i<names.length;i++) {
+            zip.putNextEntry(new ZipEntry(names[i]));
+            zip.write(new byte[sizes[i]]);
+            zip.closeEntry();
+        }
+        zip.close();
+        return bucket;
+    }
+
+    private static Bucket extract(ArchiveHandler handler, ArchiveManager manager, Bucket archive,
+            String element) throws Exception {
+        final Bucket[] got = new Bucket[1];
+        handler.extractToCache(archive, new ArchiveContext(1000000, 10), element,
+                new ArchiveExtractCallback() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void gotBucket(Bucket data, ClientContext context) {
+                got[0] = data;
+            }
+
+            @Override
+            public void notInArchive(ClientContext context) {
+                fail();
+            }
+
+            @Override
+            public void onFailed(ArchiveRestartException e, ClientContext context) {
+                fail();
+            }
+
+            @Override
+            public void onFailed(ArchiveFailureException e, ClientContext context) {
+                fail();
+            }
+
+        }, manager, null);
+        return got[0];
+    }
+
+    public void testExtract() throws Exception {
+        // Small enough that extracting the archive overflows the cache.
+        ArchiveManager manager = new ArchiveManager(10, 2500, 1500, 100, new ArrayBucketFactory());
+        FreenetURI key = new FreenetURI(CHK+"site.tar");
+        Bucket tar = makeTar(new String[] { "index.html", "big.png", "a.css", "b.css", "c.css" },
+                new int[] { 1000, 2000, 1000, 1000, 1000 });
+        ArchiveHandler handler = manager.makeHandler(key, ARCHIVE_TYPE.TAR, null, false, false);
+        Bucket got = extract(handler, manager, tar, "index.html");
+        assertEquals(1000, BucketTools.toByteArray(got).length);
+        // Pinned during extraction, so nothing was dropped.
+        assertNotNull(handler.getMetadata(null, manager));
+        assertNotNull(handler.get("index.html", null, manager));
+        assertNotNull(handler.get("c.css", null, manager));
+        // Too big, and not the element we asked for.
+        assertNull(handler.get("big.png", null, manager));
+    }
+
+    public void testExtractBigElementUnknownSize() throws Exception {
+        ArchiveManager manager = new ArchiveManager(10, 100000, 1500, 100, new ArrayBucketFactory());
+        FreenetURI key = new FreenetURI(CHK+"site.zip");
+        Bucket zip = makeZip(new String[] { "index.html", "big.png", "other.png" },
+                new int[] { 1000, 3000, 3000 });
+        ArchiveHandler handler = manager.makeHandler(key, ARCHIVE_TYPE.ZIP, null, false, false);
+        // We asked for it, so we get it even though it is over the limit.
+        Bucket got = extract(handler, manager, zip, "big.png");
+        assertEquals(3000, BucketTools.toByteArray(got).length);
+        assertNotNull(handler.get("index.html", null, manager));
+        // Neither big element is cached.
+        assertNull(handler.get("big.png", null, manager));
+        assertNull(handler.get("other.png", null, manager));
+    }
+
+}
@@ -0,0 +1,109 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+import freenet.keys.FreenetURI;
+
+public class ManifestIndexTest extends TestCase {
+
+    private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+
+    private static final String[] NAMES = new String[] {
+        "index.html", "style.css", "a", "ab", "été.html", "Z", ""
+    };
+
+    private static Metadata makeManifest() throws Exception {
+        HashMap<String, Object> dir = new HashMap<String, Object>();
+        for(String name : NAMES)
+            dir.put(name, CHK+name);
+        HashMap<String, Object> subdir = new HashMap<String, Object>();
+        subdir.put("page.html", CHK+"page.html");
+        dir.put("sub", subdir);
+        return Metadata.mkRedirectionManifest(dir);
+    }
+
+    private static Metadata parse(Metadata m) throws Exception {
+        return Metadata.construct(m.writeToByteArray());
+    }
+
+    public void testLookup() throws Exception {
+        Metadata parsed = parse(makeManifest());
+        assertTrue(parsed.isSimpleManifest());
+        assertEquals(NAMES.length + 1, parsed.countDocuments());
+        for(String name : NAMES)
+            assertEquals(new FreenetURI(CHK+name), parsed.getDocument(name).getSingleTarget());
+        assertSame(parsed.getDocument("index.html"), parsed.getDocument("index.html"));
+        assertNull(parsed.getDocument("missing"));
+        assertNull(parsed.getDocument("index.htm"));
+        Metadata sub = parsed.getDocument("sub");
+        assertTrue(sub.isSimpleManifest());
+        assertEquals(new FreenetURI(CHK+"page.html"), sub.getDocument("page.html").getSingleTarget());
+        // The default document isn't included.
+        assertEquals(NAMES.length, parsed.getDocuments().size());
+    }
+
+    public void testGrab() throws Exception {
+        Metadata parsed = parse(makeManifest());
+        assertNotNull(parsed.grabDocument("style.css"));
+        assertNull(parsed.grabDocument("style.css"));
+        assertNull(parsed.getDocument("style.css"));
+        assertEquals(NAMES.length, parsed.countDocuments());
+        assertFalse(parsed.getDocuments().containsKey("style.css"));
+    }
+
+    public void testWriteTo() throws Exception {
+        Metadata m = makeManifest();
+        byte[] original = m.writeToByteArray();
+        Metadata parsed = Metadata.construct(original);
+        // Nothing decoded, copied as is.
+        assertTrue(Arrays.equals(original, parsed.writeToByteArray()));
+        // Decoded entries are written again.
+        parsed.getDocument("index.html");
+        parsed.getDocument("sub").getDocument("page.html");
+        Metadata reparsed = parse(parsed);
+        assertEquals(NAMES.length + 1, reparsed.countDocuments());
+        assertEquals(new FreenetURI(CHK+"index.html"), reparsed.getDocument("index.html").getSingleTarget());
+        // Removed entries are not.
+        parsed.grabDocument("a");
+        reparsed = parse(parsed);
+        assertNull(reparsed.getDocument("a"));
+        assertNotNull(reparsed.getDocument("ab"));
+        assertEquals(NAMES.length, reparsed.countDocuments());
+    }
+
+    public void testClone() throws Exception {
+        Metadata parsed = parse(makeManifest());
+        Metadata index = parsed.getDocument("index.html");
+        Metadata clone = (Metadata) parsed.clone();
+        assertNotSame(index, clone.getDocument("index.html"));
+        assertEquals(index.getSingleTarget(), clone.getDocument("index.html").getSingleTarget());
+        clone.grabDocument("style.css");
+        assertNotNull(parsed.getDocument("style.css"));
+        assertEquals(NAMES.length + 1, parsed.countDocuments());
+    }
+
+    public void testInvalidEntry() throws Exception {
+        HashMap<String, Object> dir = new HashMap<String, Object>();
+        dir.put("a", CHK+"a");
+        byte[] buf = Metadata.mkRedirectionManifest(dir).writeToByteArray();
+        // Break the magic number of the entry, which comes after the manifest's own.
+        buf[8 + indexOf(Arrays.copyOfRange(buf, 8, buf.length), (byte) 0xf0)] ^= 1;
+        Metadata parsed = Metadata.construct(buf);
+        assertEquals(1, parsed.countDocuments());
+        try {
+            parsed.getDocument("a");
+            fail();
+        } catch (InvalidManifestEntryException e) {
+            assertNotNull(e.getCause());
+        }
+    }
+
+    private static int indexOf(byte[] buf, byte b) {
+        for(int i=0;i<buf.length;i++)
+            if(buf[i] == b) return i;
+        return -1;
+    }
+
+}
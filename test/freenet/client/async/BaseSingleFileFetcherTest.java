@@ -0,0 +1,85 @@
+package freenet.client.async;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+import freenet.client.FetchContext;
+import freenet.keys.ClientKey;
+import freenet.keys.ClientKeyBlock;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.KeysFetchingLocally;
+import freenet.node.LowLevelGetException;
+import freenet.node.RequestScheduler;
+import freenet.node.SendableRequestItem;
+
+public class BaseSingleFileFetcherTest extends TestCase {
+
+    private static class MyFetcher extends BaseSingleFileFetcher {
+        private static final long serialVersionUID = 1L;
+
+        LowLevelGetException failure;
+
+        MyFetcher(ClientKey key, int maxRetries) {
+            super(key, maxRetries, mock(FetchContext.class), mock(ClientRequester.class), false, false);
+        }
+
+        @Override
+        public void onFailure(LowLevelGetException e, SendableRequestItem token, ClientContext context) {
+            failure = e;
+        }
+
+        @Override
+        protected void onBlockDecodeError(SendableRequestItem token, ClientContext context) {
+        }
+
+        @Override
+        public void onSuccess(ClientKeyBlock block, boolean fromStore, Object token, ClientContext context) {
+        }
+
+        @Override
+        protected void notFoundInStore(ClientContext context) {
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return 0;
+        }
+
+        @Override
+        protected ClientGetState getClientGetState() {
+            return null;
+        }
+    }
+
+    private static ClientKey makeKey(Key nodeKey) {
+        ClientKey key = mock(ClientKey.class);
+        when(key.getNodeKey(false)).thenReturn(nodeKey);
+        return key;
+    }
+
+    public void testRecentlyNotFound() {
+        ClientContext context = new ClientContext(0, null, null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null, null, null, null, null, null,
+                null, null, null, null, null);
+        KeysFetchingLocally fetching = mock(KeysFetchingLocally.class);
+        Key nodeKey = new NodeCHK(new byte[32], Key.ALGO_AES_CTR_256_SHA256);
+        ClientKey key = makeKey(nodeKey);
+        long now = System.currentTimeMillis();
+        context.notFoundCache.onNotFound(nodeKey, new Object(), now);
+
+        // Few retries, e.g. a USK check: fails at once.
+        MyFetcher usk = new MyFetcher(key, RequestScheduler.COOLDOWN_RETRIES - 1);
+        assertNull(usk.chooseKey(fetching, context));
+        assertEquals(LowLevelGetException.RECENTLY_FAILED, usk.failure.code);
+        assertEquals(0, usk.cooldownWakeupTime);
+
+        // Would go into cooldown anyway: waits for the entry to expire.
+        MyFetcher forever = new MyFetcher(key, -1);
+        assertNull(forever.chooseKey(fetching, context));
+        assertNull(forever.failure);
+        assertTrue(forever.cooldownWakeupTime > now);
+    }
+
+}
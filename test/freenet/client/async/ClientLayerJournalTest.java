@@ -0,0 +1,128 @@
+package freenet.client.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import freenet.crypt.CRCChecksumChecker;
+import freenet.crypt.ChecksumChecker;
+import freenet.crypt.DummyRandomSource;
+import freenet.node.DatabaseKey;
+import freenet.support.io.FileUtil;
+import junit.framework.TestCase;
+
+public class ClientLayerJournalTest extends TestCase {
+    
+    private static final String BASE_NAME = "client.dat";
+    
+    private final File dir = new File("client-layer-journal-test");
+    private final ChecksumChecker checker = new CRCChecksumChecker();
+    private final Random random = new Random(1234);
+    
+    @Override
+    public void setUp() {
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+    }
+    
+    @Override
+    public void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+    
+    public void testAppendAndRead() throws IOException {
+        innerTestAppendAndRead(null);
+    }
+    
+    public void testAppendAndReadEncrypted() throws IOException {
+        innerTestAppendAndRead(DatabaseKey.createRandom(new DummyRandomSource(5678)));
+    }
+    
+    private void innerTestAppendAndRead(DatabaseKey key) throws IOException {
+        ClientLayerJournal journal = ClientLayerJournal.create(dir, BASE_NAME, 12345, key, checker);
+        assertEquals(ClientLayerJournal.HEADER_LENGTH, journal.length());
+        assertEquals(0, ClientLayerJournal.read(journal.getFile(), 12345, key, checker, Long.MAX_VALUE).size());
+        List<byte[]> first = makeRecords(3);
+        List<byte[]> second = makeRecords(5);
+        journal.append(first);
+        journal.append(second);
+        assertEquals(journal.length(), journal.getFile().length());
+        List<byte[]> expected = new ArrayList<byte[]>(first);
+        expected.addAll(second);
+        checkRecords(expected, ClientLayerJournal.read(journal.getFile(), 12345, key, checker, Long.MAX_VALUE));
+    }
+    
+    public void testMaxLength() throws IOException {
+        ClientLayerJournal journal = ClientLayerJournal.create(dir, BASE_NAME, 1, null, checker);
+        List<byte[]> first = makeRecords(2);
+        journal.append(first);
+        long length = journal.length();
+        journal.append(makeRecords(2));
+        checkRecords(first, ClientLayerJournal.read(journal.getFile(), 1, null, checker, length));
+    }
+    
+    public void testTruncated() throws IOException {
+        ClientLayerJournal journal = ClientLayerJournal.create(dir, BASE_NAME, 1, null, checker);
+        List<byte[]> first = makeRecords(4);
+        journal.append(first);
+        long length = journal.length();
+        journal.append(makeRecords(1));
+        // Simulate a crash while writing the last record.
+        RandomAccessFile raf = new RandomAccessFile(journal.getFile(), "rw");
+        raf.setLength(journal.length() - 3);
+        raf.close();
+        checkRecords(first, ClientLayerJournal.read(journal.getFile(), 1, null, checker, Long.MAX_VALUE));
+        // Corrupt the last record.
+        raf = new RandomAccessFile(journal.getFile(), "rw");
+        raf.seek(length + 10);
+        raf.write(raf.read() ^ 0xFF);
+        raf.close();
+        checkRecords(first, ClientLayerJournal.read(journal.getFile(), 1, null, checker, Long.MAX_VALUE));
+    }
+    
+    public void testWrongID() throws IOException {
+        ClientLayerJournal journal = ClientLayerJournal.create(dir, BASE_NAME, 1, null, checker);
+        journal.append(makeRecords(1));
+        assertNull(ClientLayerJournal.read(journal.getFile(), 2, null, checker, Long.MAX_VALUE));
+        assertNull(ClientLayerJournal.read(ClientLayerJournal.makeFilename(dir, BASE_NAME, 2), 2, null, checker, Long.MAX_VALUE));
+    }
+    
+    public void testDeleteAllExcept() throws IOException {
+        File a = ClientLayerJournal.create(dir, BASE_NAME, 1, null, checker).getFile();
+        File b = ClientLayerJournal.create(dir, BASE_NAME, 2, null, checker).getFile();
+        File c = ClientLayerJournal.create(dir, BASE_NAME, 3, null, checker).getFile();
+        File other = new File(dir, BASE_NAME);
+        other.createNewFile();
+        ClientLayerJournal.deleteAllExcept(dir, BASE_NAME, 1, 3);
+        assertTrue(a.exists());
+        assertFalse(b.exists());
+        assertTrue(c.exists());
+        assertTrue(other.exists());
+        ClientLayerJournal.deleteAllExcept(dir, BASE_NAME);
+        assertFalse(a.exists());
+        assertFalse(c.exists());
+        assertTrue(other.exists());
+    }
+    
+    private List<byte[]> makeRecords(int count) {
+        List<byte[]> records = new ArrayList<byte[]>();
+        for(int i=0;i<count;i++) {
+            byte[] buf = new byte[1 + random.nextInt(1000)];
+            random.nextBytes(buf);
+            records.add(buf);
+        }
+        return records;
+    }
+    
+    private void checkRecords(List<byte[]> expected, List<byte[]> actual) {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for(int i=0;i<expected.size();i++)
+            assertTrue(Arrays.equals(expected.get(i), actual.get(i)));
+    }
+
+}
@@ -1,9 +1,15 @@
 package freenet.client.async;
 
+import static org.mockito.Mockito.mock;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
@@ -32,8 +38,11 @@ import freenet.keys.Key;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.LowLevelPutException;
 import freenet.node.RequestClient;
+import freenet.node.RequestClientBuilder;
+import freenet.node.RequestStarter;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequestItem;
+import freenet.node.SendableRequestItemKey;
 import freenet.node.SendableRequestSender;
 import freenet.support.CheatingTicker;
 import freenet.support.DummyJobRunner;
@@ -323,6 +332,110 @@ public class ClientRequestSelectorTest extends TestCase {
         
     }
     
+    static class BlockToken implements SendableRequestItem, SendableRequestItemKey {
+        
+        final int blockNumber;
+        
+        BlockToken(int blockNumber) {
+            this.blockNumber = blockNumber;
+        }
+
+        @Override
+        public void dump() {
+            // Ignore
+        }
+
+        @Override
+        public SendableRequestItemKey getKey() {
+            return this;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BlockToken && ((BlockToken)o).blockNumber == blockNumber;
+        }
+        
+        @Override
+        public int hashCode() {
+            return blockNumber;
+        }
+        
+    }
+    
+    /** An insert of a few blocks, which chooses any block that isn't already running. */
+    class BlocksInsert extends NullSendableInsert {
+        
+        private static final long serialVersionUID = 1L;
+        private final int blocks;
+        private final RequestClient client = 
+            new RequestClientBuilder().build();
+        private final ClientRequestSchedulerGroup group = new ClientRequestSchedulerGroup() {};
+
+        public BlocksInsert(int blocks) {
+            super(false, false);
+            this.blocks = blocks;
+        }
+        
+        @Override
+        public SendableRequestItem chooseKey(KeysFetchingLocally keys, ClientContext context) {
+            for(int i=0;i<blocks;i++) {
+                BlockToken token = new BlockToken(i);
+                if(!keys.hasInsert(token)) return token;
+            }
+            return null;
+        }
+        
+        @Override
+        public short getPriorityClass() {
+            return RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+        }
+        
+        @Override
+        public RequestClient getClient() {
+            return client;
+        }
+        
+        @Override
+        public ClientRequestSchedulerGroup getSchedulerGroup() {
+            return group;
+        }
+        
+    }
+    
+    public void testChooseRequestsBatch() {
+        ClientRequestScheduler sched = mock(ClientRequestScheduler.class);
+        RequestStarter starter = mock(RequestStarter.class);
+        ClientRequestSelector selector = new ClientRequestSelector(true, false, false, sched);
+        RandomSource random = new DummyRandomSource(54321);
+        ClientContext context = new ClientContext(0, null, null, null, null, null, null, null, 
+                null, null, random, null, null, null, null, null, null, null, null, null, null, 
+                null, null, null, null, null);
+        BlocksInsert insert = new BlocksInsert(5);
+        selector.innerRegister(insert, context, null);
+        List<ChosenBlock> chosen = new ArrayList<ChosenBlock>();
+        // Asking for fewer than are available.
+        assertEquals(3, selector.chooseRequests(3, 0, random, null, starter, false, context, chosen));
+        assertEquals(3, chosen.size());
+        // Each block is marked as running as soon as it is chosen, so no duplicates.
+        Set<Integer> blocks = new HashSet<Integer>();
+        for(ChosenBlock block : chosen) {
+            assertTrue(selector.hasInsert(block.token.getKey()));
+            assertTrue(blocks.add(((BlockToken)block.token).blockNumber));
+        }
+        // Only two more.
+        assertEquals(2, selector.chooseRequests(10, 0, random, null, starter, false, context, chosen));
+        assertEquals(5, chosen.size());
+        for(ChosenBlock block : chosen.subList(3, 5))
+            assertTrue(blocks.add(((BlockToken)block.token).blockNumber));
+        assertEquals(5, blocks.size());
+        assertEquals(0, selector.chooseRequests(10, 0, random, null, starter, false, context, chosen));
+        // Releasing a block makes it available again.
+        selector.removeRunningInsert(chosen.get(0).token.getKey());
+        List<ChosenBlock> again = new ArrayList<ChosenBlock>();
+        assertEquals(1, selector.chooseRequests(10, 0, random, null, starter, false, context, again));
+        assertEquals(chosen.get(0).token.getKey(), again.get(0).token.getKey());
+    }
+    
     public void testSmallSplitfileChooseCompletion() throws IOException, InsertException, MissingKeyException {
         Random r = new Random(12121);
         long size = 65536; // Exact multiple, so no last block
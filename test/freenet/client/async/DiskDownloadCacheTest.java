@@ -0,0 +1,180 @@
+package freenet.client.async;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.keys.FreenetURI;
+import freenet.support.PooledExecutor;
+import freenet.support.WaitableExecutor;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+public class DiskDownloadCacheTest extends TestCase {
+
+    private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+    private static final String USK = "USK@5hH~39FtjA7A9~VXWtBKI~prUDTuJZURudDG0xFn3KA,GDgRGt5f6xqbmo-WraQtU54x4H~871Sho9Hz6hC-0RA,AQACAAE/Search/";
+
+    private File dir;
+
+    @Override
+    protected void setUp() {
+        dir = new File("tmp-diskdownloadcachetest");
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+
+    private WaitableExecutor executor;
+
+    private DiskDownloadCache makeCache(long maxSize) {
+        executor = new WaitableExecutor(new PooledExecutor());
+        DiskDownloadCache cache = new DiskDownloadCache(dir, maxSize, executor, null, new ArrayBucketFactory());
+        cache.start();
+        return cache;
+    }
+
+    private static byte[] makeData(int size, int seed) {
+        byte[] data = new byte[size];
+        for(int i=0;i<size;i++)
+            data[i] = (byte) (i * 31 + seed);
+        return data;
+    }
+
+    private static void store(DiskDownloadCache cache, String uri, boolean filtered, byte[] data)
+            throws Exception {
+        cache.store(DiskDownloadCache.cacheKey(new FreenetURI(uri), filtered), "text/plain",
+                new ArrayBucket(data));
+    }
+
+    private static byte[] lookup(DiskDownloadCache cache, String uri, boolean noFilter) throws Exception {
+        CacheFetchResult result = cache.lookupInstant(new FreenetURI(uri), noFilter, false, null);
+        if(result == null) return null;
+        assertEquals("text/plain", result.getMimeType());
+        Bucket b = result.asBucket();
+        byte[] data = BucketTools.toByteArray(b);
+        b.free();
+        return data;
+    }
+
+    public void testStoreAndLookup() throws Exception {
+        DiskDownloadCache cache = makeCache(100000);
+        byte[] data = makeData(1000, 1);
+        store(cache, CHK+"a.txt", false, data);
+        assertTrue(Arrays.equals(data, lookup(cache, CHK+"a.txt", true)));
+        // Unfiltered data is returned for a filtered fetch, the caller filters it.
+        assertTrue(Arrays.equals(data, lookup(cache, CHK+"a.txt", false)));
+        assertNull(lookup(cache, CHK+"b.txt", true));
+        // Filtered data is never returned for an unfiltered fetch.
+        store(cache, CHK+"b.txt", true, data);
+        assertNull(lookup(cache, CHK+"b.txt", true));
+        assertTrue(Arrays.equals(data, lookup(cache, CHK+"b.txt", false)));
+        // Same content, stored once.
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.countFiles());
+        assertEquals(1000, cache.getTotalSize());
+    }
+
+    public void testCacheableKeys() throws MalformedURLException {
+        assertNotNull(DiskDownloadCache.cacheKey(new FreenetURI(CHK+"a.txt"), false));
+        assertNull(DiskDownloadCache.cacheKey(new FreenetURI("KSK@test"), false));
+        assertNull(DiskDownloadCache.cacheKey(new FreenetURI(USK+"-17/"), false));
+        // A specific USK edition is the same as the SSK.
+        FreenetURI usk = new FreenetURI(USK+"17/index.html");
+        assertEquals(DiskDownloadCache.cacheKey(usk.sskForUSK(), true),
+                DiskDownloadCache.cacheKey(usk, true));
+    }
+
+    public void testEviction() throws Exception {
+        DiskDownloadCache cache = makeCache(10000);
+        store(cache, CHK+"1", false, makeData(2000, 1));
+        store(cache, CHK+"2", false, makeData(2000, 2));
+        store(cache, CHK+"3", false, makeData(2000, 3));
+        // Too big.
+        store(cache, CHK+"big", false, makeData(3000, 4));
+        assertNull(lookup(cache, CHK+"big", true));
+        // Use 1 so that 2 is the least recently used.
+        assertNotNull(lookup(cache, CHK+"1", true));
+        store(cache, CHK+"4", false, makeData(2000, 5));
+        store(cache, CHK+"5", false, makeData(2000, 6));
+        store(cache, CHK+"6", false, makeData(2000, 7));
+        assertNull(lookup(cache, CHK+"2", true));
+        assertNotNull(lookup(cache, CHK+"1", true));
+        assertEquals(5, cache.size());
+        assertEquals(10000, cache.getTotalSize());
+        cache.setMaxSize(4000);
+        assertEquals(2, cache.size());
+        assertEquals(2, dir.list().length);
+    }
+
+    public void testRestart() throws Exception {
+        DiskDownloadCache cache = makeCache(100000);
+        byte[] data1 = makeData(1000, 1);
+        byte[] data2 = makeData(1000, 2);
+        store(cache, CHK+"1", false, data1);
+        store(cache, CHK+"2", false, data2);
+        cache.writeIndex();
+        // Not in the index.
+        store(cache, CHK+"3", false, makeData(1000, 3));
+        cache = makeCache(100000);
+        assertEquals(2, cache.size());
+        assertEquals(3, dir.list().length);
+        assertTrue(Arrays.equals(data1, lookup(cache, CHK+"1", true)));
+        assertTrue(Arrays.equals(data2, lookup(cache, CHK+"2", true)));
+        assertNull(lookup(cache, CHK+"3", true));
+    }
+
+    public void testFilterSettings() throws Exception {
+        DiskDownloadCache cache = makeCache(100000);
+        byte[] data = makeData(1000, 1);
+        FetchContext ctx = mock(FetchContext.class);
+        ctx.filterData = true;
+        ctx.charset = "UTF-8";
+        cache.onFetched(new FreenetURI(CHK+"a.txt"), ctx, new ClientMetadata("text/plain"), new ArrayBucket(data));
+        executor.waitForIdle();
+        // Filtered with a non-default charset, so not stored.
+        assertEquals(0, cache.size());
+        ctx.charset = null;
+        cache.onFetched(new FreenetURI(CHK+"a.txt"), ctx, new ClientMetadata("text/plain"), new ArrayBucket(data));
+        executor.waitForIdle();
+        assertEquals(1, cache.size());
+        assertTrue(Arrays.equals(data, lookup(cache, CHK+"a.txt", false)));
+    }
+
+    public void testEvictWhileReading() throws Exception {
+        DiskDownloadCache cache = makeCache(10000);
+        byte[] data = makeData(2000, 1);
+        store(cache, CHK+"1", false, data);
+        Bucket b = cache.lookupInstant(new FreenetURI(CHK+"1"), true, false, null).asBucket();
+        cache.setMaxSize(0);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getTotalSize());
+        // Still there until the bucket is freed.
+        assertTrue(Arrays.equals(data, BucketTools.toByteArray(b)));
+        b.free();
+        assertEquals(0, dir.list().length);
+        // Stored again while still being read.
+        cache.setMaxSize(10000);
+        store(cache, CHK+"1", false, data);
+        b = cache.lookupInstant(new FreenetURI(CHK+"1"), true, false, null).asBucket();
+        cache.setMaxSize(0);
+        cache.setMaxSize(10000);
+        store(cache, CHK+"2", false, data);
+        assertEquals(2000, cache.getTotalSize());
+        b.free();
+        assertTrue(Arrays.equals(data, lookup(cache, CHK+"2", true)));
+    }
+
+}
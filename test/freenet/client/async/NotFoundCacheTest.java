@@ -0,0 +1,65 @@
+package freenet.client.async;
+
+import junit.framework.TestCase;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+
+public class NotFoundCacheTest extends TestCase {
+
+    private static Key makeKey(int i) {
+        byte[] routingKey = new byte[32];
+        routingKey[0] = (byte) i;
+        routingKey[1] = (byte) (i >> 8);
+        return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+    }
+
+    public void testOtherRequestersSkip() {
+        NotFoundCache cache = new NotFoundCache(1000, 100);
+        Object origin = new Object();
+        Object other = new Object();
+        Key key = makeKey(1);
+        assertEquals(0, cache.check(key, other, 0));
+        cache.onNotFound(key, origin, 0);
+        // The request which got the DNF retries as usual.
+        assertEquals(0, cache.check(key, origin, 10));
+        assertEquals(1000, cache.check(key, other, 10));
+        assertEquals(0, cache.check(makeKey(2), other, 10));
+        assertEquals(1, cache.getHits());
+        // Expires.
+        assertEquals(0, cache.check(key, other, 1000));
+        assertEquals(0, cache.size());
+    }
+
+    public void testFound() {
+        NotFoundCache cache = new NotFoundCache(1000, 100);
+        Key key = makeKey(1);
+        cache.onNotFound(key, new Object(), 0);
+        cache.onFound(key);
+        assertEquals(0, cache.check(key, new Object(), 10));
+    }
+
+    public void testExpiryOrder() {
+        NotFoundCache cache = new NotFoundCache(1000, 100);
+        Object origin = new Object();
+        Object other = new Object();
+        cache.onNotFound(makeKey(1), origin, 0);
+        cache.onNotFound(makeKey(2), origin, 500);
+        // Re-adding moves the key to the end.
+        cache.onNotFound(makeKey(1), origin, 600);
+        assertEquals(1500, cache.check(makeKey(2), other, 1200));
+        assertEquals(1600, cache.check(makeKey(1), other, 1200));
+        assertEquals(0, cache.check(makeKey(2), other, 1500));
+        assertEquals(1, cache.size());
+    }
+
+    public void testMaxKeys() {
+        NotFoundCache cache = new NotFoundCache(1000, 10);
+        Object origin = new Object();
+        for(int i=0;i<20;i++)
+            cache.onNotFound(makeKey(i), origin, i);
+        assertEquals(10, cache.size());
+        assertEquals(0, cache.check(makeKey(0), new Object(), 20));
+        assertEquals(1019, cache.check(makeKey(19), new Object(), 20));
+    }
+
+}
@@ -0,0 +1,158 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import freenet.support.io.StorageFormatException;
+
+public class SimpleBlockChooserTest extends TestCase {
+
+    private static final int BLOCKS = 20;
+
+    public void testChoosesLowestRetryCount() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(BLOCKS, new Random(1), 5);
+        for(int i=0;i<BLOCKS;i++)
+            if(i != 7) chooser.onNonFatalFailure(i);
+        for(int i=0;i<10;i++)
+            assertEquals(7, chooser.chooseKey());
+        chooser.onNonFatalFailure(7);
+        chooser.onNonFatalFailure(7);
+        Set<Integer> chosen = new HashSet<Integer>();
+        for(int i=0;i<1000;i++) {
+            int x = chooser.chooseKey();
+            assertTrue(x != 7);
+            chosen.add(x);
+        }
+        assertEquals(BLOCKS-1, chosen.size());
+    }
+
+    public void testSuccessAndUnSuccess() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(BLOCKS, new Random(2), -1);
+        for(int i=0;i<BLOCKS;i++)
+            if(i != 3) assertTrue(chooser.onSuccess(i));
+        assertFalse(chooser.onSuccess(0));
+        assertEquals(BLOCKS-1, chooser.successCount());
+        assertEquals(3, chooser.chooseKey());
+        assertTrue(chooser.onSuccess(3));
+        assertTrue(chooser.hasSucceededAll());
+        assertEquals(-1, chooser.chooseKey());
+        chooser.onUnSuccess(11);
+        assertEquals(11, chooser.chooseKey());
+        assertFalse(chooser.hasSucceeded(11));
+    }
+
+    public void testMaxRetries() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(2, new Random(3), 2);
+        assertFalse(chooser.onNonFatalFailure(0));
+        assertFalse(chooser.onNonFatalFailure(0));
+        assertTrue(chooser.onNonFatalFailure(0));
+        for(int i=0;i<10;i++)
+            assertEquals(1, chooser.chooseKey());
+        assertEquals(1, chooser.countFailedBlocks());
+        chooser.onSuccess(1);
+        assertEquals(-1, chooser.chooseKey());
+    }
+
+    public void testCheckValid() {
+        final Set<Integer> running = new HashSet<Integer>();
+        SimpleBlockChooser chooser = new SimpleBlockChooser(BLOCKS, new Random(4), -1) {
+            @Override
+            protected boolean checkValid(int chosen) {
+                return super.checkValid(chosen) && !running.contains(chosen);
+            }
+        };
+        for(int i=0;i<BLOCKS;i++) {
+            int x = chooser.chooseKey();
+            assertTrue(x >= 0);
+            assertTrue(running.add(x));
+        }
+        assertEquals(-1, chooser.chooseKey());
+        running.remove(5);
+        assertEquals(5, chooser.chooseKey());
+    }
+
+    public void testBucketsBoundedWithUnlimitedRetries() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(BLOCKS, new Random(8), -1);
+        // Fail whatever is chosen, as a long running download would.
+        for(int i=0;i<BLOCKS*1000;i++) {
+            int x = chooser.chooseKey();
+            assertTrue(x >= 0);
+            chooser.onNonFatalFailure(x);
+        }
+        assertTrue(chooser.getRetries(0) >= 999);
+        assertTrue(chooser.bucketCapacity() <= 2);
+        // A block far behind the others widens the ring, and it still works.
+        SimpleBlockChooser chooser2 = new SimpleBlockChooser(2, new Random(9), -1);
+        for(int i=0;i<100;i++)
+            chooser2.onNonFatalFailure(1);
+        assertEquals(0, chooser2.chooseKey());
+        assertTrue(chooser2.bucketCapacity() >= 101);
+        for(int i=0;i<100;i++)
+            chooser2.onNonFatalFailure(0);
+        chooser2.onNonFatalFailure(0);
+        assertEquals(1, chooser2.chooseKey());
+    }
+
+    public void testPersistence() throws IOException, StorageFormatException {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(BLOCKS, new Random(5), 3);
+        for(int i=0;i<BLOCKS;i++) {
+            if(i % 3 == 0) chooser.onSuccess(i);
+            for(int j=0;j<i%5;j++)
+                chooser.onNonFatalFailure(i);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        chooser.write(new DataOutputStream(baos));
+        SimpleBlockChooser copy = new SimpleBlockChooser(BLOCKS, new Random(5), 3);
+        copy.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        for(int i=0;i<BLOCKS;i++) {
+            assertEquals(chooser.hasSucceeded(i), copy.hasSucceeded(i));
+            assertEquals(chooser.getRetries(i), copy.getRetries(i));
+        }
+        assertEquals(chooser.successCount(), copy.successCount());
+        assertEquals(chooser.countFailedBlocks(), copy.countFailedBlocks());
+        // Lowest retry count not yet succeeded: 5 and 10 have no retries.
+        for(int i=0;i<10;i++) {
+            int x = copy.chooseKey();
+            assertTrue(x == 5 || x == 10);
+        }
+    }
+
+    public void testCooldown() {
+        CooldownBlockChooser chooser = new CooldownBlockChooser(2, new Random(6), -1, 2,
+                Long.MAX_VALUE / 2);
+        assertFalse(chooser.onNonFatalFailure(0));
+        assertEquals(0, chooser.overallCooldownTime());
+        assertFalse(chooser.onNonFatalFailure(0));
+        assertTrue(chooser.getCooldownTime(0) > System.currentTimeMillis());
+        for(int i=0;i<10;i++)
+            assertEquals(1, chooser.chooseKey());
+        chooser.onNonFatalFailure(1);
+        chooser.onNonFatalFailure(1);
+        assertEquals(-1, chooser.chooseKey());
+        assertTrue(chooser.overallCooldownTime() > System.currentTimeMillis());
+        // Block 0 becomes fetchable again if the data is lost.
+        chooser.onUnSuccess(0);
+        assertEquals(0, chooser.getCooldownTime(0));
+        assertEquals(0, chooser.chooseKey());
+    }
+
+    public void testCooldownExpires() throws InterruptedException {
+        CooldownBlockChooser chooser = new CooldownBlockChooser(1, new Random(7), -1, 1, 20);
+        chooser.onNonFatalFailure(0);
+        assertEquals(-1, chooser.chooseKey());
+        long wakeUp = chooser.overallCooldownTime();
+        assertTrue(wakeUp > 0 && wakeUp != Long.MAX_VALUE);
+        while(System.currentTimeMillis() <= wakeUp)
+            Thread.sleep(10);
+        assertEquals(0, chooser.chooseKey());
+        assertEquals(0, chooser.overallCooldownTime());
+    }
+
+}
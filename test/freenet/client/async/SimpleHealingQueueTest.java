@@ -0,0 +1,55 @@
+package freenet.client.async;
+
+import junit.framework.TestCase;
+import freenet.client.InsertContext;
+import freenet.client.events.SimpleEventProducer;
+import freenet.keys.CHKBlock;
+import freenet.node.RequestStarter;
+import freenet.support.compress.Compressor;
+
+public class SimpleHealingQueueTest extends TestCase {
+
+    private static final byte[] CRYPTO_KEY = new byte[32];
+
+    /** Nothing is started, so we don't need a ClientContext. */
+    private static SimpleHealingQueue makeQueue(long maxQueuedBytes) {
+        InsertContext ctx = new InsertContext(0, 2, 0, 0, new SimpleEventProducer(), false, false,
+                false, Compressor.DEFAULT_COMPRESSORDESCRIPTOR, 0, 0,
+                InsertContext.CompatibilityMode.COMPAT_DEFAULT);
+        return new SimpleHealingQueue(ctx, RequestStarter.PREFETCH_PRIORITY_CLASS, 0, maxQueuedBytes);
+    }
+
+    private static byte[] makeBlock(int seed) {
+        byte[] data = new byte[CHKBlock.DATA_LENGTH];
+        data[0] = (byte) seed;
+        data[1] = (byte) (seed >> 8);
+        return data;
+    }
+
+    public void testDuplicates() {
+        SimpleHealingQueue queue = makeQueue(10 * CHKBlock.DATA_LENGTH);
+        queue.queue(makeBlock(1), CRYPTO_KEY, (byte) 3, null);
+        queue.queue(makeBlock(2), CRYPTO_KEY, (byte) 3, null);
+        queue.queue(makeBlock(1), CRYPTO_KEY, (byte) 3, null);
+        assertEquals(2, queue.countWaiting());
+        assertEquals(1, queue.getDuplicates());
+        // Same data, different key: a different CHK.
+        queue.queue(makeBlock(1), new byte[] { 1 }, (byte) 3, null);
+        assertEquals(3, queue.countWaiting());
+        assertEquals(1, queue.getDuplicates());
+    }
+
+    public void testBudget() {
+        SimpleHealingQueue queue = makeQueue(3 * CHKBlock.DATA_LENGTH);
+        for(int i=0;i<5;i++)
+            queue.queue(makeBlock(i), CRYPTO_KEY, (byte) 3, null);
+        assertEquals(3, queue.countWaiting());
+        assertEquals(2, queue.getDropped());
+        // The oldest were dropped, so they can be queued again.
+        queue.queue(makeBlock(0), CRYPTO_KEY, (byte) 3, null);
+        assertEquals(0, queue.getDuplicates());
+        queue.queue(makeBlock(4), CRYPTO_KEY, (byte) 3, null);
+        assertEquals(1, queue.getDuplicates());
+    }
+
+}
@@ -0,0 +1,96 @@
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.net.MalformedURLException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.USK;
+import freenet.node.RequestScheduler;
+
+public class USKPollSchedulerTest extends TestCase {
+
+    private static USK makeUSK(int i) throws MalformedURLException {
+        byte[] pubKeyHash = new byte[32];
+        byte[] cryptoKey = new byte[32];
+        byte[] extra = new byte[] { 1, 0, 2, 0, 1 }; // Version 1, AES_PCFB_256_SHA256, SHA256.
+        pubKeyHash[0] = (byte) i;
+        pubKeyHash[1] = (byte) (i >> 8);
+        return new USK(pubKeyHash, cryptoKey, extra, "test", 0).clearCopy();
+    }
+
+    public void testFixed() throws MalformedURLException {
+        USKPollScheduler sched = new USKPollScheduler(new Random(1));
+        USK usk = makeUSK(1);
+        sched.add(usk);
+        sched.onNewEdition(usk, 1, 0);
+        sched.onNewEdition(usk, 2, DAYS.toMillis(10));
+        sched.onPollRound();
+        assertEquals(RequestScheduler.COOLDOWN_PERIOD, sched.getPollInterval(usk, DAYS.toMillis(10)));
+        assertEquals(1, sched.getPollRounds(false));
+        assertEquals(0, sched.getPollRounds(true));
+        assertEquals(2, sched.getNewEditions(false));
+    }
+
+    public void testAdaptive() throws MalformedURLException {
+        USKPollScheduler sched = new USKPollScheduler(new Random(1));
+        sched.setAdaptive(true);
+        USK fast = makeUSK(1);
+        USK slow = makeUSK(2);
+        USK unknown = makeUSK(3);
+        sched.add(fast);
+        sched.add(slow);
+        sched.add(unknown);
+        long now = DAYS.toMillis(100);
+        // Several editions an hour.
+        for(int i=0;i<10;i++)
+            sched.onNewEdition(fast, i, now - MINUTES.toMillis(20 * (10 - i)));
+        // Once every few days.
+        for(int i=0;i<5;i++)
+            sched.onNewEdition(slow, i, now - DAYS.toMillis(4 * (5 - i)));
+        long fastInterval = sched.getPollInterval(fast, now);
+        long slowInterval = sched.getPollInterval(slow, now);
+        long unknownInterval = sched.getPollInterval(unknown, now);
+        // Never faster than the fixed interval, plus at most 25% jitter.
+        assertTrue(fastInterval >= RequestScheduler.COOLDOWN_PERIOD);
+        assertTrue(fastInterval <= RequestScheduler.COOLDOWN_PERIOD * 5 / 4);
+        assertTrue(unknownInterval >= RequestScheduler.COOLDOWN_PERIOD);
+        assertTrue(unknownInterval <= RequestScheduler.COOLDOWN_PERIOD * 5 / 4);
+        // Capped at a day.
+        assertTrue(slowInterval >= DAYS.toMillis(1));
+        assertTrue(slowInterval <= DAYS.toMillis(1) * 5 / 4);
+    }
+
+    public void testDateHint() throws MalformedURLException {
+        USKPollScheduler sched = new USKPollScheduler(new Random(1));
+        sched.setAdaptive(true);
+        USK usk = makeUSK(1);
+        sched.add(usk);
+        sched.onDateHint(usk, USKDateHint.Type.MONTH);
+        long monthly = sched.getPollInterval(usk, 0);
+        assertTrue(monthly >= DAYS.toMillis(1));
+        sched.onDateHint(usk, USKDateHint.Type.DAY);
+        long daily = sched.getPollInterval(usk, 0);
+        assertTrue(daily >= HOURS.toMillis(12));
+        assertTrue(daily <= HOURS.toMillis(15));
+    }
+
+    public void testBudget() throws MalformedURLException {
+        USKPollScheduler sched = new USKPollScheduler(new Random(1));
+        sched.setAdaptive(true);
+        sched.setPollBudget(100);
+        // 400 USKs at 2 rounds per hour each is 8 times the budget.
+        for(int i=0;i<400;i++)
+            sched.add(makeUSK(i));
+        assertEquals(800.0, sched.getDemand(), 0.01);
+        long interval = sched.getPollInterval(makeUSK(5), 1);
+        assertTrue(interval >= RequestScheduler.COOLDOWN_PERIOD * 8);
+        assertTrue(interval <= RequestScheduler.COOLDOWN_PERIOD * 10);
+        sched.remove(makeUSK(5));
+        assertEquals(399, sched.countPolledUSKs());
+    }
+
+}
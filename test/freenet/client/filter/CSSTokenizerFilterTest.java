@@ -0,0 +1,159 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.Random;
+
+import freenet.support.TestProperty;
+import freenet.support.io.FileUtil;
+
+/**
+ * Filters a small corpus of stylesheets, see css/info, and checks that the tokenizer gives the
+ * same results however its input is split up.
+ */
+public class CSSTokenizerFilterTest extends TestCase {
+    private static final String RESOURCE_PATH = "css/";
+
+    private static final String[] CORPUS = {
+        "theme",
+        "media",
+        "framework",
+    };
+
+    private static final String TYPE = "text/css; charset=UTF-8";
+    private static final String BASE_URI = "/USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/site/3/";
+
+    /** Pieces of CSS, valid and otherwise, to build random stylesheets from. */
+    private static final String[] FRAGMENTS = {
+        "h1", "p.note", "#header", "a:hover", "ul > li", "*", ", ", " ", "  ", "\n", "\t", "\r\n", "\r", "\f",
+        "{", "}", ";", ":", "color", "red", "#fff", "background", "url(a.png)", "url(\"b c.png\")",
+        "url(http://www.example.com/)", "font: 12px/1.2 serif", "margin", "1px", "10%", "-2.5em",
+        "rgb(1, 2, 3)", "!important", "content", "\"a string\"", "'another'", "\"", "'", "\\", "\\\"",
+        "\\7B", "/*", "*/", "/", "*", "@media", "@import", "@charset", "@page", "@font-face", "print",
+        "screen", "<!--", "-->", "\u00e9\u00e8", "\u65e5\u672c", "\0", "\uFEFF",
+    };
+
+    public void testCorpus() throws Exception {
+        for (String sheet : CORPUS) {
+            byte[] expected = load(sheet + ".filtered.css");
+            byte[] output = filter(load(sheet + ".css"));
+            assertEquals(sheet, new String(expected, "UTF-8"), new String(output, "UTF-8"));
+        }
+    }
+
+    /**
+     * Verifiers are created the first time their property is seen. These pairs of properties
+     * used to share parts of their verifiers, so whichever was seen last broke the other one.
+     */
+    public void testPropertiesSeenTogether() throws Exception {
+        String css = "h1 { font: bold 12px/1.4 Verdana, sans-serif; background-repeat: repeat-x; }\n" +
+            "h2 { background-repeat: no-repeat repeat; font: 10pt \"Bitstream Vera Sans\"; }\n" +
+            "h3 { background-size: 50% auto; background-clip: padding-box; }\n" +
+            "h4 { background-origin: border-box; background-size: cover; }\n";
+        assertEquals(css, filter(new StringReader(css), false));
+        assertEquals(css, filter(new StringReader(css), false));
+    }
+
+    /**
+     * The tokenizer reads ahead and copies runs of ordinary characters in one go. Reading one
+     * character at a time goes through the same code as the original char by char tokenizer, so
+     * the results must be the same.
+     */
+    public void testShortReads() throws Exception {
+        for (String sheet : CORPUS) {
+            String css = new String(load(sheet + ".css"), "UTF-8");
+            assertEquals(sheet, filter(new StringReader(css), false), filter(oneCharAtATime(css), false));
+        }
+        Random random = new Random(0xC55C55);
+        for (int i = 0; i < 2000; i++) {
+            String css = randomStylesheet(random);
+            boolean inline = random.nextInt(4) == 0;
+            assertEquals(css, filter(new StringReader(css), inline), filter(oneCharAtATime(css), inline));
+        }
+    }
+
+    // ant -Dtest.skip=false -Dtest.class=freenet.client.filter.CSSTokenizerFilterTest -Dtest.benchmark=true unit
+    public void testBenchmark() throws Exception {
+        if (!TestProperty.BENCHMARK) {
+            return;
+        }
+        for (String sheet : CORPUS) {
+            byte[] data = load(sheet + ".css");
+            // Warm up.
+            for (int i = 0; i < 50; i++) {
+                filter(data);
+            }
+            int iterations = Math.max(1, (16 << 20) / data.length);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                filter(data);
+            }
+            long nanos = System.nanoTime() - start;
+            double mbPerSecond = (double) data.length * iterations / (1 << 20) / (nanos / 1e9);
+            System.out.println(sheet + ".css: " + String.format("%.1f", mbPerSecond) + " MB/s");
+        }
+    }
+
+    private static String randomStylesheet(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = 1 + random.nextInt(100);
+        for (int i = 0; i < length; i++) {
+            sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static Reader oneCharAtATime(String s) {
+        return new StringReader(s) {
+            @Override
+            public int read(char[] buf, int offset, int length) throws IOException {
+                return super.read(buf, offset, Math.min(length, 1));
+            }
+        };
+    }
+
+    /** @return The filtered stylesheet, or the exception thrown. */
+    private static String filter(Reader r, boolean inline) throws Exception {
+        StringWriter w = new StringWriter();
+        GenericReadFilterCallback cb = new GenericReadFilterCallback(new URI(BASE_URI), null, null, null);
+        CSSParser parser = new CSSParser(r, w, false, cb, "UTF-8", false, inline);
+        try {
+            parser.parse();
+        } catch (IOException e) {
+            return e.toString();
+        } catch (RuntimeException e) {
+            // E.g. IllegalCharsetNameException from a bogus @charset.
+            return e.toString();
+        }
+        return w.toString();
+    }
+
+    private static byte[] filter(byte[] data) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ContentFilter.filter(new ByteArrayInputStream(data), output, TYPE, new URI(BASE_URI), null, null, null);
+        return output.toByteArray();
+    }
+
+    private static byte[] load(String filename) throws IOException {
+        InputStream is = CSSTokenizerFilterTest.class.getResourceAsStream(RESOURCE_PATH + filename);
+        assertNotNull(filename, is);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            FileUtil.copy(is, bytes, -1);
+            return bytes.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
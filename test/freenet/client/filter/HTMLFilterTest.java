@@ -0,0 +1,98 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+import freenet.support.TestProperty;
+import freenet.support.io.FileUtil;
+
+/**
+ * Filters a small corpus of whole pages, see html/info.
+ */
+public class HTMLFilterTest extends TestCase {
+    private static final String RESOURCE_PATH = "html/";
+
+    private static final String[] CORPUS = {
+        "index",
+        "article",
+        "xhtml",
+    };
+
+    private static final String TYPE = "text/html; charset=UTF-8";
+
+    /** A freesite, so that relative links are kept. */
+    private static final String BASE_URI = "/USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/site/3/";
+
+    public void testCorpus() throws Exception {
+        for (String page : CORPUS) {
+            byte[] expected = load(page + ".filtered.html");
+            byte[] output = filter(new ByteArrayInputStream(load(page + ".html")));
+            assertEquals(page, new String(expected, "UTF-8"), new String(output, "UTF-8"));
+        }
+    }
+
+    /** The parser reads ahead into a buffer. It must not matter where the reads end. */
+    public void testShortReads() throws Exception {
+        for (String page : CORPUS) {
+            byte[] data = load(page + ".html");
+            byte[] expected = filter(new ByteArrayInputStream(data));
+            InputStream oneByteAtATime = new FilterInputStream(new ByteArrayInputStream(data)) {
+                @Override
+                public int read(byte[] buf, int offset, int length) throws IOException {
+                    return super.read(buf, offset, Math.min(length, 1));
+                }
+            };
+            assertEquals(page, new String(expected, "UTF-8"),
+                new String(filter(oneByteAtATime), "UTF-8"));
+        }
+    }
+
+    // ant -Dtest.skip=false -Dtest.class=freenet.client.filter.HTMLFilterTest -Dtest.benchmark=true unit
+    public void testBenchmark() throws Exception {
+        if (!TestProperty.BENCHMARK) {
+            return;
+        }
+        for (String page : CORPUS) {
+            byte[] data = load(page + ".html");
+            // Warm up.
+            for (int i = 0; i < 50; i++) {
+                filter(new ByteArrayInputStream(data));
+            }
+            int iterations = Math.max(1, (64 << 20) / data.length);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                filter(new ByteArrayInputStream(data));
+            }
+            long nanos = System.nanoTime() - start;
+            double mbPerSecond = (double) data.length * iterations / (1 << 20) / (nanos / 1e9);
+            System.out.println(page + ": " + String.format("%.1f", mbPerSecond) + " MB/s");
+        }
+    }
+
+    private static byte[] filter(InputStream input) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ContentFilter.filter(input, output, TYPE, new URI(BASE_URI), null, null, null);
+        return output.toByteArray();
+    }
+
+    private static byte[] load(String filename) throws IOException {
+        InputStream is = HTMLFilterTest.class.getResourceAsStream(RESOURCE_PATH + filename);
+        assertNotNull(filename, is);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            FileUtil.copy(is, bytes, -1);
+            return bytes.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
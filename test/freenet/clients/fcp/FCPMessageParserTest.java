@@ -0,0 +1,66 @@
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.TooLongException;
+
+public class FCPMessageParserTest extends TestCase {
+
+    private static ByteBuffer buffer(String s) throws IOException {
+        return ByteBuffer.wrap(s.getBytes("UTF-8"));
+    }
+
+    public void testSplitAcrossBuffers() throws IOException {
+        FCPMessageParser parser = new FCPMessageParser();
+        String message = "\n\nClientHello\r\nName=test\nExpectedVersion=2.0\r\nEndMessage\n";
+        for(int i=0;i<message.length()-1;i++)
+            assertFalse(parser.parse(buffer(message.substring(i, i+1))));
+        assertTrue(parser.parse(buffer(message.substring(message.length()-1))));
+        assertEquals("ClientHello", parser.getMessageType());
+        SimpleFieldSet fs = parser.getFieldSet();
+        assertEquals("test", fs.get("Name"));
+        assertEquals("2.0", fs.get("ExpectedVersion"));
+        assertEquals("EndMessage", fs.getEndMarker());
+    }
+
+    public void testLeavesData() throws IOException {
+        FCPMessageParser parser = new FCPMessageParser();
+        ByteBuffer buf = buffer("ClientPut\nURI=CHK@\n# comment\nDataLength=3\nData\nabcVoid\nEndMessage\n");
+        assertTrue(parser.parse(buf));
+        assertEquals("ClientPut", parser.getMessageType());
+        assertEquals("Data", parser.getFieldSet().getEndMarker());
+        assertEquals("3", parser.getFieldSet().get("DataLength"));
+        assertEquals('a', buf.get());
+        buf.position(buf.position() + 2);
+        assertTrue(parser.parse(buf));
+        assertEquals("Void", parser.getMessageType());
+        assertFalse(buf.hasRemaining());
+    }
+
+    public void testTooLong() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<FCPMessageParser.MAX_MESSAGE_NAME_LENGTH;i++)
+            sb.append('a');
+        assertFalse(new FCPMessageParser().parse(buffer(sb.toString())));
+        try {
+            new FCPMessageParser().parse(buffer(sb.toString()+"a\n"));
+            fail();
+        } catch (TooLongException e) {
+            // Expected.
+        }
+        sb.setLength(0);
+        sb.append("Void\nField=");
+        for(int i=0;i<FCPMessageParser.MAX_LINE_LENGTH;i++)
+            sb.append('a');
+        try {
+            new FCPMessageParser().parse(buffer(sb.toString()));
+            fail();
+        } catch (TooLongException e) {
+            // Expected.
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package freenet.clients.fcp;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.clients.fcp.ClientRequest.Persistence;
+
+public class PersistentRequestClientTest extends TestCase {
+
+    private static ClientRequest request(String identifier, boolean finished) {
+        ClientRequest req = mock(ClientRequest.class);
+        when(req.getIdentifier()).thenReturn(identifier);
+        when(req.hasFinished()).thenReturn(finished);
+        return req;
+    }
+
+    private static List<String> identifiers(List<RequestIndex.Entry> entries) {
+        List<String> ret = new ArrayList<String>();
+        for(RequestIndex.Entry e : entries)
+            ret.add(e.identifier);
+        return ret;
+    }
+
+    public void testListAfterResume() {
+        PersistentRequestClient client =
+            new PersistentRequestClient("test", null, false, null, Persistence.REBOOT, null);
+        ClientRequest running = request("running", false);
+        ClientRequest finished = request("finished", true);
+        client.resume(running);
+        client.resume(finished);
+        assertEquals("[finished, running]", identifiers(
+                client.getIndex().page(RequestIndex.SortBy.IDENTIFIER, 0, null, false, 10)).toString());
+
+        FCPConnectionOutputHandler output = mock(FCPConnectionOutputHandler.class);
+        RequestIndex.Entry last = client.queuePendingMessagesFromRunningRequests(output, "list", null, 10);
+        assertEquals("running", last.identifier);
+        verify(running).sendPendingMessages(output, "list", false, false);
+        last = client.queuePendingMessagesOnConnectionRestart(output, "list", null, 10);
+        assertEquals("finished", last.identifier);
+        verify(finished).sendPendingMessages(output, "list", false, false);
+
+        // Changes to resumed requests are tracked too.
+        long token = client.getIndex().getSequence();
+        client.requestChanged(running);
+        List<RequestIndex.Entry> changes = new ArrayList<RequestIndex.Entry>();
+        client.getIndex().changesSince(token, 10, changes);
+        assertEquals("[running]", identifiers(changes).toString());
+    }
+
+    public void testRemoveAllClearsIndex() {
+        PersistentRequestClient client =
+            new PersistentRequestClient("test", null, false, null, Persistence.REBOOT, null);
+        client.resume(request("a", false));
+        long token = client.getIndex().getSequence();
+        client.removeAll(null);
+        assertEquals(0, client.getIndex().size());
+        // Can't tell what was removed, so the client has to list everything again.
+        assertEquals(-1, client.getIndex().changesSince(token, 10, new ArrayList<RequestIndex.Entry>()));
+    }
+
+}
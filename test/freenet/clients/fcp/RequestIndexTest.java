@@ -0,0 +1,101 @@
+package freenet.clients.fcp;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class RequestIndexTest extends TestCase {
+
+    private static ClientRequest request(String identifier, short priority, boolean finished, boolean succeeded) {
+        ClientRequest req = mock(ClientRequest.class);
+        when(req.getIdentifier()).thenReturn(identifier);
+        when(req.getPriority()).thenReturn(priority);
+        when(req.hasFinished()).thenReturn(finished);
+        when(req.hasSucceeded()).thenReturn(succeeded);
+        return req;
+    }
+
+    private static List<String> identifiers(List<RequestIndex.Entry> entries) {
+        List<String> ret = new ArrayList<String>();
+        for(RequestIndex.Entry e : entries)
+            ret.add(e.identifier);
+        return ret;
+    }
+
+    public void testPaging() {
+        RequestIndex index = new RequestIndex();
+        index.add(request("d", (short)2, false, false));
+        index.add(request("b", (short)1, true, true));
+        index.add(request("a", (short)2, true, false));
+        index.add(request("c", (short)1, false, false));
+        assertEquals(4, index.size());
+
+        List<RequestIndex.Entry> page = index.page(RequestIndex.SortBy.IDENTIFIER, 0, null, false, 3);
+        assertEquals("[a, b, c]", identifiers(page).toString());
+        page = index.page(RequestIndex.SortBy.IDENTIFIER, 0, "c", false, 3);
+        assertEquals("[d]", identifiers(page).toString());
+
+        page = index.page(RequestIndex.SortBy.PRIORITY, 0, null, false, 10);
+        assertEquals("[b, c, a, d]", identifiers(page).toString());
+        page = index.page(RequestIndex.SortBy.PRIORITY, 1, "c", false, 10);
+        assertEquals("[a, d]", identifiers(page).toString());
+
+        page = index.page(RequestIndex.SortBy.STATUS, RequestIndex.STATUS_RUNNING, null, true, 10);
+        assertEquals("[c, d]", identifiers(page).toString());
+        page = index.page(RequestIndex.SortBy.STATUS, RequestIndex.STATUS_FAILED, null, false, 10);
+        assertEquals("[a, b]", identifiers(page).toString());
+    }
+
+    public void testChangesSince() {
+        RequestIndex index = new RequestIndex();
+        ClientRequest a = request("a", (short)2, false, false);
+        ClientRequest b = request("b", (short)2, false, false);
+        index.add(a);
+        index.add(b);
+        long token = index.getSequence();
+        List<RequestIndex.Entry> changes = new ArrayList<RequestIndex.Entry>();
+        assertEquals(token, index.changesSince(token, 10, changes));
+        assertTrue(changes.isEmpty());
+
+        when(a.getPriority()).thenReturn((short)1);
+        index.changed(a);
+        // Not the request in the index, so ignored.
+        index.changed(request("b", (short)3, false, false));
+        index.remove("b");
+        assertEquals(index.getSequence(), index.changesSince(token, 10, changes));
+        assertEquals("[a, b]", identifiers(changes).toString());
+        assertEquals(1, changes.get(0).priority);
+        assertNull(changes.get(1).request);
+        assertEquals("[a]", identifiers(index.page(RequestIndex.SortBy.IDENTIFIER, 0, null, false, 10)).toString());
+
+        // Stopping early.
+        changes.clear();
+        long upTo = index.changesSince(token, 1, changes);
+        assertEquals("[a]", identifiers(changes).toString());
+        changes.clear();
+        assertEquals(index.getSequence(), index.changesSince(upTo, 10, changes));
+        assertEquals("[b]", identifiers(changes).toString());
+
+        // A token from the future, e.g. from another index.
+        assertEquals(-1, index.changesSince(index.getSequence() + 1, 10, changes));
+    }
+
+    public void testForgetsRemoved() {
+        RequestIndex index = new RequestIndex();
+        long token = index.getSequence();
+        for(int i=0;i<=RequestIndex.MAX_REMOVED;i++) {
+            index.add(request("r"+i, (short)2, false, false));
+            index.remove("r"+i);
+        }
+        List<RequestIndex.Entry> changes = new ArrayList<RequestIndex.Entry>();
+        assertEquals(-1, index.changesSince(token, 10, changes));
+        long recent = index.getSequence() - 2;
+        assertEquals(index.getSequence(), index.changesSince(recent, 10, changes));
+        assertEquals(1, changes.size());
+    }
+
+}
@@ -0,0 +1,52 @@
+package freenet.clients.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class ChunkedOutputStreamTest extends TestCase {
+
+    private static String chunked(String... writes) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ChunkedOutputStream os = new ChunkedOutputStream(baos);
+        for(String s : writes)
+            os.write(s.getBytes("US-ASCII"));
+        os.close();
+        return baos.toString("US-ASCII");
+    }
+
+    public void testSmallWrites() throws IOException {
+        assertEquals("0\r\n\r\n", chunked());
+        assertEquals("5\r\nHello\r\n0\r\n\r\n", chunked("He", "llo"));
+    }
+
+    public void testLargeWrites() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<ChunkedOutputStream.CHUNK_SIZE+10;i++)
+            sb.append((char)('a' + i % 26));
+        String big = sb.toString();
+        String s = chunked("xy", big, "z");
+        String expected = "2\r\nxy\r\n" + Integer.toHexString(big.length()) + "\r\n" + big + "\r\n"
+            + "1\r\nz\r\n0\r\n\r\n";
+        assertEquals(expected, s);
+        // Small writes are sent together until they would overflow the buffer.
+        s = chunked(big.substring(0, 5000), big.substring(0, 4000));
+        assertEquals("1388\r\n" + big.substring(0, 5000) + "\r\nfa0\r\n" + big.substring(0, 4000) + "\r\n0\r\n\r\n", s);
+    }
+
+    public void testDoesNotCloseUnderlying() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                fail("Closed the underlying stream");
+            }
+        };
+        ChunkedOutputStream os = new ChunkedOutputStream(baos);
+        os.write('a');
+        os.close();
+        os.close();
+        assertEquals("1\r\na\r\n0\r\n\r\n", baos.toString("US-ASCII"));
+    }
+
+}
@@ -0,0 +1,73 @@
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+import junit.framework.TestCase;
+import freenet.support.io.TooLongException;
+
+public class HTTPRequestParserTest extends TestCase {
+
+    private static ByteBuffer buffer(String s) throws IOException {
+        return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+    }
+
+    public void testSplitAcrossBuffers() throws Exception {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        String request = "\r\nGET /queue/?a=b HTTP/1.1\r\nHost: localhost:8888\r\nCookie: a=1\r\ncookie: b=2\r\n\r\n";
+        for(int i=0;i<request.length()-1;i++)
+            assertFalse(parser.parse(buffer(request.substring(i, i+1))));
+        assertTrue(parser.parse(buffer(request.substring(request.length()-1))));
+        assertEquals("GET", parser.getMethod());
+        assertEquals("/queue/?a=b", parser.getURI());
+        assertEquals("HTTP/1.1", parser.getProtocol());
+        assertEquals("localhost:8888", parser.getHeaders().get("host"));
+        assertEquals(2, parser.getHeaders().countAll("cookie"));
+    }
+
+    public void testLeavesContent() throws Exception {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        ByteBuffer buf = buffer("POST / HTTP/1.1\nContent-Length: 3\n\nabcGET /x HTTP/1.0\n\n");
+        assertTrue(parser.parse(buf));
+        assertEquals("POST", parser.getMethod());
+        assertEquals("3", parser.getHeaders().get("content-length"));
+        assertEquals('a', buf.get());
+        buf.position(buf.position() + 2);
+        assertTrue(parser.parse(buf));
+        assertEquals("/x", parser.getURI());
+        assertNull(parser.getHeaders().get("content-length"));
+        assertFalse(buf.hasRemaining());
+    }
+
+    public void testInvalid() throws Exception {
+        try {
+            new HTTPRequestParser().parse(buffer("GET /\r\n"));
+            fail();
+        } catch (ParseException e) {
+            // Expected.
+        }
+        try {
+            new HTTPRequestParser().parse(buffer("GET / FTP/1.0\r\n"));
+            fail();
+        } catch (ParseException e) {
+            // Expected.
+        }
+        try {
+            new HTTPRequestParser().parse(buffer("GET / HTTP/1.1\r\nNoColon\r\n"));
+            fail();
+        } catch (ParseException e) {
+            // Expected.
+        }
+        StringBuilder sb = new StringBuilder("GET /");
+        while(sb.length() <= HTTPRequestParser.MAX_LINE_LENGTH)
+            sb.append('a');
+        try {
+            new HTTPRequestParser().parse(buffer(sb.toString()));
+            fail();
+        } catch (TooLongException e) {
+            // Expected.
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package freenet.clients.http;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.clients.fcp.DownloadRequestStatus;
+import freenet.clients.fcp.RequestStatus;
+import freenet.clients.fcp.UploadFileRequestStatus;
+import freenet.clients.http.QueueToadlet.QueueType;
+import freenet.node.RequestStarter;
+
+public class QueueModelTest extends TestCase {
+
+    private static DownloadRequestStatus download(String identifier, short priority, boolean succeeded, long size) {
+        DownloadRequestStatus status = mock(DownloadRequestStatus.class);
+        when(status.getIdentifier()).thenReturn(identifier);
+        when(status.getPriority()).thenReturn(priority);
+        when(status.hasFinished()).thenReturn(succeeded);
+        when(status.hasSucceeded()).thenReturn(succeeded);
+        when(status.getDataSize()).thenReturn(size);
+        when(status.clone()).thenReturn(status);
+        return status;
+    }
+
+    private static List<String> page(QueueModel model, QueueType type, QueueModel.SortBy sortBy, boolean reversed, String filter, int offset, int max) {
+        List<RequestStatus> statuses = new ArrayList<RequestStatus>();
+        model.page(type, null, sortBy, reversed, filter, offset, max, statuses);
+        List<String> ret = new ArrayList<String>();
+        for(RequestStatus status : statuses)
+            ret.add(status.getIdentifier());
+        return ret;
+    }
+
+    public void testGroupsAndTotals() {
+        QueueModel model = new QueueModel(false);
+        assertTrue(model.isEmpty());
+        model.statusChanged(download("b", (short)3, false, 100));
+        model.statusChanged(download("a", (short)2, false, -1));
+        model.statusChanged(download("c", (short)1, true, 1000));
+        UploadFileRequestStatus upload = mock(UploadFileRequestStatus.class);
+        when(upload.getIdentifier()).thenReturn("upload");
+        model.statusChanged(upload);
+
+        assertEquals(2, model.count(QueueType.UncompletedDownload));
+        // Mocks don't have a filename, so they are downloads to temp space.
+        assertEquals(1, model.count(QueueType.CompletedDownloadToTemp));
+        assertEquals(0, model.count(QueueType.UncompletedUpload));
+        assertEquals(100, model.getTotalQueuedSize());
+        assertEquals(2, model.getLowestQueuedPriority());
+
+        // Priority changed, then finished.
+        model.statusChanged(download("a", (short)4, false, 50));
+        assertEquals(3, model.getLowestQueuedPriority());
+        assertEquals(150, model.getTotalQueuedSize());
+        model.statusChanged(download("b", (short)3, true, 100));
+        assertEquals(1, model.count(QueueType.UncompletedDownload));
+        assertEquals(2, model.count(QueueType.CompletedDownloadToTemp));
+        assertEquals(50, model.getTotalQueuedSize());
+
+        model.statusRemoved("a");
+        model.statusRemoved("nonexistent");
+        assertEquals(0, model.count(QueueType.UncompletedDownload));
+        assertEquals(0, model.getTotalQueuedSize());
+        assertEquals(RequestStarter.PAUSED_PRIORITY_CLASS, model.getLowestQueuedPriority());
+    }
+
+    public void testSortingAndPaging() {
+        QueueModel model = new QueueModel(false);
+        model.statusChanged(download("d", (short)1, false, 0));
+        model.statusChanged(download("B", (short)2, false, 0));
+        model.statusChanged(download("a", (short)2, false, 0));
+        model.statusChanged(download("c", (short)0, false, 0));
+
+        QueueType type = QueueType.UncompletedDownload;
+        assertEquals("[c, d, B, a]", page(model, type, QueueModel.SortBy.PRIORITY, false, null, 0, 10).toString());
+        assertEquals("[a, B, d, c]", page(model, type, QueueModel.SortBy.PRIORITY, true, null, 0, 10).toString());
+        assertEquals("[a, B, c, d]", page(model, type, QueueModel.SortBy.IDENTIFIER, false, null, 0, 10).toString());
+
+        // The sorted index is kept up to date once it exists.
+        model.statusChanged(download("a", (short)0, false, 0));
+        model.statusChanged(download("e", (short)6, false, 0));
+        assertEquals("[a, c, d, B, e]", page(model, type, QueueModel.SortBy.PRIORITY, false, null, 0, 10).toString());
+
+        List<RequestStatus> statuses = new ArrayList<RequestStatus>();
+        assertEquals(5, model.page(type, null, QueueModel.SortBy.PRIORITY, false, null, 1, 2, statuses));
+        assertEquals(2, statuses.size());
+        assertEquals("[d, B]", page(model, type, QueueModel.SortBy.PRIORITY, false, null, 2, 2).toString());
+        assertEquals("[]", page(model, type, QueueModel.SortBy.PRIORITY, false, null, 10, 2).toString());
+
+        // Filtering counts only the matching requests.
+        statuses.clear();
+        assertEquals(1, model.page(type, null, QueueModel.SortBy.IDENTIFIER, false, "A", 0, 1, statuses));
+        assertEquals(1, statuses.size());
+        assertEquals("[B]", page(model, type, QueueModel.SortBy.IDENTIFIER, false, "b", 0, 10).toString());
+    }
+
+}
@@ -15,6 +15,9 @@
  */
 package freenet.support;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -713,4 +716,44 @@ public class HTMLNodeTest extends TestCase {
 		
 	}
 
+	/**
+	 * Tests that generate(Writer) produces the same output as generate(),
+	 * including a page big enough to be written out in several pieces.
+	 */
+	public void testGenerate_toWriter() throws IOException {
+		HTMLNode page = new HTMLNode.HTMLDoctype("html", "-//W3C//DTD XHTML 1.1//EN");
+		HTMLNode body = page.addChild("html").addChild("body");
+		HTMLNode table = body.addChild("table");
+		for(int i=0;i<1000;i++) {
+			HTMLNode row = table.addChild("tr", "class", "row"+i);
+			row.addChild("td", SAMPLE_NODE_CONTENT+"<&>");
+			row.addChild("#", Integer.toString(i));
+		}
+		StringWriter sw = new StringWriter();
+		page.generate(sw);
+		assertEquals(page.generate(), sw.toString());
+	}
+
+	/**
+	 * Tests that a lazy node renders the nodes from its Iterable in
+	 * place, with the same output as adding them as children.
+	 */
+	public void testLazy() throws IOException {
+		List<HTMLNode> rows = new ArrayList<HTMLNode>();
+		HTMLNode expected = new HTMLNode("div");
+		HTMLNode expectedTable = expected.addChild("table");
+		for(int i=0;i<3;i++) {
+			HTMLNode row = new HTMLNode("tr");
+			row.addChild("td", Integer.toString(i));
+			rows.add(row);
+			expectedTable.addChild("tr").addChild("td", Integer.toString(i));
+		}
+		HTMLNode methodHTMLNode = new HTMLNode("div");
+		methodHTMLNode.addChild("table").addChild(HTMLNode.lazy(rows));
+		assertEquals(expected.generate(), methodHTMLNode.generate());
+		StringWriter sw = new StringWriter();
+		methodHTMLNode.generate(sw);
+		assertEquals(expected.generate(), sw.toString());
+	}
+
 }
@@ -0,0 +1,183 @@
+package freenet.support;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import freenet.client.async.ClientContext;
+import freenet.client.async.RequestSelectionTreeNode;
+import freenet.support.RemoveRandom.RemoveRandomReturn;
+
+public class RandomGrabArrayTest extends TestCase {
+
+    private ClientContext context;
+    private final Object lock = new Object();
+
+    @Override
+    protected void setUp() {
+        context = new ClientContext(0, null, null, null, null, null, null, null, null, null,
+                new Random(1234), null, null, null, null, null, null, null, null, null, null, null,
+                null, null, null, null);
+    }
+
+    static class MyItem implements RandomGrabArrayItem {
+
+        long wakeupTime;
+        private RandomGrabArray parent;
+
+        @Override
+        public synchronized RandomGrabArray getParentGrabArray() {
+            return parent;
+        }
+
+        @Override
+        public long getWakeupTime(ClientContext context, long now) {
+            return wakeupTime;
+        }
+
+        @Override
+        public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
+            return false;
+        }
+
+        @Override
+        public void clearWakeupTime(ClientContext context) {
+            // Ignore.
+        }
+
+        @Override
+        public boolean knowsParentGrabArray() {
+            return true;
+        }
+
+        @Override
+        public synchronized void setParentGrabArray(RandomGrabArray parent) {
+            this.parent = parent;
+        }
+
+    }
+
+    static final RandomGrabArrayItemExclusionList NO_EXCLUSIONS = new RandomGrabArrayItemExclusionList() {
+
+        @Override
+        public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+            return 0;
+        }
+
+    };
+
+    public void testAddRemove() {
+        RandomGrabArray rga = new RandomGrabArray(null, null, lock);
+        MyItem[] items = new MyItem[100];
+        for(int i=0;i<items.length;i++) {
+            items[i] = new MyItem();
+            rga.add(items[i], context);
+            rga.add(items[i], context); // Duplicates are ignored.
+            assertSame(rga, items[i].getParentGrabArray());
+        }
+        assertEquals(items.length, rga.size());
+        for(int i=0;i<items.length;i+=2) {
+            rga.remove(items[i], context);
+            assertNull(items[i].getParentGrabArray());
+        }
+        assertEquals(items.length/2, rga.size());
+        for(int i=0;i<items.length;i++)
+            assertEquals(i % 2 == 1, rga.contains(items[i]));
+        for(int i=1;i<items.length;i+=2)
+            rga.remove(items[i], context);
+        assertTrue(rga.isEmpty());
+    }
+
+    public void testRemoveRandom() {
+        RandomGrabArray rga = new RandomGrabArray(null, null, lock);
+        MyItem[] items = new MyItem[50];
+        for(int i=0;i<items.length;i++) {
+            items[i] = new MyItem();
+            rga.add(items[i], context);
+        }
+        Set<RandomGrabArrayItem> chosen = new HashSet<RandomGrabArrayItem>();
+        for(int i=0;i<2000;i++) {
+            RemoveRandomReturn ret = rga.removeRandom(NO_EXCLUSIONS, context, 0);
+            assertNotNull(ret.item);
+            chosen.add(ret.item);
+        }
+        // removeRandom() doesn't actually remove valid items.
+        assertEquals(items.length, rga.size());
+        assertEquals(items.length, chosen.size());
+    }
+
+    public void testCancelledAndCooldown() {
+        RandomGrabArray rga = new RandomGrabArray(null, null, lock);
+        MyItem[] items = new MyItem[30];
+        for(int i=0;i<items.length;i++) {
+            items[i] = new MyItem();
+            rga.add(items[i], context);
+        }
+        for(int i=0;i<items.length;i++)
+            items[i].wakeupTime = (i < 20) ? -1 : 1000 + i;
+        RemoveRandomReturn ret = rga.removeRandom(NO_EXCLUSIONS, context, 0);
+        assertNull(ret.item);
+        assertEquals(1020, ret.wakeupTime);
+        // Cancelled items are removed.
+        assertEquals(10, rga.size());
+        for(int i=0;i<20;i++)
+            assertNull(items[i].getParentGrabArray());
+        items[25].wakeupTime = 0;
+        assertSame(items[25], rga.removeRandom(NO_EXCLUSIONS, context, 0).item);
+        for(int i=20;i<items.length;i++)
+            items[i].wakeupTime = -1;
+        assertNull(rga.removeRandom(NO_EXCLUSIONS, context, 0));
+        assertTrue(rga.isEmpty());
+    }
+
+    public void testMoveAll() {
+        RandomGrabArray from = new RandomGrabArray(null, null, lock);
+        RandomGrabArray to = new RandomGrabArray(null, null, new Object());
+        MyItem[] items = new MyItem[40];
+        for(int i=0;i<items.length;i++) {
+            items[i] = new MyItem();
+            from.add(items[i], context);
+        }
+        RandomGrabArrayItem[] removed = from.removeAll();
+        assertTrue(from.isEmpty());
+        assertEquals(items.length, removed.length);
+        // Unregistered in the meantime.
+        items[3].setParentGrabArray(null);
+        items[4].wakeupTime = -1;
+        to.addAll(removed, from, context);
+        assertEquals(items.length - 2, to.size());
+        for(int i=0;i<items.length;i++) {
+            if(i == 3 || i == 4) {
+                assertNull(items[i].getParentGrabArray());
+                assertFalse(to.contains(items[i]));
+            } else {
+                assertSame(to, items[i].getParentGrabArray());
+                assertTrue(to.contains(items[i]));
+            }
+        }
+    }
+
+    public void testSectored() {
+        SectoredRandomGrabArraySimple<Object, Integer> srga =
+            new SectoredRandomGrabArraySimple<Object, Integer>(null, null, null, lock);
+        MyItem[] items = new MyItem[60];
+        for(int i=0;i<items.length;i++) {
+            items[i] = new MyItem();
+            srga.add(i % 30, items[i], context);
+        }
+        assertEquals(30, srga.size());
+        Set<RandomGrabArrayItem> chosen = new HashSet<RandomGrabArrayItem>();
+        for(int i=0;i<5000;i++)
+            chosen.add(srga.removeRandom(NO_EXCLUSIONS, context, 0).item);
+        assertEquals(items.length, chosen.size());
+        for(int i=0;i<items.length;i++) {
+            RandomGrabArray rga = items[i].getParentGrabArray();
+            rga.remove(items[i], context);
+        }
+        assertTrue(srga.isEmpty());
+        RequestSelectionTreeNode parent = srga.getParentGrabArray();
+        assertNull(parent);
+    }
+
+}
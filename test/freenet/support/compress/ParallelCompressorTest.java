@@ -0,0 +1,105 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Test case for {@link freenet.support.compress.ParallelCompressor} class.
+ */
+public class ParallelCompressorTest extends TestCase {
+
+	/** Small chunks so we exercise many frames without needing megabytes of data. */
+	private static final int CHUNK_SIZE = 4096;
+
+	public void testMetadataIDs() {
+		assertEquals(Compressor.COMPRESSOR_TYPE.BZIP2_PARALLEL,
+				Compressor.COMPRESSOR_TYPE.getCompressorByMetadataID((short)4));
+		assertEquals(Compressor.COMPRESSOR_TYPE.LZMA_PARALLEL,
+				Compressor.COMPRESSOR_TYPE.getCompressorByMetadataID((short)5));
+	}
+
+	public void testNotUsedByDefault() throws InvalidCompressionCodecException {
+		for(boolean pre1254 : new boolean[] { false, true }) {
+			Compressor.COMPRESSOR_TYPE[] comps = Compressor.COMPRESSOR_TYPE.getCompressorsArray(null, pre1254);
+			assertEquals(3, comps.length);
+			assertFalse(Arrays.asList(comps).contains(Compressor.COMPRESSOR_TYPE.BZIP2_PARALLEL));
+			assertFalse(Arrays.asList(comps).contains(Compressor.COMPRESSOR_TYPE.LZMA_PARALLEL));
+		}
+		Compressor.COMPRESSOR_TYPE[] comps = Compressor.COMPRESSOR_TYPE.getCompressorsArray("BZIP2_PARALLEL", false);
+		assertEquals(1, comps.length);
+		assertEquals(Compressor.COMPRESSOR_TYPE.BZIP2_PARALLEL, comps[0]);
+	}
+
+	public void testRoundTrip() throws IOException {
+		Compressor compressor = new ParallelCompressor(new GzipCompressor(), CHUNK_SIZE);
+		for(int length : new int[] { 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 37 + 5 }) {
+			byte[] data = makeData(length);
+			byte[] compressed = doCompress(compressor, data);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			long written = compressor.decompress(new ByteArrayInputStream(compressed), baos, length, -1);
+			assertEquals(length, written);
+			assertTrue(Arrays.equals(data, baos.toByteArray()));
+		}
+	}
+
+	public void testBzip2RoundTrip() throws IOException {
+		Compressor compressor = new ParallelCompressor(new Bzip2Compressor(), CHUNK_SIZE);
+		byte[] data = makeData(CHUNK_SIZE * 5 + 123);
+		byte[] compressed = doCompress(compressor, data);
+		byte[] output = new byte[data.length];
+		int written = compressor.decompress(compressed, 0, compressed.length, output);
+		assertEquals(data.length, written);
+		assertTrue(Arrays.equals(data, output));
+	}
+
+	public void testDecompressSizeLimit() throws IOException {
+		Compressor compressor = new ParallelCompressor(new GzipCompressor(), CHUNK_SIZE);
+		byte[] data = makeData(CHUNK_SIZE * 4);
+		byte[] compressed = doCompress(compressor, data);
+		try {
+			compressor.decompress(new ByteArrayInputStream(compressed), new ByteArrayOutputStream(), CHUNK_SIZE * 2, -1);
+			fail("Should have thrown");
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	public void testCompressSizeLimit() throws IOException {
+		Compressor compressor = new ParallelCompressor(new GzipCompressor(), CHUNK_SIZE);
+		byte[] data = new byte[CHUNK_SIZE * 8];
+		new Random(1234).nextBytes(data); // Incompressible.
+		try {
+			compressor.compress(new ArrayBucket(data), new ArrayBucketFactory(), data.length, data.length / 2);
+			fail("Should have thrown");
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	private byte[] makeData(int length) {
+		// Compressible but not trivially so.
+		Random r = new Random(length);
+		byte[] data = new byte[length];
+		for(int i = 0; i < length; i++)
+			data[i] = (byte) ('a' + r.nextInt(8));
+		return data;
+	}
+
+	private byte[] doCompress(Compressor compressor, byte[] uncompressedData) throws IOException {
+		Bucket inBucket = new ArrayBucket(uncompressedData);
+		Bucket outBucket = compressor.compress(inBucket, new ArrayBucketFactory(), uncompressedData.length, uncompressedData.length * 2L + 65536);
+		return BucketTools.toByteArray(outBucket);
+	}
+}
@@ -0,0 +1,78 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import freenet.support.api.Bucket;
+import freenet.support.api.RandomAccessBuffer;
+
+public class ArenaBucketTest extends BucketTestBase {
+	private DirectBufferArena arena = new DirectBufferArena(16 * 1024 * 1024);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new ArenaBucket(arena, "test");
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+		assertEquals(0, arena.getUsedBytes());
+	}
+
+	public void testOutOfSpace() throws IOException {
+		DirectBufferArena small = new DirectBufferArena(DirectBufferArena.SLAB_SIZE);
+		ArenaBucket bucket = new ArenaBucket(small, "test");
+		assertTrue(bucket.reserve(DirectBufferArena.SLAB_SIZE));
+		assertFalse(bucket.reserve(DirectBufferArena.SLAB_SIZE + 1));
+		OutputStream os = bucket.getOutputStream();
+		os.write(new byte[DirectBufferArena.SLAB_SIZE]);
+		try {
+			os.write(0);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		bucket.free();
+		assertEquals(0, small.getUsedBytes());
+		assertEquals(DirectBufferArena.SLAB_SIZE, small.getAllocatedBytes());
+	}
+
+	public void testCopyTo() throws IOException {
+		ArenaBucket bucket = new ArenaBucket(arena, "test");
+		byte[] data = new byte[200000];
+		for(int i=0;i<data.length;i++) data[i] = (byte)i;
+		OutputStream os = bucket.getOutputStream();
+		os.write(data);
+		os.close();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bucket.copyTo(baos, 100000);
+		assertTrue(Arrays.equals(Arrays.copyOf(data, 100000), baos.toByteArray()));
+		freeBucket(bucket);
+	}
+
+	public void testSharedWithRandomAccessBuffer() throws IOException {
+		ArenaBucket bucket = new ArenaBucket(arena, "test");
+		OutputStream os = bucket.getOutputStream();
+		os.write(DATA_LONG);
+		os.close();
+		RandomAccessBuffer raf = bucket.toRandomAccessBuffer();
+		assertTrue(bucket.isReadOnly());
+		byte[] buf = new byte[DATA_LONG.length];
+		raf.pread(0, buf, 0, buf.length);
+		assertTrue(Arrays.equals(DATA_LONG, buf));
+		// Memory is shared, not copied.
+		long used = arena.getUsedBytes();
+		bucket.free();
+		assertEquals(used, arena.getUsedBytes());
+		raf.pread(0, buf, 0, buf.length);
+		assertTrue(Arrays.equals(DATA_LONG, buf));
+		raf.free();
+		assertEquals(0, arena.getUsedBytes());
+	}
+}
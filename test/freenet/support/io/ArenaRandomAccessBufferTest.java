@@ -0,0 +1,36 @@
+package freenet.support.io;
+
+import java.io.IOException;
+
+import freenet.support.api.RandomAccessBuffer;
+
+public class ArenaRandomAccessBufferTest extends RandomAccessBufferTestBase {
+
+    private static final int[] TEST_LIST = new int[] { 0, 1, 32, 64, 32768, 1024*1024, 1024*1024+1 };
+    
+    private final DirectBufferArena arena = new DirectBufferArena(64 * 1024 * 1024);
+    
+    public ArenaRandomAccessBufferTest() {
+        super(TEST_LIST);
+    }
+
+    @Override
+    protected RandomAccessBuffer construct(long size) throws IOException {
+        RandomAccessBuffer raf = ArenaRandomAccessBuffer.create(arena, size);
+        assertNotNull(raf);
+        return raf;
+    }
+    
+    public void testFull() {
+        DirectBufferArena small = new DirectBufferArena(DirectBufferArena.SLAB_SIZE);
+        RandomAccessBuffer raf = ArenaRandomAccessBuffer.create(small, DirectBufferArena.SLAB_SIZE);
+        assertNotNull(raf);
+        assertNull(ArenaRandomAccessBuffer.create(small, 1));
+        raf.free();
+        assertEquals(0, small.getUsedBytes());
+        raf = ArenaRandomAccessBuffer.create(small, 1);
+        assertNotNull(raf);
+        raf.free();
+    }
+
+}
@@ -28,6 +28,11 @@ public abstract class TempBucketFactoryRAFBase extends RandomAccessBufferTestBas
     
     public abstract boolean enableCrypto();
     
+    /** Keep in-RAM data off-heap in a DirectBufferArena. */
+    public boolean useDirectMemory() {
+        return false;
+    }
+    
     private static final int[] TEST_LIST = new int[] { 0, 1, 32, 64, 32768, 1024*1024, 1024*1024+1 };
     private static final int[] TEST_LIST_NOT_MIGRATED = new int[] { 1, 32, 64, 1024, 2048, 4095 };
     
@@ -48,6 +53,7 @@ public abstract class TempBucketFactoryRAFBase extends RandomAccessBufferTestBas
         fg = new FilenameGenerator(weakPRNG, true, f, "temp-raf-test-");
         factory = new TempBucketFactory(exec, fg, 4096, 65536, weakPRNG, false, 1024*1024*2, secret);
         factory.setEncryption(enableCrypto());
+        factory.setUseDirectMemory(useDirectMemory());
         assertEquals(factory.getRamUsed(), 0);
         FileUtil.removeAll(f);
         f.mkdir();
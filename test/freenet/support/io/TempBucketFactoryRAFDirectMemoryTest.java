@@ -0,0 +1,15 @@
+package freenet.support.io;
+
+public class TempBucketFactoryRAFDirectMemoryTest extends TempBucketFactoryRAFBase {
+
+    @Override
+    public boolean enableCrypto() {
+        return false;
+    }
+    
+    @Override
+    public boolean useDirectMemory() {
+        return true;
+    }
+
+}
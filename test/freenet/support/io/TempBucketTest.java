@@ -7,7 +7,10 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -150,7 +153,42 @@ public class TempBucketTest extends TestSuite {
 			is.close();
 			os.close();
 		}
-		
+
+		public void testFileChannel() throws IOException {
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 4096, 65536, weakPRNG, false, MIN_DISK_SPACE, secret);
+
+			TempBucket bucket = (TempBucket) tbf.makeBucket(2048);
+			OutputStream os = bucket.getOutputStreamUnbuffered();
+			byte[] data = new byte[2048];
+			new Random(89).nextBytes(data);
+			os.write(data);
+			os.close();
+			// In RAM.
+			assertNull(bucket.openFileChannel());
+			bucket.migrateToDisk();
+			FileChannel channel = bucket.openFileChannel();
+			assertNotNull(channel);
+			ByteBuffer buf = ByteBuffer.allocate(4096);
+			while(channel.read(buf) > 0);
+			channel.close();
+			buf.flip();
+			assertEquals(data.length, buf.remaining());
+			byte[] readTo = new byte[data.length];
+			buf.get(readTo);
+			assertTrue(Arrays.equals(data, readTo));
+			bucket.free();
+
+			// Encrypted, so it must be read through the stream.
+			tbf = new TempBucketFactory(exec, fg, 4096, 65536, weakPRNG, true, MIN_DISK_SPACE, secret);
+			bucket = (TempBucket) tbf.makeBucket(2048);
+			os = bucket.getOutputStreamUnbuffered();
+			os.write(data);
+			os.close();
+			bucket.migrateToDisk();
+			assertNull(bucket.openFileChannel());
+			bucket.free();
+		}
+
 	}
 
 	// Private because we only use it as a base class for the actual tests.
@@ -0,0 +1,100 @@
+package freenet.support.metrics;
+
+import junit.framework.TestCase;
+
+public class MetricsRegistryTest extends TestCase {
+
+    public void testExport() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter out = registry.counter("test_packets_total", "Packets.", Metric.labels("direction", "out"));
+        Counter in = registry.counter("test_packets_total", "Packets.", Metric.labels("direction", "in"));
+        registry.register(new Gauge("test_peers", "Peers\nconnected.", null) {
+            @Override
+            public double getValue() {
+                return 3;
+            }
+        });
+        registry.register(new Gauge("test_broken", "Throws.", null) {
+            @Override
+            public double getValue() {
+                throw new IllegalStateException();
+            }
+        });
+        in.increment();
+        in.add(2);
+        out.increment();
+        assertEquals(3, in.get());
+        assertEquals(
+                "# HELP test_broken Throws.\n" +
+                "# TYPE test_broken gauge\n" +
+                "# HELP test_packets_total Packets.\n" +
+                "# TYPE test_packets_total counter\n" +
+                "test_packets_total{direction=\"in\"} 3\n" +
+                "test_packets_total{direction=\"out\"} 1\n" +
+                "# HELP test_peers Peers\\nconnected.\n" +
+                "# TYPE test_peers gauge\n" +
+                "test_peers 3\n",
+                registry.export());
+    }
+
+    public void testRegister() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("test_total", null, null);
+        try {
+            registry.counter("test_total", null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            registry.histogram("test_total", null, Metric.labels("a", "b"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            new Counter("1test", null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        assertEquals("a=\"x\\\"y\\\\z\",b=\"\"", Metric.labels("a", "x\"y\\z", "b", ""));
+        registry.unregister(counter);
+        registry.counter("test_total", null, null);
+    }
+
+    public void testHistogramBuckets() {
+        for(long value : new long[] { 0, 1, 3, 4, 5, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE }) {
+            int bucket = Histogram.bucket(value);
+            assertTrue(value <= Histogram.upperBound(bucket));
+            if(bucket > 0)
+                assertTrue(value > Histogram.upperBound(bucket - 1));
+            // At most 1/SUB_BUCKETS relative error.
+            assertTrue(Histogram.upperBound(bucket) - value <= value / Histogram.SUB_BUCKETS);
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Histogram.upperBound(Histogram.BUCKETS - 1));
+    }
+
+    public void testHistogram() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram histogram = registry.histogram("test_ms", "Times.", Metric.labels("kind", "x"));
+        assertEquals(0, histogram.getPercentile(0.5));
+        for(int i=1;i<=100;i++)
+            histogram.record(i);
+        histogram.record(-1);
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(55, histogram.getPercentile(0.5));
+        assertEquals(111, histogram.getPercentile(1.0));
+        String export = registry.export();
+        assertTrue(export, export.startsWith("# HELP test_ms Times.\n# TYPE test_ms histogram\n" +
+                "test_ms_bucket{kind=\"x\",le=\"0\"} 1\n" +
+                "test_ms_bucket{kind=\"x\",le=\"1\"} 2\n"));
+        assertTrue(export, export.contains("test_ms_bucket{kind=\"x\",le=\"111\"} 101\n" +
+                "test_ms_bucket{kind=\"x\",le=\"+Inf\"} 101\n" +
+                "test_ms_sum{kind=\"x\"} 5050\n" +
+                "test_ms_count{kind=\"x\"} 101\n"));
+    }
+
+}